@@ -0,0 +1,56 @@
+package db.migration;
+
+import com.googlecode.flyway.core.api.migration.spring.SpringJdbcMigration;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * InstanceNumber as a number, so the viewer can sort a series with an index
+ * rather than casting every row. Done in Java to fill in the instances already
+ * received, as Derby has no way to skip the ones whose InstanceNumber is not a
+ * number in a CAST.
+ *
+ * @author Daniel Blezek
+ *
+ */
+public class V1_1_0_13__Instance_Number_Value implements SpringJdbcMigration {
+  static final int PageSize = 10000;
+
+  @Override
+  public void migrate(JdbcTemplate template) throws Exception {
+    template.execute("ALTER TABLE INSTANCE add column InstanceNumberValue INTEGER");
+
+    // Last InstanceKey read and the rows read, a page at a time
+    final int[] last = new int[] { -1, 0 };
+    final List<Object[]> updates = new ArrayList<Object[]>();
+    do {
+      last[1] = 0;
+      updates.clear();
+      template.query("select InstanceKey, InstanceNumber from INSTANCE where InstanceKey > ? and InstanceNumber is not null order by InstanceKey fetch first " + PageSize + " rows only", new Object[] { last[0] },
+          new RowCallbackHandler() {
+
+            @Override
+            public void processRow(ResultSet rs) throws SQLException {
+              last[0] = rs.getInt("InstanceKey");
+              last[1]++;
+              try {
+                updates.add(new Object[] { Integer.parseInt(rs.getString("InstanceNumber").trim()), last[0] });
+              } catch (NumberFormatException e) {
+                // Left null, sorted last
+              }
+            }
+          });
+      if (!updates.isEmpty()) {
+        template.batchUpdate("update INSTANCE set InstanceNumberValue = ? where InstanceKey = ?", updates);
+      }
+    } while (last[1] == PageSize);
+
+    template.execute("CREATE INDEX instance_series_number_idx on INSTANCE (SeriesKey ASC, InstanceNumberValue ASC)");
+  }
+}
@@ -42,6 +42,7 @@ import java.util.concurrent.TimeUnit;
 import edu.mayo.qia.pacs.components.AnonymizationMapProcessor;
 import edu.mayo.qia.pacs.components.Connector;
 import edu.mayo.qia.pacs.components.Device;
+import edu.mayo.qia.pacs.components.FetchRouter;
 import edu.mayo.qia.pacs.components.Group;
 import edu.mayo.qia.pacs.components.GroupRole;
 import edu.mayo.qia.pacs.components.Instance;
@@ -51,6 +52,7 @@ import edu.mayo.qia.pacs.components.Pool;
 import edu.mayo.qia.pacs.components.PoolContainer;
 import edu.mayo.qia.pacs.components.PoolManager;
 import edu.mayo.qia.pacs.components.Query;
+import edu.mayo.qia.pacs.components.RenderCache;
 import edu.mayo.qia.pacs.components.Result;
 import edu.mayo.qia.pacs.components.Script;
 import edu.mayo.qia.pacs.components.Series;
@@ -59,9 +61,12 @@ import edu.mayo.qia.pacs.components.User;
 import edu.mayo.qia.pacs.db.GroupDAO;
 import edu.mayo.qia.pacs.db.GroupRoleDAO;
 import edu.mayo.qia.pacs.db.UserDAO;
+import edu.mayo.qia.pacs.dicom.AssociationPool;
 import edu.mayo.qia.pacs.dicom.DICOMReceiver;
 import edu.mayo.qia.pacs.job.AutoForwarder;
+import edu.mayo.qia.pacs.job.DeleteStudies;
 import edu.mayo.qia.pacs.job.HashCleaner;
+import edu.mayo.qia.pacs.job.JobEngine;
 import edu.mayo.qia.pacs.managed.DBWebServer;
 import edu.mayo.qia.pacs.managed.QuartzManager;
 import edu.mayo.qia.pacs.rest.AnonymousViewer;
@@ -140,7 +145,7 @@ public class NotionApplication extends Application<NotionConfiguration> {
 
     AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
     context.setParent(parent);
-    context.register(Beans.class, PoolManager.class, PoolContainer.class);
+    context.register(Beans.class, PoolManager.class, PoolContainer.class, FetchRouter.class, JobEngine.class, RenderCache.class);
     context.scan("edu.mayo.qia.pacs.dicom");
     context.scan("edu.mayo.qia.pacs.rest");
     context.scan("edu.mayo.qia.pacs.ctp");
@@ -195,8 +200,16 @@ public class NotionApplication extends Application<NotionConfiguration> {
       environment.lifecycle().manage(new DBWebServer(configuration.dbWeb));
     }
 
+    environment.lifecycle().manage(context.getBean(RenderCache.class));
     environment.lifecycle().manage(context.getBean("poolManager", PoolManager.class));
     environment.lifecycle().manage(context.getBean("dicomReceiver", DICOMReceiver.class));
+    environment.lifecycle().manage(context.getBean(AssociationPool.class));
+
+    JobEngine jobEngine = context.getBean(JobEngine.class);
+    jobEngine.register("query", new Query.Handler(false));
+    jobEngine.register("fetch", new Query.Handler(true));
+    jobEngine.register("delete", new DeleteStudies());
+    environment.lifecycle().manage(jobEngine);
 
     environment.servlets().setSessionHandler(new SessionHandler());
     environment.jersey().setUrlPattern("/rest/*");
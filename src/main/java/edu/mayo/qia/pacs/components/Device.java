@@ -27,6 +27,12 @@ public final class Device {
   public String callingApplicationEntityTitle = null;
   @Column(columnDefinition = "INTEGER")
   public boolean isAutoforward = false;
+  /** Preferred transfer syntaxes for images not sent as stored */
+  public String transferSyntaxes = null;
+  /** C-FINDs a query runs at once, 0 for the server default */
+  public int queryAssociations = 0;
+  /** C-MOVEs a fetch runs at once, 0 for the server default */
+  public int fetchAssociations = 0;
 
   @ManyToOne(cascade = { CascadeType.PERSIST, CascadeType.MERGE })
   @JoinColumn(name = "PoolKey")
@@ -67,6 +73,9 @@ public final class Device {
     this.port = update.port;
     this.hostName = update.hostName;
     this.isAutoforward = update.isAutoforward;
+    this.transferSyntaxes = update.transferSyntaxes;
+    this.queryAssociations = update.queryAssociations;
+    this.fetchAssociations = update.fetchAssociations;
   }
 
   @Override
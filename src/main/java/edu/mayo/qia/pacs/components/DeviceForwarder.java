@@ -0,0 +1,347 @@
+package edu.mayo.qia.pacs.components;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+
+import org.apache.log4j.Logger;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+import edu.mayo.qia.pacs.Notion;
+import edu.mayo.qia.pacs.NotionConfiguration;
+import edu.mayo.qia.pacs.dicom.AssociationPool;
+import edu.mayo.qia.pacs.dicom.DcmSnd;
+import edu.mayo.qia.pacs.dicom.TransferScheduler;
+
+/**
+ * Sends the FORWARDQUEUE entries of one autoforward device.
+ *
+ * An entry is deleted once the device stores the instance. Failures the device
+ * may recover from (no association, no response, out of resources) are tried
+ * again after an exponential backoff, starting at
+ * <code>forwardRetrySeconds</code> and capped at an hour. After
+ * <code>forwardMaxAttempts</code> tries, or when the device refuses the
+ * instance outright, the entry is marked dead and kept for inspection.
+ *
+ * {@link #signal()} is called as instances are queued, and sends them right
+ * away on a worker of its own, so a slow device does not hold up the others.
+ * Instances queued while a send is under way are picked up by the next pass
+ * over the same pooled associations. While the device is unreachable, signals
+ * are ignored until the retry is due, the minute sweep still drains it.
+ *
+ * @author Daniel Blezek
+ *
+ */
+public class DeviceForwarder {
+  static Logger logger = Logger.getLogger(DeviceForwarder.class);
+  static final int BatchSize = 500;
+  static final long MaxBackoff = 60 * 60 * 1000L;
+
+  final PoolContainer container;
+  final int deviceKey;
+  final JdbcTemplate template;
+  final NotionConfiguration configuration;
+  final AssociationPool associationPool;
+  final TransferScheduler transferScheduler;
+  final ReentrantLock lock = new ReentrantLock();
+  final List<String> metricNames = new ArrayList<String>();
+
+  Meter sentMeter;
+  Meter failedMeter;
+  volatile int queued = 0;
+  volatile int dead = 0;
+  volatile long oldest = 0;
+
+  /** A worker is running or about to run */
+  final AtomicBoolean scheduled = new AtomicBoolean(false);
+  /** Something was queued since the worker last looked */
+  volatile boolean signalled = false;
+  /** The device could not be reached, don't bother before this time */
+  volatile long heldUntil = 0;
+
+  static class Entry {
+    int forwardKey;
+    int attempts;
+    DcmSnd.FileInfo info;
+  }
+
+  public DeviceForwarder(PoolContainer container, Device device) {
+    this.container = container;
+    this.deviceKey = device.deviceKey;
+    this.template = Notion.context.getBean(JdbcTemplate.class);
+    this.configuration = Notion.context.getBean(NotionConfiguration.class);
+    this.associationPool = Notion.context.getBean(AssociationPool.class);
+    this.transferScheduler = Notion.context.getBean(TransferScheduler.class);
+
+    String base = MetricRegistry.name("Pool", container.getPool().applicationEntityTitle, "forward", device.applicationEntityTitle);
+    sentMeter = Notion.metrics.meter(MetricRegistry.name(base, "sent"));
+    failedMeter = Notion.metrics.meter(MetricRegistry.name(base, "failed"));
+    register(MetricRegistry.name(base, "queue"), new Gauge<Integer>() {
+      @Override
+      public Integer getValue() {
+        return queued;
+      }
+    });
+    register(MetricRegistry.name(base, "dead"), new Gauge<Integer>() {
+      @Override
+      public Integer getValue() {
+        return dead;
+      }
+    });
+    register(MetricRegistry.name(base, "lag"), new Gauge<Long>() {
+      @Override
+      public Long getValue() {
+        return oldest == 0 ? 0 : (System.currentTimeMillis() - oldest) / 1000;
+      }
+    });
+  }
+
+  void register(String name, Gauge<?> gauge) {
+    Notion.metrics.remove(name);
+    Notion.metrics.register(name, gauge);
+    metricNames.add(name);
+  }
+
+  /** The device is gone, drop its gauges. */
+  public void stop() {
+    for (String name : metricNames) {
+      Notion.metrics.remove(name);
+    }
+  }
+
+  /** Instances were queued for the device, send them as soon as possible. */
+  public void signal() {
+    signalled = true;
+    if (System.currentTimeMillis() < heldUntil) {
+      return;
+    }
+    if (scheduled.compareAndSet(false, true)) {
+      Notion.executor.execute(new Runnable() {
+
+        @Override
+        public void run() {
+          work();
+        }
+      });
+    }
+  }
+
+  void work() {
+    do {
+      while (signalled) {
+        signalled = false;
+        drain();
+        if (System.currentTimeMillis() < heldUntil) {
+          break;
+        }
+      }
+      scheduled.set(false);
+      // A signal may have arrived after the last pass, but before we were done
+    } while (signalled && System.currentTimeMillis() >= heldUntil && scheduled.compareAndSet(false, true));
+  }
+
+  /**
+   * Send everything that is due, waiting for a drain already in progress to
+   * finish first.
+   */
+  public void drain() {
+    lock.lock();
+    try {
+      Device device = loadDevice();
+      if (device == null) {
+        return;
+      }
+      // Every entry sent changes state, an entry seen twice means it could not
+      // be updated, so stop rather than send it again and again
+      Set<Integer> seen = new HashSet<Integer>();
+      List<Entry> batch;
+      while (!(batch = nextBatch()).isEmpty() && seen.add(batch.get(0).forwardKey)) {
+        sendBatch(device, batch);
+        if (System.currentTimeMillis() < heldUntil) {
+          // Could not reach the device, the rest waits for the retry
+          break;
+        }
+      }
+    } catch (Exception e) {
+      logger.error("Failed to autoforward to device " + deviceKey, e);
+    } finally {
+      updateStatistics();
+      lock.unlock();
+    }
+  }
+
+  Device loadDevice() {
+    final List<Device> devices = new ArrayList<Device>();
+    template.query("select ApplicationEntityTitle, HostName, Port, CallingApplicationEntityTitle, TransferSyntaxes from DEVICE where DeviceKey = ? and IsAutoforward = 1", new Object[] { deviceKey }, new RowCallbackHandler() {
+
+      @Override
+      public void processRow(ResultSet rs) throws SQLException {
+        Device device = new Device(rs.getString("ApplicationEntityTitle"), rs.getString("HostName"), rs.getInt("Port"), rs.getString("CallingApplicationEntityTitle"), null);
+        device.deviceKey = deviceKey;
+        device.transferSyntaxes = rs.getString("TransferSyntaxes");
+        devices.add(device);
+      }
+    });
+    return devices.isEmpty() ? null : devices.get(0);
+  }
+
+  List<Entry> nextBatch() {
+    final List<Entry> batch = new ArrayList<Entry>();
+    final File poolDirectory = container.getPoolDirectory();
+    template.query("select FORWARDQUEUE.ForwardKey, FORWARDQUEUE.Attempts, INSTANCE.FilePath, INSTANCE.SOPClassUID, INSTANCE.SOPInstanceUID, INSTANCE.TransferSyntaxUID, INSTANCE.FmiEndPosition, INSTANCE.FileLength"
+        + " from FORWARDQUEUE, INSTANCE where FORWARDQUEUE.InstanceKey = INSTANCE.InstanceKey and FORWARDQUEUE.DeviceKey = ? and FORWARDQUEUE.Status = 'queued' and FORWARDQUEUE.NextAttempt <= ?"
+        + " order by FORWARDQUEUE.NextAttempt FETCH NEXT " + BatchSize + " ROWS ONLY", new Object[] { deviceKey, new Timestamp(System.currentTimeMillis()) }, new RowCallbackHandler() {
+
+      @Override
+      public void processRow(ResultSet rs) throws SQLException {
+        Entry entry = new Entry();
+        entry.forwardKey = rs.getInt("ForwardKey");
+        entry.attempts = rs.getInt("Attempts");
+        File f = new File(poolDirectory, rs.getString("FilePath"));
+        if (rs.getString("TransferSyntaxUID") == null) {
+          entry.info = new DcmSnd.FileInfo(f);
+        } else {
+          entry.info = new DcmSnd.FileInfo(f, rs.getString("SOPClassUID"), rs.getString("SOPInstanceUID"), rs.getString("TransferSyntaxUID"), rs.getLong("FmiEndPosition"), rs.getLong("FileLength"));
+        }
+        batch.add(entry);
+      }
+    });
+    return batch;
+  }
+
+  /** Send a batch, spread over <code>forwardAssociations</code> associations. */
+  void sendBatch(final Device device, List<Entry> batch) throws InterruptedException {
+    int associations = Math.max(1, Math.min(configuration.notion.forwardAssociations, batch.size()));
+    final List<List<Entry>> partitions = new ArrayList<List<Entry>>();
+    for (int i = 0; i < associations; i++) {
+      partitions.add(new ArrayList<Entry>());
+    }
+    for (int i = 0; i < batch.size(); i++) {
+      partitions.get(i % associations).add(batch.get(i));
+    }
+    final CountDownLatch done = new CountDownLatch(associations);
+    for (final List<Entry> entries : partitions) {
+      Notion.executor.execute(new Runnable() {
+
+        @Override
+        public void run() {
+          try {
+            sendPartition(device, entries);
+          } finally {
+            done.countDown();
+          }
+        }
+      });
+    }
+    done.await();
+  }
+
+  void sendPartition(Device device, List<Entry> entries) {
+    DcmSnd sender = new DcmSnd("autoforward to " + device);
+    sender.setMaxOpsInvoked(configuration.notion.maxOpsInvoked);
+    sender.setAssociationPool(associationPool);
+    sender.setTransferScheduler(transferScheduler, TransferScheduler.Priority.Autoforward, container.getPool().applicationEntityTitle);
+    sender.setRemoteHost(device.hostName);
+    sender.setRemotePort(device.port);
+    sender.setCalledAET(device.applicationEntityTitle);
+    sender.setTransferSyntaxes(device.transferSyntaxes);
+    String calling = device.callingApplicationEntityTitle;
+    if (calling == null) {
+      calling = container.getPool().applicationEntityTitle;
+    }
+    sender.setCalling(calling);
+    for (Entry entry : entries) {
+      if (entry.info.getFile().isFile()) {
+        sender.addFile(entry.info);
+      }
+    }
+    String error = null;
+    try {
+      if (sender.getFiles().isEmpty()) {
+        throw new IOException("No readable files to send");
+      }
+      sender.configureTransferCapability();
+      sender.open();
+      try {
+        sender.send(null);
+      } finally {
+        sender.close();
+      }
+    } catch (Exception e) {
+      logger.error("Failed to autoforward to " + device, e);
+      error = e.getMessage() == null ? e.toString() : e.getMessage();
+    }
+    if (error != null && sender.getFilesSent() == 0) {
+      // Could not reach the device, wait for the first retry
+      heldUntil = System.currentTimeMillis() + 1000L * Math.max(1, configuration.notion.forwardRetrySeconds);
+    }
+
+    Map<File, DcmSnd.FileInfo> results = new HashMap<File, DcmSnd.FileInfo>();
+    for (DcmSnd.FileInfo info : sender.getFiles()) {
+      results.put(info.getFile(), info);
+    }
+    for (Entry entry : entries) {
+      DcmSnd.FileInfo result = results.get(entry.info.getFile());
+      if (result == null) {
+        failedMeter.mark();
+        markDead(entry, "Could not read " + entry.info.getFile());
+      } else if (result.isTransferred()) {
+        sentMeter.mark();
+        template.update("delete from FORWARDQUEUE where ForwardKey = ?", entry.forwardKey);
+      } else {
+        failedMeter.mark();
+        String message = error != null && result.getStatus() == DcmSnd.NoResponse ? error : "C-STORE status " + Integer.toHexString(result.getStatus());
+        if (result.isRetryable() && entry.attempts + 1 < configuration.notion.forwardMaxAttempts) {
+          retryLater(entry, message);
+        } else {
+          markDead(entry, message);
+        }
+      }
+    }
+  }
+
+  void retryLater(Entry entry, String message) {
+    long backoff = 1000L * Math.max(1, configuration.notion.forwardRetrySeconds);
+    for (int i = 0; i < entry.attempts && backoff < MaxBackoff; i++) {
+      backoff *= 2;
+    }
+    backoff = Math.min(backoff, MaxBackoff);
+    template.update("update FORWARDQUEUE set Attempts = Attempts + 1, NextAttempt = ?, LastError = ? where ForwardKey = ?", new Timestamp(System.currentTimeMillis() + backoff), truncate(message), entry.forwardKey);
+  }
+
+  void markDead(Entry entry, String message) {
+    logger.error("Giving up autoforwarding " + entry.info.getFile() + " to device " + deviceKey + ": " + message);
+    template.update("update FORWARDQUEUE set Attempts = Attempts + 1, Status = 'dead', LastError = ? where ForwardKey = ?", truncate(message), entry.forwardKey);
+  }
+
+  void updateStatistics() {
+    try {
+      queued = template.queryForObject("select count(*) from FORWARDQUEUE where DeviceKey = ? and Status = 'queued'", Integer.class, deviceKey);
+      dead = template.queryForObject("select count(*) from FORWARDQUEUE where DeviceKey = ? and Status = 'dead'", Integer.class, deviceKey);
+      Timestamp first = template.queryForObject("select min(QueuedTime) from FORWARDQUEUE where DeviceKey = ? and Status = 'queued'", Timestamp.class, deviceKey);
+      oldest = first == null ? 0 : first.getTime();
+    } catch (Exception e) {
+      logger.error("Failed to update autoforward statistics for device " + deviceKey, e);
+    }
+  }
+
+  static String truncate(String message) {
+    return message.length() > 250 ? message.substring(0, 250) : message;
+  }
+}
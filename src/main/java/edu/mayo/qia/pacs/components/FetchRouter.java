@@ -0,0 +1,132 @@
+package edu.mayo.qia.pacs.components;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+
+import org.apache.log4j.Logger;
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
+import org.dcm4che2.io.DicomInputStream;
+import org.dcm4che2.io.StopTagInputHandler;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.mayo.qia.pacs.Notion;
+
+/**
+ * Sends the images of a fetch straight into the pool that asked for them.
+ *
+ * A fetch C-MOVEs a study to the query's destination pool. While the move is
+ * running, images arriving at that pool as sub-operations of a C-MOVE from the
+ * query pool, for the study being fetched, are processed by the requesting
+ * pool (and its anonymizer) instead, so they are written once rather than
+ * stored in the destination pool, copied and deleted. Images are matched on
+ * the Move Originator AET and the Study Instance UID, images from a PACS that
+ * does not send the Move Originator are stored in the destination pool as
+ * before.
+ *
+ * @author Daniel Blezek
+ *
+ */
+@Component
+public class FetchRouter {
+  static Logger logger = Logger.getLogger(FetchRouter.class);
+
+  static Meter routedMeter = Notion.metrics.meter(MetricRegistry.name("Fetch", "routed"));
+
+  final ConcurrentMap<String, Route> routes = new ConcurrentHashMap<String, Route>();
+  /** Open routes for each receiving pool and originator */
+  final ConcurrentMap<String, AtomicInteger> originators = new ConcurrentHashMap<String, AtomicInteger>();
+
+  /** Where the images of one study are sent, and what happened to them. */
+  public class Route {
+    final String key;
+    final String originatorKey;
+    final PoolContainer target;
+    final ProcessCache cache = new ProcessCache();
+    public final MoveStatus status = new MoveStatus();
+    public final AtomicInteger received = new AtomicInteger();
+    public final AtomicInteger failed = new AtomicInteger();
+
+    Route(String key, String originatorKey, PoolContainer target) {
+      this.key = key;
+      this.originatorKey = originatorKey;
+      this.target = target;
+    }
+
+    void process(File file) throws Exception {
+      try {
+        target.process(file, status, cache);
+        received.incrementAndGet();
+        routedMeter.mark();
+      } catch (Exception e) {
+        failed.incrementAndGet();
+        throw e;
+      }
+    }
+
+    /** The move finished, later images go to the receiving pool. */
+    public void close() {
+      if (routes.remove(key, this)) {
+        originators.get(originatorKey).decrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Route images of <code>studyInstanceUID</code> moved to
+   * <code>poolKey</code> at the request of <code>originatorAET</code> into
+   * <code>target</code>, until the route is closed.
+   */
+  public Route open(int poolKey, String originatorAET, String studyInstanceUID, PoolContainer target) {
+    String originatorKey = poolKey + "/" + originatorAET;
+    Route route = new Route(originatorKey + "/" + studyInstanceUID, originatorKey, target);
+    originators.putIfAbsent(originatorKey, new AtomicInteger());
+    originators.get(originatorKey).incrementAndGet();
+    Route previous = routes.put(route.key, route);
+    if (previous != null) {
+      // Two fetches of the same study, the later one gets the images
+      originators.get(originatorKey).decrementAndGet();
+    }
+    return route;
+  }
+
+  /**
+   * Process an image received by <code>poolKey</code> if it belongs to a
+   * fetch.
+   *
+   * @return false if the image does not belong to a fetch
+   */
+  public boolean process(int poolKey, String originatorAET, File file) throws Exception {
+    if (originatorAET == null) {
+      return false;
+    }
+    String originatorKey = poolKey + "/" + originatorAET;
+    AtomicInteger count = originators.get(originatorKey);
+    if (count == null || count.get() == 0) {
+      return false;
+    }
+    Route route = routes.get(originatorKey + "/" + readStudyInstanceUID(file));
+    if (route == null) {
+      return false;
+    }
+    route.process(file);
+    return true;
+  }
+
+  static String readStudyInstanceUID(File file) throws IOException {
+    DicomInputStream din = new DicomInputStream(file);
+    try {
+      din.setHandler(new StopTagInputHandler(Tag.SeriesInstanceUID));
+      DicomObject dataset = din.readDicomObject();
+      return dataset.getString(Tag.StudyInstanceUID);
+    } finally {
+      din.close();
+    }
+  }
+}
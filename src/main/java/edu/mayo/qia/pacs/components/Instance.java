@@ -14,6 +14,8 @@ import org.dcm4che2.data.Tag;
 
 import java.util.Date;
 
+import edu.mayo.qia.pacs.dicom.DcmSnd;
+
 @Entity
 @Table
 public class Instance {
@@ -29,9 +31,14 @@ public class Instance {
   public String SOPInstanceUID;
   public String SOPClassUID;
   public String InstanceNumber;
+  /** InstanceNumber as a number, for sorting, null if it is not one */
+  public Integer InstanceNumberValue;
   public Date ContentDate;
   public Date ContentTime;
   public String FilePath;
+  public String TransferSyntaxUID;
+  public Long FmiEndPosition;
+  public Long FileLength;
 
   public Instance() {
   }
@@ -45,7 +52,22 @@ public class Instance {
   public void update(DicomObject tags) {
     SOPClassUID = tags.getString(Tag.SOPClassUID);
     InstanceNumber = tags.getString(Tag.InstanceNumber);
+    InstanceNumberValue = null;
+    if (InstanceNumber != null) {
+      try {
+        InstanceNumberValue = Integer.parseInt(InstanceNumber.trim());
+      } catch (NumberFormatException e) {
+        // Not a number, sorted last
+      }
+    }
     ContentDate = tags.getDate(Tag.ContentDate);
     ContentTime = tags.getDate(Tag.ContentTime);
   }
+
+  /** Record how the file is encoded, so it can be sent without parsing. */
+  public void update(DcmSnd.FileInfo info) {
+    TransferSyntaxUID = info.getTransferSyntaxUID();
+    FmiEndPosition = info.getFmiEndPosition();
+    FileLength = info.getLength();
+  }
 }
@@ -0,0 +1,114 @@
+package edu.mayo.qia.pacs.components;
+
+import org.apache.log4j.Logger;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.sql.Timestamp;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Progress of one C-MOVE or study move, kept in MOVEJOB and MOVEITEM.
+ *
+ * A move of the same study or series, from the same pool to the same
+ * destination, that did not finish within <code>moveResumeHours</code> is
+ * resumed: instances the destination already stored are not sent again. The
+ * job completes once every instance is stored, and only then is it safe to
+ * remove the source.
+ *
+ * @author Daniel Blezek
+ *
+ */
+public class MoveJob {
+  static Logger logger = Logger.getLogger(MoveJob.class);
+
+  final JdbcTemplate template;
+  public final int moveJobKey;
+  final Set<String> done;
+  int failed = 0;
+
+  MoveJob(JdbcTemplate template, int moveJobKey, Set<String> done) {
+    this.template = template;
+    this.moveJobKey = moveJobKey;
+    this.done = done;
+  }
+
+  /**
+   * Resume the unfinished move of <code>uid</code> from the pool to
+   * <code>destination</code>, or start a new one.
+   */
+  public static MoveJob open(JdbcTemplate template, int poolKey, String destination, String uid, int resumeHours) {
+    Timestamp now = new Timestamp(System.currentTimeMillis());
+    Timestamp expired = new Timestamp(now.getTime() - resumeHours * 60 * 60 * 1000L);
+    // Too old, the destination may not have what it was sent any more
+    List<Integer> stale = template.queryForList("select MoveJobKey from MOVEJOB where PoolKey = ? and Destination = ? and UID = ? and Status in ( 'running', 'incomplete' ) and UpdatedTime < ?", Integer.class, poolKey,
+        destination, uid, expired);
+    for (Integer key : stale) {
+      template.update("delete from MOVEITEM where MoveJobKey = ?", key);
+      template.update("update MOVEJOB set Status = 'abandoned' where MoveJobKey = ?", key);
+    }
+
+    List<Integer> keys = template.queryForList("select MoveJobKey from MOVEJOB where PoolKey = ? and Destination = ? and UID = ? and Status in ( 'running', 'incomplete' ) order by MoveJobKey desc", Integer.class, poolKey, destination, uid);
+    if (!keys.isEmpty()) {
+      int key = keys.get(0);
+      Set<String> done = Collections.synchronizedSet(new HashSet<String>(template.queryForList("select SOPInstanceUID from MOVEITEM where MoveJobKey = ? and Status = 'done'", String.class, key)));
+      template.update("update MOVEJOB set Status = 'running', UpdatedTime = ? where MoveJobKey = ?", now, key);
+      logger.info("Resuming move of " + uid + " to " + destination + ", " + done.size() + " instances already sent");
+      return new MoveJob(template, key, done);
+    }
+    template.update("insert into MOVEJOB ( PoolKey, Destination, UID, CreatedTime, UpdatedTime ) values ( ?, ?, ?, ?, ? )", poolKey, destination, uid, now, now);
+    int key = template.queryForObject("select max(MoveJobKey) from MOVEJOB where PoolKey = ? and Destination = ? and UID = ?", Integer.class, poolKey, destination, uid);
+    return new MoveJob(template, key, Collections.synchronizedSet(new HashSet<String>()));
+  }
+
+  /** Was the instance stored by an earlier attempt? */
+  public boolean isDone(String sopInstanceUID) {
+    return sopInstanceUID != null && done.contains(sopInstanceUID);
+  }
+
+  /** Instances stored by earlier attempts. */
+  public int getDone() {
+    return done.size();
+  }
+
+  /** The destination stored the instance. */
+  public synchronized void done(String sopInstanceUID) {
+    if (sopInstanceUID == null || !done.add(sopInstanceUID)) {
+      return;
+    }
+    if (template.update("update MOVEITEM set Status = 'done', LastError = null where MoveJobKey = ? and SOPInstanceUID = ?", moveJobKey, sopInstanceUID) == 0) {
+      template.update("insert into MOVEITEM ( MoveJobKey, SOPInstanceUID, Status ) values ( ?, ?, 'done' )", moveJobKey, sopInstanceUID);
+    }
+  }
+
+  /** The instance could not be sent. */
+  public synchronized void failed(String sopInstanceUID, String error) {
+    failed++;
+    if (sopInstanceUID == null) {
+      return;
+    }
+    if (error != null && error.length() > 250) {
+      error = error.substring(0, 250);
+    }
+    if (template.update("update MOVEITEM set Status = 'failed', LastError = ? where MoveJobKey = ? and SOPInstanceUID = ?", error, moveJobKey, sopInstanceUID) == 0) {
+      template.update("insert into MOVEITEM ( MoveJobKey, SOPInstanceUID, Status, LastError ) values ( ?, ?, 'failed', ? )", moveJobKey, sopInstanceUID, error);
+    }
+  }
+
+  /**
+   * Record the outcome of this attempt.
+   *
+   * @return true if every one of the <code>total</code> instances is stored
+   */
+  public synchronized boolean finish(int total) {
+    boolean complete = failed == 0 && done.size() >= total;
+    template.update("update MOVEJOB set Status = ?, Total = ?, Completed = ?, Failed = ?, UpdatedTime = ? where MoveJobKey = ?", complete ? "completed" : "incomplete", total, done.size(), failed,
+        new Timestamp(System.currentTimeMillis()), moveJobKey);
+    if (complete) {
+      template.update("delete from MOVEITEM where MoveJobKey = ?", moveJobKey);
+    }
+    return complete;
+  }
+}
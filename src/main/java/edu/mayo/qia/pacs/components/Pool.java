@@ -34,6 +34,8 @@ public final class Pool {
   public String applicationEntityTitle;
   @Column(columnDefinition = "INTEGER")
   public boolean anonymize;
+  /** Maximum number of C-FIND matches to return, 0 is unlimited. */
+  public int maxFindMatches = 0;
 
   @JsonIgnore
   @OneToMany(cascade = CascadeType.ALL, mappedBy = "pool")
@@ -96,5 +98,6 @@ public final class Pool {
     this.name = update.name;
     this.description = update.description;
     this.anonymize = update.anonymize;
+    this.maxFindMatches = update.maxFindMatches;
   }
 }
@@ -6,6 +6,7 @@ import javax.xml.parsers.ParserConfigurationException;
 
 import com.codahale.metrics.CachedGauge;
 import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.Metric;
 import com.codahale.metrics.MetricFilter;
@@ -47,6 +48,7 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -54,10 +56,11 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
 
 import edu.mayo.qia.pacs.Audit;
 import edu.mayo.qia.pacs.Notion;
@@ -97,8 +100,10 @@ public class PoolContainer {
   File scriptsDirectory;
   File incomingDirectory;
   File imageDirectory;
-  ConcurrentLinkedQueue<File> instancesToForward = new ConcurrentLinkedQueue<File>();
+  ConcurrentMap<Integer, DeviceForwarder> forwarders = new ConcurrentHashMap<Integer, DeviceForwarder>();
   PipelineStage ctpAnonymizer = null;
+  StudyIndex studyIndex = null;
+  QueryCache queryCache = null;
 
   @Autowired
   private JdbcTemplate template;
@@ -115,6 +120,9 @@ public class PoolContainer {
   @Autowired
   ObjectMapper objectMapper;
 
+  @Autowired
+  RenderCache renderCache;
+
   private String sequenceName;
 
   public PoolContainer() {
@@ -174,6 +182,28 @@ public class PoolContainer {
     queryMap.put("series", "select count(*) from SERIES, STUDY where STUDY.StudyKey = SERIES.StudyKey and STUDY.PoolKey = ?");
     queryMap.put("studies", "select count(*) from STUDY where STUDY.PoolKey = ?");
 
+    // Keep the study list in memory
+    if (configuration.notion.studyIndex) {
+      Timer.Context indexContext = Notion.metrics.timer(MetricRegistry.name("Pool", pool.applicationEntityTitle, "index", "load")).time();
+      studyIndex = new StudyIndex();
+      studyIndex.load(template, pool.poolKey);
+      indexContext.stop();
+      Notion.metrics.register(MetricRegistry.name("Pool", pool.applicationEntityTitle, "index", "studies"), new Gauge<Integer>() {
+        @Override
+        public Integer getValue() {
+          return studyIndex.size();
+        }
+      });
+    }
+
+    // Cache repeated searches, invalidated on every change to the pool
+    if (configuration.notion.queryCacheSeconds > 0) {
+      queryCache = new QueryCache(TimeUnit.SECONDS.toMillis(configuration.notion.queryCacheSeconds), configuration.notion.queryCacheSize);
+      Notion.metrics.register(MetricRegistry.name("Pool", pool.applicationEntityTitle, "cache", "hit"), queryCache.getHits());
+      Notion.metrics.register(MetricRegistry.name("Pool", pool.applicationEntityTitle, "cache", "miss"), queryCache.getMisses());
+      Notion.metrics.register(MetricRegistry.name("Pool", pool.applicationEntityTitle, "cache", "ratio"), queryCache.getRatio());
+    }
+
     for (final String table : queryMap.keySet()) {
       Notion.metrics.register(MetricRegistry.name("Pool", pool.applicationEntityTitle, table.toLowerCase()), new CachedGauge<Long>(5, TimeUnit.MINUTES) {
         @Override
@@ -285,6 +315,12 @@ public class PoolContainer {
           new Object[] { pool.poolKey, studyKey }, String.class);
       // Delete, should cascade!
       template.update("delete from STUDY where PoolKey = ? and StudyKey = ?", pool.poolKey, studyKey);
+      if (studyIndex != null) {
+        studyIndex.remove(studyKey);
+      }
+      if (queryCache != null) {
+        queryCache.invalidate();
+      }
 
       logger.error("\n\n\t=====\n\n\tDeleting STUDY " + studyKey + " from POOL " + pool.poolKey + "\n\n\t=====\n\n");
 
@@ -345,7 +381,8 @@ public class PoolContainer {
       File originalFile = incoming;
 
       // Index the file
-      DicomObject tags = TagLoader.loadTags(inFile);
+      DcmSnd.FileInfo info = new DcmSnd.FileInfo(inFile);
+      DicomObject tags = TagLoader.loadTags(inFile, info);
       logger.debug("Saving file for " + tags.getString(Tag.PatientName));
 
       File relativePath = constructRelativeFileName(tags);
@@ -395,9 +432,13 @@ public class PoolContainer {
           cache.studies.put(tags.getString(Tag.StudyInstanceUID), study);
           session.getTransaction().commit();
           session.beginTransaction();
+          if (studyIndex != null) {
+            studyIndex.put(study);
+          }
         }
 
         Series series = cache.series.get(tags.getString(Tag.SeriesInstanceUID));
+        boolean newSeries = false;
         if (series == null) {
           // Find the Series
           query = session.createQuery("from Series where StudyKey = :studykey and SeriesInstanceUID = :suid");
@@ -407,6 +448,7 @@ public class PoolContainer {
           if (series == null) {
             series = new Series(tags);
             series.study = study;
+            newSeries = true;
             // Log when we get a new study
             Audit.log(pool.toString(), "create_series", tags);
           } else {
@@ -432,16 +474,30 @@ public class PoolContainer {
           instance.FilePath = relativePath.getPath();
           existingFile.delete();
         }
+        instance.update(info);
+
+        // Copy the file before the instance is committed, remove later
+        Files.copy(inFile, outFile);
+        logger.debug("Moved file " + inFile + " to " + outFile);
+
         session.saveOrUpdate(instance);
         session.getTransaction().commit();
         session.beginTransaction();
 
-        // Copy the file, remove later
-        Files.copy(inFile, outFile);
-        logger.debug("Moved file " + inFile + " to " + outFile);
+        // A preview of the series, usually its first image
+        if (newSeries || Integer.valueOf(1).equals(instance.InstanceNumberValue)) {
+          renderCache.renderAtIngest(instance.InstanceKey, outFile);
+        }
 
-        // Queue the file up to be forwarded later
-        instancesToForward.add(outFile);
+        // Queue the instance up to be forwarded later, once per autoforward
+        // device, unless it is already waiting
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        int queued = template.update("insert into FORWARDQUEUE ( DeviceKey, InstanceKey, QueuedTime, NextAttempt ) select DEVICE.DeviceKey, ?, ?, ? from DEVICE where DEVICE.PoolKey = ? and DEVICE.IsAutoforward = 1"
+            + " and not exists ( select ForwardKey from FORWARDQUEUE where FORWARDQUEUE.DeviceKey = DEVICE.DeviceKey and FORWARDQUEUE.InstanceKey = ? and FORWARDQUEUE.Status = 'queued' )", instance.InstanceKey, now, now,
+            pool.poolKey, instance.InstanceKey);
+        if (queued > 0) {
+          signalAutoForward();
+        }
 
         // Delete the input file, it is not needed any more
         if (inFile.exists()) {
@@ -464,7 +520,17 @@ public class PoolContainer {
         }
       } catch (Exception e) {
         logger.error("Caught exception", e);
+        if (session.getTransaction().isActive()) {
+          session.getTransaction().rollback();
+        }
+        // The cache may hold a study or series that was never committed
+        cache.studies.remove(tags.getString(Tag.StudyInstanceUID));
+        cache.series.remove(tags.getString(Tag.SeriesInstanceUID));
+        throw e;
       } finally {
+        if (queryCache != null) {
+          queryCache.invalidate();
+        }
         poolContext.stop();
         context.stop();
         session.close();
@@ -496,6 +562,16 @@ public class PoolContainer {
     return poolDirectory;
   }
 
+  /** The in-memory study index, or null if the index is not enabled. */
+  public StudyIndex getStudyIndex() {
+    return studyIndex;
+  }
+
+  /** Cache of recent search results, or null if caching is disabled. */
+  public QueryCache getQueryCache() {
+    return queryCache;
+  }
+
   public void delete() {
     stop();
     // First start by deleting all the studies
@@ -542,35 +618,53 @@ public class PoolContainer {
     return relativePath;
   }
 
-  public boolean moveStudyTo(String studyInstanceUID, final PoolContainer destination, final MoveStatus status) {
-    final AtomicBoolean successful = new AtomicBoolean(true);
+  /**
+   * Copy a study into <code>destination</code>. Progress is kept in MOVEJOB,
+   * so calling this again after a failure only copies what is missing.
+   *
+   * @return true once every instance of the study is in the destination
+   */
+  public boolean moveStudyTo(final String studyInstanceUID, final PoolContainer destination, final MoveStatus status) {
+    final MoveJob job = MoveJob.open(template, pool.poolKey, "pool " + destination.getPool().poolKey, studyInstanceUID, configuration.notion.moveResumeHours);
     long numberToMove = template.queryForObject("select count(INSTANCE.FilePath) from INSTANCE, STUDY, SERIES where STUDY.PoolKey = ? AND INSTANCE.SeriesKey = SERIES.SeriesKey and SERIES.StudyKey = STUDY.StudyKey and STUDY.StudyInstanceUID = ?",
         new Object[] { this.pool.poolKey, studyInstanceUID }, Long.class);
     moveCounter.inc(numberToMove);
     poolMoveCounter.inc(numberToMove);
-    template.query("select INSTANCE.FilePath from INSTANCE, STUDY, SERIES where STUDY.PoolKey = ? AND INSTANCE.SeriesKey = SERIES.SeriesKey and SERIES.StudyKey = STUDY.StudyKey and STUDY.StudyInstanceUID = ?",
+    template.query("select INSTANCE.FilePath, INSTANCE.SOPInstanceUID from INSTANCE, STUDY, SERIES where STUDY.PoolKey = ? AND INSTANCE.SeriesKey = SERIES.SeriesKey and SERIES.StudyKey = STUDY.StudyKey and STUDY.StudyInstanceUID = ?",
         new Object[] { this.pool.poolKey, studyInstanceUID }, new RowCallbackHandler() {
 
           @Override
           public void processRow(ResultSet rs) throws SQLException {
-            File f = new File(getPoolDirectory(), rs.getString("FilePath"));
-            File tempDir = new File(getPoolDirectory(), "incoming");
-            tempDir.mkdirs();
-            File tmpFile = new File(tempDir, UUID.randomUUID().toString() + ".dcm");
-            try {
-              Files.copy(f, tmpFile);
-              destination.process(tmpFile, status);
-            } catch (Exception e) {
-              successful.set(false);
-              logger.error("Error processing file: " + f + " into pool " + pool, e);
+            String sopInstanceUID = rs.getString("SOPInstanceUID");
+            if (!job.isDone(sopInstanceUID)) {
+              File f = new File(getPoolDirectory(), rs.getString("FilePath"));
+              File tempDir = new File(getPoolDirectory(), "incoming");
+              tempDir.mkdirs();
+              File tmpFile = new File(tempDir, UUID.randomUUID().toString() + ".dcm");
+              try {
+                Files.copy(f, tmpFile);
+                destination.process(tmpFile, status);
+                job.done(sopInstanceUID);
+              } catch (Exception e) {
+                tmpFile.delete();
+                job.failed(sopInstanceUID, e.toString());
+                logger.error("Error processing file: " + f + " into pool " + pool, e);
+              }
+              imagesMovedPerSecond.mark();
             }
-            imagesMovedPerSecond.mark();
             moveCounter.dec();
             poolMoveCounter.dec();
           }
         });
     destination.processAnonymizationMap();
-    return successful.get();
+    if (status != null && status.movedStudyKey == 0) {
+      // Everything was copied by an earlier attempt
+      List<Integer> studyKeys = template.queryForList("select StudyKey from STUDY where PoolKey = ? and StudyInstanceUID = ?", Integer.class, destination.getPool().poolKey, studyInstanceUID);
+      if (!studyKeys.isEmpty()) {
+        status.movedStudyKey = studyKeys.get(0);
+      }
+    }
+    return job.finish((int) numberToMove);
   }
 
   public void processAnonymizationMap() {
@@ -630,57 +724,67 @@ public class PoolContainer {
     });
   }
 
+  /**
+   * Send everything queued for this pool's autoforward devices. Devices are
+   * sent to in parallel, and this returns once all of them are done. Instances
+   * are normally sent as they arrive, this catches retries that came due.
+   */
   public void processAutoForward() {
-    // First check our queue
-    if (instancesToForward.isEmpty()) {
-      return;
+    List<Integer> deviceKeys = template.queryForList("select DeviceKey from DEVICE where PoolKey = ? and IsAutoforward = 1", Integer.class, pool.poolKey);
+
+    // Forget devices that were deleted, or no longer autoforward
+    for (Integer deviceKey : forwarders.keySet()) {
+      if (!deviceKeys.contains(deviceKey)) {
+        DeviceForwarder forwarder = forwarders.remove(deviceKey);
+        if (forwarder != null) {
+          forwarder.stop();
+        }
+      }
     }
-    // Collect up all the files to forward, send them on and remove
-    List<File> toProcess = new ArrayList<File>();
 
-    while (!instancesToForward.isEmpty()) {
-      toProcess.add(instancesToForward.poll());
-    }
-    // Get all the devices
-    Session session = sessionFactory.openSession();
+    List<Future<?>> futures = new ArrayList<Future<?>>();
+    for (Integer deviceKey : deviceKeys) {
+      final DeviceForwarder forwarder = getForwarder(deviceKey);
+      futures.add(Notion.executor.submit(new Runnable() {
 
-    Pool localPool = (Pool) session.byId(Pool.class).load(this.pool.poolKey);
-    if (localPool == null) {
-      return;
+        @Override
+        public void run() {
+          forwarder.drain();
+        }
+      }));
     }
-    // Force load
-    localPool.getDevices().size();
+    for (Future<?> future : futures) {
+      try {
+        future.get();
+      } catch (Exception e) {
+        logger.error("Error autoforwarding", e);
+      }
+    }
+  }
 
-    for (Device device : localPool.getDevices()) {
-      if (device.isAutoforward) {
-        // Send our batch of files
-        logger.debug("Autoforwarding " + toProcess.size() + " instance(s) to " + device);
-        try {
-          DcmSnd sender = new DcmSnd("autoforward to " + device);
-          // Startup the sender
-          sender.setRemoteHost(device.hostName);
-          sender.setRemotePort(device.port);
-          sender.setCalledAET(device.applicationEntityTitle);
-          String calling = device.callingApplicationEntityTitle;
-          if (calling == null) {
-            calling = pool.applicationEntityTitle;
-          }
-          sender.setCalling(calling);
-          for (File f : toProcess) {
-            if (f.isFile()) {
-              sender.addFile(f);
-            }
-          }
-          sender.configureTransferCapability();
-          sender.open();
-          sender.send(null);
-          sender.close();
+  /** Wake the forwarders of this pool's autoforward devices. */
+  void signalAutoForward() {
+    for (Integer deviceKey : template.queryForList("select DeviceKey from DEVICE where PoolKey = ? and IsAutoforward = 1", Integer.class, pool.poolKey)) {
+      getForwarder(deviceKey).signal();
+    }
+  }
 
-        } catch (Exception e) {
-          logger.error("Failed to autoforward to " + device, e);
-        }
+  DeviceForwarder getForwarder(int deviceKey) {
+    DeviceForwarder forwarder = forwarders.get(deviceKey);
+    if (forwarder != null) {
+      return forwarder;
+    }
+    // Only one is built, a second would replace the first one's gauges
+    synchronized (forwarders) {
+      forwarder = forwarders.get(deviceKey);
+      if (forwarder == null) {
+        Device device = new Device();
+        device.deviceKey = deviceKey;
+        device.applicationEntityTitle = template.queryForObject("select ApplicationEntityTitle from DEVICE where DeviceKey = ?", String.class, deviceKey);
+        forwarder = new DeviceForwarder(this, device);
+        forwarders.put(deviceKey, forwarder);
       }
+      return forwarder;
     }
-    session.close();
   }
 }
\ No newline at end of file
@@ -13,6 +13,8 @@ import javax.persistence.Table;
 import javax.persistence.Transient;
 
 import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Timer;
 import com.fasterxml.jackson.annotation.JsonFormat;
@@ -20,42 +22,56 @@ import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.databind.JsonNode;
 
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
 import org.apache.log4j.Logger;
-import org.apache.poi.hssf.usermodel.HSSFWorkbook;
 import org.apache.poi.ss.usermodel.Cell;
 import org.apache.poi.ss.usermodel.CellStyle;
 import org.apache.poi.ss.usermodel.DataFormat;
 import org.apache.poi.ss.usermodel.Row;
 import org.apache.poi.ss.usermodel.Sheet;
-import org.apache.poi.ss.usermodel.Workbook;
-import org.apache.poi.xssf.usermodel.XSSFCell;
-import org.apache.poi.xssf.usermodel.XSSFRow;
-import org.apache.poi.xssf.usermodel.XSSFSheet;
-import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
 import org.dcm4che2.data.DicomObject;
 import org.dcm4che2.data.Tag;
 import org.dcm4che2.net.CommandUtils;
 import org.dcm4che2.net.DimseRSP;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.RowCallbackHandler;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import edu.mayo.qia.pacs.Notion;
+import edu.mayo.qia.pacs.NotionConfiguration;
 import edu.mayo.qia.pacs.ctp.Anonymizer;
+import edu.mayo.qia.pacs.dicom.AssociationPool;
 import edu.mayo.qia.pacs.dicom.DcmMoveException;
 import edu.mayo.qia.pacs.dicom.DcmQR;
+import edu.mayo.qia.pacs.job.BackgroundJob;
+import edu.mayo.qia.pacs.job.JobEngine;
+import edu.mayo.qia.pacs.job.JobHandler;
 
 @Entity
 @Table
@@ -92,73 +108,62 @@ public class Query {
   @OneToMany(cascade = CascadeType.ALL, mappedBy = "query", fetch = FetchType.EAGER)
   public Set<Item> items = new HashSet<Item>();
 
-  @JsonIgnore
-  @Transient
-  Future<String> queryFuture;
-  @JsonIgnore
-  @Transient
-  Future<String> fetchFuture;
-
   @JsonIgnore
   static Timer queryTimer = Notion.metrics.timer(MetricRegistry.name("Query", "timer"));
   static Timer fetchTimer = Notion.metrics.timer(MetricRegistry.name("Fetch", "timer"));
   static Counter queryCounter = Notion.metrics.counter(MetricRegistry.name("Query", "counter"));
   static Counter fetchCounter = Notion.metrics.counter(MetricRegistry.name("Fetch", "counter"));
   static Counter pendingFetchCounter = Notion.metrics.counter(MetricRegistry.name("Fetch", "pending"));
+  static Meter itemMeter = Notion.metrics.meter(MetricRegistry.name("Query", "items"));
+  static Meter itemFailedMeter = Notion.metrics.meter(MetricRegistry.name("Query", "items", "failed"));
+
+  /** Results of a query row are inserted this many at a time */
+  static final int ResultBatchSize = 100;
+
+  /** Running fetches by QueryKey */
+  static Map<Integer, FetchProgress> fetchProgress = new ConcurrentHashMap<Integer, FetchProgress>();
+  static {
+    Notion.metrics.register(MetricRegistry.name("Fetch", "eta"), new Gauge<Long>() {
+      @Override
+      public Long getValue() {
+        long eta = 0;
+        for (FetchProgress progress : fetchProgress.values()) {
+          eta = Math.max(eta, progress.getEtaSeconds());
+        }
+        return eta;
+      }
+    });
+  }
 
   /**
-   * Construct a query object and return it
+   * Construct a query object from an XLSX, XLS or CSV spreadsheet, reading one
+   * row at a time.
    * 
    * @throws Exception
    */
   public static Query constructQuery(String filename, InputStream is) throws Exception {
-    Query query = new Query();
-    // Handle XLS for the moment
-    Workbook workbook = null;
-    if (filename.toLowerCase().endsWith(".xlsx")) {
-      workbook = new XSSFWorkbook(is);
-    }
-    if (filename.toLowerCase().endsWith(".xls")) {
-      workbook = new HSSFWorkbook(is);
-    }
-
-    Map<String, Integer> headerMap = new HashMap<String, Integer>();
-    Notion.checkAssertion(workbook.getNumberOfSheets() > 0, "Could not find a sheet in the workbook");
-    Sheet sheet = workbook.getSheetAt(0);
-    Notion.checkAssertion(sheet.getPhysicalNumberOfRows() > 0, "Expecting a header row");
-    Iterator<Cell> headerIterator = sheet.getRow(0).cellIterator();
-    while (headerIterator.hasNext()) {
-      Cell headerCell = headerIterator.next();
-      headerMap.put(headerCell.getStringCellValue(), headerCell.getColumnIndex());
-    }
-    Notion.checkAssertion(headerMap.containsKey("PatientID"), "Could not find PatientID column");
-
+    final Query query = new Query();
     query.status = "Created";
+    QuerySheet.read(filename, is, new QuerySheet.RowHandler() {
 
-    Iterator<Row> rowIterator = sheet.iterator();
-    // Skip the header row
-    rowIterator.next();
-    while (rowIterator.hasNext()) {
-
-      Row row = rowIterator.next();
-      Item item = new Item();
-
-      Notion.checkAssertion(row.getCell(headerMap.get("PatientID")) != null, "Row " + row.getRowNum() + " does not contain a PatientID");
-      item.status = "created";
-      item.patientName = getColumn(headerMap, row, "PatientName");
-      item.patientID = getColumn(headerMap, row, "PatientID");
-      item.accessionNumber = getColumn(headerMap, row, "AccessionNumber");
-      item.patientBirthDate = getColumn(headerMap, row, "PatientBirthDate");
-      item.studyDate = getColumn(headerMap, row, "StudyDate");
-      item.modalitiesInStudy = getColumn(headerMap, row, "ModalitiesInStudy");
-      item.studyDescription = getColumn(headerMap, row, "StudyDescription");
-      item.anonymizedID = getColumn(headerMap, row, "AnonymizedID");
-      item.anonymizedName = getColumn(headerMap, row, "AnonymizedName");
-      if (item.patientID != null) {
+      @Override
+      public void row(int rowNumber, Map<String, String> row) throws Exception {
+        Notion.checkAssertion(row.get("PatientID") != null, "Row " + rowNumber + " does not contain a PatientID");
+        Item item = new Item();
+        item.status = "created";
+        item.patientName = row.get("PatientName");
+        item.patientID = row.get("PatientID");
+        item.accessionNumber = row.get("AccessionNumber");
+        item.patientBirthDate = row.get("PatientBirthDate");
+        item.studyDate = row.get("StudyDate");
+        item.modalitiesInStudy = row.get("ModalitiesInStudy");
+        item.studyDescription = row.get("StudyDescription");
+        item.anonymizedID = row.get("AnonymizedID");
+        item.anonymizedName = row.get("AnonymizedName");
         item.query = query;
         query.items.add(item);
       }
-    }
+    });
     return query;
   }
 
@@ -184,113 +189,214 @@ public class Query {
     return query;
   }
 
-  static String getColumn(Map<String, Integer> headerMap, Row row, String column) {
-    if (!headerMap.containsKey(column)) {
-      return null;
-    }
-    Cell cell = row.getCell(headerMap.get(column));
-    if (cell == null) {
-      return null;
-    }
-    if (cell.getCellType() == Cell.CELL_TYPE_NUMERIC) {
-      return Double.toString(cell.getNumericCellValue());
+  /**
+   * Queue a job to C-FIND each item and store the results, unless one is
+   * already queued or running.
+   */
+  public void executeQuery() {
+    JobEngine jobEngine = Notion.context.getBean(JobEngine.class);
+    if (jobEngine.isActive("query", queryKey)) {
+      return;
     }
-    if (cell.getCellType() == Cell.CELL_TYPE_STRING) {
-      return cell.getStringCellValue();
-    } else {
-      return null;
+    JdbcTemplate template = Notion.context.getBean(JdbcTemplate.class);
+    template.update("update QUERY set Status = ?, LastQueryTimestamp = ? where QueryKey = ?", "query pending", new Date(), queryKey);
+    template.update("update QUERYITEM set Status = ? where QueryKey = ?", "query pending", queryKey);
+    template.update("delete from QUERYRESULT where QueryItemKey in ( select QueryItemKey from QUERYITEM where QueryKey = ? )", queryKey);
+    List<Integer> steps = new ArrayList<Integer>();
+    for (Item item : items) {
+      steps.add(item.queryItemKey);
     }
+    jobEngine.submit("query", pool.poolKey, device.deviceKey, queryKey, steps);
   }
 
   // Implement a C-FIND and store results away...
-  public void executeQuery() {
-    if (queryFuture != null && !queryFuture.isDone()) {
-      return;
-    }
-    ExecutorService executor = Notion.context.getBean("executor", ExecutorService.class);
-    queryFuture = executor.submit(new Callable<String>() {
-      @Override
-      public String call() {
-        Thread.currentThread().setName("Query " + device);
-        queryCounter.inc();
-        Timer.Context context = queryTimer.time();
-        JdbcTemplate template = Notion.context.getBean(JdbcTemplate.class);
-        template.update("update QUERY set Status = ? where QueryKey = ?", "query pending", queryKey);
-        template.update("update QUERY set LastQueryTimestamp = ? where QueryKey = ?", new Date(), queryKey);
-        template.update("update QUERYITEM set Status = ? where QueryKey = ?", "query pending", queryKey);
-        for (Item item : items) {
-          template.update("delete from QUERYRESULT where QueryItemKey = ?", item.queryItemKey);
+  void runQuery(final BackgroundJob job) throws Exception {
+    queryCounter.inc();
+    Timer.Context context = queryTimer.time();
+    final JdbcTemplate template = Notion.context.getBean(JdbcTemplate.class);
+    final StatusBatch statusBatch = new StatusBatch(template);
+    try {
+      List<Integer> steps = job.getPendingSteps();
+      if (job.isResumed() && !steps.isEmpty()) {
+        // Rows interrupted part way may have some of their results
+        List<Object[]> keys = new ArrayList<Object[]>();
+        for (Integer step : steps) {
+          keys.add(new Object[] { step });
         }
-        for (final Item item : items) {
-          template.update("update QUERYITEM set Status = ? where QueryItemKey = ?", "working", item.queryItemKey);
-
-          DcmQR dcmQR = new DcmQR(queryPool.applicationEntityTitle);
-          dcmQR.setRemoteHost(device.hostName);
-          dcmQR.setRemotePort(device.port);
-          dcmQR.setCalledAET(device.applicationEntityTitle);
-          dcmQR.setCalling(queryPool.applicationEntityTitle);
-
-          // Add our query parameters
-          Map<String, String> map = item.getTagMap();
-          for (String key : map.keySet()) {
-            dcmQR.addMatchingKey(Tag.toTagPath(key), map.get(key));
+        template.batchUpdate("delete from QUERYRESULT where QueryItemKey = ?", keys);
+      }
+      Map<Integer, Item> itemsByKey = new HashMap<Integer, Item>();
+      for (Item item : items) {
+        itemsByKey.put(item.queryItemKey, item);
+      }
+      // Each worker keeps one association to the device for all its items
+      final Queue<Item> pending = new ConcurrentLinkedQueue<Item>();
+      for (Integer step : steps) {
+        if (itemsByKey.containsKey(step)) {
+          pending.add(itemsByKey.get(step));
+        }
+      }
+      int workers = device.queryAssociations > 0 ? device.queryAssociations : Notion.context.getBean(NotionConfiguration.class).notion.queryAssociations;
+      workers = Math.max(1, Math.min(workers, pending.size()));
+      List<Future<?>> futures = new ArrayList<Future<?>>();
+      for (int i = 0; i < workers; i++) {
+        final int worker = i;
+        futures.add(Notion.executor.submit(new Runnable() {
+          @Override
+          public void run() {
+            Thread.currentThread().setName("Query " + device + " #" + worker);
+            queryItems(template, pending, statusBatch, job);
+            Thread.currentThread().setName("Idle");
           }
-          try {
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      statusBatch.flush();
+      template.update("update QUERY set Status = ? where QueryKey = ?", "query completed", queryKey);
+      queryCounter.dec();
+      context.stop();
+    }
+  }
+
+  /** Run the C-FIND for each item taken from <code>pending</code>. */
+  void queryItems(JdbcTemplate template, Queue<Item> pending, StatusBatch statusBatch, BackgroundJob job) {
+    DcmQR dcmQR = new DcmQR(queryPool.applicationEntityTitle);
+    dcmQR.setAssociationPool(Notion.context.getBean(AssociationPool.class));
+    dcmQR.setRemoteHost(device.hostName);
+    dcmQR.setRemotePort(device.port);
+    dcmQR.setCalledAET(device.applicationEntityTitle);
+    dcmQR.setCalling(queryPool.applicationEntityTitle);
+    boolean open = false;
+    try {
+      Item item;
+      while ((item = pending.poll()) != null) {
+        statusBatch.add("working", item.queryItemKey);
+        dcmQR.clearMatchingKeys();
+        // Add our query parameters
+        Map<String, String> map = item.getTagMap();
+        for (String key : map.keySet()) {
+          dcmQR.addMatchingKey(Tag.toTagPath(key), map.get(key));
+        }
+        List<Object[]> results = new ArrayList<Object[]>();
+        try {
+          if (!open) {
             dcmQR.open();
-            DimseRSP response = dcmQR.queryAll();
-            while (response.next()) {
-              DicomObject command = response.getCommand();
-              if (CommandUtils.isPending(command)) {
-                DicomObject ds = response.getDataset();
-                String status = ds.contains(Tag.StudyInstanceUID) ? "success" : "fail";
-                //@formatter:off
-                template.update("insert into QUERYRESULT ( "
-                    + "QueryItemKey,"
-                    + "Status,"
-                    + "DoFetch,"
-                    + "StudyInstanceUID,"
-                    + "PatientName,"
-                    + "PatientID,"
-                    + "AccessionNumber,"
-                    + "PatientBirthDate,"
-                    + "StudyDate,"
-                    + "ModalitiesInStudy,"
-                    + "StudyDescription"
-                    + " ) VALUES ( ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ? )",
-                    item.queryItemKey,
-                    status,
-                    "F",
-                    ds.getString(Tag.StudyInstanceUID ),
-                    ds.getString(Tag.PatientName, (String)null),
-                    ds.getString(Tag.PatientID, (String)null),
-                    ds.getString(Tag.AccessionNumber, (String)null),
-                    ds.getString(Tag.PatientBirthDate, (String)null),
-                    ds.getString(Tag.StudyDate, (String)null),
-                    ds.getString(Tag.ModalitiesInStudy, (String)null),
-                    ds.getString(Tag.StudyDescription, (String)null)
-                    );
-                //@formatter:on
+            open = true;
+          }
+          DimseRSP response = dcmQR.queryAll();
+          while (response.next()) {
+            DicomObject command = response.getCommand();
+            if (CommandUtils.isPending(command)) {
+              DicomObject ds = response.getDataset();
+              String status = ds.contains(Tag.StudyInstanceUID) ? "success" : "fail";
+              //@formatter:off
+              results.add(new Object[] {
+                  item.queryItemKey,
+                  status,
+                  "F",
+                  ds.getString(Tag.StudyInstanceUID),
+                  ds.getString(Tag.PatientName, (String) null),
+                  ds.getString(Tag.PatientID, (String) null),
+                  ds.getString(Tag.AccessionNumber, (String) null),
+                  ds.getString(Tag.PatientBirthDate, (String) null),
+                  ds.getString(Tag.StudyDate, (String) null),
+                  ds.getString(Tag.ModalitiesInStudy, (String) null),
+                  ds.getString(Tag.StudyDescription, (String) null) });
+              //@formatter:on
+              if (results.size() >= ResultBatchSize) {
+                insertResults(template, results);
               }
             }
-            template.update("update QUERYITEM set Status = ? where QueryItemKey = ?", "query complete", item.queryItemKey);
-          } catch (Exception e) {
-            logger.error("Caught error in query", e);
-            template.update("update QUERYITEM set Status = ? where QueryItemKey = ?", "query failed", item.queryItemKey);
-          } finally {
-            try {
-              dcmQR.close();
-            } catch (Exception e) {
-              logger.error("Error closing query connection", e);
-            }
+          }
+          insertResults(template, results);
+          statusBatch.add("query complete", item.queryItemKey);
+          job.done(item.queryItemKey);
+          itemMeter.mark();
+        } catch (Exception e) {
+          logger.error("Caught error in query", e);
+          statusBatch.add("query failed", item.queryItemKey);
+          job.failed(item.queryItemKey, e.toString());
+          itemMeter.mark();
+          itemFailedMeter.mark();
+          // Do not reuse an association that may be broken
+          if (open) {
+            dcmQR.invalidate();
+            open = false;
           }
         }
-        template.update("update QUERY set Status = ? where QueryKey = ?", "query completed", queryKey);
-        Thread.currentThread().setName("Idle");
-        queryCounter.dec();
-        context.stop();
-        return "completed";
       }
-    });
+    } finally {
+      if (open) {
+        try {
+          dcmQR.close();
+        } catch (Exception e) {
+          logger.error("Error closing query connection", e);
+        }
+      }
+    }
+  }
+
+  /** Write the results of a query row collected so far. */
+  static void insertResults(JdbcTemplate template, List<Object[]> results) {
+    if (results.isEmpty()) {
+      return;
+    }
+    //@formatter:off
+    template.batchUpdate("insert into QUERYRESULT ( "
+        + "QueryItemKey,"
+        + "Status,"
+        + "DoFetch,"
+        + "StudyInstanceUID,"
+        + "PatientName,"
+        + "PatientID,"
+        + "AccessionNumber,"
+        + "PatientBirthDate,"
+        + "StudyDate,"
+        + "ModalitiesInStudy,"
+        + "StudyDescription"
+        + " ) VALUES ( ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ? )",
+        results);
+    //@formatter:on
+    results.clear();
+  }
+
+  /**
+   * Item status changes, written in batches rather than one update each. A
+   * batch is written once it is large enough or a few seconds old, so the
+   * progress shown stays current.
+   */
+  static class StatusBatch {
+    static final int MaxSize = 50;
+    static final long MaxAge = 2000;
+
+    final JdbcTemplate template;
+    final List<Object[]> updates = new ArrayList<Object[]>();
+    long oldest = 0;
+
+    StatusBatch(JdbcTemplate template) {
+      this.template = template;
+    }
+
+    synchronized void add(String status, int queryItemKey) {
+      if (updates.isEmpty()) {
+        oldest = System.currentTimeMillis();
+      }
+      updates.add(new Object[] { status, queryItemKey });
+      if (updates.size() >= MaxSize || System.currentTimeMillis() - oldest >= MaxAge) {
+        flush();
+      }
+    }
+
+    synchronized void flush() {
+      if (updates.isEmpty()) {
+        return;
+      }
+      template.batchUpdate("update QUERYITEM set Status = ? where QueryItemKey = ?", updates);
+      updates.clear();
+    }
   }
 
   /** Update the query, by triggering a fetch on each query result */
@@ -318,180 +424,339 @@ public class Query {
     }
   }
 
+  /**
+   * Queue a job to fetch the results marked to fetch, unless one is already
+   * queued or running.
+   */
   public void doFetch() {
     logger.debug("Queuing fetch");
-
-    if (fetchFuture != null && !fetchFuture.isDone()) {
+    JobEngine jobEngine = Notion.context.getBean(JobEngine.class);
+    if (jobEngine.isActive("fetch", queryKey)) {
       return;
     }
+    JdbcTemplate template = Notion.context.getBean(JdbcTemplate.class);
+    template.update("update QUERY set Status = ? where QueryKey = ?", "fetch pending", queryKey);
+    template.update("update QUERYRESULT set Status = case when DoFetch = 'F' then '' else 'fetch pending' end where QueryItemKey in ( select QueryItemKey from QUERYITEM where QueryKey = ? )", queryKey);
+    List<Integer> steps = template.queryForList("select QueryResultKey from QUERYRESULT where DoFetch = 'T' and QueryItemKey in ( select QueryItemKey from QUERYITEM where QueryKey = ? ) order by QueryResultKey", Integer.class,
+        queryKey);
+    jobEngine.submit("fetch", pool.poolKey, device.deviceKey, queryKey, steps);
+  }
 
+  void runFetch(final BackgroundJob job) throws Exception {
     final JdbcTemplate template = Notion.context.getBean(JdbcTemplate.class);
-    template.update("update QUERY set Status = ? where QueryKey = ?", "fetch pending", queryKey);
+    Timer.Context context = fetchTimer.time();
+    fetchCounter.inc();
+
+    PoolManager poolManager = Notion.context.getBean(PoolManager.class);
+    PoolContainer poolContainer = poolManager.getContainer(pool.poolKey);
+    Anonymizer anonymizer = Notion.context.getBean("anonymizer", Anonymizer.class);
+    anonymizer.setPool(poolContainer.getPool());
+
+    // Create the lookup entries before any study arrives, and one at a
+    // time, as several results may share a patient
+    Set<Integer> steps = new HashSet<Integer>(job.getPendingSteps());
+    final Queue<Result> pending = new ConcurrentLinkedQueue<Result>();
+    for (final Item item : items) {
+      for (final Result result : item.items) {
+        if (!steps.contains(result.queryResultKey)) {
+          continue;
+        }
+        pendingFetchCounter.inc();
+        pending.add(result);
+        if (item.anonymizedName != null && item.anonymizedName.length() > 0) {
+          anonymizer.setValue("PatientName", result.patientName, item.anonymizedName);
+        }
+        if (item.anonymizedID != null && item.anonymizedID.length() > 0) {
+          anonymizer.setValue("PatientID", result.patientID, item.anonymizedID);
+        }
+      }
+    }
 
-    fetchFuture = Notion.context.getBean("executor", ExecutorService.class).submit(new Callable<String>() {
-      @Override
-      public String call() {
-        final JdbcTemplate template = Notion.context.getBean(JdbcTemplate.class);
-        Timer.Context context = fetchTimer.time();
-        fetchCounter.inc();
-
-        template.update("update QUERY set Status = ? where QueryKey = ?", "fetch pending", queryKey);
-        template.update("update QUERYRESULT set Status = ? where QueryItemKey in ( select QueryItemKey from QUERYITEM where QueryKey = ?) ", "fetch pending", queryKey);
-        template.update("update QUERYRESULT set Status = ? where QueryItemKey in ( select QueryItemKey from QUERYITEM where QueryKey = ?) and DoFetch = 'F'", "", queryKey);
-        Thread.currentThread().setName("Fetch " + device);
-        PoolManager poolManager = Notion.context.getBean(PoolManager.class);
-        PoolContainer poolContainer = poolManager.getContainer(pool.poolKey);
-        Anonymizer anonymizer = Notion.context.getBean("anonymizer", Anonymizer.class);
-        anonymizer.setPool(poolContainer.getPool());
-
-        for (final Item item : items) {
-          for (final Result result : item.items) {
-            if (result.doFetch) {
-              pendingFetchCounter.inc();
+    final FetchProgress progress = new FetchProgress(pending.size());
+    fetchProgress.put(queryKey, progress);
+    int workers = device.fetchAssociations > 0 ? device.fetchAssociations : Notion.context.getBean(NotionConfiguration.class).notion.fetchAssociations;
+    workers = Math.max(1, Math.min(workers, pending.size()));
+    List<Future<?>> futures = new ArrayList<Future<?>>();
+    for (int i = 0; i < workers; i++) {
+      final int worker = i;
+      futures.add(Notion.executor.submit(new Runnable() {
+        @Override
+        public void run() {
+          Thread.currentThread().setName("Fetch " + device + " #" + worker);
+          Result result;
+          while ((result = pending.poll()) != null) {
+            if (fetchResult(template, result)) {
+              progress.completed.incrementAndGet();
+              job.done(result.queryResultKey);
+            } else {
+              progress.failed.incrementAndGet();
+              job.failed(result.queryResultKey, null);
             }
+            pendingFetchCounter.dec();
           }
+          Thread.currentThread().setName("Idle");
         }
+      }));
+    }
+    try {
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      fetchProgress.remove(queryKey);
+      template.update("update QUERY set Status = ? where QueryKey = ?", "fetch completed", queryKey);
+      logger.debug("Fetch Compeleted");
+      fetchCounter.dec();
+      context.stop();
+    }
+  }
 
-        for (final Item item : items) {
-          for (final Result result : item.items) {
-            if (!result.doFetch) {
-              template.update("update QUERYRESULT set Status = ? where QueryResultKey = ?", "", result.queryResultKey);
-              continue;
-            }
+  /**
+   * Runs the "query" and "fetch" jobs, each for the query whose QueryKey is
+   * the job's TargetKey.
+   */
+  public static class Handler implements JobHandler {
+    final boolean fetch;
 
-            template.update("update QUERYRESULT set Status = ? where QueryResultKey = ?", "fetching", result.queryResultKey);
-            DcmQR dcmQR = new DcmQR(queryPool.applicationEntityTitle);
-            dcmQR.setRemoteHost(device.hostName);
-            dcmQR.setRemotePort(device.port);
-            dcmQR.setCalledAET(device.applicationEntityTitle);
-            dcmQR.setCalling(queryPool.applicationEntityTitle);
-            dcmQR.setMoveDest(destinationPool.applicationEntityTitle);
-            try {
-              if (destinationPool.anonymize) {
-                throw new Exception("Destination pool " + destinationPool.name + "/" + destinationPool.applicationEntityTitle + " is anonymizing, this move will fail.  Please turn off anonymization on the destination pool");
-              }
-              // Create the entries
-              if (item.anonymizedName != null && item.anonymizedName.length() > 0) {
-                anonymizer.setValue("PatientName", result.patientName, item.anonymizedName);
-              }
-              if (item.anonymizedID != null && item.anonymizedID.length() > 0) {
-                anonymizer.setValue("PatientID", result.patientID, item.anonymizedID);
-              }
-              dcmQR.qrStudy(result.studyInstanceUID);
-              template.update("update QUERYRESULT set Status = ? where QueryResultKey = ?", "moving", result.queryResultKey);
-
-              // Initiate the move
-              MoveStatus status = new MoveStatus();
-              if (pool.poolKey != destinationPool.poolKey) {
-                // Move and delete, otherwise ignore
-                if (!poolManager.getContainer(destinationPool.poolKey).moveStudyTo(result.studyInstanceUID, poolContainer, status)) {
-                  template.update("update QUERYRESULT set Status = ? where QueryResultKey = ?", "fail: could not move study ", result.queryResultKey);
-                } else {
-                  // Delete the study
-                  poolManager.getContainer(destinationPool.poolKey).deleteStudy(result.studyInstanceUID);
-                }
-              } else {
-                // Fetched to ourselves, so update the StudyKey accordingly
-                Integer studyKey = template.queryForObject("select StudyKey from STUDY where PoolKey = ? and StudyInstanceUID = ?", new Object[] { pool.poolKey, result.studyInstanceUID }, Integer.class);
-                status.movedStudyKey = studyKey;
-              }
-              // Update the result's StudyKey
-              template.update("update QUERYRESULT set StudyKey = ?, Status = ? where QueryResultKey = ?", status.movedStudyKey, "completed", result.queryResultKey);
-
-            } catch (DcmMoveException e) {
-              template.update("update QUERYRESULT set Status = ? where QueryResultKey = ?", "fail: " + e.toString(), result.queryResultKey);
-            } catch (Exception e) {
-              template.update("update QUERYRESULT set Status = ? where QueryResultKey = ?", "fail: unknown exception " + e.toString(), result.queryResultKey);
-              logger.error("Error doing query", e);
+    public Handler(boolean fetch) {
+      this.fetch = fetch;
+    }
+
+    @Override
+    public void run(BackgroundJob job) throws Exception {
+      Query query;
+      Session session = Notion.context.getBean(SessionFactory.class).openSession();
+      try {
+        query = (Query) session.byId(Query.class).load(job.targetKey);
+      } finally {
+        session.close();
+      }
+      Notion.checkAssertion(query != null, "Query " + job.targetKey + " no longer exists");
+      try {
+        if (fetch) {
+          query.runFetch(job);
+        } else {
+          query.runQuery(job);
+        }
+      } catch (Exception e) {
+        Notion.context.getBean(JdbcTemplate.class).update("update QUERY set Status = ? where QueryKey = ?", (fetch ? "fetch failed: " : "query failed: ") + e.getMessage(), job.targetKey);
+        throw e;
+      }
+    }
+  }
+
+  /**
+   * Move one study from the device and into our pool, trying again after
+   * transient failures.
+   *
+   * @return true if the study was fetched
+   */
+  boolean fetchResult(JdbcTemplate template, Result result) {
+    NotionConfiguration configuration = Notion.context.getBean(NotionConfiguration.class);
+    PoolManager poolManager = Notion.context.getBean(PoolManager.class);
+    PoolContainer poolContainer = poolManager.getContainer(pool.poolKey);
+    FetchRouter fetchRouter = Notion.context.getBean(FetchRouter.class);
+    long backoff = 1000L * configuration.notion.fetchRetrySeconds;
+    for (int attempt = 0;; attempt++) {
+      template.update("update QUERYRESULT set Status = ? where QueryResultKey = ?", "fetching", result.queryResultKey);
+      DcmQR dcmQR = new DcmQR(queryPool.applicationEntityTitle);
+      dcmQR.setAssociationPool(Notion.context.getBean(AssociationPool.class));
+      dcmQR.setRemoteHost(device.hostName);
+      dcmQR.setRemotePort(device.port);
+      dcmQR.setCalledAET(device.applicationEntityTitle);
+      dcmQR.setCalling(queryPool.applicationEntityTitle);
+      dcmQR.setMoveDest(destinationPool.applicationEntityTitle);
+      FetchRouter.Route route = null;
+      try {
+        if (pool.poolKey != destinationPool.poolKey) {
+          // Have the images processed by our pool as they arrive
+          route = fetchRouter.open(destinationPool.poolKey, queryPool.applicationEntityTitle, result.studyInstanceUID, poolContainer);
+        }
+        dcmQR.qrStudy(result.studyInstanceUID);
+        template.update("update QUERYRESULT set Status = ? where QueryResultKey = ?", "moving", result.queryResultKey);
+
+        MoveStatus status = new MoveStatus();
+        if (route != null) {
+          route.close();
+          if (route.failed.get() > 0) {
+            template.update("update QUERYRESULT set Status = ? where QueryResultKey = ?", "fail: could not store " + route.failed.get() + " images", result.queryResultKey);
+            return false;
+          }
+          if (route.received.get() > 0) {
+            poolContainer.processAnonymizationMap();
+            status = route.status;
+          }
+          // Images the device sent without the Move Originator are in the
+          // destination pool
+          if (template.queryForObject("select count(*) from STUDY where PoolKey = ? and StudyInstanceUID = ?", Integer.class, destinationPool.poolKey, result.studyInstanceUID) > 0) {
+            // Move and delete
+            if (!poolManager.getContainer(destinationPool.poolKey).moveStudyTo(result.studyInstanceUID, poolContainer, status)) {
+              template.update("update QUERYRESULT set Status = ? where QueryResultKey = ?", "fail: could not move study ", result.queryResultKey);
+              return false;
             }
-            pendingFetchCounter.dec();
+            // Delete the study
+            poolManager.getContainer(destinationPool.poolKey).deleteStudy(result.studyInstanceUID);
+          } else if (route.received.get() == 0) {
+            if (destinationPool.anonymize) {
+              throw new Exception("Destination pool " + destinationPool.name + "/" + destinationPool.applicationEntityTitle + " is anonymizing, this move will fail.  Please turn off anonymization on the destination pool");
+            }
+            template.update("update QUERYRESULT set Status = ? where QueryResultKey = ?", "fail: no images received", result.queryResultKey);
+            return false;
+          }
+        } else {
+          // Fetched to ourselves, so update the StudyKey accordingly
+          Integer studyKey = template.queryForObject("select StudyKey from STUDY where PoolKey = ? and StudyInstanceUID = ?", new Object[] { pool.poolKey, result.studyInstanceUID }, Integer.class);
+          status.movedStudyKey = studyKey;
+        }
+        // Update the result's StudyKey
+        template.update("update QUERYRESULT set StudyKey = ?, Status = ? where QueryResultKey = ?", status.movedStudyKey, "completed", result.queryResultKey);
+        return true;
+
+      } catch (DcmMoveException e) {
+        if (attempt < configuration.notion.fetchRetries && isTransient(dcmQR, e)) {
+          logger.warn("Fetch of " + result.studyInstanceUID + " from " + device + " failed, retrying in " + backoff / 1000 + "s: " + e.getMessage());
+          template.update("update QUERYRESULT set Status = ? where QueryResultKey = ?", "retrying: " + e.getMessage(), result.queryResultKey);
+          try {
+            Thread.sleep(backoff);
+          } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            template.update("update QUERYRESULT set Status = ? where QueryResultKey = ?", "fail: " + e.toString(), result.queryResultKey);
+            return false;
           }
+          backoff *= 2;
+          continue;
+        }
+        template.update("update QUERYRESULT set Status = ? where QueryResultKey = ?", "fail: " + e.toString(), result.queryResultKey);
+      } catch (Exception e) {
+        template.update("update QUERYRESULT set Status = ? where QueryResultKey = ?", "fail: unknown exception " + e.toString(), result.queryResultKey);
+        logger.error("Error doing query", e);
+      } finally {
+        if (route != null) {
+          route.close();
         }
-        template.update("update QUERY set Status = ? where QueryKey = ?", "fetch completed", queryKey);
-        logger.debug("Fetch Compeleted");
-        fetchCounter.dec();
-        Thread.currentThread().setName("Idle");
-        context.stop();
-        return "complete";
       }
-    });
+      return false;
+    }
+  }
+
+  /**
+   * Could the move succeed if tried again? True if the association failed or
+   * the device was out of resources or lost some images, false if it refused
+   * the move.
+   */
+  static boolean isTransient(DcmQR dcmQR, DcmMoveException e) {
+    if (e.getCause() != null) {
+      return true;
+    }
+    switch (dcmQR.getMoveStatus()) {
+    case 0xa701:
+    case 0xa702:
+    case 0xb000:
+      return true;
+    default:
+      return false;
+    }
+  }
+
+  /** Progress of a running fetch. */
+  public static class FetchProgress {
+    public final int total;
+    final long started = System.currentTimeMillis();
+    final AtomicInteger completed = new AtomicInteger();
+    final AtomicInteger failed = new AtomicInteger();
+
+    FetchProgress(int total) {
+      this.total = total;
+    }
+
+    public int getCompleted() {
+      return completed.get();
+    }
+
+    public int getFailed() {
+      return failed.get();
+    }
+
+    /** Estimated seconds until the fetch completes, -1 until one study is done. */
+    public long getEtaSeconds() {
+      int done = completed.get() + failed.get();
+      if (done == 0) {
+        return -1;
+      }
+      return (System.currentTimeMillis() - started) * (total - done) / done / 1000;
+    }
   }
 
-  /** Form the CVS for this query. */
+  /** Progress of the fetch, or null if none is running. */
   @Transient
-  @JsonIgnore
-  public Workbook generateSpreadSheet() {
+  public FetchProgress getFetchProgress() {
+    return fetchProgress.get(queryKey);
+  }
+
+  /**
+   * Write the query's items as an XLSX spreadsheet. Rows are streamed from the
+   * database and flushed to a temporary file, so only a window of rows is in
+   * memory.
+   */
+  public void writeSpreadSheet(OutputStream output) throws IOException {
     final JdbcTemplate template = Notion.context.getBean(JdbcTemplate.class);
 
-    XSSFWorkbook workbook = new XSSFWorkbook();
-    final XSSFSheet sheet = workbook.createSheet("query");
-    XSSFRow header = sheet.createRow(0);
-    header.createCell(0, Cell.CELL_TYPE_STRING).setCellValue("PatientName");
-    header.createCell(1, Cell.CELL_TYPE_STRING).setCellValue("PatientID");
-    header.createCell(2, Cell.CELL_TYPE_STRING).setCellValue("AccessionNumber");
-    header.createCell(3, Cell.CELL_TYPE_STRING).setCellValue("PatientBirthDate");
-    header.createCell(4, Cell.CELL_TYPE_STRING).setCellValue("StudyDate");
-    header.createCell(5, Cell.CELL_TYPE_STRING).setCellValue("ModalitiesInStudy");
-    header.createCell(6, Cell.CELL_TYPE_STRING).setCellValue("StudyDescription");
-    header.createCell(7, Cell.CELL_TYPE_STRING).setCellValue("AnonymizedID");
-    header.createCell(8, Cell.CELL_TYPE_STRING).setCellValue("AnonymizedName");
-
-    DataFormat fmt = workbook.createDataFormat();
-    CellStyle textStyle = workbook.createCellStyle();
-    textStyle.setDataFormat(fmt.getFormat("@"));
-
-    for (int i = 0; i < 9; i++) {
-      sheet.setDefaultColumnStyle(i, textStyle);
+    // Keep 100 rows in memory
+    SXSSFWorkbook workbook = new SXSSFWorkbook(100);
+    try {
+      final Sheet sheet = workbook.createSheet("query");
+      DataFormat fmt = workbook.createDataFormat();
+      final CellStyle textStyle = workbook.createCellStyle();
+      textStyle.setDataFormat(fmt.getFormat("@"));
+      for (int i = 0; i < QuerySheet.Columns.length; i++) {
+        sheet.setDefaultColumnStyle(i, textStyle);
+      }
+      Row header = sheet.createRow(0);
+      for (int i = 0; i < QuerySheet.Columns.length; i++) {
+        header.createCell(i, Cell.CELL_TYPE_STRING).setCellValue(QuerySheet.Columns[i]);
+      }
+
+      template.query("select * from QUERYITEM where QueryKey = ?", new Object[] { queryKey }, new RowCallbackHandler() {
+        int rowNumber = 1;
+
+        @Override
+        public void processRow(ResultSet rs) throws SQLException {
+          Row row = sheet.createRow(rowNumber++);
+          for (int i = 0; i < QuerySheet.Columns.length; i++) {
+            Cell cell = row.createCell(i, Cell.CELL_TYPE_STRING);
+            cell.setCellStyle(textStyle);
+            cell.setCellValue(rs.getString(QuerySheet.Columns[i]));
+          }
+        }
+      });
+      workbook.write(output);
+    } finally {
+      // Remove the temporary file
+      workbook.dispose();
     }
+  }
 
+  /** Write the query's items as CSV, a row at a time. */
+  public void writeCSV(OutputStream output) throws IOException {
+    final JdbcTemplate template = Notion.context.getBean(JdbcTemplate.class);
+    Writer writer = new BufferedWriter(new OutputStreamWriter(output, Charset.forName("UTF-8")));
+    final CSVPrinter printer = new CSVPrinter(writer, CSVFormat.DEFAULT);
+    printer.printRecord((Object[]) QuerySheet.Columns);
     template.query("select * from QUERYITEM where QueryKey = ?", new Object[] { queryKey }, new RowCallbackHandler() {
-      int rowNumber = 1;
 
       @Override
       public void processRow(ResultSet rs) throws SQLException {
-        XSSFRow row = sheet.createRow(rowNumber);
-        rowNumber++;
-        XSSFCell cell;
-        cell = row.createCell(0, Cell.CELL_TYPE_STRING);
-        cell.setCellType(Cell.CELL_TYPE_STRING);
-        cell.setCellValue(rs.getString("PatientName"));
-        cell.setCellType(Cell.CELL_TYPE_STRING);
-        cell = row.createCell(1, Cell.CELL_TYPE_STRING);
-        cell.setCellType(Cell.CELL_TYPE_STRING);
-        cell.setCellValue(rs.getString("PatientID"));
-        cell.setCellType(Cell.CELL_TYPE_STRING);
-        cell = row.createCell(2, Cell.CELL_TYPE_STRING);
-        cell.setCellType(Cell.CELL_TYPE_STRING);
-        cell.setCellValue(rs.getString("AccessionNumber"));
-        cell.setCellType(Cell.CELL_TYPE_STRING);
-        cell = row.createCell(3, Cell.CELL_TYPE_STRING);
-        cell.setCellType(Cell.CELL_TYPE_STRING);
-        cell.setCellValue(rs.getString("PatientBirthDate"));
-        cell.setCellType(Cell.CELL_TYPE_STRING);
-        cell = row.createCell(4, Cell.CELL_TYPE_STRING);
-        cell.setCellType(Cell.CELL_TYPE_STRING);
-        cell.setCellValue(rs.getString("StudyDate"));
-        cell.setCellType(Cell.CELL_TYPE_STRING);
-        cell = row.createCell(5, Cell.CELL_TYPE_STRING);
-        cell.setCellType(Cell.CELL_TYPE_STRING);
-        cell.setCellValue(rs.getString("ModalitiesInStudy"));
-        cell.setCellType(Cell.CELL_TYPE_STRING);
-        cell = row.createCell(6, Cell.CELL_TYPE_STRING);
-        cell.setCellType(Cell.CELL_TYPE_STRING);
-        cell.setCellValue(rs.getString("StudyDescription"));
-        cell.setCellType(Cell.CELL_TYPE_STRING);
-        cell = row.createCell(7, Cell.CELL_TYPE_STRING);
-        cell.setCellType(Cell.CELL_TYPE_STRING);
-        cell.setCellValue(rs.getString("AnonymizedID"));
-        cell.setCellType(Cell.CELL_TYPE_STRING);
-        cell = row.createCell(8, Cell.CELL_TYPE_STRING);
-        cell.setCellType(Cell.CELL_TYPE_STRING);
-        cell.setCellValue(rs.getString("AnonymizedName"));
-        cell.setCellType(Cell.CELL_TYPE_STRING);
-
+        Object[] values = new Object[QuerySheet.Columns.length];
+        for (int i = 0; i < values.length; i++) {
+          values[i] = rs.getString(QuerySheet.Columns[i]);
+        }
+        try {
+          printer.printRecord(values);
+        } catch (IOException e) {
+          throw new SQLException("Failed to write CSV", e);
+        }
       }
     });
-    return workbook;
-
+    printer.flush();
   }
 }
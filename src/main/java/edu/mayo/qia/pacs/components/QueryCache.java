@@ -0,0 +1,122 @@
+package edu.mayo.qia.pacs.components;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.RatioGauge;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Short lived cache of query results for a pool.
+ *
+ * Results are keyed by a normalized query signature built by the caller (C-FIND
+ * and the REST study search). Every change to the pool bumps the generation,
+ * which invalidates all cached results, so the TTL only bounds how long an
+ * unchanged answer is reused.
+ *
+ * Callers must read the generation <em>before</em> running the query and pass
+ * it to {@link #put(String, long, Object)}, so a result that raced with an
+ * update is never stored.
+ *
+ * @author Daniel Blezek
+ *
+ */
+public class QueryCache {
+  /** Queries with more results than this are not cached. */
+  public static final int MaxResults = 1000;
+
+  final AtomicLong generation = new AtomicLong();
+  final long ttl;
+  final Map<String, Entry> entries;
+  final Meter hits = new Meter();
+  final Meter misses = new Meter();
+
+  static class Entry {
+    final long generation;
+    final long expires;
+    final Object value;
+
+    Entry(long generation, long expires, Object value) {
+      this.generation = generation;
+      this.expires = expires;
+      this.value = value;
+    }
+  }
+
+  /**
+   * @param ttl
+   *        milliseconds to keep a result
+   * @param size
+   *        maximum number of results to keep
+   */
+  @SuppressWarnings("serial")
+  public QueryCache(long ttl, final int size) {
+    this.ttl = ttl;
+    this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        return size() > size;
+      }
+    };
+  }
+
+  /** Current generation of the pool. */
+  public long generation() {
+    return generation.get();
+  }
+
+  /** The pool changed, drop everything. */
+  public void invalidate() {
+    generation.incrementAndGet();
+    synchronized (entries) {
+      entries.clear();
+    }
+  }
+
+  /** Cached result for the signature, or null. */
+  @SuppressWarnings("unchecked")
+  public <T> T get(String signature) {
+    Entry entry;
+    synchronized (entries) {
+      entry = entries.get(signature);
+      if (entry != null && (entry.generation != generation.get() || entry.expires < System.currentTimeMillis())) {
+        entries.remove(signature);
+        entry = null;
+      }
+    }
+    if (entry == null) {
+      misses.mark();
+      return null;
+    }
+    hits.mark();
+    return (T) entry.value;
+  }
+
+  /** Cache a result computed at generation <code>queryGeneration</code>. */
+  public void put(String signature, long queryGeneration, Object value) {
+    synchronized (entries) {
+      if (queryGeneration == generation.get()) {
+        entries.put(signature, new Entry(queryGeneration, System.currentTimeMillis() + ttl, value));
+      }
+    }
+  }
+
+  public Meter getHits() {
+    return hits;
+  }
+
+  public Meter getMisses() {
+    return misses;
+  }
+
+  /** Hit ratio over the last 15 minutes. */
+  public RatioGauge getRatio() {
+    return new RatioGauge() {
+      @Override
+      protected Ratio getRatio() {
+        return Ratio.of(hits.getFifteenMinuteRate(), hits.getFifteenMinuteRate() + misses.getFifteenMinuteRate());
+      }
+    };
+  }
+}
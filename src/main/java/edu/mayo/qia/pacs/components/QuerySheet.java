@@ -0,0 +1,206 @@
+package edu.mayo.qia.pacs.components;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.apache.commons.io.FileUtils;
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.eventusermodel.XSSFSheetXMLHandler;
+import org.apache.poi.xssf.eventusermodel.XSSFSheetXMLHandler.SheetContentsHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.XMLReaderFactory;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import edu.mayo.qia.pacs.Notion;
+
+/**
+ * Reads the rows of a query spreadsheet one at a time, so a large sheet is
+ * never held in memory. XLSX is parsed as a stream of SAX events, CSV with a
+ * header line is read a record at a time, and XLS (at most 65536 rows) is read
+ * as a workbook.
+ *
+ * @author Daniel Blezek
+ *
+ */
+public class QuerySheet {
+
+  /** Columns of a query spreadsheet, in the order they are written */
+  public static final String[] Columns = { "PatientName", "PatientID", "AccessionNumber", "PatientBirthDate", "StudyDate", "ModalitiesInStudy", "StudyDescription", "AnonymizedID", "AnonymizedName" };
+
+  /** Receives each row after the header, keyed by column name. */
+  public interface RowHandler {
+    void row(int rowNumber, Map<String, String> row) throws Exception;
+  }
+
+  public static boolean isSupported(String filename) {
+    String name = filename.toLowerCase();
+    return name.endsWith(".xlsx") || name.endsWith(".xls") || name.endsWith(".csv");
+  }
+
+  public static void read(String filename, InputStream is, RowHandler handler) throws Exception {
+    String name = filename.toLowerCase();
+    if (name.endsWith(".xlsx")) {
+      readXLSX(is, handler);
+    } else if (name.endsWith(".xls")) {
+      readXLS(is, handler);
+    } else if (name.endsWith(".csv")) {
+      readCSV(is, handler);
+    } else {
+      throw new Exception("Unsupported file type, expected .xlsx, .xls or .csv: " + filename);
+    }
+  }
+
+  static void readCSV(InputStream is, RowHandler handler) throws Exception {
+    CSVParser parser = CSVFormat.DEFAULT.withHeader().withIgnoreEmptyLines(true).parse(new InputStreamReader(is, Charset.forName("UTF-8")));
+    try {
+      Notion.checkAssertion(parser.getHeaderMap().containsKey("PatientID"), "Could not find PatientID column");
+      for (CSVRecord record : parser) {
+        Map<String, String> row = new HashMap<String, String>();
+        for (String column : parser.getHeaderMap().keySet()) {
+          if (record.isSet(column) && record.get(column).length() > 0) {
+            row.put(column, record.get(column));
+          }
+        }
+        handler.row((int) record.getRecordNumber(), row);
+      }
+    } finally {
+      parser.close();
+    }
+  }
+
+  static void readXLS(InputStream is, RowHandler handler) throws Exception {
+    HSSFWorkbook workbook = new HSSFWorkbook(is);
+    Notion.checkAssertion(workbook.getNumberOfSheets() > 0, "Could not find a sheet in the workbook");
+    Sheet sheet = workbook.getSheetAt(0);
+    Notion.checkAssertion(sheet.getPhysicalNumberOfRows() > 0, "Expecting a header row");
+    Map<Integer, String> header = new HashMap<Integer, String>();
+    Iterator<Cell> headerIterator = sheet.getRow(0).cellIterator();
+    while (headerIterator.hasNext()) {
+      Cell headerCell = headerIterator.next();
+      header.put(headerCell.getColumnIndex(), headerCell.getStringCellValue());
+    }
+    Notion.checkAssertion(header.containsValue("PatientID"), "Could not find PatientID column");
+
+    Iterator<Row> rowIterator = sheet.iterator();
+    // Skip the header row
+    rowIterator.next();
+    while (rowIterator.hasNext()) {
+      Row row = rowIterator.next();
+      Map<String, String> values = new HashMap<String, String>();
+      for (Map.Entry<Integer, String> column : header.entrySet()) {
+        Cell cell = row.getCell(column.getKey());
+        if (cell == null) {
+          continue;
+        }
+        if (cell.getCellType() == Cell.CELL_TYPE_NUMERIC) {
+          values.put(column.getValue(), Double.toString(cell.getNumericCellValue()));
+        } else if (cell.getCellType() == Cell.CELL_TYPE_STRING) {
+          values.put(column.getValue(), cell.getStringCellValue());
+        }
+      }
+      handler.row(row.getRowNum(), values);
+    }
+  }
+
+  static void readXLSX(InputStream is, final RowHandler handler) throws Exception {
+    // The package must be opened from a file to avoid reading it into memory
+    File file = File.createTempFile("query", ".xlsx");
+    OPCPackage pkg = null;
+    try {
+      FileUtils.copyInputStreamToFile(is, file);
+      pkg = OPCPackage.open(file.getPath(), PackageAccess.READ);
+      XSSFReader reader = new XSSFReader(pkg);
+      Iterator<InputStream> sheets = reader.getSheetsData();
+      Notion.checkAssertion(sheets.hasNext(), "Could not find a sheet in the workbook");
+      final SheetHandler sheetHandler = new SheetHandler(handler);
+      XMLReader parser = XMLReaderFactory.createXMLReader();
+      parser.setContentHandler(new XSSFSheetXMLHandler(reader.getStylesTable(), new ReadOnlySharedStringsTable(pkg), sheetHandler, new DataFormatter(), false));
+      InputStream sheet = sheets.next();
+      try {
+        parser.parse(new InputSource(sheet));
+      } catch (RuntimeException e) {
+        // Exceptions from the handler are wrapped to get them through SAX
+        if (e.getCause() instanceof Exception) {
+          throw (Exception) e.getCause();
+        }
+        throw e;
+      } finally {
+        sheet.close();
+      }
+      Notion.checkAssertion(sheetHandler.header != null, "Expecting a header row");
+    } finally {
+      if (pkg != null) {
+        pkg.revert();
+      }
+      file.delete();
+    }
+  }
+
+  /** Collects the cells of each row from the SAX events. */
+  static class SheetHandler implements SheetContentsHandler {
+    final RowHandler handler;
+    Map<Integer, String> header = null;
+    Map<Integer, String> cells = new HashMap<Integer, String>();
+    int rowNumber;
+
+    SheetHandler(RowHandler handler) {
+      this.handler = handler;
+    }
+
+    @Override
+    public void startRow(int rowNum) {
+      rowNumber = rowNum;
+      cells = new HashMap<Integer, String>();
+    }
+
+    @Override
+    public void endRow() {
+      if (header == null) {
+        header = cells;
+        if (!header.containsValue("PatientID")) {
+          throw new RuntimeException(new Exception("Could not find PatientID column"));
+        }
+        return;
+      }
+      Map<String, String> row = new HashMap<String, String>();
+      for (Map.Entry<Integer, String> cell : cells.entrySet()) {
+        if (header.containsKey(cell.getKey())) {
+          row.put(header.get(cell.getKey()), cell.getValue());
+        }
+      }
+      try {
+        handler.row(rowNumber, row);
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    @Override
+    public void cell(String cellReference, String formattedValue) {
+      if (formattedValue != null && formattedValue.length() > 0) {
+        cells.put((int) new CellReference(cellReference).getCol(), formattedValue);
+      }
+    }
+
+    @Override
+    public void headerFooter(String text, boolean isHeader, String tagName) {
+    }
+  }
+}
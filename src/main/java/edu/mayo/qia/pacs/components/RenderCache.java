@@ -0,0 +1,353 @@
+package edu.mayo.qia.pacs.components;
+
+import io.dropwizard.lifecycle.Managed;
+
+import javax.imageio.ImageIO;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+import org.apache.log4j.Logger;
+import org.rsna.ctp.objects.DicomObject;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import edu.mayo.qia.pacs.Notion;
+import edu.mayo.qia.pacs.NotionConfiguration;
+
+/**
+ * Frames of stored instances rendered as JPEG or PNG, for series previews and
+ * for viewers that do not read DICOM.
+ *
+ * Renders are kept under <code>Rendered</code> in the image directory, named
+ * for the instance, the time its file was written and how it was rendered, so
+ * an instance received again is rendered again. Once they take more than
+ * <code>renderCacheMB</code> the least recently served are removed. No more
+ * than <code>maxRenders</code> frames are rendered at once; a request that
+ * waits more than {@link #WaitSeconds} for its turn is turned away. A frame
+ * asked for again while it is being rendered is rendered once, and a render
+ * being served is not removed until it is released.
+ *
+ * @author Daniel Blezek
+ *
+ */
+@Component
+public class RenderCache implements Managed {
+  static Logger logger = Logger.getLogger(RenderCache.class);
+
+  /** Width of a thumbnail, in pixels */
+  public static final int ThumbnailSize = 128;
+  static final int Quality = 85;
+  static final int WaitSeconds = 30;
+  /** Thumbnails waiting to be rendered at ingest, more are not rendered */
+  static final int IngestQueue = 1000;
+
+  static Meter hitMeter = Notion.metrics.meter(MetricRegistry.name("Rendered", "hits"));
+  static Meter missMeter = Notion.metrics.meter(MetricRegistry.name("Rendered", "misses"));
+  static Meter busyMeter = Notion.metrics.meter(MetricRegistry.name("Rendered", "busy"));
+  static Timer renderTimer = Notion.metrics.timer(MetricRegistry.name("Rendered", "timer"));
+  static {
+    Notion.metrics.register(MetricRegistry.name("Rendered", "bytes"), new Gauge<Long>() {
+      @Override
+      public Long getValue() {
+        if (Notion.context == null) {
+          return 0L;
+        }
+        return Notion.context.getBean(RenderCache.class).getBytes();
+      }
+    });
+  }
+
+  @Autowired
+  NotionConfiguration configuration;
+
+  File directory;
+  Semaphore renders;
+  ThreadPoolExecutor ingestRenders;
+  /** Renders by path in the directory, least recently served first */
+  final LinkedHashMap<String, Long> files = new LinkedHashMap<String, Long>(16, 0.75f, true);
+  /** Renders being served by path, and by how many requests */
+  final Map<String, Integer> pinned = new HashMap<String, Integer>();
+  /** Renders in progress by path */
+  final ConcurrentMap<String, FutureTask<File>> rendering = new ConcurrentHashMap<String, FutureTask<File>>();
+  long bytes = 0;
+
+  /** Thrown when the frame does not exist or is not an image */
+  public static class NotRenderable extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public NotRenderable(String message) {
+      super(message);
+    }
+  }
+
+  /**
+   * The rendered frame, rendering it if it is not in the cache. The file is
+   * kept until it is given to {@link #release(File)}.
+   *
+   * @param source
+   *        the stored file of the instance
+   * @param frame
+   *        the frame, the first is 0
+   * @param size
+   *        the largest width, 0 for the width of the image
+   * @param format
+   *        "jpeg" or "png"
+   * @param windowCenter
+   *        window center and width in display units (e.g. Hounsfield units),
+   *        both null for the default rendering. JPEG only.
+   * @return the rendered file, or null if too many renders are waiting
+   */
+  public File get(int instanceKey, final File source, final int frame, final int size, final String format, final Integer windowCenter, final Integer windowWidth) throws Exception {
+    if (!format.equals("jpeg") && !format.equals("png")) {
+      throw new NotRenderable("Unknown format " + format);
+    }
+    boolean windowed = windowCenter != null && windowWidth != null;
+    if (windowed && !format.equals("jpeg")) {
+      throw new NotRenderable("Windowed frames are rendered as jpeg");
+    }
+    String name = instanceKey + "-" + Long.toHexString(source.lastModified()) + "-" + frame + "-" + size + (windowed ? "-" + windowCenter + "-" + windowWidth : "") + "." + format;
+    final String path = (instanceKey % 256) + File.separator + name;
+    final File file = new File(directory, path);
+    if (pin(path)) {
+      hitMeter.mark();
+      return file;
+    }
+
+    while (true) {
+      FutureTask<File> task = new FutureTask<File>(new Callable<File>() {
+        @Override
+        public File call() throws Exception {
+          if (!renders.tryAcquire(WaitSeconds, TimeUnit.SECONDS)) {
+            busyMeter.mark();
+            return null;
+          }
+          try {
+            // Rendered while we waited
+            if (contains(path)) {
+              hitMeter.mark();
+              return file;
+            }
+            missMeter.mark();
+            Timer.Context context = renderTimer.time();
+            try {
+              render(source, file, frame, size, format, windowCenter, windowWidth);
+            } finally {
+              context.stop();
+            }
+            add(path, file.length());
+            return file;
+          } finally {
+            renders.release();
+          }
+        }
+      });
+      // Wait for a render of the same frame already started
+      FutureTask<File> running = rendering.putIfAbsent(path, task);
+      if (running == null) {
+        running = task;
+        try {
+          task.run();
+        } finally {
+          rendering.remove(path, task);
+        }
+      }
+      try {
+        if (running.get() == null) {
+          return null;
+        }
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof Exception) {
+          throw (Exception) e.getCause();
+        }
+        throw new Exception("Could not render frame " + frame + " of " + source, e.getCause());
+      }
+      // Unless it was removed before it could be pinned
+      if (pin(path)) {
+        return file;
+      }
+    }
+  }
+
+  /** The render returned by {@link #get} is no longer being served. */
+  public synchronized void release(File file) {
+    String path = file.getParentFile().getName() + File.separator + file.getName();
+    Integer count = pinned.get(path);
+    if (count == null || count <= 1) {
+      pinned.remove(path);
+    } else {
+      pinned.put(path, count - 1);
+    }
+  }
+
+  /** Queue a thumbnail of a newly stored instance, if configured to. */
+  public void renderAtIngest(final int instanceKey, final File source) {
+    if (ingestRenders == null || !configuration.notion.renderAtIngest) {
+      return;
+    }
+    ingestRenders.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          File file = get(instanceKey, source, 0, ThumbnailSize, "jpeg", null, null);
+          if (file != null) {
+            release(file);
+          }
+        } catch (NotRenderable e) {
+          // Not an image
+        } catch (Exception e) {
+          logger.warn("Could not render a thumbnail of " + source, e);
+        }
+      }
+    });
+  }
+
+  void render(File source, File file, int frame, int size, String format, Integer windowCenter, Integer windowWidth) throws Exception {
+    DicomObject dicomObject = new DicomObject(source);
+    if (!dicomObject.isImage()) {
+      throw new NotRenderable(source.getName() + " is not an image");
+    }
+    if (frame < 0 || frame >= Math.max(1, dicomObject.getNumberOfFrames())) {
+      throw new NotRenderable("No frame " + frame + " in " + source.getName());
+    }
+    file.getParentFile().mkdirs();
+    // Written aside, so a half written file is never served
+    File temporary = File.createTempFile(file.getName() + "-", ".tmp", file.getParentFile());
+    try {
+      boolean rendered;
+      if (windowCenter != null && windowWidth != null) {
+        BufferedImage image = dicomObject.getBufferedImage(frame, false);
+        int width = image.getWidth();
+        int height = image.getHeight();
+        if (size > 0 && width > size) {
+          height = Math.max(1, height * size / width);
+          width = size;
+        }
+        rendered = dicomObject.saveAsWindowLeveledJPEG(temporary, width, height, frame, Quality, windowCenter, windowWidth) != null;
+      } else if (format.equals("jpeg")) {
+        rendered = dicomObject.saveAsJPEG(temporary, frame, size > 0 ? size : Integer.MAX_VALUE, 0, Quality) != null;
+      } else {
+        BufferedImage image = dicomObject.getScaledBufferedImage(frame, size > 0 ? size : Integer.MAX_VALUE, 0);
+        rendered = image != null && ImageIO.write(image, "png", temporary);
+      }
+      if (!rendered || !temporary.renameTo(file)) {
+        throw new Exception("Could not render frame " + frame + " of " + source);
+      }
+    } finally {
+      temporary.delete();
+    }
+  }
+
+  /**
+   * Is the render cached? Marks it as the most recently served, and keeps it
+   * until it is released.
+   */
+  synchronized boolean pin(String path) {
+    if (!contains(path)) {
+      return false;
+    }
+    Integer count = pinned.get(path);
+    pinned.put(path, count == null ? 1 : count + 1);
+    return true;
+  }
+
+  /** Is the render cached? Marks it as the most recently served. */
+  synchronized boolean contains(String path) {
+    Long length = files.get(path);
+    if (length == null) {
+      return false;
+    }
+    if (new File(directory, path).exists()) {
+      return true;
+    }
+    // Removed from the disk by someone else
+    files.remove(path);
+    bytes -= length;
+    return false;
+  }
+
+  synchronized void add(String path, long length) {
+    Long previous = files.put(path, length);
+    bytes += length - (previous == null ? 0 : previous);
+    long limit = 1024L * 1024L * configuration.notion.renderCacheMB;
+    Iterator<Map.Entry<String, Long>> iterator = files.entrySet().iterator();
+    while (bytes > limit && iterator.hasNext()) {
+      Map.Entry<String, Long> entry = iterator.next();
+      // Being served
+      if (entry.getKey().equals(path) || pinned.containsKey(entry.getKey())) {
+        continue;
+      }
+      new File(directory, entry.getKey()).delete();
+      bytes -= entry.getValue();
+      iterator.remove();
+    }
+  }
+
+  public synchronized long getBytes() {
+    return bytes;
+  }
+
+  @Override
+  public void start() throws Exception {
+    directory = new File(configuration.notion.imageDirectory, "Rendered");
+    directory.mkdirs();
+    renders = new Semaphore(Math.max(1, configuration.notion.maxRenders), true);
+
+    // Renders from before a restart, oldest first
+    List<File> existing = new ArrayList<File>();
+    File[] subdirectories = directory.listFiles();
+    for (File subdirectory : subdirectories == null ? new File[0] : subdirectories) {
+      File[] rendered = subdirectory.listFiles();
+      for (File file : rendered == null ? new File[0] : rendered) {
+        if (file.getName().endsWith(".tmp")) {
+          file.delete();
+        } else {
+          existing.add(file);
+        }
+      }
+    }
+    Collections.sort(existing, new Comparator<File>() {
+      @Override
+      public int compare(File a, File b) {
+        return Long.compare(a.lastModified(), b.lastModified());
+      }
+    });
+    for (File file : existing) {
+      add(file.getParentFile().getName() + File.separator + file.getName(), file.length());
+    }
+    logger.info("Render cache holds " + files.size() + " renders, " + bytes / 1024 / 1024 + " MB");
+
+    // One at a time, dropped if ingest outpaces them
+    ingestRenders = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(IngestQueue), new ThreadPoolExecutor.DiscardPolicy());
+  }
+
+  @Override
+  public void stop() throws Exception {
+    if (ingestRenders != null) {
+      ingestRenders.shutdownNow();
+      ingestRenders = null;
+    }
+  }
+}
@@ -0,0 +1,638 @@
+package edu.mayo.qia.pacs.components;
+
+import org.apache.log4j.Logger;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+/**
+ * In-memory, column oriented index of the studies in a pool.
+ *
+ * Each study is a row in a set of parallel primitive arrays. String columns
+ * are dictionary encoded, so a filter is evaluated once per distinct value
+ * rather than once per row; exact and prefix filters look their values up in
+ * the sorted dictionary. Dates are stored as milliseconds with
+ * {@link #NULL_DATE} marking a missing value, and are dictionary encoded as
+ * well for sorting. Each dictionary keeps the sort rank of its values as they
+ * are added, so a sort is of primitive (rank, row) keys, and only the rows up
+ * to the end of the requested page are put in order.
+ *
+ * The index is kept current by {@link PoolContainer#process} and
+ * {@link PoolContainer#deleteStudy(int)} and answers the study list queries
+ * from the REST API and C-FIND without touching the database.
+ *
+ * @author Daniel Blezek
+ *
+ */
+public class StudyIndex {
+  static Logger logger = Logger.getLogger(StudyIndex.class);
+
+  /** Dictionary encoded columns, in the order of {@link #codes}. */
+  public static final String[] StringColumns = { "PatientID", "PatientName", "PatientSex", "StudyID", "AccessionNumber", "StudyInstanceUID", "StudyDescription" };
+  public static final String[] DateColumns = { "PatientBirthDate", "StudyDate", "StudyTime" };
+  static final long NULL_DATE = Long.MIN_VALUE;
+  static final int INITIAL_CAPACITY = 1024;
+  /** Least room between ranks spread again, so a few more values fit */
+  static final int MinimumGap = 64;
+
+  final ReadWriteLock lock = new ReentrantReadWriteLock();
+  final Map<Integer, Integer> rowForStudyKey = new HashMap<Integer, Integer>();
+  int size = 0;
+  int[] studyKeys = new int[INITIAL_CAPACITY];
+  int[][] codes = new int[StringColumns.length][INITIAL_CAPACITY];
+  long[][] dates = new long[DateColumns.length][INITIAL_CAPACITY];
+  int[][] dateCodes = new int[DateColumns.length][INITIAL_CAPACITY];
+  StringDictionary[] dictionaries = new StringDictionary[StringColumns.length];
+  @SuppressWarnings("unchecked")
+  Dictionary<Long>[] dateDictionaries = new Dictionary[DateColumns.length];
+
+  public StudyIndex() {
+    clear();
+  }
+
+  /** Replace the contents of the index with all the studies in the pool. */
+  public void load(JdbcTemplate template, int poolKey) {
+    lock.writeLock().lock();
+    try {
+      clear();
+      rankLater();
+      template.query("select * from STUDY where PoolKey = ?", new Object[] { poolKey }, new RowCallbackHandler() {
+
+        @Override
+        public void processRow(ResultSet rs) throws SQLException {
+          int row = appendRow(rs.getInt("StudyKey"));
+          for (int c = 0; c < StringColumns.length; c++) {
+            codes[c][row] = dictionaries[c].encode(rs.getString(StringColumns[c]));
+          }
+          for (int c = 0; c < DateColumns.length; c++) {
+            Timestamp t = rs.getTimestamp(DateColumns[c]);
+            setDate(c, row, t == null ? NULL_DATE : t.getTime());
+          }
+        }
+      });
+      rankAll();
+      logger.debug("Indexed " + size + " studies for pool " + poolKey);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /** Add a new study or update an existing one. */
+  public void put(Study study) {
+    lock.writeLock().lock();
+    try {
+      Integer row = rowForStudyKey.get(study.StudyKey);
+      if (row == null) {
+        row = appendRow(study.StudyKey);
+      }
+      String[] values = { study.PatientID, study.PatientName, study.PatientSex, study.StudyID, study.AccessionNumber, study.StudyInstanceUID, study.StudyDescription };
+      for (int c = 0; c < StringColumns.length; c++) {
+        codes[c][row] = dictionaries[c].encode(values[c]);
+      }
+      Date[] d = { study.PatientBirthDate, study.StudyDate, study.StudyTime };
+      for (int c = 0; c < DateColumns.length; c++) {
+        setDate(c, row, d[c] == null ? NULL_DATE : d[c].getTime());
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /** Remove a study, moving the last row into its place. */
+  public void remove(int studyKey) {
+    lock.writeLock().lock();
+    try {
+      Integer row = rowForStudyKey.remove(studyKey);
+      if (row == null) {
+        return;
+      }
+      int last = size - 1;
+      if (row != last) {
+        studyKeys[row] = studyKeys[last];
+        for (int c = 0; c < codes.length; c++) {
+          codes[c][row] = codes[c][last];
+        }
+        for (int c = 0; c < dates.length; c++) {
+          dates[c][row] = dates[c][last];
+          dateCodes[c][row] = dateCodes[c][last];
+        }
+        rowForStudyKey.put(studyKeys[row], row);
+      }
+      size = last;
+      // Dictionaries only grow, rebuild them once they are mostly garbage
+      if (dictionaries[1].size() > 2 * size + INITIAL_CAPACITY) {
+        compact();
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  public int size() {
+    lock.readLock().lock();
+    try {
+      return size;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Filter, sort and page the index.
+   *
+   * @return the page of studies requested and the total number of matches
+   */
+  public Page search(Criteria criteria) {
+    lock.readLock().lock();
+    try {
+      // Each string filter becomes a set of matching dictionary codes
+      List<int[]> filterColumns = new ArrayList<int[]>();
+      List<BitSet> filterCodes = new ArrayList<BitSet>();
+      for (Map.Entry<String, Filter> entry : criteria.match.entrySet()) {
+        int c = stringColumn(entry.getKey());
+        filterColumns.add(codes[c]);
+        filterCodes.add(dictionaries[c].matching(entry.getValue()));
+      }
+      long from = criteria.dateFrom == null ? NULL_DATE : criteria.dateFrom.getTime();
+      long to = criteria.dateTo == null ? NULL_DATE : criteria.dateTo.getTime();
+      long[] studyDates = dates[1];
+
+      int[] matches = new int[size];
+      int count = 0;
+      rows: for (int row = 0; row < size; row++) {
+        for (int f = 0; f < filterColumns.size(); f++) {
+          if (!filterCodes.get(f).get(filterColumns.get(f)[row])) {
+            continue rows;
+          }
+        }
+        if (from != NULL_DATE && (studyDates[row] == NULL_DATE || studyDates[row] < from)) {
+          continue;
+        }
+        if (to != NULL_DATE && (studyDates[row] == NULL_DATE || studyDates[row] > to)) {
+          continue;
+        }
+        matches[count++] = row;
+      }
+
+      Page page = new Page();
+      page.total = count;
+      int start = Math.max(0, criteria.offset);
+      int end = (int) Math.min((long) count, (long) start + Math.max(0, criteria.limit));
+      if (start < end && criteria.sortColumn != null) {
+        matches = sort(matches, count, criteria.sortColumn, criteria.descending, end);
+      }
+      for (int i = start; i < end; i++) {
+        page.studies.add(toStudy(matches[i]));
+      }
+      return page;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * The first <code>n</code> of the first <code>count</code> rows in sort
+   * order. Ties are in row order, reversed when descending.
+   */
+  int[] sort(int[] rows, int count, String column, boolean descending, int n) {
+    // Nulls sort last, as Derby does
+    int[] ranks;
+    int[] columnCodes;
+    int d = Arrays.asList(DateColumns).indexOf(column);
+    if (d >= 0) {
+      ranks = dateDictionaries[d].ranks;
+      columnCodes = dateCodes[d];
+    } else {
+      int c = stringColumn(column);
+      ranks = dictionaries[c].ranks;
+      columnCodes = codes[c];
+    }
+
+    // Rank in the high word and row in the low word, so the keys sort as
+    // primitives. Inverted, the smallest keys are the last in order
+    long[] keys = new long[count];
+    for (int i = 0; i < count; i++) {
+      long key = ((long) ranks[columnCodes[rows[i]]] << 32) | rows[i];
+      keys[i] = descending ? ~key : key;
+    }
+    if (n < count / 4) {
+      keys = smallest(keys, n);
+    } else {
+      Arrays.sort(keys);
+    }
+    int[] sorted = new int[n];
+    for (int i = 0; i < n; i++) {
+      sorted[i] = (int) (descending ? ~keys[i] : keys[i]);
+    }
+    return sorted;
+  }
+
+  /** The <code>n</code> smallest keys in order, kept in a max-heap. */
+  static long[] smallest(long[] keys, int n) {
+    long[] heap = new long[n];
+    int size = 0;
+    for (long key : keys) {
+      int i;
+      if (size < n) {
+        i = size++;
+        while (i > 0 && heap[(i - 1) / 2] < key) {
+          heap[i] = heap[(i - 1) / 2];
+          i = (i - 1) / 2;
+        }
+      } else if (key < heap[0]) {
+        i = 0;
+        while (true) {
+          int child = 2 * i + 1;
+          if (child >= n) {
+            break;
+          }
+          if (child + 1 < n && heap[child + 1] > heap[child]) {
+            child++;
+          }
+          if (heap[child] <= key) {
+            break;
+          }
+          heap[i] = heap[child];
+          i = child;
+        }
+      } else {
+        continue;
+      }
+      heap[i] = key;
+    }
+    Arrays.sort(heap, 0, size);
+    return heap;
+  }
+
+  Study toStudy(int row) {
+    Study study = new Study();
+    study.StudyKey = studyKeys[row];
+    study.PatientID = dictionaries[0].decode(codes[0][row]);
+    study.PatientName = dictionaries[1].decode(codes[1][row]);
+    study.PatientSex = dictionaries[2].decode(codes[2][row]);
+    study.StudyID = dictionaries[3].decode(codes[3][row]);
+    study.AccessionNumber = dictionaries[4].decode(codes[4][row]);
+    study.StudyInstanceUID = dictionaries[5].decode(codes[5][row]);
+    study.StudyDescription = dictionaries[6].decode(codes[6][row]);
+    study.PatientBirthDate = toDate(dates[0][row]);
+    study.StudyDate = toDate(dates[1][row]);
+    study.StudyTime = toDate(dates[2][row]);
+    return study;
+  }
+
+  static Date toDate(long value) {
+    return value == NULL_DATE ? null : new Timestamp(value);
+  }
+
+  static int stringColumn(String column) {
+    for (int c = 0; c < StringColumns.length; c++) {
+      if (StringColumns[c].equalsIgnoreCase(column)) {
+        return c;
+      }
+    }
+    throw new IllegalArgumentException("Unknown index column: " + column);
+  }
+
+  int appendRow(int studyKey) {
+    if (size == studyKeys.length) {
+      int capacity = studyKeys.length * 2;
+      studyKeys = Arrays.copyOf(studyKeys, capacity);
+      for (int c = 0; c < codes.length; c++) {
+        codes[c] = Arrays.copyOf(codes[c], capacity);
+      }
+      for (int c = 0; c < dates.length; c++) {
+        dates[c] = Arrays.copyOf(dates[c], capacity);
+        dateCodes[c] = Arrays.copyOf(dateCodes[c], capacity);
+      }
+    }
+    int row = size++;
+    studyKeys[row] = studyKey;
+    rowForStudyKey.put(studyKey, row);
+    return row;
+  }
+
+  void setDate(int c, int row, long value) {
+    dates[c][row] = value;
+    dateCodes[c][row] = dateDictionaries[c].encode(value == NULL_DATE ? null : value);
+  }
+
+  void clear() {
+    size = 0;
+    rowForStudyKey.clear();
+    for (int i = 0; i < dictionaries.length; i++) {
+      dictionaries[i] = new StringDictionary();
+    }
+    for (int i = 0; i < dateDictionaries.length; i++) {
+      dateDictionaries[i] = new Dictionary<Long>();
+    }
+  }
+
+  void compact() {
+    for (int c = 0; c < dictionaries.length; c++) {
+      StringDictionary old = dictionaries[c];
+      dictionaries[c] = new StringDictionary();
+      dictionaries[c].deferred = true;
+      for (int row = 0; row < size; row++) {
+        codes[c][row] = dictionaries[c].encode(old.decode(codes[c][row]));
+      }
+    }
+    for (int c = 0; c < dateDictionaries.length; c++) {
+      dateDictionaries[c] = new Dictionary<Long>();
+      dateDictionaries[c].deferred = true;
+      for (int row = 0; row < size; row++) {
+        setDate(c, row, dates[c][row]);
+      }
+    }
+    rankAll();
+  }
+
+  /** Many values are about to be added, rank them once they are all in. */
+  void rankLater() {
+    for (Dictionary<?> dictionary : dictionaries) {
+      dictionary.deferred = true;
+    }
+    for (Dictionary<?> dictionary : dateDictionaries) {
+      dictionary.deferred = true;
+    }
+  }
+
+  void rankAll() {
+    for (Dictionary<?> dictionary : dictionaries) {
+      dictionary.rankAll();
+    }
+    for (Dictionary<?> dictionary : dateDictionaries) {
+      dictionary.rankAll();
+    }
+  }
+
+  /**
+   * How the values of a string column are matched. Exactly one of the fields
+   * is set.
+   */
+  public static class Filter {
+    /** Any of these values */
+    String[] values;
+    /** Values that start with this */
+    String prefix;
+    /** Values that contain this, ignoring case */
+    String contains;
+    Pattern pattern;
+  }
+
+  /** Search parameters for the string columns and the study date. */
+  public static class Criteria {
+    public Map<String, Filter> match = new HashMap<String, Filter>();
+    public Date dateFrom;
+    public Date dateTo;
+    public String sortColumn;
+    public boolean descending = false;
+    public int offset = 0;
+    public int limit = Integer.MAX_VALUE;
+
+    /** Case insensitive substring match, as the web interface does. */
+    public Criteria contains(String column, String value) {
+      stringColumn(column);
+      Filter filter = new Filter();
+      filter.contains = value;
+      match.put(column, filter);
+      return this;
+    }
+
+    /** Exactly one of <code>values</code>, as in C-FIND UID list matching. */
+    public Criteria anyOf(String column, String... values) {
+      stringColumn(column);
+      Filter filter = new Filter();
+      filter.values = values.clone();
+      match.put(column, filter);
+      return this;
+    }
+
+    /** DICOM wildcard match, '*' and '?' as in C-FIND. */
+    public Criteria wildcard(String column, String value) {
+      stringColumn(column);
+      Filter filter = new Filter();
+      match.put(column, filter);
+      int star = value.indexOf('*');
+      if (value.indexOf('?') < 0 && (star < 0 || star == value.length() - 1)) {
+        if (star < 0) {
+          filter.values = new String[] { value };
+        } else {
+          filter.prefix = value.substring(0, star);
+        }
+        return this;
+      }
+      StringBuilder regex = new StringBuilder();
+      StringBuilder literal = new StringBuilder();
+      for (char ch : value.toCharArray()) {
+        if (ch == '*' || ch == '?') {
+          if (literal.length() > 0) {
+            regex.append(Pattern.quote(literal.toString()));
+            literal.setLength(0);
+          }
+          regex.append(ch == '*' ? ".*" : ".");
+        } else {
+          literal.append(ch);
+        }
+      }
+      if (literal.length() > 0) {
+        regex.append(Pattern.quote(literal.toString()));
+      }
+      filter.pattern = Pattern.compile(regex.toString(), Pattern.DOTALL);
+      return this;
+    }
+  }
+
+  /** One page of search results. */
+  public static class Page {
+    public int total;
+    public List<Study> studies = new ArrayList<Study>();
+  }
+
+  /**
+   * Maps values to small integer codes, code 0 is reserved for null. Each
+   * code has a rank, in the same order as the values, with nulls last. A new
+   * value takes a rank between its neighbours'. When there is no room, it and
+   * its nearest neighbours are spread out again, and only when the whole
+   * dictionary is too crowded is every value ranked again, evenly spaced in
+   * the middle half of the int range.
+   */
+  static class Dictionary<T extends Comparable<T>> {
+    final Map<T, Integer> codeForValue = new HashMap<T, Integer>();
+    final TreeMap<T, Integer> ordered = new TreeMap<T, Integer>();
+    final List<T> values = new ArrayList<T>();
+    int[] ranks = new int[INITIAL_CAPACITY];
+    /** Between ranks at the ends, set when the whole dictionary is ranked */
+    int spacing = 1 << 16;
+    /** New values are not ranked until {@link #rankAll()} */
+    boolean deferred = false;
+
+    Dictionary() {
+      values.add(null);
+      ranks[0] = Integer.MAX_VALUE;
+    }
+
+    int encode(T value) {
+      if (value == null) {
+        return 0;
+      }
+      Integer code = codeForValue.get(value);
+      if (code == null) {
+        code = values.size();
+        values.add(value);
+        codeForValue.put(value, code);
+        ordered.put(value, code);
+        if (code == ranks.length) {
+          ranks = Arrays.copyOf(ranks, 2 * code);
+        }
+        if (!deferred) {
+          rank(value, code);
+        }
+      }
+      return code;
+    }
+
+    void rankAll() {
+      deferred = false;
+      spacing = Math.max(1, (Integer.MAX_VALUE / 2) / Math.max(1, ordered.size()));
+      spread(new ArrayDeque<Integer>(ordered.values()), -1, Integer.MAX_VALUE, true, true, 1);
+    }
+
+    /**
+     * Rank a new value between its neighbours. Without room, rank it and more
+     * and more of its neighbours again, evenly spaced, until there is room
+     * for all of them, the whole dictionary if need be.
+     */
+    void rank(T value, int code) {
+      Iterator<Integer> down = ordered.headMap(value, false).descendingMap().values().iterator();
+      Iterator<Integer> up = ordered.tailMap(value, false).values().iterator();
+      ArrayDeque<Integer> window = new ArrayDeque<Integer>();
+      window.add(code);
+      Integer below = down.hasNext() ? down.next() : null;
+      Integer above = up.hasNext() ? up.next() : null;
+      long minimum = 1;
+      while (true) {
+        if (below == null && above == null) {
+          spacing = Math.max(1, (Integer.MAX_VALUE / 2) / window.size());
+          minimum = 1;
+        }
+        if (spread(window, below == null ? -1 : ranks[below], above == null ? Integer.MAX_VALUE : ranks[above], below == null, above == null, minimum)) {
+          return;
+        }
+        for (int i = window.size(); i > 0 && below != null; i--) {
+          window.addFirst(below);
+          below = down.hasNext() ? down.next() : null;
+        }
+        for (int i = window.size(); i > 0 && above != null; i--) {
+          window.addLast(above);
+          above = up.hasNext() ? up.next() : null;
+        }
+        minimum = Math.min(window.size(), MinimumGap);
+      }
+    }
+
+    /**
+     * Rank <code>window</code> evenly between <code>low</code> and
+     * <code>high</code>, unless they would be less than
+     * <code>minimum</code> apart. At either end of the dictionary they are no
+     * more than {@link #spacing} apart, leaving room for more values there.
+     */
+    boolean spread(ArrayDeque<Integer> window, long low, long high, boolean first, boolean last, long minimum) {
+      long gap = (high - low) / (window.size() + 1);
+      if (first || last) {
+        gap = Math.min(gap, spacing);
+      }
+      if (gap < minimum) {
+        return false;
+      }
+      long rank;
+      if (first && last) {
+        rank = low + (high - low - gap * (window.size() - 1)) / 2;
+      } else if (first) {
+        rank = high - gap * window.size();
+      } else {
+        rank = low + gap;
+      }
+      for (int c : window) {
+        ranks[c] = (int) rank;
+        rank += gap;
+      }
+      return true;
+    }
+
+    T decode(int code) {
+      return values.get(code);
+    }
+
+    int size() {
+      return values.size();
+    }
+  }
+
+  static class StringDictionary extends Dictionary<String> {
+
+    /** Codes whose value matches, null never matches. */
+    BitSet matching(Filter filter) {
+      BitSet bits = new BitSet(values.size());
+      if (filter.values != null) {
+        for (String value : filter.values) {
+          Integer code = codeForValue.get(value);
+          if (code != null) {
+            bits.set(code);
+          }
+        }
+      } else if (filter.prefix != null) {
+        for (Map.Entry<String, Integer> entry : ordered.tailMap(filter.prefix, true).entrySet()) {
+          if (!entry.getKey().startsWith(filter.prefix)) {
+            break;
+          }
+          bits.set(entry.getValue());
+        }
+      } else if (filter.contains != null) {
+        for (int code = 1; code < values.size(); code++) {
+          if (containsIgnoreCase(values.get(code), filter.contains)) {
+            bits.set(code);
+          }
+        }
+      } else {
+        for (int code = 1; code < values.size(); code++) {
+          if (filter.pattern.matcher(values.get(code)).matches()) {
+            bits.set(code);
+          }
+        }
+      }
+      return bits;
+    }
+
+    static boolean containsIgnoreCase(String value, String part) {
+      int length = part.length();
+      if (length == 0) {
+        return true;
+      }
+      char lower = Character.toLowerCase(part.charAt(0));
+      char upper = Character.toUpperCase(part.charAt(0));
+      for (int i = 0, last = value.length() - length; i <= last; i++) {
+        char ch = value.charAt(i);
+        if ((ch == lower || ch == upper) && value.regionMatches(true, i, part, 0, length)) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+}
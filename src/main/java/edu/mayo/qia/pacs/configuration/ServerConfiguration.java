@@ -36,6 +36,102 @@ public class ServerConfiguration {
   @JsonProperty
   public Boolean allowRegistration = Boolean.TRUE;
 
+  @Valid
+  @JsonProperty
+  public Boolean studyIndex = Boolean.FALSE;
+
+  @Valid
+  @JsonProperty
+  public int queryCacheSeconds = 10;
+
+  @Valid
+  @JsonProperty
+  public int queryCacheSize = 256;
+
+  @Valid
+  @JsonProperty
+  public int moveAssociations = 1;
+
+  @Valid
+  @JsonProperty
+  public int queryAssociations = 4;
+
+  @Valid
+  @JsonProperty
+  public int fetchAssociations = 2;
+
+  @Valid
+  @JsonProperty
+  public int fetchRetries = 3;
+
+  @Valid
+  @JsonProperty
+  public int fetchRetrySeconds = 10;
+
+  @Valid
+  @JsonProperty
+  public int maxJobs = 4;
+
+  @Valid
+  @JsonProperty
+  public int jobsPerDevice = 2;
+
+  @Valid
+  @JsonProperty
+  public int jobLeaseSeconds = 60;
+
+  @Valid
+  @JsonProperty
+  public int renderCacheMB = 1024;
+
+  @Valid
+  @JsonProperty
+  public int maxRenders = 2;
+
+  @Valid
+  @JsonProperty
+  public Boolean renderAtIngest = Boolean.FALSE;
+
+  @Valid
+  @JsonProperty
+  public String movePartition = "series";
+
+  @Valid
+  @JsonProperty
+  public int moveResumeHours = 24;
+
+  @Valid
+  @JsonProperty
+  public int maxOutboundMBps = 0;
+
+  @Valid
+  @JsonProperty
+  public int maxDeviceMBps = 0;
+
+  @Valid
+  @JsonProperty
+  public int maxOpsInvoked = 16;
+
+  @Valid
+  @JsonProperty
+  public int forwardAssociations = 1;
+
+  @Valid
+  @JsonProperty
+  public int forwardRetrySeconds = 30;
+
+  @Valid
+  @JsonProperty
+  public int forwardMaxAttempts = 50;
+
+  @Valid
+  @JsonProperty
+  public int associationIdleSeconds = 30;
+
+  @Valid
+  @JsonProperty
+  public int maxAssociationsPerDevice = 8;
+
   public String getHost() {
     return host;
   }
@@ -0,0 +1,327 @@
+package edu.mayo.qia.pacs.dicom;
+
+import io.dropwizard.lifecycle.Managed;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+
+import org.dcm4che2.data.Tag;
+import org.dcm4che2.data.UID;
+import org.dcm4che2.net.Association;
+import org.dcm4che2.net.ConfigurationException;
+import org.dcm4che2.net.DimseRSP;
+import org.dcm4che2.net.NetworkApplicationEntity;
+import org.dcm4che2.net.NetworkConnection;
+import org.dcm4che2.net.TransferCapability;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import edu.mayo.qia.pacs.Notion;
+import edu.mayo.qia.pacs.NotionConfiguration;
+
+/**
+ * Keeps outbound associations open between uses.
+ *
+ * Associations are keyed by calling AET, called AET, host, port and the
+ * proposed presentation contexts, so a borrowed association always has the
+ * contexts the caller asked for. Idle associations are closed after
+ * <code>associationIdleSeconds</code>, and one that sat idle for a while is
+ * checked with a C-ECHO before it is handed out again. No more than
+ * <code>maxAssociationsPerDevice</code> associations, busy or idle, are open
+ * to any one device.
+ *
+ * @author Daniel Blezek
+ *
+ */
+@Component
+public class AssociationPool implements Managed {
+  static Logger logger = LoggerFactory.getLogger(AssociationPool.class);
+
+  /** Check associations idle for longer than this before reuse (ms). */
+  static final long CheckAfter = 5000;
+
+  /** How long to wait for a free association to a busy device (s). */
+  static final long BorrowTimeout = 60;
+
+  static Meter createdMeter = Notion.metrics.meter(MetricRegistry.name("DICOM", "association", "pool", "created"));
+  static Meter reusedMeter = Notion.metrics.meter(MetricRegistry.name("DICOM", "association", "pool", "reused"));
+
+  @Autowired
+  NotionConfiguration configuration;
+
+  /** Idle associations by key, most recently used first. */
+  final Map<String, LinkedList<Pooled>> idle = new HashMap<String, LinkedList<Pooled>>();
+  final Map<Association, Pooled> borrowed = new ConcurrentHashMap<Association, Pooled>();
+  final ConcurrentMap<String, Semaphore> permits = new ConcurrentHashMap<String, Semaphore>();
+
+  static class Pooled {
+    final String key;
+    final String device;
+    final Association as;
+    long lastUsed = System.currentTimeMillis();
+
+    Pooled(String key, String device, Association as) {
+      this.key = key;
+      this.device = device;
+      this.as = as;
+    }
+  }
+
+  public AssociationPool() {
+    Notion.metrics.register(MetricRegistry.name("DICOM", "association", "pool", "idle"), new Gauge<Integer>() {
+      @Override
+      public Integer getValue() {
+        synchronized (idle) {
+          int count = 0;
+          for (List<Pooled> list : idle.values()) {
+            count += list.size();
+          }
+          return count;
+        }
+      }
+    });
+    Notion.metrics.register(MetricRegistry.name("DICOM", "association", "pool", "borrowed"), new Gauge<Integer>() {
+      @Override
+      public Integer getValue() {
+        return borrowed.size();
+      }
+    });
+  }
+
+  /**
+   * An association from <code>ae</code> to <code>remoteAE</code>, reused if one
+   * is idle. Must be returned with {@link #release(Association)}.
+   */
+  public Association borrow(NetworkApplicationEntity ae, NetworkApplicationEntity remoteAE, Executor executor) throws IOException, ConfigurationException, InterruptedException {
+    if (configuration.notion.associationIdleSeconds <= 0) {
+      return ae.connect(remoteAE, executor);
+    }
+    NetworkConnection remoteConn = remoteAE.getNetworkConnection()[0];
+    String device = remoteAE.getAETitle() + "@" + remoteConn.getHostname() + ":" + remoteConn.getPort();
+    String key = ae.getAETitle() + "->" + device + signature(ae.getTransferCapability());
+
+    Pooled pooled;
+    while ((pooled = take(key)) != null) {
+      if (isHealthy(pooled)) {
+        reusedMeter.mark();
+        borrowed.put(pooled.as, pooled);
+        return pooled.as;
+      }
+      close(pooled);
+    }
+
+    Semaphore semaphore = getPermits(device);
+    if (!semaphore.tryAcquire()) {
+      // Make room by closing an association this device is not using
+      closeIdle(device);
+      if (!semaphore.tryAcquire(BorrowTimeout, TimeUnit.SECONDS)) {
+        throw new IOException("Timed out waiting for an association to " + device);
+      }
+    }
+    try {
+      Association as = ae.connect(remoteAE, executor);
+      createdMeter.mark();
+      borrowed.put(as, new Pooled(key, device, as));
+      return as;
+    } catch (IOException e) {
+      semaphore.release();
+      throw e;
+    } catch (ConfigurationException e) {
+      semaphore.release();
+      throw e;
+    } catch (RuntimeException e) {
+      semaphore.release();
+      throw e;
+    }
+  }
+
+  /**
+   * Done with the association. Waits for outstanding responses, then keeps it
+   * for the next caller if it is still usable.
+   */
+  public void release(Association as) {
+    Pooled pooled = borrowed.remove(as);
+    if (pooled == null) {
+      // Not pooled
+      try {
+        as.release(false);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return;
+    }
+    try {
+      as.waitForDimseRSP();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      close(pooled);
+      return;
+    }
+    if (!as.isReadyForDataTransfer() || configuration.notion.associationIdleSeconds <= 0) {
+      close(pooled);
+      return;
+    }
+    pooled.lastUsed = System.currentTimeMillis();
+    synchronized (idle) {
+      LinkedList<Pooled> list = idle.get(pooled.key);
+      if (list == null) {
+        list = new LinkedList<Pooled>();
+        idle.put(pooled.key, list);
+      }
+      list.addFirst(pooled);
+    }
+  }
+
+  /** The association failed, close it rather than reuse it. */
+  public void invalidate(Association as) {
+    Pooled pooled = borrowed.remove(as);
+    if (pooled != null) {
+      close(pooled);
+    } else {
+      as.abort();
+    }
+  }
+
+  /** Close associations idle longer than the configured timeout. */
+  @Scheduled(fixedDelay = 5000)
+  public void reap() {
+    long expired = System.currentTimeMillis() - 1000L * configuration.notion.associationIdleSeconds;
+    List<Pooled> toClose = new ArrayList<Pooled>();
+    synchronized (idle) {
+      for (Iterator<LinkedList<Pooled>> lists = idle.values().iterator(); lists.hasNext();) {
+        LinkedList<Pooled> list = lists.next();
+        for (Iterator<Pooled> iterator = list.iterator(); iterator.hasNext();) {
+          Pooled pooled = iterator.next();
+          if (pooled.lastUsed < expired || !pooled.as.isReadyForDataTransfer()) {
+            iterator.remove();
+            toClose.add(pooled);
+          }
+        }
+        if (list.isEmpty()) {
+          lists.remove();
+        }
+      }
+    }
+    for (Pooled pooled : toClose) {
+      logger.debug("Closing idle association to " + pooled.device);
+      close(pooled);
+    }
+  }
+
+  @Override
+  public void start() throws Exception {
+  }
+
+  @Override
+  public void stop() throws Exception {
+    List<Pooled> toClose = new ArrayList<Pooled>();
+    synchronized (idle) {
+      for (List<Pooled> list : idle.values()) {
+        toClose.addAll(list);
+      }
+      idle.clear();
+    }
+    for (Pooled pooled : toClose) {
+      close(pooled);
+    }
+  }
+
+  Pooled take(String key) {
+    synchronized (idle) {
+      LinkedList<Pooled> list = idle.get(key);
+      if (list == null || list.isEmpty()) {
+        return null;
+      }
+      return list.removeFirst();
+    }
+  }
+
+  void closeIdle(String device) {
+    Pooled victim = null;
+    synchronized (idle) {
+      for (LinkedList<Pooled> list : idle.values()) {
+        // Least recently used is last
+        if (!list.isEmpty() && list.getLast().device.equals(device)) {
+          if (victim == null || list.getLast().lastUsed < victim.lastUsed) {
+            victim = list.getLast();
+          }
+        }
+      }
+      if (victim != null) {
+        idle.get(victim.key).remove(victim);
+      }
+    }
+    if (victim != null) {
+      close(victim);
+    }
+  }
+
+  boolean isHealthy(Pooled pooled) {
+    Association as = pooled.as;
+    if (!as.isReadyForDataTransfer()) {
+      return false;
+    }
+    if (System.currentTimeMillis() - pooled.lastUsed < CheckAfter || as.getTransferCapabilityAsSCU(UID.VerificationSOPClass) == null) {
+      return true;
+    }
+    try {
+      DimseRSP rsp = as.cecho();
+      rsp.next();
+      return rsp.getCommand().getInt(Tag.Status) == 0;
+    } catch (Exception e) {
+      logger.debug("C-ECHO to " + pooled.device + " failed", e);
+      return false;
+    }
+  }
+
+  void close(Pooled pooled) {
+    try {
+      if (pooled.as.isReadyForDataTransfer()) {
+        pooled.as.release(false);
+      }
+    } catch (Exception e) {
+      logger.debug("Error releasing association to " + pooled.device, e);
+    } finally {
+      getPermits(pooled.device).release();
+    }
+  }
+
+  Semaphore getPermits(String device) {
+    Semaphore semaphore = permits.get(device);
+    if (semaphore == null) {
+      permits.putIfAbsent(device, new Semaphore(Math.max(1, configuration.notion.maxAssociationsPerDevice)));
+      semaphore = permits.get(device);
+    }
+    return semaphore;
+  }
+
+  static String signature(TransferCapability[] tcs) {
+    List<String> contexts = new ArrayList<String>();
+    for (TransferCapability tc : tcs) {
+      String[] ts = tc.getTransferSyntax().clone();
+      Arrays.sort(ts);
+      contexts.add(tc.getSopClass() + ":" + (tc.isSCU() ? "SCU" : "SCP") + ":" + Arrays.toString(ts));
+    }
+    Collections.sort(contexts);
+    return contexts.toString();
+  }
+}
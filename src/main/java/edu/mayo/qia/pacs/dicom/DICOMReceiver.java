@@ -76,6 +76,9 @@ public class DICOMReceiver implements AssociationListener, Managed {
   @Autowired
   MoveSCP moveSCP;
 
+  @Autowired
+  GetSCP getSCP;
+
   // DJB, replaced with Notion's
   // private final Executor executor = Executors.newCachedThreadPool();
   private Executor executor = Notion.executor;
@@ -130,6 +133,14 @@ public class DICOMReceiver implements AssociationListener, Managed {
     for (int i = 0; i < MoveSCP.PresentationContexts.length; i++) {
       tc.add(new TransferCapability(MoveSCP.PresentationContexts[i], NON_RETIRED_LE_TS, TransferCapability.SCP));
     }
+    for (int i = 0; i < GetSCP.PresentationContexts.length; i++) {
+      tc.add(new TransferCapability(GetSCP.PresentationContexts[i], NON_RETIRED_LE_TS, TransferCapability.SCP));
+    }
+    // C-GET sends back over the requesting association, so we are the
+    // storage SCU when the requester asks to be the SCP
+    for (int i = 0; i < StorageSCP.CUIDS.length; i++) {
+      tc.add(new TransferCapability(StorageSCP.CUIDS[i], NON_RETIRED_LE_TS, TransferCapability.SCU));
+    }
 
     if (logger.isDebugEnabled()) {
       for (TransferCapability tt : tc) {
@@ -141,6 +152,7 @@ public class DICOMReceiver implements AssociationListener, Managed {
     ae.register(storageSCP);
     ae.register(findSCP);
     ae.register(moveSCP);
+    ae.register(getSCP);
 
     ae.addAssociationListener(this);
 
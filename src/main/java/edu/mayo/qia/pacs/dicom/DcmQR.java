@@ -78,11 +78,13 @@ public class DcmQR {
 
   private Association assoc;
 
+  private AssociationPool associationPool;
+
   private int priority = 0;
 
   private String moveDest;
 
-  private DicomObject keys = new BasicDicomObject();
+  private DicomObject keys;
 
   private int cancelAfter = Integer.MAX_VALUE;
 
@@ -131,11 +133,7 @@ ActionListener moveActionListener;
     configureTransferCapability(false);
 
     setNoExtNegotiation(true);
-
-    keys.putString(Tag.QueryRetrieveLevel, VR.CS, STUDY_QR_LEVEL_STR);
-    int[] tags = STUDY_RETURN_KEYS;
-    for (int i = 0; i < tags.length; i++)
-      keys.putNull(tags[i], null);
+    clearMatchingKeys();
   }
 
   public final String getRemoteAE() {
@@ -162,6 +160,12 @@ ActionListener moveActionListener;
     ae.setAETitle(calling);
   }
 
+  /** Borrow the association from the pool, rather than opening a new one. */
+  public final void setAssociationPool(AssociationPool associationPool) {
+    this.associationPool = associationPool;
+    configureTransferCapability(false);
+  }
+
   public void setMoveDest(String aet) {
     moveDest = aet;
   }
@@ -242,6 +246,11 @@ ActionListener moveActionListener;
     this.relationQR = b;
   }
 
+  /** Status of the last C-MOVE response. */
+  public final int getMoveStatus() {
+    return moveStatus;
+  }
+
   public final int getFailed() {
     return failed;
   }
@@ -270,6 +279,15 @@ ActionListener moveActionListener;
     keys.putString(tagPath, null, value);
   }
 
+  /** Start a new study level query, so the association can be reused. */
+  public void clearMatchingKeys() {
+    keys = new BasicDicomObject();
+    keys.putString(Tag.QueryRetrieveLevel, VR.CS, STUDY_QR_LEVEL_STR);
+    int[] tags = STUDY_RETURN_KEYS;
+    for (int i = 0; i < tags.length; i++)
+      keys.putNull(tags[i], null);
+  }
+
   private void reset() {
     seriesFound = 0;
     objectsFound = 0;
@@ -386,12 +404,15 @@ ActionListener moveActionListener;
   private void configureTransferCapability(boolean ivrle) {
     String[] findcuids = STUDY_LEVEL_FIND_CUID;
     String[] movecuids = STUDY_LEVEL_MOVE_CUID;
-    TransferCapability[] tc = new TransferCapability[findcuids.length + movecuids.length];
+    TransferCapability[] tc = new TransferCapability[findcuids.length + movecuids.length + (associationPool == null ? 0 : 1)];
     int i = 0;
     for (int j = 0; j < findcuids.length; j++)
       tc[i++] = mkFindTC(findcuids[j], ivrle ? ONLY_IVRLE_TS : NATIVE_LE_TS);
     for (int j = 0; j < movecuids.length; j++)
       tc[i++] = mkMoveTC(movecuids[j], ivrle ? ONLY_IVRLE_TS : NATIVE_LE_TS);
+    if (associationPool != null)
+      // Lets the pool check the association with a C-ECHO
+      tc[i++] = new TransferCapability(UID.VerificationSOPClass, ONLY_IVRLE_TS, TransferCapability.SCU);
     ae.setTransferCapability(tc);
   }
 
@@ -414,7 +435,11 @@ ActionListener moveActionListener;
   }
 
   public void open() throws IOException, ConfigurationException, InterruptedException {
-    assoc = ae.connect(remoteAE, executor);
+    if (associationPool != null) {
+      assoc = associationPool.borrow(ae, remoteAE, executor);
+    } else {
+      assoc = ae.connect(remoteAE, executor);
+    }
   }
 
   // Query for one specific study
@@ -592,7 +617,24 @@ ActionListener moveActionListener;
     return null;
   }
 
+  /** The association failed, close it rather than return it to the pool. */
+  public void invalidate() {
+    if (assoc == null) {
+      return;
+    }
+    if (associationPool != null) {
+      associationPool.invalidate(assoc);
+    } else {
+      assoc.abort();
+    }
+    assoc = null;
+  }
+
   public void close() throws InterruptedException {
+    if (associationPool != null) {
+      associationPool.release(assoc);
+      return;
+    }
     assoc.release(true);
   }
 
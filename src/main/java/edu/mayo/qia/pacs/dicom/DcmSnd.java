@@ -63,11 +63,13 @@ import org.dcm4che2.util.StringUtils;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.channels.Channels;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Executor;
@@ -79,13 +81,25 @@ public class DcmSnd {
   static Logger logger = Logger.getLogger(DcmSnd.class);
   private static final int PEEK_LEN = 1024;
 
+  /** Status of a file that was never answered by the remote. */
+  public static final int NoResponse = -1;
+
+  /** Status of a file the remote did not negotiate a presentation context for. */
+  public static final int NoPresentationContext = 0x0122;
+
   private static final String[] IVLE_TS = { UID.ImplicitVRLittleEndian, UID.ExplicitVRLittleEndian, UID.ExplicitVRBigEndian, };
 
   private static final String[] EVLE_TS = { UID.ExplicitVRLittleEndian, UID.ImplicitVRLittleEndian, UID.ExplicitVRBigEndian, };
 
   private static final String[] EVBE_TS = { UID.ExplicitVRBigEndian, UID.ExplicitVRLittleEndian, UID.ImplicitVRLittleEndian, };
 
-  private final Map<String, Set<String>> as2ts = new HashMap<String, Set<String>>();
+  private final Map<String, Set<String>> as2ts = new LinkedHashMap<String, Set<String>>();
+
+  private static final String[] DEFAULT_FALLBACK_TS = { UID.ExplicitVRLittleEndian, UID.ImplicitVRLittleEndian };
+
+  private static final int MaxPresentationContexts = 128;
+
+  private String[] fallbackTS = DEFAULT_FALLBACK_TS;
 
   /** TransferSyntax: DCM4CHE URI Referenced */
   private static final String DCM4CHEE_URI_REFERENCED_TS_UID = "1.2.40.0.13.1.1.2.4.94";
@@ -106,8 +120,20 @@ public class DcmSnd {
 
   private Association assoc;
 
+  private AssociationPool associationPool;
+
+  private TransferScheduler transferScheduler;
+
+  private TransferScheduler.Priority transferPriority;
+
+  private String transferPool;
+
   private int priority = 0;
 
+  private String moveOriginatorAET = null;
+
+  private int moveOriginatorMessageID = 0;
+
   private int transcoderBufferSize = 1024;
 
    int filesSent = 0;
@@ -178,6 +204,19 @@ public class DcmSnd {
     conn.setTcpNoDelay(tcpNoDelay);
   }
 
+  /**
+   * Maximum number of C-STOREs outstanding on the association, 0 for no
+   * limit. Proposed to the remote as the asynchronous operations window.
+   */
+  public final void setMaxOpsInvoked(int maxOpsInvoked) {
+    ae.setMaxOpsInvoked(maxOpsInvoked);
+  }
+
+  /** Borrow the association from the pool, rather than opening a new one. */
+  public final void setAssociationPool(AssociationPool associationPool) {
+    this.associationPool = associationPool;
+  }
+
   public void addFile(File f) {
     if (f.isDirectory()) {
       File[] fs = f.listFiles();
@@ -222,6 +261,24 @@ public class DcmSnd {
     files.add(info);
   }
 
+  /**
+   * Add a file described by metadata saved when it was received, so it is not
+   * parsed again. Falls back to {@link #addFile(File)} if the transfer syntax
+   * was not recorded.
+   */
+  public void addFile(FileInfo saved) {
+    if (saved.tsuid == null || saved.cuid == null || saved.iuid == null) {
+      addFile(saved.f);
+      return;
+    }
+    FileInfo info = new FileInfo(saved.f, saved.cuid, saved.iuid, saved.tsuid, saved.fmiEndPos, saved.length);
+    if (suffixUID != null)
+      info.iuid = info.iuid + suffixUID[0];
+    addTransferCapability(info.cuid, info.tsuid);
+    files.add(info);
+  }
+
+  /** Record that a file of <code>cuid</code> is stored as <code>tsuid</code>. */
   public void addTransferCapability(String cuid, String tsuid) {
     Set<String> ts = as2ts.get(cuid);
     if (fileref) {
@@ -230,65 +287,171 @@ public class DcmSnd {
       }
     } else {
       if (ts == null) {
-        ts = new HashSet<String>();
-        ts.add(UID.ImplicitVRLittleEndian);
+        // In the order first seen
+        ts = new LinkedHashSet<String>();
         as2ts.put(cuid, ts);
       }
       ts.add(tsuid);
     }
   }
 
+  /**
+   * Transfer syntaxes the remote prefers, most preferred first, used for files
+   * it will not accept as they are stored. UIDs or names such as
+   * <code>ExplicitVRLittleEndian</code>, separated by commas or spaces.
+   */
+  public void setTransferSyntaxes(String preferred) {
+    List<String> tsuids = new ArrayList<String>();
+    if (preferred != null) {
+      for (String ts : preferred.split("[,\\s]+")) {
+        if (ts.isEmpty()) {
+          continue;
+        }
+        if (ts.matches("[0-9.]+")) {
+          tsuids.add(ts);
+        } else {
+          try {
+            tsuids.add(UID.forName(ts));
+          } catch (IllegalArgumentException e) {
+            logger.warn("Unknown transfer syntax " + ts + " for " + remoteAE.getAETitle());
+          }
+        }
+      }
+    }
+    fallbackTS = tsuids.isEmpty() ? DEFAULT_FALLBACK_TS : tsuids.toArray(new String[tsuids.size()]);
+  }
+
+  /**
+   * Propose each stored transfer syntax in a presentation context of its own,
+   * so the remote can not pick another one and force a conversion, plus a
+   * context with the fallback syntaxes for files it will not take as stored.
+   */
   public void configureTransferCapability() {
-    TransferCapability[] tc = new TransferCapability[as2ts.size()];
-    Iterator<Map.Entry<String, Set<String>>> iter = as2ts.entrySet().iterator();
-    for (int i = 0; i < tc.length; i++) {
-      Map.Entry<String, Set<String>> e = iter.next();
+    if (associationPool != null && !as2ts.containsKey(UID.VerificationSOPClass)) {
+      // Lets the pool check the association with a C-ECHO
+      as2ts.put(UID.VerificationSOPClass, Collections.singleton(UID.ImplicitVRLittleEndian));
+    }
+    int contexts = 0;
+    for (Set<String> ts : as2ts.values()) {
+      contexts += ts.size() + 1;
+    }
+    // An association may have no more than 128 presentation contexts
+    boolean separate = !fileref && contexts <= MaxPresentationContexts;
+    List<TransferCapability> tc = new ArrayList<TransferCapability>();
+    for (Map.Entry<String, Set<String>> e : as2ts.entrySet()) {
       String cuid = e.getKey();
-      Set<String> ts = e.getValue();
-      tc[i] = new TransferCapability(cuid, ts.toArray(new String[ts.size()]), TransferCapability.SCU);
+      if (fileref || UID.VerificationSOPClass.equals(cuid)) {
+        tc.add(new TransferCapability(cuid, e.getValue().toArray(new String[e.getValue().size()]), TransferCapability.SCU));
+        continue;
+      }
+      Set<String> fallback = new LinkedHashSet<String>();
+      if (separate) {
+        for (String ts : e.getValue()) {
+          tc.add(new TransferCapability(cuid, new String[] { ts }, TransferCapability.SCU));
+        }
+      } else {
+        fallback.addAll(e.getValue());
+      }
+      fallback.addAll(Arrays.asList(fallbackTS));
+      fallback.add(UID.ImplicitVRLittleEndian);
+      tc.add(new TransferCapability(cuid, fallback.toArray(new String[fallback.size()]), TransferCapability.SCU));
     }
-    ae.setTransferCapability(tc);
+    ae.setTransferCapability(tc.toArray(new TransferCapability[tc.size()]));
   }
 
-  public void open() throws IOException, ConfigurationException, InterruptedException {
-    assoc = ae.connect(remoteAE, executor);
+  /**
+   * Send over an association that is already open, such as the one a C-GET
+   * arrived on, instead of calling {@link #open()} and {@link #close()}.
+   */
+  public void setAssociation(Association as) {
+    this.assoc = as;
   }
 
-  public void send(FileMovedHandler callback) {
+  /**
+   * Send as the sub-operations of a C-MOVE, so the receiver can tell which
+   * move each instance belongs to.
+   */
+  public void setMoveOriginator(String aet, int messageID) {
+    this.moveOriginatorAET = aet;
+    this.moveOriginatorMessageID = messageID;
+  }
 
-    for (int i = 0, n = files.size(); i < n; ++i) {
-      FileInfo info = files.get(i);
+  /** Ask the scheduler before sending each file. */
+  public void setTransferScheduler(TransferScheduler transferScheduler, TransferScheduler.Priority priority, String pool) {
+    this.transferScheduler = transferScheduler;
+    this.transferPriority = priority;
+    this.transferPool = pool;
+  }
+
+  public void open() throws IOException, ConfigurationException, InterruptedException {
+    if (associationPool != null) {
+      assoc = associationPool.borrow(ae, remoteAE, executor);
+    } else {
+      assoc = ae.connect(remoteAE, executor);
+    }
+  }
+
+  /**
+   * Send all the files. C-STOREs are issued without waiting for responses, up
+   * to the negotiated window. The callback is notified as each response
+   * arrives, or when a file can not be sent at all. On return, every
+   * {@link FileInfo} carries its final status.
+   */
+  public void send(final FileMovedHandler callback) {
+
+    final int n = files.size();
+    String device = remoteAE.getAETitle() + "@" + assoc.getSocket().getInetAddress().getHostAddress();
+    for (int i = 0; i < n; ++i) {
+      final FileInfo info = files.get(i);
       TransferCapability tc = assoc.getTransferCapabilityAsSCU(info.cuid);
       if (tc == null) {
         logger.error(UIDDictionary.getDictionary().prompt(info.cuid) + " not supported by " + remoteAE.getAETitle());
         logger.error("skip file " + info.f);
+        failed(info, NoPresentationContext, callback);
         continue;
       }
       String tsuid = selectTransferSyntax(tc.getTransferSyntax(), fileref ? DCM4CHEE_URI_REFERENCED_TS_UID : info.tsuid);
       if (tsuid == null) {
         logger.error(UIDDictionary.getDictionary().prompt(info.cuid) + " with " + UIDDictionary.getDictionary().prompt(fileref ? DCM4CHEE_URI_REFERENCED_TS_UID : info.tsuid) + " not supported by " + remoteAE.getAETitle());
         logger.error("skip file " + info.f);
+        failed(info, NoPresentationContext, callback);
         continue;
       }
       try {
+        final int current = i;
         DimseRSPHandler rspHandler = new DimseRSPHandler() {
           @Override
           public void onDimseRSP(Association as, DicomObject cmd, DicomObject data) {
-            DcmSnd.this.onDimseRSP(cmd);
+            DcmSnd.this.onDimseRSP(info, cmd);
+            if (callback != null) {
+              if (info.transferred) {
+                callback.fileMoved(current, n);
+              } else {
+                callback.fileFailed(info.f, info.status);
+              }
+            }
           }
         };
 
-        assoc.cstore(info.cuid, info.iuid, priority, new DataWriter(info), tsuid, rspHandler);
-        if (callback != null) {
-          callback.fileMoved(i, n);
+        if (transferScheduler != null) {
+          transferScheduler.acquire(transferPriority, transferPool, device, info.length - info.fmiEndPos);
+        }
+        // Blocks while the window is full
+        if (moveOriginatorAET != null) {
+          assoc.cstore(info.cuid, info.iuid, priority, moveOriginatorAET, moveOriginatorMessageID, new DataWriter(info), tsuid, rspHandler);
+        } else {
+          assoc.cstore(info.cuid, info.iuid, priority, new DataWriter(info), tsuid, rspHandler);
         }
       } catch (NoPresentationContextException e) {
         logger.error("WARNING: " + e.getMessage() + " - cannot send " + info.f);
+        failed(info, NoPresentationContext, callback);
       } catch (IOException e) {
         logger.error("ERROR: Failed to send - " + info.f + ": " + e.getMessage(), e);
+        failed(info, NoResponse, callback);
       } catch (InterruptedException e) {
         // should not happen
         logger.error("Interupted", e);
+        failed(info, NoResponse, callback);
       }
     }
     try {
@@ -299,7 +462,46 @@ public class DcmSnd {
     }
   }
 
+  private void failed(FileInfo info, int status, FileMovedHandler callback) {
+    info.status = status;
+    if (callback != null) {
+      callback.fileFailed(info.f, status);
+    }
+  }
+
+  /** Files sent so far, including those the remote accepted with a warning. */
+  public synchronized int getFilesSent() {
+    return filesSent;
+  }
+
+  /** Every file added, with its status once sent. */
+  public List<FileInfo> getFiles() {
+    return Collections.unmodifiableList(files);
+  }
+
+  /** Files the remote did not accept, or that could not be sent. */
+  public List<FileInfo> getFailed() {
+    List<FileInfo> failed = new ArrayList<FileInfo>();
+    for (FileInfo info : files) {
+      if (!info.transferred) {
+        failed.add(info);
+      }
+    }
+    return failed;
+  }
+
   private String selectTransferSyntax(String[] available, String tsuid) {
+    // As stored, so the bytes are copied from the file without conversion
+    for (int j = 0; j < available.length; j++)
+      if (available[j].equals(tsuid))
+        return tsuid;
+    if (!isNative(tsuid)) {
+      // Compressed, and we can not decompress
+      return null;
+    }
+    for (String ts : fallbackTS)
+      if (isNative(ts) && Arrays.asList(available).contains(ts))
+        return ts;
     if (tsuid.equals(UID.ImplicitVRLittleEndian))
       return selectTransferSyntax(available, IVLE_TS);
     if (tsuid.equals(UID.ExplicitVRLittleEndian))
@@ -312,6 +514,10 @@ public class DcmSnd {
     return null;
   }
 
+  static boolean isNative(String tsuid) {
+    return UID.ImplicitVRLittleEndian.equals(tsuid) || UID.ExplicitVRLittleEndian.equals(tsuid) || UID.ExplicitVRBigEndian.equals(tsuid);
+  }
+
   private String selectTransferSyntax(String[] available, String[] tsuids) {
     for (int i = 0; i < tsuids.length; i++)
       for (int j = 0; j < available.length; j++)
@@ -321,6 +527,10 @@ public class DcmSnd {
   }
 
   public void close() {
+    if (associationPool != null) {
+      associationPool.release(assoc);
+      return;
+    }
     try {
       assoc.release(false);
     } catch (InterruptedException e) {
@@ -341,15 +551,61 @@ public class DcmSnd {
 
     long length;
 
-    boolean transferred;
+    volatile boolean transferred;
 
-    int status;
+    volatile int status = NoResponse;
 
     public FileInfo(File f) {
       this.f = f;
       this.length = f.length();
     }
 
+    public FileInfo(File f, String cuid, String iuid, String tsuid, long fmiEndPos, long length) {
+      this.f = f;
+      this.cuid = cuid;
+      this.iuid = iuid;
+      this.tsuid = tsuid;
+      this.fmiEndPos = fmiEndPos;
+      this.length = length;
+    }
+
+    public File getFile() {
+      return f;
+    }
+
+    public String getSOPInstanceUID() {
+      return iuid;
+    }
+
+    public String getTransferSyntaxUID() {
+      return tsuid;
+    }
+
+    public long getFmiEndPosition() {
+      return fmiEndPos;
+    }
+
+    public long getLength() {
+      return length;
+    }
+
+    public boolean isTransferred() {
+      return transferred;
+    }
+
+    /** C-STORE response status, or {@link DcmSnd#NoResponse} */
+    public int getStatus() {
+      return status;
+    }
+
+    /**
+     * Failures worth sending again: no response, because the association
+     * failed, or the remote was out of resources (A7xx) or could not process
+     * the instance (0110). Anything else will fail again.
+     */
+    public boolean isRetryable() {
+      return !transferred && (status == NoResponse || (status & 0xFF00) == 0xA700 || status == 0x0110);
+    }
   }
 
   private class DataWriter implements org.dcm4che2.net.DataWriter {
@@ -384,12 +640,11 @@ public class DcmSnd {
           dis.close();
         }
       } else if (tsuid.equals(info.tsuid)) {
+        // Copy the stored dataset, compressed or not, straight from the file
+        // into the PDUs, starting after the File Meta Information
         FileInputStream fis = new FileInputStream(info.f);
         try {
-          long skip = info.fmiEndPos;
-          while (skip > 0)
-            skip -= fis.skip(skip);
-          out.copyFrom(fis);
+          out.copyFrom(Channels.newInputStream(fis.getChannel().position(info.fmiEndPos)));
         } finally {
           fis.close();
         }
@@ -460,23 +715,17 @@ public class DcmSnd {
     logger.error(cmd.toString());
   }
 
-  private void onDimseRSP(DicomObject cmd) {
+  private void onDimseRSP(FileInfo info, DicomObject cmd) {
     int status = cmd.getInt(Tag.Status);
-    int msgId = cmd.getInt(Tag.MessageIDBeingRespondedTo);
-    FileInfo info = files.get(msgId - 1);
     info.status = status;
     switch (status) {
     case 0:
-      info.transferred = true;
-      totalSize += info.length;
-      ++filesSent;
+      sent(info);
       break;
     case 0xB000:
     case 0xB006:
     case 0xB007:
-      info.transferred = true;
-      totalSize += info.length;
-      ++filesSent;
+      sent(info);
       promptErrRSP("WARNING: Received RSP with Status ", status, info, cmd);
       break;
     default:
@@ -484,6 +733,12 @@ public class DcmSnd {
     }
   }
 
+  private synchronized void sent(FileInfo info) {
+    info.transferred = true;
+    totalSize += info.length;
+    ++filesSent;
+  }
+
   protected synchronized void onNEventReportRSP(Association as, int pcid, DicomObject rq, DicomObject info, DicomObject rsp) {
     stgCmtResult = info;
     notifyAll();
@@ -1,8 +1,17 @@
 package edu.mayo.qia.pacs.dicom;
 
+import java.io.File;
+
 public interface FileMovedHandler {
 
-  /** Called when a file 'current' of 'total' is sent to remote destination. */
+  /** Called when the remote destination accepts file 'current' of 'total'. */
   void fileMoved(int current, int total);
 
+  /**
+   * Called when the remote destination rejects a file, or it could not be
+   * sent. <code>status</code> is the C-STORE response status, or
+   * {@link DcmSnd#NoResponse} if the remote never answered.
+   */
+  void fileFailed(File file, int status);
+
 }
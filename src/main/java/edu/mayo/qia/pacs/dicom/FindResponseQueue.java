@@ -0,0 +1,234 @@
+package edu.mayo.qia.pacs.dicom;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import org.dcm4che2.data.BasicDicomObject;
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
+import org.dcm4che2.data.VR;
+import org.dcm4che2.net.Association;
+import org.dcm4che2.net.CancelRQHandler;
+import org.dcm4che2.net.CommandUtils;
+import org.dcm4che2.net.Status;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import edu.mayo.qia.pacs.Notion;
+
+/**
+ * Bounded queue of C-FIND responses between the database reader and the
+ * association writer.
+ *
+ * The reader adds matches with {@link #add(DicomObject)}, which blocks while
+ * the remote is slow to take them. Once the find is canceled by a C-CANCEL,
+ * reaches the pool's match limit or the association fails, {@link #add}
+ * throws {@link FindAbortedException}. Thrown from a RowCallbackHandler this
+ * abandons the JDBC cursor and releases the connection. {@link #run()} writes
+ * the pending responses and the final status and runs on its own thread, so
+ * the association can still read the C-CANCEL.
+ *
+ * @author Daniel Blezek
+ *
+ */
+public class FindResponseQueue implements Runnable, CancelRQHandler {
+  static Logger logger = LoggerFactory.getLogger(FindResponseQueue.class);
+  static final int Capacity = 64;
+  static final int RefusedOutOfResources = 0xA700;
+  static final DicomObject End = new BasicDicomObject();
+
+  static Timer findTimer = Notion.metrics.timer(MetricRegistry.name("DICOM", "find", "timer"));
+  static Meter matchMeter = Notion.metrics.meter(MetricRegistry.name("DICOM", "find", "matches"));
+  static Counter canceledCounter = Notion.metrics.counter(MetricRegistry.name("DICOM", "find", "canceled"));
+  static Counter limitedCounter = Notion.metrics.counter(MetricRegistry.name("DICOM", "find", "limited"));
+
+  /** Finds in progress, used by the FindSCP gauges. */
+  static final Set<FindResponseQueue> active = Collections.newSetFromMap(new ConcurrentHashMap<FindResponseQueue, Boolean>());
+
+  final Association as;
+  final int pcid;
+  final DicomObject rq;
+  final int maxMatches;
+  final BlockingQueue<DicomObject> queue = new ArrayBlockingQueue<DicomObject>(Capacity);
+  final long started = System.currentTimeMillis();
+  final Timer.Context context = findTimer.time();
+
+  volatile boolean canceled = false;
+  volatile boolean limited = false;
+  volatile boolean closed = false;
+  volatile int finalStatus = Status.Success;
+  int matches = 0;
+  List<DicomObject> recorded = null;
+  List<ObjectNode> recordedAudits = null;
+  int recordLimit = 0;
+
+  /**
+   * @param maxMatches
+   *        maximum number of responses to send, 0 for no limit
+   */
+  public FindResponseQueue(Association as, int pcid, DicomObject rq, int maxMatches) {
+    this.as = as;
+    this.pcid = pcid;
+    this.rq = rq;
+    this.maxMatches = maxMatches;
+    active.add(this);
+    as.registerCancelRQHandler(rq, this);
+  }
+
+  /**
+   * Keep a copy of the first <code>limit</code> responses for
+   * {@link #getRecorded()}, and what was audited for each for
+   * {@link #getRecordedAudits()}.
+   */
+  public void record(int limit) {
+    recorded = new ArrayList<DicomObject>();
+    recordedAudits = new ArrayList<ObjectNode>();
+    recordLimit = limit;
+  }
+
+  /**
+   * All the responses added, or null if there were more than the record limit
+   * or the find did not run to completion.
+   */
+  public List<DicomObject> getRecorded() {
+    if (canceled || limited || closed) {
+      return null;
+    }
+    return recorded;
+  }
+
+  /** The audit of each of {@link #getRecorded()}, in the same order. */
+  public List<ObjectNode> getRecordedAudits() {
+    return getRecorded() == null ? null : recordedAudits;
+  }
+
+  /** Queue a response, blocking while the queue is full. */
+  public void add(DicomObject response) {
+    add(response, null);
+  }
+
+  /**
+   * Queue a response, blocking while the queue is full.
+   *
+   * @param audit
+   *        what was audited for the response, recorded with it
+   */
+  public void add(DicomObject response, ObjectNode audit) {
+    if (maxMatches > 0 && matches >= maxMatches) {
+      limited = true;
+      throw new FindAbortedException("more than " + maxMatches + " matches");
+    }
+    try {
+      while (!queue.offer(response, 1, TimeUnit.SECONDS)) {
+        checkAborted();
+      }
+      checkAborted();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new FindAbortedException("interrupted");
+    }
+    matches++;
+    matchMeter.mark();
+    if (recorded != null) {
+      if (recorded.size() < recordLimit) {
+        recorded.add(response);
+        recordedAudits.add(audit);
+      } else {
+        recorded = null;
+        recordedAudits = null;
+      }
+    }
+  }
+
+  void checkAborted() {
+    if (canceled) {
+      throw new FindAbortedException("canceled");
+    }
+    if (closed) {
+      throw new FindAbortedException("association closed");
+    }
+  }
+
+  /** The reader is done, the writer sends the final status. */
+  public void finish(int status) {
+    finalStatus = status;
+    try {
+      while (!closed && !queue.offer(End, 1, TimeUnit.SECONDS)) {
+        // Wait for the writer
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /** Milliseconds since the find started. */
+  public long getAge() {
+    return System.currentTimeMillis() - started;
+  }
+
+  @Override
+  public void onCancelRQ(Association association) {
+    logger.debug("C-CANCEL received after " + matches + " matches");
+    canceledCounter.inc();
+    canceled = true;
+  }
+
+  @Override
+  public void run() {
+    DicomObject pending = CommandUtils.mkRSP(rq, Status.Pending);
+    try {
+      while (true) {
+        DicomObject response = queue.poll(1, TimeUnit.SECONDS);
+        if (response == End) {
+          break;
+        }
+        if (response != null && !canceled) {
+          as.writeDimseRSP(pcid, pending, response);
+        }
+      }
+      DicomObject rsp;
+      if (canceled) {
+        rsp = CommandUtils.mkRSP(rq, Status.Cancel);
+      } else if (limited) {
+        limitedCounter.inc();
+        rsp = CommandUtils.mkRSP(rq, RefusedOutOfResources);
+        rsp.putString(Tag.ErrorComment, VR.LO, "Too many matches, limit is " + maxMatches);
+      } else {
+        rsp = CommandUtils.mkRSP(rq, finalStatus);
+      }
+      as.writeDimseRSP(pcid, rsp);
+    } catch (IOException e) {
+      logger.error("Error writing C-FIND response", e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      closed = true;
+      queue.clear();
+      as.unregisterCancelRQHandler(rq);
+      active.remove(this);
+      context.stop();
+    }
+  }
+
+  /** Thrown to the reader to stop reading matches. */
+  public static class FindAbortedException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public FindAbortedException(String message) {
+      super(message);
+    }
+  }
+}
@@ -38,6 +38,8 @@
 
 package edu.mayo.qia.pacs.dicom;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
@@ -67,6 +69,7 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -76,13 +79,29 @@ import edu.mayo.qia.pacs.Audit;
 import edu.mayo.qia.pacs.Notion;
 import edu.mayo.qia.pacs.components.Pool;
 import edu.mayo.qia.pacs.components.PoolManager;
+import edu.mayo.qia.pacs.components.QueryCache;
+import edu.mayo.qia.pacs.components.Study;
+import edu.mayo.qia.pacs.components.StudyIndex;
 import edu.mayo.qia.pacs.ctp.Anonymizer;
 import edu.mayo.qia.pacs.dicom.DICOMReceiver.AssociationInfo;
+import edu.mayo.qia.pacs.dicom.FindResponseQueue.FindAbortedException;
 
 @Component
 public class FindSCP extends DicomService implements CFindSCP {
   static Logger logger = LoggerFactory.getLogger(FindSCP.class);
   public static String[] PresentationContexts = new String[] { UID.StudyRootQueryRetrieveInformationModelFIND, UID.PatientRootQueryRetrieveInformationModelFIND };
+  static final long LongRunningFind = 10 * 1000;
+
+  /** The matches of a cached C-FIND, and what was audited for each */
+  static class CachedMatches {
+    final List<DicomObject> responses;
+    final List<ObjectNode> audits;
+
+    CachedMatches(List<DicomObject> responses, List<ObjectNode> audits) {
+      this.responses = responses;
+      this.audits = audits;
+    }
+  }
 
   @Autowired
   JdbcTemplate template;
@@ -95,6 +114,25 @@ public class FindSCP extends DicomService implements CFindSCP {
 
   public FindSCP() {
     super(PresentationContexts);
+    Notion.metrics.register(MetricRegistry.name("DICOM", "find", "active"), new Gauge<Integer>() {
+      @Override
+      public Integer getValue() {
+        return FindResponseQueue.active.size();
+      }
+    });
+    // Finds running longer than LongRunningFind
+    Notion.metrics.register(MetricRegistry.name("DICOM", "find", "long"), new Gauge<Integer>() {
+      @Override
+      public Integer getValue() {
+        int count = 0;
+        for (FindResponseQueue find : FindResponseQueue.active) {
+          if (find.getAge() > LongRunningFind) {
+            count++;
+          }
+        }
+        return count;
+      }
+    });
   }
 
   void addWhere(int tag, String column, DicomObject data, List<Object> args, StringBuilder query) {
@@ -104,6 +142,55 @@ public class FindSCP extends DicomService implements CFindSCP {
     }
   }
 
+  void addCriteria(int tag, String column, DicomObject data, StudyIndex.Criteria criteria) {
+    if (data.contains(tag) && data.containsValue(tag)) {
+      criteria.wildcard(column, data.getString(tag));
+    }
+  }
+
+  static void putStudyValue(DicomObject response, DicomElement element, Study study) {
+    switch (element.tag()) {
+    case Tag.PatientName:
+      response.putString(element.tag(), element.vr(), study.PatientName);
+      break;
+    case Tag.PatientID:
+      response.putString(element.tag(), element.vr(), study.PatientID);
+      break;
+    case Tag.PatientSex:
+      response.putString(element.tag(), element.vr(), study.PatientSex);
+      break;
+    case Tag.StudyID:
+      response.putString(element.tag(), element.vr(), study.StudyID);
+      break;
+    case Tag.AccessionNumber:
+      response.putString(element.tag(), element.vr(), study.AccessionNumber);
+      break;
+    case Tag.StudyInstanceUID:
+      response.putString(element.tag(), element.vr(), study.StudyInstanceUID);
+      break;
+    case Tag.StudyDescription:
+      response.putString(element.tag(), element.vr(), study.StudyDescription);
+      break;
+    case Tag.PatientBirthDate:
+      if (study.PatientBirthDate != null) {
+        response.putDate(element.tag(), element.vr(), study.PatientBirthDate);
+      }
+      break;
+    case Tag.StudyDate:
+      if (study.StudyDate != null) {
+        response.putDate(element.tag(), element.vr(), study.StudyDate);
+      }
+      break;
+    case Tag.StudyTime:
+      if (study.StudyTime != null) {
+        response.putDate(element.tag(), element.vr(), study.StudyTime);
+      }
+      break;
+    default:
+      break;
+    }
+  }
+
   @Override
   public void cfind(final Association as, final int pcid, DicomObject rq, final DicomObject data) throws DicomServiceException, IOException {
     DICOMReceiver dicomReceiver = Notion.context.getBean("dicomReceiver", DICOMReceiver.class);
@@ -140,228 +227,327 @@ public class FindSCP extends DicomService implements CFindSCP {
     // We should send back the RetrieveAET
     final String retrieveAETitle = (as.getLocalAET() == null) ? as.getCalledAET() : as.getLocalAET();
 
-    final DicomObject pending = CommandUtils.mkRSP(rq, Status.Pending);
-
-    if (retrieveLevel.equalsIgnoreCase("SERIES")) {
-      if (data.containsValue(Tag.StudyInstanceUID)) {
-        final Map<Integer, String> tagColumn = new HashMap<Integer, String>();
-        tagColumn.put(Tag.Modality, "Modality");
-        tagColumn.put(Tag.InstitutionName, "InstitutionName");
-        tagColumn.put(Tag.SeriesDescription, "SeriesDescription");
-        tagColumn.put(Tag.SeriesInstanceUID, "SeriesInstanceUID");
-        tagColumn.put(Tag.SeriesNumber, "SeriesNumber");
-        tagColumn.put(Tag.NumberOfSeriesRelatedInstances, "NumberOfSeriesRelatedInstances");
-
-        final String uid = data.getString(Tag.StudyInstanceUID);
-        StringBuilder query = new StringBuilder();
-        query.append("select ");
-        for (String column : tagColumn.values()) {
-          query.append("SERIES." + column + " AS " + column + ", ");
-        }
-
-        // Don't want these in the query string
-        tagColumn.put(Tag.SeriesDate, "SeriesDate");
-        tagColumn.put(Tag.SeriesTime, "SeriesTime");
-
-        query.append(" STUDY.StudyDate as SeriesDate, STUDY.StudyTime as SeriesTime, from SERIES, STUDY where STUDY.StudyInstanceUID = ? and STUDY.StudyKey = SERIES.StudyKey");
-        logger.debug("SERIES Query: " + query);
-        logger.debug("StudyUID: " + uid);
-        template.query(query.toString(), new Object[] { uid }, new RowCallbackHandler() {
-
-          @Override
-          public void processRow(ResultSet rs) throws SQLException {
-            logger.debug("Found SERIES: " + rs.getString("SeriesInstanceUID"));
-
-            ObjectNode node = objectMapper.createObjectNode();
-            node.put("RemoteDevice", remoteDevice);
-            node.put("RetrieveAETitle", retrieveAETitle);
-            DicomObject response = new BasicDicomObject();
-
-            // Always send the Query/Retrieve level C.4.1.1.3.2
-            response.putString(Tag.QueryRetrieveLevel, VR.CS, retrieveLevel);
-            node.put(Anonymizer.fieldMap.get(Tag.QueryRetrieveLevel), retrieveLevel);
-
-            // RetrieveAETitle is also required C.4.1.1.3.2
-            response.putString(Tag.RetrieveAETitle, VR.AE, retrieveAETitle);
-            node.put(Anonymizer.fieldMap.get(Tag.RetrieveAETitle), retrieveAETitle);
-
-            // Just return what was asked for, if we have it
-            Iterator<DicomElement> iterator = data.datasetIterator();
-            while (iterator.hasNext()) {
-              DicomElement element = iterator.next();
-              if (tagColumn.containsKey(element.tag())) {
-                String column = tagColumn.get(element.tag());
-                int columnNumber = rs.findColumn(column);
-                // Figure out what type it is (string or data)
-                int columnType = rs.getMetaData().getColumnType(columnNumber);
-                if (columnType == Types.VARCHAR || columnType == Types.INTEGER) {
-                  response.putString(element.tag(), element.vr(), rs.getString(columnNumber));
-                  node.put(Anonymizer.fieldMap.get(element.tag()), rs.getString(columnNumber));
-                }
-                if (columnType == Types.DATE) {
-                  response.putDate(element.tag(), element.vr(), rs.getDate(columnNumber));
-                  node.put(Anonymizer.fieldMap.get(element.tag()), rs.getDate(columnNumber).toString());
-                } else if (columnType == Types.TIME) {
-                  response.putDate(element.tag(), element.vr(), rs.getTime(columnNumber));
-                  node.put(Anonymizer.fieldMap.get(element.tag()), rs.getTime(columnNumber).toString());
-                }
-              } else {
-                logger.error("No match for " + element);
-                if (!data.containsValue(element.tag())) {
-                  response.putString(element.tag(), element.vr(), "  ");
-                }
+    // Matches are read on one thread and written on another, leaving the
+    // association free to receive a C-CANCEL
+    final FindResponseQueue responses = new FindResponseQueue(as, pcid, rq, pool.maxFindMatches);
+    final int poolKey = info.poolKey;
+    final QueryCache cache = poolManager.getContainer(poolKey).getQueryCache();
+    final String signature = signature(retrieveLevel, retrieveAETitle, data);
+    Notion.executor.execute(responses);
+    Notion.executor.execute(new Runnable() {
+
+      @Override
+      public void run() {
+        int status = Status.Success;
+        try {
+          // Viewers poll with identical queries, answer from the cache if
+          // the pool has not changed
+          if (cache != null && signature != null) {
+            CachedMatches cached = cache.get(signature);
+            if (cached != null) {
+              for (int i = 0; i < cached.responses.size(); i++) {
+                // Audited as the query that was cached was
+                ObjectNode node = cached.audits.get(i).deepCopy();
+                node.put("RemoteDevice", remoteDevice);
+                Audit.log(remoteDevice, "find_success", node);
+                responses.add(cached.responses.get(i));
               }
+              return;
             }
-            response.putString(Tag.StudyInstanceUID, VR.UI, uid);
-            if (data.containsValue(Tag.SpecificCharacterSet)) {
-              response.putString(Tag.SpecificCharacterSet, VR.CS, data.getString(Tag.SpecificCharacterSet));
-            }
-
-            Audit.log(remoteDevice, "find_success", node);
-            try {
-              logger.debug("Sending \n" + response);
-              as.writeDimseRSP(pcid, pending, response);
-            } catch (IOException e) {
-              logger.error("Error writing response", e);
-            }
+            responses.record(QueryCache.MaxResults);
+          }
+          long generation = cache == null ? 0 : cache.generation();
+          if (retrieveLevel.equalsIgnoreCase("SERIES")) {
+            findSeries(poolKey, retrieveLevel, retrieveAETitle, remoteDevice, data, responses);
           }
-        });
+          if (retrieveLevel.equalsIgnoreCase("PATIENT") || retrieveLevel.equalsIgnoreCase("STUDY")) {
+            findStudies(poolKey, retrieveLevel, retrieveAETitle, remoteDevice, data, responses);
+          }
+          if (cache != null && signature != null && responses.getRecorded() != null) {
+            cache.put(signature, generation, new CachedMatches(responses.getRecorded(), responses.getRecordedAudits()));
+          }
+        } catch (FindAbortedException e) {
+          logger.info("C-FIND from " + remoteDevice + " stopped: " + e.getMessage());
+        } catch (Exception e) {
+          logger.error("Error finding patients", e);
+          status = Status.ProcessingFailure;
+        } finally {
+          responses.finish(status);
+        }
+      }
+    });
+  }
+
+  /**
+   * Normalized signature of a C-FIND, the level and every matching and return
+   * key. Returns null for queries with sequences, which are not cached.
+   */
+  static String signature(String retrieveLevel, String retrieveAETitle, DicomObject data) {
+    StringBuilder signature = new StringBuilder("C-FIND|").append(retrieveLevel.toUpperCase()).append('|').append(retrieveAETitle);
+    Iterator<DicomElement> iterator = data.datasetIterator();
+    while (iterator.hasNext()) {
+      DicomElement element = iterator.next();
+      if (element.vr() == VR.SQ) {
+        return null;
       }
+      signature.append('|').append(Integer.toHexString(element.tag())).append('=');
+      signature.append(Arrays.toString(element.getStrings(null, false)));
     }
+    return signature.toString();
+  }
 
-    if (retrieveLevel.equalsIgnoreCase("PATIENT") || retrieveLevel.equalsIgnoreCase("STUDY")) {
+  void findSeries(int poolKey, final String retrieveLevel, final String retrieveAETitle, final String remoteDevice, final DicomObject data, final FindResponseQueue responses) {
+    if (data.containsValue(Tag.StudyInstanceUID)) {
       final Map<Integer, String> tagColumn = new HashMap<Integer, String>();
-      // Patient Queries
-      tagColumn.put(Tag.PatientName, "Patientname");
-      tagColumn.put(Tag.PatientID, "PatientID");
-      tagColumn.put(Tag.PatientBirthDate, "PatientBirthDate");
-      tagColumn.put(Tag.PatientSex, "PatientSex");
-      // Study Queries
-      tagColumn.put(Tag.StudyDate, "StudyDate");
-      tagColumn.put(Tag.StudyTime, "StudyTime");
-      tagColumn.put(Tag.StudyID, "StudyID");
-      tagColumn.put(Tag.AccessionNumber, "AccessionNumber");
-      tagColumn.put(Tag.StudyInstanceUID, "StudyInstanceUID");
-      tagColumn.put(Tag.StudyDescription, "StudyDescription"); // Do a patient
-                                                               // query
-      tagColumn.put(Tag.NumberOfStudyRelatedInstances, "NumberOfStudyRelatedInstances");
-      tagColumn.put(Tag.NumberOfStudyRelatedSeries, "NumberOfStudyRelatedSeries");
-
-      ArrayList<Object> args = new ArrayList<Object>();
+      tagColumn.put(Tag.Modality, "Modality");
+      tagColumn.put(Tag.InstitutionName, "InstitutionName");
+      tagColumn.put(Tag.SeriesDescription, "SeriesDescription");
+      tagColumn.put(Tag.SeriesInstanceUID, "SeriesInstanceUID");
+      tagColumn.put(Tag.SeriesNumber, "SeriesNumber");
+      tagColumn.put(Tag.NumberOfSeriesRelatedInstances, "NumberOfSeriesRelatedInstances");
+
+      final String uid = data.getString(Tag.StudyInstanceUID);
       StringBuilder query = new StringBuilder();
-      query.append("select");
-      StringBuilder tables = new StringBuilder();
-      tables.append(" from STUDY"); // Space at beginning to prevent running
-                                    // into existing text
-
-      // query.append("select PatientID, Patientname, PatientBirthDate, PatientSex, StudyID, StudyDate, StudyTime, AccessionNumber, StudyInstanceUID, StudyDescription, StudyKey from STUDY "
-      // WHERE 1=1 ");
-      query.append(" PatientID, Patientname, PatientBirthDate, PatientSex");
-      query.append(", StudyID, StudyDate, StudyTime, AccessionNumber, StudyInstanceUID, StudyDescription, STUDY.StudyKey as StudyKey");
-      if (data.contains(Tag.NumberOfStudyRelatedSeries) || data.contains(Tag.NumberOfStudyRelatedInstances)) {
-        query.append(", count(distinct(SERIES.SeriesKey)) as NumberOfStudyRelatedSeries");
-        tables.append(" join SERIES on SERIES.StudyKey = STUDY.StudyKey");
+      query.append("select ");
+      for (String column : tagColumn.values()) {
+        query.append("SERIES." + column + " AS " + column + ", ");
       }
-      if (data.contains(Tag.NumberOfStudyRelatedInstances)) {
-        query.append(", count(distinct(SOPInstanceUID)) as NumberOfStudyRelatedInstances");
-        tables.append(" join INSTANCE on INSTANCE.SeriesKey = SERIES.SeriesKey");
+
+      // Don't want these in the query string
+      tagColumn.put(Tag.SeriesDate, "SeriesDate");
+      tagColumn.put(Tag.SeriesTime, "SeriesTime");
+
+      query.append(" STUDY.StudyDate as SeriesDate, STUDY.StudyTime as SeriesTime from SERIES, STUDY where STUDY.PoolKey = ? and STUDY.StudyInstanceUID = ? and STUDY.StudyKey = SERIES.StudyKey");
+      logger.debug("SERIES Query: " + query);
+      logger.debug("StudyUID: " + uid);
+      template.query(query.toString(), new Object[] { poolKey, uid }, new RowCallbackHandler() {
+
+        @Override
+        public void processRow(ResultSet rs) throws SQLException {
+          logger.debug("Found SERIES: " + rs.getString("SeriesInstanceUID"));
+
+          ObjectNode node = objectMapper.createObjectNode();
+          node.put("RemoteDevice", remoteDevice);
+          node.put("RetrieveAETitle", retrieveAETitle);
+          DicomObject response = new BasicDicomObject();
+
+          // Always send the Query/Retrieve level C.4.1.1.3.2
+          response.putString(Tag.QueryRetrieveLevel, VR.CS, retrieveLevel);
+          node.put(Anonymizer.fieldMap.get(Tag.QueryRetrieveLevel), retrieveLevel);
+
+          // RetrieveAETitle is also required C.4.1.1.3.2
+          response.putString(Tag.RetrieveAETitle, VR.AE, retrieveAETitle);
+          node.put(Anonymizer.fieldMap.get(Tag.RetrieveAETitle), retrieveAETitle);
+
+          // Just return what was asked for, if we have it
+          Iterator<DicomElement> iterator = data.datasetIterator();
+          while (iterator.hasNext()) {
+            DicomElement element = iterator.next();
+            if (tagColumn.containsKey(element.tag())) {
+              String column = tagColumn.get(element.tag());
+              int columnNumber = rs.findColumn(column);
+              // Figure out what type it is (string or data)
+              int columnType = rs.getMetaData().getColumnType(columnNumber);
+              if (columnType == Types.VARCHAR || columnType == Types.INTEGER) {
+                response.putString(element.tag(), element.vr(), rs.getString(columnNumber));
+                node.put(Anonymizer.fieldMap.get(element.tag()), rs.getString(columnNumber));
+              }
+              if (columnType == Types.DATE) {
+                response.putDate(element.tag(), element.vr(), rs.getDate(columnNumber));
+                node.put(Anonymizer.fieldMap.get(element.tag()), rs.getDate(columnNumber).toString());
+              } else if (columnType == Types.TIME) {
+                response.putDate(element.tag(), element.vr(), rs.getTime(columnNumber));
+                node.put(Anonymizer.fieldMap.get(element.tag()), rs.getTime(columnNumber).toString());
+              }
+            } else {
+              logger.error("No match for " + element);
+              if (!data.containsValue(element.tag())) {
+                response.putString(element.tag(), element.vr(), "  ");
+              }
+            }
+          }
+          response.putString(Tag.StudyInstanceUID, VR.UI, uid);
+          if (data.containsValue(Tag.SpecificCharacterSet)) {
+            response.putString(Tag.SpecificCharacterSet, VR.CS, data.getString(Tag.SpecificCharacterSet));
+          }
+
+          Audit.log(remoteDevice, "find_success", node);
+          logger.debug("Queueing \n" + response);
+          responses.add(response, node);
+        }
+      });
+    }
+  }
+
+  void findStudies(int poolKey, final String retrieveLevel, final String retrieveAETitle, final String remoteDevice, final DicomObject data, final FindResponseQueue responses) {
+    final Map<Integer, String> tagColumn = new HashMap<Integer, String>();
+    // Patient Queries
+    tagColumn.put(Tag.PatientName, "Patientname");
+    tagColumn.put(Tag.PatientID, "PatientID");
+    tagColumn.put(Tag.PatientBirthDate, "PatientBirthDate");
+    tagColumn.put(Tag.PatientSex, "PatientSex");
+    // Study Queries
+    tagColumn.put(Tag.StudyDate, "StudyDate");
+    tagColumn.put(Tag.StudyTime, "StudyTime");
+    tagColumn.put(Tag.StudyID, "StudyID");
+    tagColumn.put(Tag.AccessionNumber, "AccessionNumber");
+    tagColumn.put(Tag.StudyInstanceUID, "StudyInstanceUID");
+    tagColumn.put(Tag.StudyDescription, "StudyDescription"); // Do a patient
+                                                             // query
+    tagColumn.put(Tag.NumberOfStudyRelatedInstances, "NumberOfStudyRelatedInstances");
+    tagColumn.put(Tag.NumberOfStudyRelatedSeries, "NumberOfStudyRelatedSeries");
+
+    // The in-memory index can answer anything that does not need SERIES or
+    // INSTANCE
+    StudyIndex index = poolManager.getContainer(poolKey).getStudyIndex();
+    if (index != null && !data.contains(Tag.NumberOfStudyRelatedSeries) && !data.contains(Tag.NumberOfStudyRelatedInstances) && !data.contains(Tag.ModalitiesInStudy)) {
+      StudyIndex.Criteria criteria = new StudyIndex.Criteria();
+      addCriteria(Tag.PatientName, "PatientName", data, criteria);
+      addCriteria(Tag.PatientID, "PatientID", data, criteria);
+      addCriteria(Tag.AccessionNumber, "AccessionNumber", data, criteria);
+      addCriteria(Tag.StudyID, "StudyID", data, criteria);
+      if (data.containsValue(Tag.StudyInstanceUID)) {
+        criteria.anyOf("StudyInstanceUID", data.getStrings(Tag.StudyInstanceUID));
       }
-      // Add on the list of tables to query from
-      query.append(tables);
-      query.append(" where STUDY.PoolKey = ? ");
-      args.add(info.poolKey);
-      addWhere(Tag.PatientName, tagColumn.get(Tag.PatientName), data, args, query);
-      addWhere(Tag.PatientID, tagColumn.get(Tag.PatientID), data, args, query);
-      addWhere(Tag.AccessionNumber, tagColumn.get(Tag.AccessionNumber), data, args, query);
-      addWhere(Tag.StudyID, tagColumn.get(Tag.StudyID), data, args, query);
       if (data.contains(Tag.StudyDate) && data.containsValue(Tag.StudyDate)) {
         DateRange range = data.getDateRange(Tag.StudyDate);
-        if (range.getStart() != null) {
-          query.append("AND StudyDate >= ? ");
-          args.add(range.getStart());
+        criteria.dateFrom = range.getStart();
+        criteria.dateTo = range.getEnd();
+      }
+      for (Study study : index.search(criteria).studies) {
+        DicomObject response = new BasicDicomObject();
+        ObjectNode node = objectMapper.createObjectNode();
+        node.put("RemoteDevice", remoteDevice);
+        node.put("RetrieveAETitle", retrieveAETitle);
+
+        // Just return what was asked for, if we have it
+        Iterator<DicomElement> iterator = data.datasetIterator();
+        while (iterator.hasNext()) {
+          putStudyValue(response, iterator.next(), study);
         }
-        if (range.getEnd() != null) {
-          query.append(" and StudyDate <= ? ");
-          args.add(range.getEnd());
+        if (data.contains(Tag.StudyInstanceUID)) {
+          node.put(Anonymizer.fieldMap.get(Tag.StudyInstanceUID), study.StudyInstanceUID);
         }
+        response.putString(Tag.QueryRetrieveLevel, VR.CS, retrieveLevel);
+        node.put(Anonymizer.fieldMap.get(Tag.QueryRetrieveLevel), retrieveLevel);
+        response.putString(Tag.RetrieveAETitle, VR.AE, retrieveAETitle);
+        node.put(Anonymizer.fieldMap.get(Tag.RetrieveAETitle), retrieveAETitle);
+        Audit.log(remoteDevice, "find_success", node);
+        responses.add(response, node);
       }
-      // Finally, add a group by clause to enable the image/series counting
-      // NB: for Derby, all the non-aggregate columns must be listed
-      query.append(" group by STUDY.StudyKey, PatientID,  Patientname,  PatientBirthDate,  PatientSex,  StudyID,  StudyDate,  StudyTime,  AccessionNumber,  StudyInstanceUID,  StudyDescription");
-
-      // Need to handle Dates and times
-      try {
-        logger.debug("Ready to run qeury " + query);
-        logger.debug("Arguments: " + args);
-
-        template.query(query.toString(), args.toArray(), new RowCallbackHandler() {
-
-          @Override
-          public void processRow(ResultSet rs) throws SQLException {
-            DicomObject response = new BasicDicomObject();
-            final ObjectNode node = objectMapper.createObjectNode();
-            node.put("RemoteDevice", remoteDevice);
-            node.put("RetrieveAETitle", retrieveAETitle);
-
-            // Just return what was asked for, if we have it
-            Iterator<DicomElement> iterator = data.datasetIterator();
-            while (iterator.hasNext()) {
-              DicomElement element = iterator.next();
-              if (tagColumn.containsKey(element.tag())) {
-                String column = tagColumn.get(element.tag());
-                int columnNumber = rs.findColumn(column);
-                logger.debug(element.toString() + " maps to Column " + columnNumber + " " + column + " with type " + rs.getMetaData().getColumnTypeName(columnNumber));
-
-                // Figure out what type it is (string or data)
-                int colType = rs.getMetaData().getColumnType(columnNumber);
-                if (colType == Types.VARCHAR || colType == Types.INTEGER || colType == Types.BIGINT) {
-                  response.putString(element.tag(), element.vr(), rs.getString(columnNumber));
-                } else if (colType == Types.DATE) {
-                  java.sql.Date studyDateValue = rs.getDate(columnNumber);
-                  response.putDate(element.tag(), element.vr(), studyDateValue);
-                } else if (colType == Types.TIME) {
-                  java.sql.Time studyTimeValue = rs.getTime(columnNumber);
-                  response.putDate(element.tag(), element.vr(), studyTimeValue);
-                }
-              }
-            }
-            // Do we have Modalities?
-            if (data.contains(Tag.ModalitiesInStudy)) {
-              List<String> modalityList = template.queryForList("select distinct ( Modality ) from SERIES where StudyKey = ?", new Object[] { rs.getInt("StudyKey") }, String.class);
-              response.putStrings(Tag.ModalitiesInStudy, VR.CS, modalityList.toArray(new String[] {}));
-              ArrayNode a = node.withArray(Anonymizer.fieldMap.get(Tag.ModalitiesInStudy));
-              for (String v : modalityList) {
-                a.add(v);
-              }
-            }
-            if (data.containsValue(Tag.StudyInstanceUID)) {
-              response.putString(Tag.StudyInstanceUID, VR.UI, data.getString(Tag.StudyInstanceUID));
-              node.put(Anonymizer.fieldMap.get(Tag.StudyInstanceUID), data.getString(Tag.StudyInstanceUID));
-            }
-            // Always send the Query/Retrieve level C.4.1.1.3.2
-            response.putString(Tag.QueryRetrieveLevel, VR.CS, retrieveLevel);
-            node.put(Anonymizer.fieldMap.get(Tag.QueryRetrieveLevel), retrieveLevel);
-
-            // RetrieveAETitle is also required C.4.1.1.3.2
-            response.putString(Tag.RetrieveAETitle, VR.AE, retrieveAETitle);
-            node.put(Anonymizer.fieldMap.get(Tag.RetrieveAETitle), retrieveAETitle);
-            Audit.log(remoteDevice, "find_success", node);
-            try {
-              logger.debug("Sending \n" + response);
-              as.writeDimseRSP(pcid, pending, response);
-            } catch (IOException e) {
-              logger.error("Error writing response", e);
-            }
-          }
-        });
+      return;
+    }
 
-      } catch (Exception e) {
-        logger.error("Error finding patients", e);
-        as.writeDimseRSP(pcid, CommandUtils.mkRSP(rq, Status.ProcessingFailure));
-        return;
+    ArrayList<Object> args = new ArrayList<Object>();
+    StringBuilder query = new StringBuilder();
+    query.append("select");
+    StringBuilder tables = new StringBuilder();
+    tables.append(" from STUDY"); // Space at beginning to prevent running
+                                  // into existing text
+
+    // query.append("select PatientID, Patientname, PatientBirthDate, PatientSex, StudyID, StudyDate, StudyTime, AccessionNumber, StudyInstanceUID, StudyDescription, StudyKey from STUDY "
+    // WHERE 1=1 ");
+    query.append(" PatientID, Patientname, PatientBirthDate, PatientSex");
+    query.append(", StudyID, StudyDate, StudyTime, AccessionNumber, StudyInstanceUID, StudyDescription, STUDY.StudyKey as StudyKey");
+    if (data.contains(Tag.NumberOfStudyRelatedSeries) || data.contains(Tag.NumberOfStudyRelatedInstances)) {
+      query.append(", count(distinct(SERIES.SeriesKey)) as NumberOfStudyRelatedSeries");
+      tables.append(" join SERIES on SERIES.StudyKey = STUDY.StudyKey");
+    }
+    if (data.contains(Tag.NumberOfStudyRelatedInstances)) {
+      query.append(", count(distinct(SOPInstanceUID)) as NumberOfStudyRelatedInstances");
+      tables.append(" join INSTANCE on INSTANCE.SeriesKey = SERIES.SeriesKey");
+    }
+    // Add on the list of tables to query from
+    query.append(tables);
+    query.append(" where STUDY.PoolKey = ? ");
+    args.add(poolKey);
+    addWhere(Tag.PatientName, tagColumn.get(Tag.PatientName), data, args, query);
+    addWhere(Tag.PatientID, tagColumn.get(Tag.PatientID), data, args, query);
+    addWhere(Tag.AccessionNumber, tagColumn.get(Tag.AccessionNumber), data, args, query);
+    addWhere(Tag.StudyID, tagColumn.get(Tag.StudyID), data, args, query);
+    if (data.containsValue(Tag.StudyInstanceUID)) {
+      // UID list matching
+      String[] uids = data.getStrings(Tag.StudyInstanceUID);
+      query.append(" AND StudyInstanceUID in ( ?");
+      for (int i = 1; i < uids.length; i++) {
+        query.append(", ?");
       }
+      query.append(" ) ");
+      args.addAll(Arrays.asList(uids));
     }
-    // All done
-    as.writeDimseRSP(pcid, CommandUtils.mkRSP(rq, CommandUtils.SUCCESS), null);
+    if (data.contains(Tag.StudyDate) && data.containsValue(Tag.StudyDate)) {
+      DateRange range = data.getDateRange(Tag.StudyDate);
+      if (range.getStart() != null) {
+        query.append("AND StudyDate >= ? ");
+        args.add(range.getStart());
+      }
+      if (range.getEnd() != null) {
+        query.append(" and StudyDate <= ? ");
+        args.add(range.getEnd());
+      }
+    }
+    // Finally, add a group by clause to enable the image/series counting
+    // NB: for Derby, all the non-aggregate columns must be listed
+    query.append(" group by STUDY.StudyKey, PatientID,  Patientname,  PatientBirthDate,  PatientSex,  StudyID,  StudyDate,  StudyTime,  AccessionNumber,  StudyInstanceUID,  StudyDescription");
+
+    // Need to handle Dates and times
+    logger.debug("Ready to run qeury " + query);
+    logger.debug("Arguments: " + args);
+
+    template.query(query.toString(), args.toArray(), new RowCallbackHandler() {
+
+      @Override
+      public void processRow(ResultSet rs) throws SQLException {
+        DicomObject response = new BasicDicomObject();
+        final ObjectNode node = objectMapper.createObjectNode();
+        node.put("RemoteDevice", remoteDevice);
+        node.put("RetrieveAETitle", retrieveAETitle);
+
+        // Just return what was asked for, if we have it
+        Iterator<DicomElement> iterator = data.datasetIterator();
+        while (iterator.hasNext()) {
+          DicomElement element = iterator.next();
+          if (tagColumn.containsKey(element.tag())) {
+            String column = tagColumn.get(element.tag());
+            int columnNumber = rs.findColumn(column);
+            logger.debug(element.toString() + " maps to Column " + columnNumber + " " + column + " with type " + rs.getMetaData().getColumnTypeName(columnNumber));
+
+            // Figure out what type it is (string or data)
+            int colType = rs.getMetaData().getColumnType(columnNumber);
+            if (colType == Types.VARCHAR || colType == Types.INTEGER || colType == Types.BIGINT) {
+              response.putString(element.tag(), element.vr(), rs.getString(columnNumber));
+            } else if (colType == Types.DATE) {
+              java.sql.Date studyDateValue = rs.getDate(columnNumber);
+              response.putDate(element.tag(), element.vr(), studyDateValue);
+            } else if (colType == Types.TIME) {
+              java.sql.Time studyTimeValue = rs.getTime(columnNumber);
+              response.putDate(element.tag(), element.vr(), studyTimeValue);
+            }
+          }
+        }
+        // Do we have Modalities?
+        if (data.contains(Tag.ModalitiesInStudy)) {
+          List<String> modalityList = template.queryForList("select distinct ( Modality ) from SERIES where StudyKey = ?", new Object[] { rs.getInt("StudyKey") }, String.class);
+          response.putStrings(Tag.ModalitiesInStudy, VR.CS, modalityList.toArray(new String[] {}));
+          ArrayNode a = node.withArray(Anonymizer.fieldMap.get(Tag.ModalitiesInStudy));
+          for (String v : modalityList) {
+            a.add(v);
+          }
+        }
+        if (data.contains(Tag.StudyInstanceUID)) {
+          node.put(Anonymizer.fieldMap.get(Tag.StudyInstanceUID), rs.getString("StudyInstanceUID"));
+        }
+        // Always send the Query/Retrieve level C.4.1.1.3.2
+        response.putString(Tag.QueryRetrieveLevel, VR.CS, retrieveLevel);
+        node.put(Anonymizer.fieldMap.get(Tag.QueryRetrieveLevel), retrieveLevel);
+
+        // RetrieveAETitle is also required C.4.1.1.3.2
+        response.putString(Tag.RetrieveAETitle, VR.AE, retrieveAETitle);
+        node.put(Anonymizer.fieldMap.get(Tag.RetrieveAETitle), retrieveAETitle);
+        Audit.log(remoteDevice, "find_success", node);
+        logger.debug("Queueing \n" + response);
+        responses.add(response, node);
+      }
+    });
   }
 }
@@ -0,0 +1,162 @@
+package edu.mayo.qia.pacs.dicom;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
+import org.dcm4che2.data.UID;
+import org.dcm4che2.data.VR;
+import org.dcm4che2.net.Association;
+import org.dcm4che2.net.CommandUtils;
+import org.dcm4che2.net.DicomServiceException;
+import org.dcm4che2.net.Status;
+import org.dcm4che2.net.service.CGetSCP;
+import org.dcm4che2.net.service.DicomService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.mayo.qia.pacs.Audit;
+import edu.mayo.qia.pacs.Notion;
+import edu.mayo.qia.pacs.components.PoolManager;
+import edu.mayo.qia.pacs.dicom.DICOMReceiver.AssociationInfo;
+
+/**
+ * C-GET, sending the instances back over the association the request arrived
+ * on. Unlike C-MOVE the requester need not be reachable, it only has to accept
+ * the storage SOP classes in the SCP role.
+ *
+ * @author Daniel Blezek
+ *
+ */
+@Component
+public class GetSCP extends DicomService implements CGetSCP {
+  static Logger logger = LoggerFactory.getLogger(GetSCP.class);
+
+  static public String[] PresentationContexts = new String[] { UID.StudyRootQueryRetrieveInformationModelGET, UID.PatientRootQueryRetrieveInformationModelGET };
+
+  @Autowired
+  ObjectMapper objectMapper;
+
+  @Autowired
+  PoolManager poolManager;
+
+  @Autowired
+  MoveSCP moveSCP;
+
+  @Autowired
+  TransferScheduler transferScheduler;
+
+  public GetSCP() {
+    super(PresentationContexts);
+  }
+
+  @Override
+  public void cget(final Association as, final int pcid, final DicomObject command, DicomObject request) throws DicomServiceException, IOException {
+
+    DICOMReceiver dicomReceiver = Notion.context.getBean("dicomReceiver", DICOMReceiver.class);
+    final AssociationInfo info = dicomReceiver.getAssociationMap().get(as);
+    if (info == null) {
+      throw new DicomServiceException(request, Status.ProcessingFailure, "Invalid or unknown association");
+    }
+    final String remoteDevice = as.getCallingAET() + "@" + as.getSocket().getInetAddress().getHostName();
+    if (!info.canConnect) {
+      Audit.log(remoteDevice, "association_rejected", "C-GET");
+      throw new DicomServiceException(request, Status.ProcessingFailure, "AET (" + as.getCalledAET() + ") is unknown");
+    }
+
+    // Construct an object for the audit log
+    final ObjectNode node = objectMapper.createObjectNode();
+    node.put("RemoteDevice", remoteDevice);
+    node.put("CalledAETitle", poolManager.getContainer(info.poolKey).getPool().applicationEntityTitle);
+
+    MoveSCP.Instances instances = moveSCP.findInstances(info, request, node, null);
+    if (instances.matched == 0) {
+      as.writeDimseRSP(pcid, CommandUtils.mkRSP(command, 0xa701));
+      Audit.log(remoteDevice, "no_matching_series", "C-GET");
+      return;
+    }
+    final List<List<DcmSnd.FileInfo>> seriesFiles = instances.getSeries();
+    final int total = instances.size();
+    MoveSCP.imageQueueCounter.inc(total);
+    node.put("NumberOfSeries", seriesFiles.size());
+    node.put("NumberOfInstances", total);
+
+    // The C-STORE responses arrive on the thread that called us, so send from
+    // another one
+    Notion.executor.execute(new Runnable() {
+
+      @Override
+      public void run() {
+        final AtomicInteger completed = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final AtomicInteger reported = new AtomicInteger();
+        // Responses are written from the sender and the association's reader
+        final Object responseLock = new Object();
+        DcmSnd sender = new DcmSnd(as.getCalledAET());
+        sender.setAssociation(as);
+        sender.setTransferScheduler(transferScheduler, TransferScheduler.Priority.of(command.getInt(Tag.Priority)), as.getCalledAET());
+        sender.setCalledAET(as.getCallingAET());
+        for (List<DcmSnd.FileInfo> files : seriesFiles) {
+          for (DcmSnd.FileInfo f : files) {
+            sender.addFile(f);
+          }
+        }
+
+        FileMovedHandler callback = new FileMovedHandler() {
+
+          @Override
+          public void fileMoved(int current, int count) {
+            reported.incrementAndGet();
+            MoveSCP.imageMeter.mark();
+            MoveSCP.imageSentCounter.inc();
+            MoveSCP.imagesPerSecond.mark();
+            MoveSCP.imageQueueCounter.dec();
+            synchronized (responseLock) {
+              MoveSCP.writePending(as, pcid, command, total, completed.incrementAndGet(), failed.get());
+            }
+          }
+
+          @Override
+          public void fileFailed(File file, int status) {
+            reported.incrementAndGet();
+            MoveSCP.imageQueueCounter.dec();
+            synchronized (responseLock) {
+              MoveSCP.writePending(as, pcid, command, total, completed.get(), failed.incrementAndGet());
+            }
+          }
+        };
+
+        try {
+          sender.send(callback);
+        } catch (Exception e) {
+          logger.error("ERROR: Failed to send", e);
+          Audit.log(remoteDevice, "failed_to_send", "C-GET: " + e.getMessage());
+        } finally {
+          int unsent = total - reported.get();
+          failed.addAndGet(unsent);
+          MoveSCP.imageQueueCounter.dec(unsent);
+        }
+
+        DicomObject response = CommandUtils.mkRSP(command, failed.get() == 0 ? Status.Success : MoveSCP.SubOperationsCompleteWithFailures);
+        response.putInt(Tag.NumberOfCompletedSuboperations, VR.US, completed.get());
+        response.putInt(Tag.NumberOfFailedSuboperations, VR.US, failed.get());
+        response.putInt(Tag.NumberOfWarningSuboperations, VR.US, 0);
+        try {
+          as.writeDimseRSP(pcid, response);
+        } catch (Exception e) {
+          logger.error("Failed to write C-GET response", e);
+        }
+        node.put("NumberOfFailed", failed.get());
+        Audit.log(remoteDevice, "get_success", node);
+      }
+    });
+  }
+}
@@ -28,11 +28,20 @@ import java.io.IOException;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import edu.mayo.qia.pacs.Audit;
 import edu.mayo.qia.pacs.Notion;
+import edu.mayo.qia.pacs.NotionConfiguration;
 import edu.mayo.qia.pacs.components.Device;
+import edu.mayo.qia.pacs.components.MoveJob;
 import edu.mayo.qia.pacs.components.PoolManager;
 import edu.mayo.qia.pacs.dicom.DICOMReceiver.AssociationInfo;
 import edu.mayo.qia.pacs.metric.RateGauge;
@@ -45,6 +54,9 @@ public class MoveSCP extends DicomService implements CMoveSCP {
   static Counter imageSentCounter = Notion.metrics.counter("DICOM.image.sent.count");
   static RateGauge imagesPerSecond;
 
+  /** Sub-operations Complete - One or more Failures */
+  static final int SubOperationsCompleteWithFailures = 0xB000;
+
   static public String[] PresentationContexts = new String[] { UID.StudyRootQueryRetrieveInformationModelMOVE, UID.PatientRootQueryRetrieveInformationModelMOVE };
 
   @Autowired
@@ -56,6 +68,15 @@ public class MoveSCP extends DicomService implements CMoveSCP {
   @Autowired
   PoolManager poolManager;
 
+  @Autowired
+  NotionConfiguration configuration;
+
+  @Autowired
+  AssociationPool associationPool;
+
+  @Autowired
+  TransferScheduler transferScheduler;
+
   public MoveSCP() {
     super(PresentationContexts);
     imagesPerSecond = new RateGauge();
@@ -79,13 +100,14 @@ public class MoveSCP extends DicomService implements CMoveSCP {
     // machine...
     final String destinationAET = command.getString(Tag.MoveDestination);
     final Device destination = new Device();
-    template.query("select HostName, Port from Device where ApplicationEntityTitle = ? and PoolKey = ?", new Object[] { destinationAET, info.poolKey }, new RowCallbackHandler() {
+    template.query("select HostName, Port, TransferSyntaxes from Device where ApplicationEntityTitle = ? and PoolKey = ?", new Object[] { destinationAET, info.poolKey }, new RowCallbackHandler() {
 
       @Override
       public void processRow(ResultSet rs) throws SQLException {
         destination.applicationEntityTitle = destinationAET;
         destination.port = rs.getInt("Port");
         destination.hostName = rs.getString("HostName");
+        destination.transferSyntaxes = rs.getString("TransferSyntaxes");
       }
     });
     if (destination.applicationEntityTitle == null) {
@@ -103,84 +125,263 @@ public class MoveSCP extends DicomService implements CMoveSCP {
     final String retrieveAETitle = (as.getLocalAET() == null) ? as.getCalledAET() : as.getLocalAET();
     node.put("RetrieveAETitle", retrieveAETitle);
 
-    // Find the studies to send
-    // Find the series we need to move
-    String retrieveLevel = request.getString(Tag.QueryRetrieveLevel);
-    List<Integer> seriesKeyList = new ArrayList<Integer>();
-    if (retrieveLevel.equalsIgnoreCase("STUDY")) {
-      String uid = request.getString(Tag.StudyInstanceUID);
-      seriesKeyList.addAll(template.queryForList("select SERIES.SeriesKey from SERIES, STUDY where SERIES.StudyKey = STUDY.StudyKey and STUDY.StudyInstanceUID = ? and STUDY.PoolKey = ?", Integer.class, uid, info.poolKey));
-      node.put("StudyInstanceUID", uid);
-    }
-    if (retrieveLevel.equalsIgnoreCase("SERIES")) {
-      String uid = request.getString(Tag.SeriesInstanceUID);
-      seriesKeyList.addAll(template.queryForList("select SERIES.SeriesKey from SERIES, STUDY where SERIES.SeriesInstanceUID = ? and STUDY.StudyKey = SERIES.StudyKey and STUDY.PoolKey = ?", Integer.class, uid, info.poolKey));
-      node.put("SeriesInstanceUID", uid);
-    }
-    if (seriesKeyList.size() == 0) {
+    // Resume an earlier move to the same destination that did not finish
+    String uid = retrieveUID(request);
+    final MoveJob job = uid == null ? null : MoveJob.open(template, info.poolKey, destinationAET, uid, configuration.notion.moveResumeHours);
+    Instances instances = findInstances(info, request, node, job);
+    if (instances.matched == 0) {
       // 0xa801 is Unable to calculate number of matches
       as.writeDimseRSP(pcid, CommandUtils.mkRSP(command, 0xa701));
       Audit.log(remoteDevice, "no_matching_series", "C-MOVE");
       return;
     }
 
-    final DcmSnd sender = new DcmSnd(as.getCalledAET());
-    sender.setCalledAET(destination.applicationEntityTitle);
-    sender.setRemoteHost(destination.hostName);
-    sender.setRemotePort(destination.port);
-    sender.setCalling(as.getCalledAET());
+    final List<List<DcmSnd.FileInfo>> seriesFiles = instances.getSeries();
+    int total = instances.size();
+    imageQueueCounter.inc(total);
+    node.put("NumberOfSeries", seriesFiles.size());
+    node.put("NumberOfInstances", total);
+    node.put("NumberOfResumed", instances.skipped);
 
-    for (Integer key : seriesKeyList) {
-      template.query("select FilePath from INSTANCE where SeriesKey = ?", new Object[] { key }, new RowCallbackHandler() {
+    // Spread the instances over several associations, none if an earlier
+    // attempt sent everything
+    List<List<DcmSnd.FileInfo>> partitions = total == 0 ? new ArrayList<List<DcmSnd.FileInfo>>() : partition(seriesFiles, configuration.notion.moveAssociations, "roundrobin".equalsIgnoreCase(configuration.notion.movePartition));
+    node.put("Associations", partitions.size());
+
+    final int numberOfInstances = instances.matched;
+    // The association is written from every sender thread
+    final Object responseLock = new Object();
+    // Sent by an earlier attempt
+    final AtomicInteger completed = new AtomicInteger(instances.skipped);
+    final AtomicInteger failed = new AtomicInteger();
+    final CountDownLatch done = new CountDownLatch(partitions.size());
+    for (final List<DcmSnd.FileInfo> files : partitions) {
+      Notion.executor.execute(new Runnable() {
 
         @Override
-        public void processRow(ResultSet rs) throws SQLException {
-          File f = new File(info.poolRootDirectory, rs.getString("FilePath"));
-          sender.addFile(f);
-          imageQueueCounter.inc();
+        public void run() {
+          final AtomicInteger reported = new AtomicInteger();
+          DcmSnd sender = new DcmSnd(as.getCalledAET());
+          sender.setAssociationPool(associationPool);
+          sender.setMaxOpsInvoked(configuration.notion.maxOpsInvoked);
+          sender.setTransferScheduler(transferScheduler, TransferScheduler.Priority.of(command.getInt(Tag.Priority)), as.getCalledAET());
+          sender.setCalledAET(destination.applicationEntityTitle);
+          sender.setRemoteHost(destination.hostName);
+          sender.setRemotePort(destination.port);
+          sender.setTransferSyntaxes(destination.transferSyntaxes);
+          sender.setCalling(as.getCalledAET());
+          sender.setMoveOriginator(as.getCallingAET(), command.getInt(Tag.MessageID));
+          for (DcmSnd.FileInfo f : files) {
+            sender.addFile(f);
+          }
+          sender.configureTransferCapability();
+
+          FileMovedHandler callback = new FileMovedHandler() {
+
+            @Override
+            public void fileMoved(int current, int count) {
+              reported.incrementAndGet();
+              imageMeter.mark();
+              imageSentCounter.inc();
+              imagesPerSecond.mark();
+              imageQueueCounter.dec();
+              synchronized (responseLock) {
+                writePending(as, pcid, command, numberOfInstances, completed.incrementAndGet(), failed.get());
+              }
+            }
+
+            @Override
+            public void fileFailed(File file, int status) {
+              reported.incrementAndGet();
+              imageQueueCounter.dec();
+              synchronized (responseLock) {
+                writePending(as, pcid, command, numberOfInstances, completed.get(), failed.incrementAndGet());
+              }
+            }
+          };
+
+          try {
+            sender.open();
+            try {
+              sender.send(callback);
+            } finally {
+              sender.close();
+            }
+          } catch (Exception e) {
+            logger.error("ERROR: Failed to send", e);
+            Audit.log(remoteDevice, "failed_to_send", "C-MOVE: " + e.getMessage());
+          } finally {
+            for (DcmSnd.FileInfo f : sender.getFiles()) {
+              if (f.isTransferred()) {
+                job.done(f.getSOPInstanceUID());
+              } else {
+                job.failed(f.getSOPInstanceUID(), "C-STORE status " + Integer.toHexString(f.getStatus()));
+              }
+            }
+            // Anything never reported, because the association failed or the
+            // file could not be read, failed
+            int unsent = files.size() - reported.get();
+            failed.addAndGet(unsent);
+            imageQueueCounter.dec(unsent);
+            done.countDown();
+          }
         }
       });
     }
-    node.put("NumberOfSeries", seriesKeyList.size());
-    node.put("NumberOfInstances", imageQueueCounter.getCount());
+    try {
+      done.await();
+    } catch (InterruptedException e) {
+      logger.error("Interrupted waiting for C-MOVE to complete", e);
+      Thread.currentThread().interrupt();
+    }
+
+    job.finish(numberOfInstances);
+
+    DicomObject response = CommandUtils.mkRSP(command, failed.get() == 0 ? Status.Success : SubOperationsCompleteWithFailures);
+    response.putInt(Tag.NumberOfCompletedSuboperations, VR.US, completed.get());
+    response.putInt(Tag.NumberOfFailedSuboperations, VR.US, failed.get());
+    response.putInt(Tag.NumberOfWarningSuboperations, VR.US, 0);
+    as.writeDimseRSP(pcid, response);
+    node.put("NumberOfFailed", failed.get());
+    Audit.log(remoteDevice, "move_success", node);
+  }
+
+  /** Instances matching a retrieve, grouped by series. */
+  static class Instances {
+    final Map<Integer, List<DcmSnd.FileInfo>> seriesMap = new LinkedHashMap<Integer, List<DcmSnd.FileInfo>>();
+    /** Instances matching the request */
+    int matched = 0;
+    /** Matching instances already sent by an earlier attempt */
+    int skipped = 0;
+
+    List<List<DcmSnd.FileInfo>> getSeries() {
+      return new ArrayList<List<DcmSnd.FileInfo>>(seriesMap.values());
+    }
 
-    FileMovedHandler callback = new FileMovedHandler() {
+    /** Instances to send */
+    int size() {
+      return matched - skipped;
+    }
+  }
+
+  /** The Study or Series Instance UID to retrieve, null for other levels. */
+  static String retrieveUID(DicomObject request) {
+    String retrieveLevel = request.getString(Tag.QueryRetrieveLevel);
+    if ("STUDY".equalsIgnoreCase(retrieveLevel)) {
+      return request.getString(Tag.StudyInstanceUID);
+    }
+    if ("SERIES".equalsIgnoreCase(retrieveLevel)) {
+      return request.getString(Tag.SeriesInstanceUID);
+    }
+    return null;
+  }
+
+  /**
+   * Find the instances to send, with everything DcmSnd needs so the files are
+   * not parsed again. Instances <code>job</code> already sent are skipped.
+   */
+  Instances findInstances(final AssociationInfo info, DicomObject request, ObjectNode node, final MoveJob job) {
+    final Instances instances = new Instances();
+    String retrieveLevel = request.getString(Tag.QueryRetrieveLevel);
+    String uid = retrieveUID(request);
+    if (uid == null) {
+      return instances;
+    }
+    String sql = "select SERIES.SeriesKey, INSTANCE.FilePath, INSTANCE.SOPClassUID, INSTANCE.SOPInstanceUID, INSTANCE.TransferSyntaxUID, INSTANCE.FmiEndPosition, INSTANCE.FileLength"
+        + " from INSTANCE, SERIES, STUDY where INSTANCE.SeriesKey = SERIES.SeriesKey and SERIES.StudyKey = STUDY.StudyKey and STUDY.PoolKey = ?";
+    if ("STUDY".equalsIgnoreCase(retrieveLevel)) {
+      sql += " and STUDY.StudyInstanceUID = ?";
+      node.put("StudyInstanceUID", uid);
+    } else {
+      sql += " and SERIES.SeriesInstanceUID = ?";
+      node.put("SeriesInstanceUID", uid);
+    }
+    template.query(sql, new Object[] { info.poolKey, uid }, new RowCallbackHandler() {
 
       @Override
-      public void fileMoved(int current, int total) {
-        DicomObject response = CommandUtils.mkRSP(command, Status.Pending);
-        response.putInt(Tag.NumberOfCompletedSuboperations, VR.US, current + 1);
-        response.putInt(Tag.NumberOfRemainingSuboperations, VR.US, total - current - 1);
-        response.putInt(Tag.NumberOfFailedSuboperations, VR.US, 0);
-        response.putInt(Tag.NumberOfWarningSuboperations, VR.US, 0);
-        imageMeter.mark();
-        imageSentCounter.inc();
-        imagesPerSecond.mark();
-        try {
-          if (logger.isDebugEnabled()) {
-            logger.debug("Sending " + current + " of " + total + " images");
-            logger.debug("Returning Response: \n" + response);
-          }
-          as.writeDimseRSP(pcid, response);
-        } catch (Exception e) {
-          logger.error("Failed to write return response", e);
+      public void processRow(ResultSet rs) throws SQLException {
+        instances.matched++;
+        if (job != null && job.isDone(rs.getString("SOPInstanceUID"))) {
+          instances.skipped++;
+          return;
+        }
+        List<DcmSnd.FileInfo> files = instances.seriesMap.get(rs.getInt("SeriesKey"));
+        if (files == null) {
+          files = new ArrayList<DcmSnd.FileInfo>();
+          instances.seriesMap.put(rs.getInt("SeriesKey"), files);
+        }
+        File f = new File(info.poolRootDirectory, rs.getString("FilePath"));
+        if (rs.getString("TransferSyntaxUID") == null) {
+          // Received before the metadata was saved, DcmSnd will parse it
+          files.add(new DcmSnd.FileInfo(f));
+        } else {
+          files.add(new DcmSnd.FileInfo(f, rs.getString("SOPClassUID"), rs.getString("SOPInstanceUID"), rs.getString("TransferSyntaxUID"), rs.getLong("FmiEndPosition"), rs.getLong("FileLength")));
         }
-        imageQueueCounter.dec();
       }
-    };
-    sender.configureTransferCapability();
+    });
+    return instances;
+  }
 
+  static void writePending(Association as, int pcid, DicomObject command, int total, int completed, int failed) {
+    DicomObject response = CommandUtils.mkRSP(command, Status.Pending);
+    response.putInt(Tag.NumberOfCompletedSuboperations, VR.US, completed);
+    response.putInt(Tag.NumberOfRemainingSuboperations, VR.US, Math.max(0, total - completed - failed));
+    response.putInt(Tag.NumberOfFailedSuboperations, VR.US, failed);
+    response.putInt(Tag.NumberOfWarningSuboperations, VR.US, 0);
     try {
-      sender.open();
-      sender.send(callback);
+      if (logger.isDebugEnabled()) {
+        logger.debug("Sent " + completed + " of " + total + " images");
+        logger.debug("Returning Response: \n" + response);
+      }
+      as.writeDimseRSP(pcid, response);
     } catch (Exception e) {
-      logger.error("ERROR: Failed to send", e);
-      Audit.log(remoteDevice, "failed_to_send", "C-MOVE: " + e.getMessage());
-    } finally {
-      sender.close();
+      logger.error("Failed to write return response", e);
     }
+  }
 
-    as.writeDimseRSP(pcid, CommandUtils.mkRSP(command, Status.Success));
-    Audit.log(remoteDevice, "move_success", node);
+  /**
+   * Split the instances of a move into at most <code>associations</code>
+   * groups. By series keeps each series on one association, placing the
+   * largest series first on the least loaded association. Round robin deals
+   * the instances out one at a time.
+   */
+  static <T> List<List<T>> partition(List<List<T>> seriesFiles, int associations, boolean roundRobin) {
+    List<List<T>> partitions = new ArrayList<List<T>>();
+    for (int i = 0; i < Math.max(1, associations); i++) {
+      partitions.add(new ArrayList<T>());
+    }
+    if (roundRobin) {
+      int i = 0;
+      for (List<T> files : seriesFiles) {
+        for (T f : files) {
+          partitions.get(i++ % partitions.size()).add(f);
+        }
+      }
+    } else {
+      List<List<T>> bySize = new ArrayList<List<T>>(seriesFiles);
+      Collections.sort(bySize, new Comparator<List<T>>() {
+        @Override
+        public int compare(List<T> a, List<T> b) {
+          return Integer.compare(b.size(), a.size());
+        }
+      });
+      for (List<T> files : bySize) {
+        List<T> smallest = partitions.get(0);
+        for (List<T> partition : partitions) {
+          if (partition.size() < smallest.size()) {
+            smallest = partition;
+          }
+        }
+        smallest.addAll(files);
+      }
+    }
+    // Drop empty partitions, but always keep one
+    for (Iterator<List<T>> iterator = partitions.iterator(); iterator.hasNext() && partitions.size() > 1;) {
+      if (iterator.next().isEmpty()) {
+        iterator.remove();
+      }
+    }
+    return partitions;
   }
 }
+
@@ -31,6 +31,7 @@ import java.util.UUID;
 
 import edu.mayo.qia.pacs.Audit;
 import edu.mayo.qia.pacs.Notion;
+import edu.mayo.qia.pacs.components.FetchRouter;
 import edu.mayo.qia.pacs.components.PoolContainer;
 import edu.mayo.qia.pacs.components.PoolManager;
 import edu.mayo.qia.pacs.dicom.DICOMReceiver.AssociationInfo;
@@ -53,6 +54,9 @@ public class StorageSCP extends StorageService {
   @Autowired
   ObjectMapper objectMapper;
 
+  @Autowired
+  FetchRouter fetchRouter;
+
   public static final String[] CUIDS = { UID.BasicStudyContentNotificationSOPClassRetired, UID.StoredPrintStorageSOPClassRetired, UID.HardcopyGrayscaleImageStorageSOPClassRetired, UID.HardcopyColorImageStorageSOPClassRetired,
       UID.ComputedRadiographyImageStorage, UID.DigitalXRayImageStorageForPresentation, UID.DigitalXRayImageStorageForProcessing, UID.DigitalMammographyXRayImageStorageForPresentation, UID.DigitalMammographyXRayImageStorageForProcessing,
       UID.DigitalIntraoralXRayImageStorageForPresentation, UID.DigitalIntraoralXRayImageStorageForProcessing, UID.StandaloneModalityLUTStorageRetired, UID.EncapsulatedPDFStorage, UID.StandaloneVOILUTStorageRetired,
@@ -125,6 +129,10 @@ public class StorageSCP extends StorageService {
     context.stop();
     imageCounter.inc();
     try {
+      // Images fetched for another pool go straight to it
+      if (fetchRouter.process(info.poolKey, rq.getString(Tag.MoveOriginatorApplicationEntityTitle), rename)) {
+        return;
+      }
       PoolContainer container = poolManager.getContainer(info.poolKey);
       container.process(rename, null, info.cache);
     } catch (Exception e) {
@@ -41,4 +41,34 @@ public class TagLoader {
 
     return dataset;
   }
+
+  /**
+   * Load tags upto the image data from a file, and fill in what is needed to
+   * send the file.
+   * 
+   * @param inFile
+   *          file to load
+   * @param info
+   *          set to the file's SOP class and instance, transfer syntax, end of
+   *          file meta information and length
+   * @return DICOM tags
+   * @throws IOException
+   *           if there is an error reading the file
+   */
+  public static DicomObject loadTags(File inFile, DcmSnd.FileInfo info) throws IOException {
+    DicomInputStream din = new DicomInputStream(inFile);
+    try {
+      din.setHandler(new StopTagInputHandler(Tag.PixelData));
+      DicomObject dataset = din.readDicomObject();
+      info.f = inFile;
+      info.length = inFile.length();
+      info.tsuid = din.getTransferSyntax().uid();
+      info.fmiEndPos = din.getEndOfFileMetaInfoPosition();
+      info.cuid = dataset.getString(Tag.MediaStorageSOPClassUID, dataset.getString(Tag.SOPClassUID));
+      info.iuid = dataset.getString(Tag.MediaStorageSOPInstanceUID, dataset.getString(Tag.SOPInstanceUID));
+      return dataset;
+    } finally {
+      din.close();
+    }
+  }
 }
@@ -0,0 +1,279 @@
+package edu.mayo.qia.pacs.dicom;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import edu.mayo.qia.pacs.Notion;
+import edu.mayo.qia.pacs.NotionConfiguration;
+
+/**
+ * Shares the outbound link between senders.
+ *
+ * Every instance sent asks for its size in bytes before the C-STORE is issued.
+ * The whole link is limited to <code>maxOutboundMBps</code> and each device to
+ * <code>maxDeviceMBps</code> (0 for no limit) using token buckets. While the
+ * link is saturated, waiting senders are served strictly by {@link Priority},
+ * and within a priority the pool that has been sent the fewest bytes goes
+ * first, so one pool's export does not starve the others. Pools and devices
+ * that have sent nothing for {@link #IdleTime} are forgotten.
+ *
+ * @author Daniel Blezek
+ *
+ */
+@Component
+public class TransferScheduler {
+
+  /** Most urgent first */
+  public enum Priority {
+    /** C-MOVE and C-GET from viewers */
+    Interactive,
+    /** Autoforwarding to devices */
+    Autoforward,
+    /** Retrieves requested with LOW priority */
+    Bulk;
+
+    /** The priority a C-MOVE or C-GET asked for. */
+    public static Priority of(int dicomPriority) {
+      // 0 is MEDIUM, 1 HIGH and 2 LOW
+      return dicomPriority == 2 ? Bulk : Interactive;
+    }
+  }
+
+  /** Longest time to sleep before checking the buckets again (ms) */
+  static final long MaxWait = 100;
+  /** Pools and devices idle this long are forgotten (ms) */
+  static final long IdleTime = 60 * 1000;
+
+  @Autowired
+  NotionConfiguration configuration;
+
+  final ReentrantLock lock = new ReentrantLock();
+  final Condition changed = lock.newCondition();
+  final List<Waiter> waiting = new ArrayList<Waiter>();
+  final Map<String, TokenBucket> devices = new HashMap<String, TokenBucket>();
+  final TokenBucket link = new TokenBucket();
+  /** Bytes granted to each pool, for fair sharing */
+  final Map<String, Long> served = new HashMap<String, Long>();
+  /** When each pool was last granted bytes */
+  final Map<String, Long> lastServed = new HashMap<String, Long>();
+  final Map<Priority, Meter> bytesMeters = new EnumMap<Priority, Meter>(Priority.class);
+  long sequence = 0;
+  long lastPruned = 0;
+
+  static class Waiter {
+    final Priority priority;
+    final String pool;
+    final String device;
+    final long bytes;
+    final long sequence;
+
+    Waiter(Priority priority, String pool, String device, long bytes, long sequence) {
+      this.priority = priority;
+      this.pool = pool;
+      this.device = device;
+      this.bytes = bytes;
+      this.sequence = sequence;
+    }
+  }
+
+  /**
+   * Allows a burst of one second. Tokens may go negative, so an instance larger
+   * than the bucket is still sent, and later ones wait for the debt.
+   */
+  static class TokenBucket {
+    double tokens = 0;
+    // Starts full
+    long last = 0;
+
+    /** Full again, so no different from a new bucket */
+    boolean idle(long now) {
+      return now - last >= 1000 && tokens >= 0;
+    }
+
+    void refill(long now, long bytesPerSecond) {
+      tokens = Math.min(bytesPerSecond, tokens + (now - last) * bytesPerSecond / 1000.0);
+      last = now;
+    }
+
+    boolean available(long now, long bytesPerSecond) {
+      if (bytesPerSecond <= 0) {
+        return true;
+      }
+      refill(now, bytesPerSecond);
+      return tokens > 0;
+    }
+
+    /** Time until tokens are available (ms) */
+    long waitTime(long bytesPerSecond) {
+      return bytesPerSecond <= 0 ? 0 : (long) Math.ceil(-tokens * 1000.0 / bytesPerSecond);
+    }
+
+    void take(long bytes, long bytesPerSecond) {
+      if (bytesPerSecond > 0) {
+        tokens -= bytes;
+      }
+    }
+  }
+
+  public TransferScheduler() {
+    for (final Priority priority : Priority.values()) {
+      bytesMeters.put(priority, Notion.metrics.meter(MetricRegistry.name("Transfer", priority.name(), "bytes")));
+      Notion.metrics.register(MetricRegistry.name("Transfer", priority.name(), "waiting"), new Gauge<Integer>() {
+        @Override
+        public Integer getValue() {
+          lock.lock();
+          try {
+            int count = 0;
+            for (Waiter waiter : waiting) {
+              if (waiter.priority == priority) {
+                count++;
+              }
+            }
+            return count;
+          } finally {
+            lock.unlock();
+          }
+        }
+      });
+    }
+  }
+
+  /**
+   * Wait until <code>bytes</code> may be sent from <code>pool</code> to
+   * <code>device</code>.
+   */
+  public void acquire(Priority priority, String pool, String device, long bytes) throws InterruptedException {
+    long linkRate = 1024L * 1024L * configuration.notion.maxOutboundMBps;
+    long deviceRate = 1024L * 1024L * configuration.notion.maxDeviceMBps;
+    if (linkRate <= 0 && deviceRate <= 0) {
+      granted(priority, pool, bytes);
+      return;
+    }
+
+    lock.lock();
+    Waiter waiter = new Waiter(priority, pool, device, bytes, sequence++);
+    try {
+      // A pool that was idle starts level with the pools waiting, rather
+      // than catching up on what it did not send
+      long least = Long.MAX_VALUE;
+      for (Waiter w : waiting) {
+        least = Math.min(least, getServed(w.pool));
+      }
+      if (least != Long.MAX_VALUE && getServed(pool) < least) {
+        served.put(pool, least);
+      }
+      waiting.add(waiter);
+
+      while (true) {
+        long now = System.currentTimeMillis();
+        Waiter next = next(now, deviceRate);
+        if (next == waiter && link.available(now, linkRate)) {
+          link.take(bytes, linkRate);
+          getDevice(device).take(bytes, deviceRate);
+          served.put(pool, getServed(pool) + bytes);
+          lastServed.put(pool, now);
+          granted(priority, pool, bytes);
+          prune(now);
+          return;
+        }
+        long wait = MaxWait;
+        if (next == waiter) {
+          wait = Math.min(wait, link.waitTime(linkRate));
+        }
+        changed.await(Math.max(1, wait), TimeUnit.MILLISECONDS);
+      }
+    } finally {
+      waiting.remove(waiter);
+      changed.signalAll();
+      lock.unlock();
+    }
+  }
+
+  void granted(Priority priority, String pool, long bytes) {
+    bytesMeters.get(priority).mark(bytes);
+    Notion.metrics.meter(MetricRegistry.name("Transfer", "pool", pool, "bytes")).mark(bytes);
+  }
+
+  /**
+   * The waiter to serve next: the most urgent whose device has tokens, then
+   * the pool served least, then the oldest.
+   */
+  Waiter next(long now, long deviceRate) {
+    Waiter next = null;
+    for (Waiter w : waiting) {
+      if (!getDevice(w.device).available(now, deviceRate)) {
+        continue;
+      }
+      if (next == null || w.priority.ordinal() < next.priority.ordinal()) {
+        next = w;
+      } else if (w.priority == next.priority) {
+        long a = getServed(w.pool);
+        long b = getServed(next.pool);
+        if (a < b || (a == b && w.sequence < next.sequence)) {
+          next = w;
+        }
+      }
+    }
+    return next;
+  }
+
+  /** Forget pools and devices no one has sent to lately. */
+  void prune(long now) {
+    if (now - lastPruned < IdleTime) {
+      return;
+    }
+    lastPruned = now;
+    Set<String> busyPools = new HashSet<String>();
+    Set<String> busyDevices = new HashSet<String>();
+    for (Waiter w : waiting) {
+      busyPools.add(w.pool);
+      busyDevices.add(w.device);
+    }
+    Iterator<String> pools = served.keySet().iterator();
+    while (pools.hasNext()) {
+      String pool = pools.next();
+      Long last = lastServed.get(pool);
+      if ((last == null || now - last >= IdleTime) && !busyPools.contains(pool)) {
+        lastServed.remove(pool);
+        pools.remove();
+      }
+    }
+    Iterator<Map.Entry<String, TokenBucket>> buckets = devices.entrySet().iterator();
+    while (buckets.hasNext()) {
+      Map.Entry<String, TokenBucket> entry = buckets.next();
+      if (entry.getValue().idle(now) && !busyDevices.contains(entry.getKey())) {
+        buckets.remove();
+      }
+    }
+  }
+
+  TokenBucket getDevice(String device) {
+    TokenBucket bucket = devices.get(device);
+    if (bucket == null) {
+      bucket = new TokenBucket();
+      devices.put(device, bucket);
+    }
+    return bucket;
+  }
+
+  long getServed(String pool) {
+    Long bytes = served.get(pool);
+    return bytes == null ? 0 : bytes;
+  }
+}
@@ -0,0 +1,89 @@
+package edu.mayo.qia.pacs.job;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A job being run by the {@link JobEngine}, as seen by its handler. Steps
+ * marked done or failed are written in batches with the job's progress.
+ *
+ * @author Daniel Blezek
+ *
+ */
+public class BackgroundJob {
+  public final int jobKey;
+  public final String type;
+  public final int poolKey;
+  public final Integer deviceKey;
+  public final Integer targetKey;
+  /** Number of times the job was started, including this one */
+  public final int attempts;
+
+  final JdbcTemplate template;
+  final AtomicInteger completed = new AtomicInteger();
+  final AtomicInteger failed = new AtomicInteger();
+  final List<Object[]> steps = new ArrayList<Object[]>();
+
+  BackgroundJob(JdbcTemplate template, int jobKey, String type, int poolKey, Integer deviceKey, Integer targetKey, int attempts) {
+    this.template = template;
+    this.jobKey = jobKey;
+    this.type = type;
+    this.poolKey = poolKey;
+    this.deviceKey = deviceKey;
+    this.targetKey = targetKey;
+    this.attempts = attempts;
+    completed.set(template.queryForObject("select count(*) from JOBSTEP where JobKey = ? and Status = 'done'", Integer.class, jobKey));
+    failed.set(template.queryForObject("select count(*) from JOBSTEP where JobKey = ? and Status = 'failed'", Integer.class, jobKey));
+  }
+
+  /** Was the job interrupted by a restart, and is now being resumed? */
+  public boolean isResumed() {
+    return attempts > 1;
+  }
+
+  /** Steps not done by an earlier attempt, in the order they were added. */
+  public List<Integer> getPendingSteps() {
+    return template.queryForList("select StepKey from JOBSTEP where JobKey = ? and Status = 'pending' order by JobStepKey", Integer.class, jobKey);
+  }
+
+  public void done(int step) {
+    completed.incrementAndGet();
+    synchronized (steps) {
+      steps.add(new Object[] { "done", null, jobKey, step });
+    }
+  }
+
+  public void failed(int step, String message) {
+    failed.incrementAndGet();
+    if (message != null && message.length() > 250) {
+      message = message.substring(0, 250);
+    }
+    synchronized (steps) {
+      steps.add(new Object[] { "failed", message, jobKey, step });
+    }
+  }
+
+  public int getCompleted() {
+    return completed.get();
+  }
+
+  public int getFailed() {
+    return failed.get();
+  }
+
+  /** Write the steps finished since the last flush. */
+  void flush() {
+    List<Object[]> batch;
+    synchronized (steps) {
+      if (steps.isEmpty()) {
+        return;
+      }
+      batch = new ArrayList<Object[]>(steps);
+      steps.clear();
+    }
+    template.batchUpdate("update JOBSTEP set Status = ?, Message = ? where JobKey = ? and StepKey = ?", batch);
+  }
+}
@@ -0,0 +1,35 @@
+package edu.mayo.qia.pacs.job;
+
+import org.apache.log4j.Logger;
+
+import edu.mayo.qia.pacs.Notion;
+import edu.mayo.qia.pacs.components.PoolContainer;
+import edu.mayo.qia.pacs.components.PoolManager;
+
+/**
+ * Runs the "delete" jobs, deleting each study (by StudyKey) from the job's
+ * pool.
+ *
+ * @author Daniel Blezek
+ *
+ */
+public class DeleteStudies implements JobHandler {
+  static Logger logger = Logger.getLogger(DeleteStudies.class);
+
+  @Override
+  public void run(BackgroundJob job) throws Exception {
+    PoolContainer container = Notion.context.getBean(PoolManager.class).getContainer(job.poolKey);
+    Notion.checkAssertion(container != null, "Pool " + job.poolKey + " no longer exists");
+    for (int studyKey : job.getPendingSteps()) {
+      try {
+        // A study that is not there was deleted before a restart, or by
+        // someone else
+        container.deleteStudy(studyKey);
+        job.done(studyKey);
+      } catch (Exception e) {
+        logger.error("Could not delete study " + studyKey, e);
+        job.failed(studyKey, e.toString());
+      }
+    }
+  }
+}
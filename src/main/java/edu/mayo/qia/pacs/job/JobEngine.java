@@ -0,0 +1,282 @@
+package edu.mayo.qia.pacs.job;
+
+import io.dropwizard.lifecycle.Managed;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.support.GeneratedKeyHolder;
+import org.springframework.jdbc.support.KeyHolder;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import edu.mayo.qia.pacs.Notion;
+import edu.mayo.qia.pacs.NotionConfiguration;
+
+/**
+ * Runs queries, fetches and bulk deletes as jobs kept in the JOB and JOBSTEP
+ * tables, so a restart does not lose them.
+ *
+ * A queued job is claimed by setting its Owner and a lease, which is renewed
+ * while the job runs. A job whose lease runs out, because the server running
+ * it stopped, is queued again and resumed with the steps it had not done. No
+ * more than <code>maxJobs</code> jobs run at once, and no more than
+ * <code>jobsPerDevice</code> against any one device; the rest wait in the
+ * order they were submitted.
+ *
+ * @author Daniel Blezek
+ *
+ */
+@Component
+public class JobEngine implements Managed {
+  static Logger logger = Logger.getLogger(JobEngine.class);
+
+  static Counter runningCounter = Notion.metrics.counter(MetricRegistry.name("Job", "running"));
+  static Meter completedMeter = Notion.metrics.meter(MetricRegistry.name("Job", "completed"));
+  static Meter failedMeter = Notion.metrics.meter(MetricRegistry.name("Job", "failed"));
+  static {
+    Notion.metrics.register(MetricRegistry.name("Job", "queued"), new Gauge<Integer>() {
+      @Override
+      public Integer getValue() {
+        if (Notion.context == null) {
+          return 0;
+        }
+        return Notion.context.getBean(JdbcTemplate.class).queryForObject("select count(*) from JOB where Status = 'queued'", Integer.class);
+      }
+    });
+  }
+
+  @Autowired
+  JdbcTemplate template;
+
+  @Autowired
+  NotionConfiguration configuration;
+
+  /** Identifies this server's leases */
+  final String owner = UUID.randomUUID().toString();
+  final Map<String, JobHandler> handlers = new ConcurrentHashMap<String, JobHandler>();
+  final Map<Integer, BackgroundJob> running = new ConcurrentHashMap<Integer, BackgroundJob>();
+  volatile boolean started = false;
+
+  /** Run jobs of <code>type</code> with <code>handler</code>. */
+  public void register(String type, JobHandler handler) {
+    handlers.put(type, handler);
+  }
+
+  /**
+   * Queue a job of <code>steps</code>, run against <code>deviceKey</code> if
+   * not null.
+   *
+   * @return the JobKey
+   */
+  public int submit(final String type, final int poolKey, final Integer deviceKey, final Integer targetKey, Collection<Integer> steps) {
+    final Timestamp now = new Timestamp(System.currentTimeMillis());
+    final int total = steps.size();
+    KeyHolder keyHolder = new GeneratedKeyHolder();
+    template.update(new PreparedStatementCreator() {
+
+      @Override
+      public PreparedStatement createPreparedStatement(Connection con) throws SQLException {
+        PreparedStatement statement = con.prepareStatement("insert into JOB ( Type, PoolKey, DeviceKey, TargetKey, Total, CreatedTime, UpdatedTime ) values ( ?, ?, ?, ?, ?, ?, ? )", Statement.RETURN_GENERATED_KEYS);
+        statement.setString(1, type);
+        statement.setInt(2, poolKey);
+        if (deviceKey == null) {
+          statement.setNull(3, Types.INTEGER);
+        } else {
+          statement.setInt(3, deviceKey);
+        }
+        if (targetKey == null) {
+          statement.setNull(4, Types.INTEGER);
+        } else {
+          statement.setInt(4, targetKey);
+        }
+        statement.setInt(5, total);
+        statement.setTimestamp(6, now);
+        statement.setTimestamp(7, now);
+        return statement;
+      }
+    }, keyHolder);
+    int jobKey = keyHolder.getKey().intValue();
+    List<Object[]> rows = new ArrayList<Object[]>();
+    for (Integer step : steps) {
+      rows.add(new Object[] { jobKey, step });
+    }
+    template.batchUpdate("insert into JOBSTEP ( JobKey, StepKey ) values ( ?, ? )", rows);
+    logger.info("Queued " + type + " job " + jobKey + " of " + total + " steps");
+    Notion.executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        poll();
+      }
+    });
+    return jobKey;
+  }
+
+  /** Is a job of <code>type</code> for <code>targetKey</code> queued or running? */
+  public boolean isActive(String type, int targetKey) {
+    return template.queryForObject("select count(*) from JOB where Type = ? and TargetKey = ? and Status in ( 'queued', 'running' )", Integer.class, type, targetKey) > 0;
+  }
+
+  /** Renew our leases, then start queued jobs while there is room. */
+  @Scheduled(fixedDelay = 1000)
+  public synchronized void poll() {
+    if (!started) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    Timestamp lease = new Timestamp(now + 1000L * configuration.notion.jobLeaseSeconds);
+    for (BackgroundJob job : running.values()) {
+      job.flush();
+      template.update("update JOB set LeaseExpires = ?, Completed = ?, Failed = ?, UpdatedTime = ? where JobKey = ? and Owner = ?", lease, job.getCompleted(), job.getFailed(), new Timestamp(now), job.jobKey, owner);
+    }
+    int requeued = template.update("update JOB set Status = 'queued', Owner = null, LeaseExpires = null where Status = 'running' and LeaseExpires < ?", new Timestamp(now));
+    if (requeued > 0) {
+      logger.info("Requeued " + requeued + " jobs whose lease expired");
+    }
+
+    int active = template.queryForObject("select count(*) from JOB where Status = 'running'", Integer.class);
+    if (active >= configuration.notion.maxJobs) {
+      return;
+    }
+    final Map<Integer, Integer> perDevice = new HashMap<Integer, Integer>();
+    template.query("select DeviceKey, count(*) from JOB where Status = 'running' and DeviceKey is not null group by DeviceKey", new RowCallbackHandler() {
+
+      @Override
+      public void processRow(ResultSet rs) throws SQLException {
+        perDevice.put(rs.getInt(1), rs.getInt(2));
+      }
+    });
+    final List<Object[]> queued = new ArrayList<Object[]>();
+    template.query("select JobKey, Type, PoolKey, DeviceKey, TargetKey from JOB where Status = 'queued' order by JobKey fetch first 100 rows only", new RowCallbackHandler() {
+
+      @Override
+      public void processRow(ResultSet rs) throws SQLException {
+        queued.add(new Object[] { rs.getInt(1), rs.getString(2), rs.getInt(3), (Integer) rs.getObject(4), (Integer) rs.getObject(5) });
+      }
+    });
+
+    for (Object[] row : queued) {
+      if (active >= configuration.notion.maxJobs) {
+        break;
+      }
+      int jobKey = (Integer) row[0];
+      String type = (String) row[1];
+      Integer deviceKey = (Integer) row[3];
+      JobHandler handler = handlers.get(type);
+      if (handler == null) {
+        template.update("update JOB set Status = 'failed', Message = ?, UpdatedTime = ? where JobKey = ? and Status = 'queued'", "Unknown job type " + type, new Timestamp(now), jobKey);
+        continue;
+      }
+      int onDevice = deviceKey == null || !perDevice.containsKey(deviceKey) ? 0 : perDevice.get(deviceKey);
+      if (deviceKey != null && onDevice >= configuration.notion.jobsPerDevice) {
+        continue;
+      }
+      // Another server may have claimed it first
+      if (template.update("update JOB set Status = 'running', Owner = ?, LeaseExpires = ?, Attempts = Attempts + 1, UpdatedTime = ? where JobKey = ? and Status = 'queued'", owner, lease, new Timestamp(now), jobKey) != 1) {
+        continue;
+      }
+      active++;
+      if (deviceKey != null) {
+        perDevice.put(deviceKey, onDevice + 1);
+      }
+      int attempts = template.queryForObject("select Attempts from JOB where JobKey = ?", Integer.class, jobKey);
+      BackgroundJob job = new BackgroundJob(template, jobKey, type, (Integer) row[2], deviceKey, (Integer) row[4], attempts);
+      running.put(jobKey, job);
+      run(job, handler);
+    }
+  }
+
+  void run(final BackgroundJob job, final JobHandler handler) {
+    runningCounter.inc();
+    Notion.executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        Thread.currentThread().setName("Job " + job.type + " " + job.jobKey);
+        if (job.isResumed()) {
+          logger.info("Resuming " + job.type + " job " + job.jobKey + ", " + job.getCompleted() + " steps already done");
+        }
+        String status = "completed";
+        String message = null;
+        try {
+          handler.run(job);
+        } catch (Exception e) {
+          logger.error("Job " + job.jobKey + " failed", e);
+          status = "failed";
+          message = e.toString();
+          if (message.length() > 1024) {
+            message = message.substring(0, 1024);
+          }
+        } finally {
+          finish(job, status, message);
+          Thread.currentThread().setName("Idle");
+        }
+      }
+    });
+  }
+
+  void finish(BackgroundJob job, String status, String message) {
+    running.remove(job.jobKey);
+    runningCounter.dec();
+    try {
+      job.flush();
+      // Only if the job is still ours, it may have been requeued on shutdown
+      template.update("update JOB set Status = ?, Message = ?, Completed = ?, Failed = ?, Owner = null, LeaseExpires = null, UpdatedTime = ? where JobKey = ? and Owner = ?", status, message, job.getCompleted(),
+          job.getFailed(), new Timestamp(System.currentTimeMillis()), job.jobKey, owner);
+    } catch (Exception e) {
+      logger.error("Could not record the end of job " + job.jobKey, e);
+    }
+    if (status.equals("completed")) {
+      completedMeter.mark();
+    } else {
+      failedMeter.mark();
+    }
+    // Make room for the next
+    Notion.executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        poll();
+      }
+    });
+  }
+
+  @Override
+  public void start() throws Exception {
+    // Jobs left running by a server that died are requeued once their lease
+    // runs out
+    started = true;
+    poll();
+  }
+
+  @Override
+  public void stop() throws Exception {
+    started = false;
+    synchronized (this) {
+      for (BackgroundJob job : running.values()) {
+        job.flush();
+        template.update("update JOB set Status = 'queued', Owner = null, LeaseExpires = null, Completed = ?, Failed = ? where JobKey = ? and Owner = ?", job.getCompleted(), job.getFailed(), job.jobKey, owner);
+      }
+    }
+  }
+}
@@ -0,0 +1,12 @@
+package edu.mayo.qia.pacs.job;
+
+/**
+ * Does the work of one type of {@link BackgroundJob}. A job may be run again
+ * after a restart, so handlers only work on the steps still pending.
+ *
+ * @author Daniel Blezek
+ *
+ */
+public interface JobHandler {
+  void run(BackgroundJob job) throws Exception;
+}
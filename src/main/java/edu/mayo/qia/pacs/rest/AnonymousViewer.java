@@ -1,17 +1,19 @@
 package edu.mayo.qia.pacs.rest;
 
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
 
-import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ArrayNode;
-import com.fasterxml.jackson.databind.node.ObjectNode;
 
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -20,11 +22,12 @@ import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Component;
 
 import java.io.File;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Optional;
 
 import edu.mayo.qia.pacs.components.PoolContainer;
 import edu.mayo.qia.pacs.components.PoolManager;
+import edu.mayo.qia.pacs.components.RenderCache;
 
 @Component
 @Path("/viewer")
@@ -43,6 +46,9 @@ public class AnonymousViewer {
   @Autowired
   ObjectMapper objectMapper;
 
+  @Autowired
+  RenderCache renderCache;
+
   boolean isValidHash(String hash) {
     int count = template.queryForObject("select count(*) from VIEWERHASH where hash = ?", new Object[] { hash }, Integer.class);
     if (count == 1) {
@@ -121,47 +127,19 @@ public class AnonymousViewer {
       return Response.status(Status.NOT_FOUND).entity(EXPIRED_ERROR).build();
     }
 
-    final ObjectNode json = objectMapper.createObjectNode();
-    final ArrayNode series = json.putArray("seriesList");
-    template.query("select * from STUDY where PoolKey = ? and StudyKey = ?", new Object[] { poolKey.get(), studyKey.get() }, rs -> {
-      json.put("patientName", rs.getString("PatientName"));
-      json.put("patientId", rs.getString("PatientID"));
-      json.put("studyDate", rs.getString("StudyDate"));
-      json.put("modality", "unknown");
-      json.put("studyDescription", rs.getString("StudyDescription"));
-      json.put("studyId", rs.getString("StudyKey"));
-    });
-
-    template.query("select SERIES.* from SERIES, STUDY where STUDY.PoolKey = ? and STUDY.StudyKey = ? and SERIES.StudyKey = STUDY.StudyKey order by SERIES.SeriesNumber", new Object[] { poolKey.get(), studyKey.get() }, rs -> {
-      ObjectNode s = series.addObject();
-      s.put("seriesDescription", rs.getString("SeriesDescription"));
-      s.put("seriesNumber", rs.getString("SeriesNumber"));
-      s.put("seriesKey", rs.getInt("SeriesKey"));
-      int seriesKey = rs.getInt("SeriesKey");
-      Integer numberOfImages = template.queryForObject("select count(*) from INSTANCE where INSTANCE.SeriesKey =  ?", new Object[] { seriesKey }, Integer.class);
-      s.put("numImages", numberOfImages);
-    });
-
-    for (Iterator<JsonNode> elements = series.elements(); elements.hasNext();) {
-      ObjectNode s = (ObjectNode) elements.next();
-      // Fill in the instances
-      final ArrayNode instances = s.putArray("instanceList");
-      int seriesKey = s.get("seriesKey").asInt();
-      // Order by InstanceNumber, if it's null, return '0' and cast to integer
-      template.query("select * from INSTANCE where SeriesKey = ? order by cast ( NULLIF(InstanceNumber,'0') as INT )", new Object[] { seriesKey }, rs -> {
-        ObjectNode instance = instances.addObject();
-        String imageID = rs.getString("FilePath");
-        instance.put("imageId", imageID);
-        instance.put("uri", "dicomweb:/rest/viewer/" + hash + "/image/" + imageID);
-      });
+    PoolContainer poolContainer = poolManager.getContainer(poolKey.get());
+    if (poolContainer == null) {
+      return Response.status(Status.NOT_FOUND).build();
     }
-    return Response.ok(json).build();
+    return Response.ok(
+        ViewerEndpoint.streamSeries(template, objectMapper, poolKey.get(), studyKey.get(), "", "dicomweb:/rest/viewer/" + hash + "/image/", "/rest/viewer/" + hash + "/rendered/", poolContainer.getPoolDirectory()))
+        .build();
   }
 
   @GET
   @Path("/{hash}/image/{path:.+}")
   @Produces(MediaType.APPLICATION_OCTET_STREAM)
-  public Response getInstance(@PathParam("hash") String hash, @PathParam("path") String path) {
+  public Response getInstance(@Context Request request, @HeaderParam("Range") String range, @HeaderParam("If-Range") String ifRange, @PathParam("hash") String hash, @PathParam("path") String path) {
     logger.debug("Looking for image: " + path);
     if (!isValidHash(hash)) {
       return Response.status(Status.NOT_FOUND).entity(EXPIRED_ERROR).build();
@@ -180,14 +158,14 @@ public class AnonymousViewer {
     if (poolKey.isPresent() && poolKey.isPresent()) {
 
       // Check that our image is in the pool
-      Integer count = template.queryForObject("select count(*) " + " from INSTANCE, SERIES, STUDY" + " where 1=1" + " and INSTANCE.FilePath = ?" + " and INSTANCE.SeriesKey = SERIES.SeriesKey" + " and SERIES.StudyKey = STUDY.StudyKey "
-          + " and STUDY.StudyKey = ? " + " and STUDY.PoolKey = ?" + "", new Object[] { path, studyKey.get(), poolKey.get() }, Integer.class);
-      if (count == 1) {
+      List<Integer> instanceKeys = template.queryForList("select INSTANCE.InstanceKey " + " from INSTANCE, SERIES, STUDY" + " where 1=1" + " and INSTANCE.FilePath = ?" + " and INSTANCE.SeriesKey = SERIES.SeriesKey"
+          + " and SERIES.StudyKey = STUDY.StudyKey " + " and STUDY.StudyKey = ? " + " and STUDY.PoolKey = ?" + "", new Object[] { path, studyKey.get(), poolKey.get() }, Integer.class);
+      if (instanceKeys.size() == 1) {
         PoolContainer poolContainer = poolManager.getContainer(poolKey.get());
         if (poolContainer != null) {
           File imageFile = new File(poolContainer.getPoolDirectory(), path);
           if (imageFile.exists()) {
-            return Response.ok(imageFile).header("Content-Disposition", "attachment; filename=" + imageFile.getName()).build();
+            return FileResponse.ok(request, range, ifRange, imageFile, Integer.toString(instanceKeys.get(0)));
           }
         }
       }
@@ -195,4 +173,25 @@ public class AnonymousViewer {
     return Response.status(Status.NOT_FOUND).build();
   }
 
+  /** A frame of an instance of the study as an image, see {@link ViewerEndpoint#getRendered} */
+  @GET
+  @Path("/{hash}/rendered/{instance: [1-9][0-9]*}/{frame: [0-9]+}")
+  public Response getRendered(@Context Request request, @PathParam("hash") String hash, @PathParam("instance") int instanceKey, @PathParam("frame") int frame, @DefaultValue("128") @QueryParam("size") int size,
+      @DefaultValue("jpeg") @QueryParam("format") String format, @QueryParam("wc") Integer windowCenter, @QueryParam("ww") Integer windowWidth, @QueryParam("v") String version) {
+    Optional<Integer> poolKey = getPoolKey(hash);
+    Optional<Integer> studyKey = getStudyKey(hash);
+    if (!poolKey.isPresent() || !studyKey.isPresent()) {
+      return Response.status(Status.NOT_FOUND).entity(EXPIRED_ERROR).build();
+    }
+
+    // Check that our image is in the study
+    List<String> paths = template.queryForList("select INSTANCE.FilePath from INSTANCE, SERIES, STUDY where INSTANCE.InstanceKey = ? and INSTANCE.SeriesKey = SERIES.SeriesKey and SERIES.StudyKey = STUDY.StudyKey"
+        + " and STUDY.StudyKey = ? and STUDY.PoolKey = ?", new Object[] { instanceKey, studyKey.get(), poolKey.get() }, String.class);
+    PoolContainer poolContainer = poolManager.getContainer(poolKey.get());
+    if (paths.size() != 1 || poolContainer == null) {
+      return Response.status(Status.NOT_FOUND).build();
+    }
+    return ViewerEndpoint.rendered(renderCache, request, instanceKey, new File(poolContainer.getPoolDirectory(), paths.get(0)), frame, size, format, windowCenter, windowWidth, version);
+  }
+
 }
@@ -28,6 +28,7 @@ import org.springframework.stereotype.Component;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Pattern;
 
@@ -93,6 +94,55 @@ public class DeviceEndpoint {
     return Response.ok(device).build();
   }
 
+  /** Autoforward queue of a Device. */
+  @GET
+  @Path("/{id: [1-9][0-9]*}/forward")
+  @Produces(MediaType.APPLICATION_JSON)
+  public Response getForwardQueue(@PathParam("id") int id) {
+    if (template.queryForObject("select count(*) from DEVICE where DeviceKey = ? and PoolKey = ?", Integer.class, id, poolKey) == 0) {
+      return Response.status(Status.NOT_FOUND).entity(new SimpleResponse("message", "Could not load the device")).build();
+    }
+    ObjectNode json = objectMapper.createObjectNode();
+    json.put("queued", template.queryForObject("select count(*) from FORWARDQUEUE where DeviceKey = ? and Status = 'queued'", Integer.class, id));
+    json.put("dead", template.queryForObject("select count(*) from FORWARDQUEUE where DeviceKey = ? and Status = 'dead'", Integer.class, id));
+    Timestamp oldest = template.queryForObject("select min(QueuedTime) from FORWARDQUEUE where DeviceKey = ? and Status = 'queued'", Timestamp.class, id);
+    if (oldest != null) {
+      json.put("oldest", oldest.getTime());
+    }
+    final ArrayNode failures = json.putArray("failures");
+    template.query("select FORWARDQUEUE.ForwardKey, FORWARDQUEUE.Status, FORWARDQUEUE.Attempts, FORWARDQUEUE.NextAttempt, FORWARDQUEUE.LastError, INSTANCE.SOPInstanceUID from FORWARDQUEUE, INSTANCE"
+        + " where FORWARDQUEUE.InstanceKey = INSTANCE.InstanceKey and FORWARDQUEUE.DeviceKey = ? and FORWARDQUEUE.LastError is not null order by FORWARDQUEUE.ForwardKey desc FETCH NEXT 100 ROWS ONLY", new Object[] { id }, new RowCallbackHandler() {
+
+      @Override
+      public void processRow(ResultSet rs) throws SQLException {
+        ObjectNode f = failures.addObject();
+        f.put("forwardKey", rs.getInt("ForwardKey"));
+        f.put("status", rs.getString("Status"));
+        f.put("attempts", rs.getInt("Attempts"));
+        f.put("nextAttempt", rs.getTimestamp("NextAttempt").getTime());
+        f.put("error", rs.getString("LastError"));
+        f.put("SOPInstanceUID", rs.getString("SOPInstanceUID"));
+      }
+    });
+    return Response.ok(json).build();
+  }
+
+  /** Queue the images Notion gave up forwarding to a Device again. */
+  @PUT
+  @Path("/{id: [1-9][0-9]*}/forward/retry")
+  @Produces(MediaType.APPLICATION_JSON)
+  public Response retryForwardQueue(@PathParam("id") int id) {
+    if (template.queryForObject("select count(*) from DEVICE where DeviceKey = ? and PoolKey = ?", Integer.class, id, poolKey) == 0) {
+      return Response.status(Status.NOT_FOUND).entity(new SimpleResponse("message", "Could not load the device")).build();
+    }
+    int count = template.update("update FORWARDQUEUE set Status = 'queued', Attempts = 0, NextAttempt = ? where DeviceKey = ? and Status = 'dead'", new Timestamp(System.currentTimeMillis()), id);
+    SimpleResponse response = new SimpleResponse();
+    response.put("status", "success");
+    response.put("message", "Queued " + count + " images");
+    response.put("count", count);
+    return Response.ok(response).build();
+  }
+
   /** Does a DICOM triplet match any devices? */
   @POST
   @Path("match")
@@ -0,0 +1,139 @@
+package edu.mayo.qia.pacs.rest;
+
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
+import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.StreamingOutput;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Date;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Serves a stored file. An instance received again is written over its file,
+ * so the browser may keep it but checks it with a strong ETag and
+ * Last-Modified before each use, and may ask for a byte range. The file is
+ * opened before the response is returned, so it may be removed while it is
+ * sent, and is copied to the response with {@link FileChannel#transferTo}.
+ *
+ * @author Daniel Blezek
+ *
+ */
+public class FileResponse {
+  static final String CacheControl = "private, no-cache";
+  /** For a URL that names the version of the file */
+  static final String Immutable = "private, max-age=31536000, immutable";
+  static final Pattern ByteRange = Pattern.compile("^bytes=(\\d*)-(\\d*)$");
+
+  /**
+   * The file, or the part of it asked for in <code>range</code>.
+   *
+   * @param version
+   *        identifies the file among others at the same URL, e.g. the
+   *        InstanceKey
+   */
+  public static Response ok(Request request, String range, String ifRange, File file, String version) {
+    return ok(request, range, ifRange, file, version, true);
+  }
+
+  /**
+   * The file, or the part of it asked for in <code>range</code>.
+   *
+   * @param attachment
+   *        offer the file to be saved, rather than shown in the browser
+   */
+  public static Response ok(Request request, String range, String ifRange, File file, String version, boolean attachment) {
+    return ok(request, range, ifRange, file, version, attachment, CacheControl);
+  }
+
+  /**
+   * The file, or the part of it asked for in <code>range</code>.
+   *
+   * @param cacheControl
+   *        how long the browser may keep the file without checking it
+   */
+  public static Response ok(Request request, String range, String ifRange, File file, String version, boolean attachment, String cacheControl) {
+    long length = file.length();
+    long lastModified = file.lastModified();
+    EntityTag tag = new EntityTag(version + "-" + Long.toHexString(lastModified) + "-" + Long.toHexString(length));
+    // HTTP dates are to the second
+    Date modified = new Date(lastModified / 1000 * 1000);
+    ResponseBuilder builder = request.evaluatePreconditions(modified, tag);
+    if (builder != null) {
+      return builder.tag(tag).header("Cache-Control", cacheControl).build();
+    }
+
+    long start = 0;
+    long end = length - 1;
+    boolean partial = false;
+    // An If-Range for an older version gets the whole file
+    if (range != null && (ifRange == null || ifRange.equals(tag.toString()))) {
+      Matcher matcher = ByteRange.matcher(range.trim());
+      // Several ranges are answered with the whole file
+      if (matcher.matches() && (matcher.group(1).length() > 0 || matcher.group(2).length() > 0)) {
+        if (matcher.group(1).length() == 0) {
+          // The last bytes
+          start = Math.max(0, length - Long.parseLong(matcher.group(2)));
+        } else {
+          start = Long.parseLong(matcher.group(1));
+          if (matcher.group(2).length() > 0) {
+            end = Math.min(end, Long.parseLong(matcher.group(2)));
+          }
+        }
+        if (start >= length || start > end) {
+          return Response.status(416).header("Content-Range", "bytes */" + length).build();
+        }
+        partial = true;
+      }
+    }
+
+    FileInputStream in;
+    try {
+      in = new FileInputStream(file);
+    } catch (FileNotFoundException e) {
+      return Response.status(Status.NOT_FOUND).build();
+    }
+    builder = partial ? Response.status(206).header("Content-Range", "bytes " + start + "-" + end + "/" + length) : Response.ok();
+    builder.entity(transfer(in, start, end - start + 1)).tag(tag).lastModified(modified).header("Cache-Control", cacheControl).header("Accept-Ranges", "bytes").header("Content-Length", end - start + 1);
+    if (attachment) {
+      builder.header("Content-Disposition", "attachment; filename=" + file.getName());
+    }
+    return builder.build();
+  }
+
+  static StreamingOutput transfer(final FileInputStream in, final long start, final long count) {
+    return new StreamingOutput() {
+
+      @Override
+      public void write(OutputStream output) throws IOException {
+        try {
+          FileChannel channel = in.getChannel();
+          WritableByteChannel out = Channels.newChannel(output);
+          long position = start;
+          long remaining = count;
+          while (remaining > 0) {
+            long sent = channel.transferTo(position, remaining, out);
+            if (sent <= 0) {
+              // The file is shorter than it was
+              break;
+            }
+            position += sent;
+            remaining -= sent;
+          }
+        } finally {
+          in.close();
+        }
+      }
+    };
+  }
+}
@@ -30,6 +30,7 @@ import org.springframework.stereotype.Component;
 
 import java.io.File;
 import java.util.List;
+import java.util.Map;
 
 import edu.mayo.qia.pacs.components.Group;
 import edu.mayo.qia.pacs.components.GroupRole;
@@ -134,6 +135,16 @@ public class PoolEndpoint extends Endpoint {
     return Response.ok(s).build();
   }
 
+  /** Queries, fetches and deletes of the pool, most recent first. */
+  @GET
+  @Path("/{id: [1-9][0-9]*}/job")
+  @Produces(MediaType.APPLICATION_JSON)
+  public Response getJobs(@Auth Subject subject, @PathParam("id") int id) {
+    subject.checkPermission("pool:query:" + id);
+    List<Map<String, Object>> jobs = template.queryForList("select JobKey, Type, Status, DeviceKey, TargetKey, Attempts, Total, Completed, Failed, Message, CreatedTime, UpdatedTime from JOB where PoolKey = ? order by JobKey desc fetch first 100 rows only", id);
+    return Response.ok(new SimpleResponse("job", jobs)).build();
+  }
+
   @PUT
   @Path("/{id: [1-9][0-9]*}/move")
   @Produces(MediaType.APPLICATION_JSON)
@@ -187,6 +198,28 @@ public class PoolEndpoint extends Endpoint {
     return studiesEndpoint;
   }
 
+  /** QIDO-RS search for series */
+  @Path("/{id: [1-9][0-9]*}/series")
+  public QidoEndpoint series(@Auth Subject subject, @PathParam("id") int id) {
+    subject.checkPermission("pool:query:" + id);
+    QidoEndpoint endpoint;
+    endpoint = getResource(QidoEndpoint.class);
+    endpoint.poolKey = id;
+    endpoint.level = QidoEndpoint.Level.SERIES;
+    return endpoint;
+  }
+
+  /** QIDO-RS search for instances */
+  @Path("/{id: [1-9][0-9]*}/instances")
+  public QidoEndpoint instances(@Auth Subject subject, @PathParam("id") int id) {
+    subject.checkPermission("pool:query:" + id);
+    QidoEndpoint endpoint;
+    endpoint = getResource(QidoEndpoint.class);
+    endpoint.poolKey = id;
+    endpoint.level = QidoEndpoint.Level.INSTANCE;
+    return endpoint;
+  }
+
   /** Lookup */
   @Path("/{id: [1-9][0-9]*}/lookup")
   public LookupEndpoint lookup(@Auth Subject subject, @PathParam("id") int id) {
@@ -0,0 +1,428 @@
+package edu.mayo.qia.pacs.rest;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.UriInfo;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.jersey.spi.resource.PerRequest;
+
+import org.apache.log4j.Logger;
+import org.apache.shiro.subject.Subject;
+import org.dcm4che2.data.Tag;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+import org.secnod.shiro.jaxrs.Auth;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Scope;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import edu.mayo.qia.pacs.Audit;
+
+/**
+ * QIDO-RS style search of a pool.
+ *
+ * Studies, series and instances are matched on query parameters named by
+ * attribute keyword (<code>PatientName=DOE*</code>) or tag
+ * (<code>00100010=DOE*</code>) and returned as DICOM JSON. Results are written
+ * with a streaming generator while the JDBC cursor is read, so large result
+ * sets are never held in memory. Supports <code>limit</code>,
+ * <code>offset</code>, <code>includefield</code> and
+ * <code>fuzzymatching</code>.
+ *
+ * Rows are always ordered by their key, so a client can page through a pool
+ * with <code>offset</code> and <code>limit</code>.
+ *
+ * @author Daniel Blezek
+ *
+ */
+@Scope("prototype")
+@Component
+@PerRequest
+public class QidoEndpoint {
+  static Logger logger = Logger.getLogger(QidoEndpoint.class);
+  public static final String DICOMJSON = "application/dicom+json";
+  static final DateTimeFormatter dateFormat = DateTimeFormat.forPattern("yyyyMMdd");
+  static final DateTimeFormatter timeFormat = DateTimeFormat.forPattern("HHmmss");
+
+  public enum Level {
+    STUDY, SERIES, INSTANCE
+  };
+
+  /** A searchable attribute and the SQL that produces it. */
+  static class Attribute implements Comparable<Attribute> {
+    final int tag;
+    final String vr;
+    final String keyword;
+    final String column;
+    final Level level;
+    /** Returned by default, otherwise only through includefield. */
+    final boolean standard;
+
+    Attribute(int tag, String vr, String keyword, String column, Level level, boolean standard) {
+      this.tag = tag;
+      this.vr = vr;
+      this.keyword = keyword;
+      this.column = column;
+      this.level = level;
+      this.standard = standard;
+    }
+
+    String hex() {
+      return String.format("%08X", tag);
+    }
+
+    /** Plain columns can be matched, computed counts can not. */
+    boolean matchable() {
+      return !vr.equals("TM") && column.indexOf('(') < 0;
+    }
+
+    @Override
+    public int compareTo(Attribute o) {
+      return Integer.compare(tag, o.tag);
+    }
+  }
+
+  // @formatter:off
+  static final List<Attribute> attributes = Arrays.asList(
+      new Attribute(Tag.StudyDate, "DA", "StudyDate", "STUDY.StudyDate", Level.STUDY, true),
+      new Attribute(Tag.StudyTime, "TM", "StudyTime", "STUDY.StudyTime", Level.STUDY, true),
+      new Attribute(Tag.AccessionNumber, "SH", "AccessionNumber", "STUDY.AccessionNumber", Level.STUDY, true),
+      new Attribute(Tag.ModalitiesInStudy, "CS", "ModalitiesInStudy", "(ModalitiesInStudy)", Level.STUDY, false),
+      new Attribute(Tag.ReferringPhysicianName, "PN", "ReferringPhysicianName", "STUDY.ReferringPhysicianName", Level.STUDY, true),
+      new Attribute(Tag.StudyDescription, "LO", "StudyDescription", "STUDY.StudyDescription", Level.STUDY, true),
+      new Attribute(Tag.PatientName, "PN", "PatientName", "STUDY.PatientName", Level.STUDY, true),
+      new Attribute(Tag.PatientID, "LO", "PatientID", "STUDY.PatientID", Level.STUDY, true),
+      new Attribute(Tag.PatientBirthDate, "DA", "PatientBirthDate", "STUDY.PatientBirthDate", Level.STUDY, true),
+      new Attribute(Tag.PatientSex, "CS", "PatientSex", "STUDY.PatientSex", Level.STUDY, true),
+      new Attribute(Tag.StudyInstanceUID, "UI", "StudyInstanceUID", "STUDY.StudyInstanceUID", Level.STUDY, true),
+      new Attribute(Tag.StudyID, "SH", "StudyID", "STUDY.StudyID", Level.STUDY, true),
+      new Attribute(Tag.NumberOfStudyRelatedSeries, "IS", "NumberOfStudyRelatedSeries", "(select count(*) from SERIES S where S.StudyKey = STUDY.StudyKey)", Level.STUDY, false),
+      new Attribute(Tag.NumberOfStudyRelatedInstances, "IS", "NumberOfStudyRelatedInstances", "(select count(*) from INSTANCE I, SERIES S where S.StudyKey = STUDY.StudyKey and I.SeriesKey = S.SeriesKey)", Level.STUDY, false),
+
+      new Attribute(Tag.Modality, "CS", "Modality", "SERIES.Modality", Level.SERIES, true),
+      new Attribute(Tag.InstitutionName, "LO", "InstitutionName", "SERIES.InstitutionName", Level.SERIES, false),
+      new Attribute(Tag.StationName, "SH", "StationName", "SERIES.StationName", Level.SERIES, false),
+      new Attribute(Tag.SeriesDescription, "LO", "SeriesDescription", "SERIES.SeriesDescription", Level.SERIES, true),
+      new Attribute(Tag.PerformingPhysicianName, "PN", "PerformingPhysicianName", "SERIES.PerformingPhysicianName", Level.SERIES, false),
+      new Attribute(Tag.BodyPartExamined, "CS", "BodyPartExamined", "SERIES.BodyPartExamined", Level.SERIES, true),
+      new Attribute(Tag.SeriesInstanceUID, "UI", "SeriesInstanceUID", "SERIES.SeriesInstanceUID", Level.SERIES, true),
+      new Attribute(Tag.SeriesNumber, "IS", "SeriesNumber", "SERIES.SeriesNumber", Level.SERIES, true),
+      new Attribute(Tag.Laterality, "CS", "Laterality", "SERIES.Laterality", Level.SERIES, false),
+      new Attribute(Tag.NumberOfSeriesRelatedInstances, "IS", "NumberOfSeriesRelatedInstances", "(select count(*) from INSTANCE I where I.SeriesKey = SERIES.SeriesKey)", Level.SERIES, true),
+
+      new Attribute(Tag.SOPClassUID, "UI", "SOPClassUID", "INSTANCE.SOPClassUID", Level.INSTANCE, true),
+      new Attribute(Tag.SOPInstanceUID, "UI", "SOPInstanceUID", "INSTANCE.SOPInstanceUID", Level.INSTANCE, true),
+      new Attribute(Tag.ContentDate, "DA", "ContentDate", "INSTANCE.ContentDate", Level.INSTANCE, false),
+      new Attribute(Tag.ContentTime, "TM", "ContentTime", "INSTANCE.ContentTime", Level.INSTANCE, false),
+      new Attribute(Tag.InstanceNumber, "IS", "InstanceNumber", "INSTANCE.InstanceNumber", Level.INSTANCE, true));
+  // @formatter:on
+
+  static final Set<String> reserved = new TreeSet<String>(Arrays.asList(new String[] { "limit", "offset", "includefield", "fuzzymatching" }));
+
+  @Autowired
+  JdbcTemplate template;
+
+  @Autowired
+  ObjectMapper objectMapper;
+
+  public int poolKey;
+  public Level level = Level.STUDY;
+
+  /** Set when the search is scoped by the path, e.g. studies/{uid}/series */
+  public String studyInstanceUID;
+  public String seriesInstanceUID;
+
+  static Attribute find(String name) {
+    for (Attribute attribute : attributes) {
+      if (attribute.keyword.equals(name) || attribute.hex().equalsIgnoreCase(name)) {
+        return attribute;
+      }
+    }
+    return null;
+  }
+
+  @GET
+  @Produces({ DICOMJSON, MediaType.APPLICATION_JSON })
+  public Response search(@Auth final Subject subject, @Context UriInfo uriInfo) {
+    final MultivaluedMap<String, String> queryParameters = uriInfo.getQueryParameters();
+    boolean fuzzy = "true".equalsIgnoreCase(queryParameters.getFirst("fuzzymatching"));
+
+    // Which attributes come back
+    final Set<Attribute> fields = new TreeSet<Attribute>();
+    for (Attribute attribute : attributes) {
+      if (attribute.standard && (attribute.level == level || (attribute.tag == Tag.StudyInstanceUID) || (level == Level.INSTANCE && attribute.tag == Tag.SeriesInstanceUID))) {
+        fields.add(attribute);
+      }
+    }
+    if (queryParameters.containsKey("includefield")) {
+      for (String value : queryParameters.get("includefield")) {
+        for (String name : value.split(",")) {
+          name = name.trim();
+          if (name.equals("all")) {
+            for (Attribute attribute : attributes) {
+              if (attribute.level.compareTo(level) <= 0) {
+                fields.add(attribute);
+              }
+            }
+            continue;
+          }
+          Attribute attribute = find(name);
+          if (attribute == null || attribute.level.compareTo(level) > 0) {
+            return badRequest("Unknown includefield " + name);
+          }
+          fields.add(attribute);
+        }
+      }
+    }
+
+    // Build the query
+    StringBuilder from = new StringBuilder(" from STUDY");
+    StringBuilder where = new StringBuilder(" where STUDY.PoolKey = ?");
+    String order = " order by STUDY.StudyKey";
+    final List<Object> parameters = new ArrayList<Object>();
+    parameters.add(poolKey);
+    if (level != Level.STUDY) {
+      from.append(", SERIES");
+      where.append(" and SERIES.StudyKey = STUDY.StudyKey");
+      order = " order by SERIES.SeriesKey";
+    }
+    if (level == Level.INSTANCE) {
+      from.append(", INSTANCE");
+      where.append(" and INSTANCE.SeriesKey = SERIES.SeriesKey");
+      order = " order by INSTANCE.InstanceKey";
+    }
+    if (studyInstanceUID != null) {
+      where.append(" and STUDY.StudyInstanceUID = ?");
+      parameters.add(studyInstanceUID);
+    }
+    if (seriesInstanceUID != null) {
+      where.append(" and SERIES.SeriesInstanceUID = ?");
+      parameters.add(seriesInstanceUID);
+    }
+
+    for (String name : queryParameters.keySet()) {
+      if (reserved.contains(name)) {
+        continue;
+      }
+      Attribute attribute = find(name);
+      if (attribute == null || attribute.level.compareTo(level) > 0) {
+        return badRequest("Unknown attribute " + name);
+      }
+      String value = queryParameters.getFirst(name);
+      if (value == null || value.isEmpty()) {
+        continue;
+      }
+      if (attribute.tag == Tag.ModalitiesInStudy) {
+        List<String> modalities = Arrays.asList(value.split("[,\\\\]"));
+        where.append(" and exists (select S.SeriesKey from SERIES S where S.StudyKey = STUDY.StudyKey and S.Modality in (" + placeholders(modalities.size()) + "))");
+        parameters.addAll(modalities);
+        continue;
+      }
+      if (!attribute.matchable()) {
+        return badRequest("Matching on " + attribute.keyword + " is not supported");
+      }
+      if (attribute.vr.equals("UI")) {
+        List<String> uids = Arrays.asList(value.split("[,\\\\]"));
+        where.append(" and " + attribute.column + " in (" + placeholders(uids.size()) + ")");
+        parameters.addAll(uids);
+      } else if (attribute.vr.equals("DA")) {
+        try {
+          dateRange(attribute.column, value, where, parameters);
+        } catch (IllegalArgumentException e) {
+          return badRequest("Bad date " + value + " for " + attribute.keyword);
+        }
+      } else if (fuzzy && attribute.vr.equals("PN")) {
+        where.append(" and upper(" + attribute.column + ") like upper(?) escape '\\'");
+        parameters.add("%" + like(value.replace("*", "").replace("?", "")) + "%");
+      } else if (value.contains("*") || value.contains("?")) {
+        where.append(" and " + attribute.column + " like ? escape '\\'");
+        parameters.add(like(value).replace('*', '%').replace('?', '_'));
+      } else {
+        where.append(" and " + attribute.column + " = ?");
+        parameters.add(value);
+      }
+    }
+
+    StringBuilder select = new StringBuilder("select STUDY.StudyKey");
+    for (Attribute attribute : fields) {
+      if (attribute.tag != Tag.ModalitiesInStudy) {
+        select.append(", ").append(attribute.column).append(" as ").append(attribute.keyword);
+      }
+    }
+
+    StringBuilder query = new StringBuilder();
+    query.append(select).append(from).append(where).append(order);
+    int limit = -1;
+    try {
+      if (queryParameters.containsKey("offset")) {
+        query.append(" OFFSET ? ROWS ");
+        parameters.add(nonNegative(queryParameters.getFirst("offset")));
+      }
+      if (queryParameters.containsKey("limit")) {
+        limit = nonNegative(queryParameters.getFirst("limit"));
+        query.append(" FETCH NEXT ? ROWS ONLY ");
+        parameters.add(limit);
+      }
+    } catch (NumberFormatException e) {
+      return badRequest("limit and offset must be non-negative integers");
+    }
+    // Derby will not fetch 0 rows, so nothing is asked of it
+    final boolean none = limit == 0;
+    final String sql = query.toString();
+    logger.debug("QIDO query: " + sql + " " + parameters);
+
+    StreamingOutput stream = new StreamingOutput() {
+
+      @Override
+      public void write(OutputStream output) throws IOException {
+        final JsonGenerator generator = objectMapper.getFactory().createGenerator(output);
+        generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        final int[] count = new int[] { 0 };
+        generator.writeStartArray();
+        try {
+          if (!none) {
+            template.query(sql, parameters.toArray(), new RowCallbackHandler() {
+
+              @Override
+              public void processRow(ResultSet rs) throws SQLException {
+                try {
+                  generator.writeStartObject();
+                  for (Attribute attribute : fields) {
+                    if (attribute.tag == Tag.ModalitiesInStudy) {
+                      List<String> modalities = template.queryForList("select distinct Modality from SERIES where StudyKey = ? and Modality is not null", String.class, rs.getInt("StudyKey"));
+                      writeAttribute(generator, attribute, modalities);
+                    } else {
+                      writeAttribute(generator, attribute, rs.getObject(attribute.keyword));
+                    }
+                  }
+                  generator.writeEndObject();
+                  count[0]++;
+                } catch (IOException e) {
+                  throw new UncheckedIOException(e);
+                }
+              }
+            });
+          }
+        } catch (UncheckedIOException e) {
+          throw e.getCause();
+        }
+        generator.writeEndArray();
+        generator.flush();
+
+        ObjectNode audit = objectMapper.createObjectNode();
+        audit.put("PoolKey", poolKey);
+        audit.put("Level", level.toString());
+        audit.put("Query", queryParameters.toString());
+        audit.put("Count", count[0]);
+        Audit.log(subject, "qido_search", audit);
+      }
+    };
+    return Response.ok(stream).type(DICOMJSON).build();
+  }
+
+  static void writeAttribute(JsonGenerator generator, Attribute attribute, Object value) throws IOException {
+    generator.writeObjectFieldStart(attribute.hex());
+    generator.writeStringField("vr", attribute.vr);
+    if (value instanceof List) {
+      List<?> values = (List<?>) value;
+      if (!values.isEmpty()) {
+        generator.writeArrayFieldStart("Value");
+        for (Object v : values) {
+          generator.writeString(v.toString());
+        }
+        generator.writeEndArray();
+      }
+    } else if (value != null && !value.toString().isEmpty()) {
+      generator.writeArrayFieldStart("Value");
+      if (attribute.vr.equals("PN")) {
+        generator.writeStartObject();
+        generator.writeStringField("Alphabetic", value.toString());
+        generator.writeEndObject();
+      } else if (attribute.vr.equals("DA")) {
+        generator.writeString(dateFormat.print(((Timestamp) value).getTime()));
+      } else if (attribute.vr.equals("TM")) {
+        generator.writeString(timeFormat.print(((Timestamp) value).getTime()));
+      } else if (attribute.vr.equals("IS")) {
+        try {
+          generator.writeNumber(Integer.parseInt(value.toString().trim()));
+        } catch (NumberFormatException e) {
+          generator.writeString(value.toString());
+        }
+      } else {
+        generator.writeString(value.toString());
+      }
+      generator.writeEndArray();
+    }
+    generator.writeEndObject();
+  }
+
+  /**
+   * Append a DICOM date or date range (<code>20100101</code>,
+   * <code>20100101-20101231</code>, <code>-20101231</code> or
+   * <code>20100101-</code>) to the where clause.
+   */
+  static void dateRange(String column, String value, StringBuilder where, List<Object> parameters) {
+    String[] range = value.split("-", -1);
+    if (range.length > 2) {
+      throw new IllegalArgumentException(value);
+    }
+    String start = range[0];
+    String end = range.length == 2 ? range[1] : range[0];
+    if (!start.isEmpty()) {
+      where.append(" and " + column + " >= ?");
+      parameters.add(new Timestamp(dateFormat.parseMillis(start)));
+    }
+    if (!end.isEmpty()) {
+      where.append(" and " + column + " < ?");
+      parameters.add(new Timestamp(dateFormat.parseDateTime(end).plusDays(1).getMillis()));
+    }
+  }
+
+  /** Escape LIKE wildcards in a user supplied value. */
+  static String like(String value) {
+    return value.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+  }
+
+  static String placeholders(int count) {
+    StringBuilder b = new StringBuilder();
+    for (int i = 0; i < count; i++) {
+      b.append(i == 0 ? "?" : ", ?");
+    }
+    return b.toString();
+  }
+
+  static int nonNegative(String value) {
+    int i = Integer.parseInt(value);
+    if (i < 0) {
+      throw new NumberFormatException(value);
+    }
+    return i;
+  }
+
+  Response badRequest(String message) {
+    return Response.status(Status.BAD_REQUEST).type(MediaType.APPLICATION_JSON).entity(new SimpleResponse("message", message)).build();
+  }
+}
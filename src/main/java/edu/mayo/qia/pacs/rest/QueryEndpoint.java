@@ -1,12 +1,14 @@
 package edu.mayo.qia.pacs.rest;
 
 import javax.ws.rs.Consumes;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
 import javax.ws.rs.POST;
 import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.StreamingOutput;
@@ -45,6 +47,7 @@ import edu.mayo.qia.pacs.components.Item;
 import edu.mayo.qia.pacs.components.Pool;
 import edu.mayo.qia.pacs.components.PoolManager;
 import edu.mayo.qia.pacs.components.Query;
+import edu.mayo.qia.pacs.components.QuerySheet;
 import edu.mayo.qia.pacs.components.Result;
 import edu.mayo.qia.pacs.components.Study;
 import io.dropwizard.hibernate.UnitOfWork;
@@ -135,7 +138,11 @@ public class QueryEndpoint {
   @UnitOfWork
   @Consumes(MediaType.APPLICATION_JSON)
   @Produces(MediaType.APPLICATION_OCTET_STREAM)
-  public Response getZipForFetch(final @Auth Subject subject, @PathParam("id") final int id) {
+  public Response getZipForFetch(final @Auth Subject subject, @PathParam("id") final int id, @DefaultValue("auto") @QueryParam("mode") String modeName) {
+    final StudyZip.Mode mode = StudyZip.Mode.parse(modeName);
+    if (mode == null) {
+      return Response.status(Status.BAD_REQUEST).entity("mode must be auto, stored or deflate").build();
+    }
     Pool pool = (Pool) sessionFactory.getCurrentSession().byId(Pool.class).load(poolKey);
     StringBuilder fn = new StringBuilder(pool.name.replaceAll(StudiesEndpoint.regex, "_"));
     fn.append("-Fetch-" + new SimpleDateFormat("yyyy-MM-dd").format(new Date()));
@@ -151,7 +158,7 @@ public class QueryEndpoint {
           Query query;
           query = (Query) session.byId(Query.class).load(id);
 
-          ZipOutputStream zip = new ZipOutputStream(output);
+          ZipOutputStream zip = StudyZip.open(output);
           File poolRootDir = poolManager.getContainer(poolKey).getPoolDirectory();
           String path = base + "/";
           // Put the path to make a directory
@@ -172,7 +179,7 @@ public class QueryEndpoint {
                 if (study != null) {
                   Audit.log(subject.getPrincipal().toString(), "download_study", study.toJson());
 
-                  StudiesEndpoint.appendStudyToZip(path, zip, poolRootDir, study);
+                  StudyZip.append(template, path, zip, poolRootDir, study, mode);
                 }
               }
             }
@@ -250,10 +257,8 @@ public class QueryEndpoint {
   @Produces(MediaType.APPLICATION_JSON)
   public Response createQuery(@FormDataParam("file") InputStream spreadSheetInputStream, @FormDataParam("file") FormDataContentDisposition fileDetail, @FormDataParam("connectorKey") int connectorKey) throws Exception {
     logger.debug("handling  " + fileDetail.getFileName());
-    // Use POI or SuperCSV to parse
-    fileDetail.getFileName();
-    if (fileDetail.getFileName().toLowerCase().endsWith(".xls")) {
-      // Parse and create a query
+    if (!QuerySheet.isSupported(fileDetail.getFileName())) {
+      return Response.status(Status.BAD_REQUEST).entity(new SimpleResponse("message", "Expected an .xlsx, .xls or .csv file")).build();
     }
     Session session = sessionFactory.getCurrentSession();
     Query query;
@@ -299,11 +304,33 @@ public class QueryEndpoint {
     StreamingOutput stream = new StreamingOutput() {
       @Override
       public void write(OutputStream output) throws IOException {
-        query.generateSpreadSheet().write(output);
+        query.writeSpreadSheet(output);
       }
     };
 
     String fn = poolManager.getContainer(poolKey).getPool().applicationEntityTitle + "-Query-" + new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ").format(new Date()) + ".xlsx";
     return Response.ok(stream).type("application/vnd.openxmlformats-officedocument.spreadsheetml.sheet").header("content-disposition", "attachment; filename = " + fn).build();
   }
+
+  @GET
+  @Path("/{id: [1-9][0-9]*}/csv")
+  @UnitOfWork
+  @Consumes(MediaType.APPLICATION_JSON)
+  public Response getCSV(@PathParam("id") int id) {
+    Session session = sessionFactory.getCurrentSession();
+    final Query query;
+    query = (Query) session.byId(Query.class).load(id);
+    if (query == null || query.pool.poolKey != poolKey) {
+      return Response.status(Status.NOT_FOUND).entity(new SimpleResponse("message", "Could not load the query")).build();
+    }
+    StreamingOutput stream = new StreamingOutput() {
+      @Override
+      public void write(OutputStream output) throws IOException {
+        query.writeCSV(output);
+      }
+    };
+
+    String fn = poolManager.getContainer(poolKey).getPool().applicationEntityTitle + "-Query-" + new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ").format(new Date()) + ".csv";
+    return Response.ok(stream).type("text/csv").header("content-disposition", "attachment; filename = " + fn).build();
+  }
 }
@@ -5,6 +5,7 @@ import javax.ws.rs.DELETE;
 import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
 import javax.ws.rs.POST;
+import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
@@ -37,31 +38,33 @@ import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.stereotype.Component;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
-import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.UUID;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
 import edu.mayo.qia.pacs.Audit;
-import edu.mayo.qia.pacs.components.Instance;
+import edu.mayo.qia.pacs.Notion;
 import edu.mayo.qia.pacs.components.Pool;
 import edu.mayo.qia.pacs.components.PoolManager;
-import edu.mayo.qia.pacs.components.Series;
+import edu.mayo.qia.pacs.components.QueryCache;
 import edu.mayo.qia.pacs.components.Study;
+import edu.mayo.qia.pacs.components.StudyIndex;
+import edu.mayo.qia.pacs.job.JobEngine;
 import io.dropwizard.hibernate.UnitOfWork;
 
 @Scope("prototype")
@@ -80,24 +83,91 @@ public class StudiesEndpoint {
   @Autowired
   PoolManager poolManager;
 
+  @Autowired
+  JobEngine jobEngine;
+
   public int poolKey;
 
   @POST
   @Consumes(MediaType.APPLICATION_JSON)
   @Produces(MediaType.APPLICATION_JSON)
   public Response searchStudies(@Auth final Subject subject, @Context UriInfo uriInfo, JsonNode qParams) throws Exception {
+    // Build the query
+    MultivaluedMap<String, String> queryParameters = uriInfo.getQueryParameters();
+
+    logger.debug("query parameters\n" + queryParameters);
+
+    logger.debug("query object\n" + qParams);
+
+    // Repeated searches are answered from the cache until the pool changes
+    QueryCache cache = poolManager.getContainer(poolKey).getQueryCache();
+    String signature = signature(qParams);
+    ObjectNode json = cache == null ? null : cache.<ObjectNode> get(signature);
+    if (json == null) {
+      long generation = cache == null ? 0 : cache.generation();
+      json = search(qParams);
+      if (cache != null && json.withArray("Records").size() <= QueryCache.MaxResults) {
+        cache.put(signature, generation, json);
+      }
+    }
+    for (JsonNode row : json.withArray("Records")) {
+      Audit.log(subject, "view_study", (ObjectNode) row);
+    }
+    return Response.ok(json).build();
+  }
+
+  /** Normalized signature of a study search, the sorted search parameters. */
+  static String signature(JsonNode qParams) {
+    Map<String, String> parameters = new TreeMap<String, String>();
+    Iterator<String> names = qParams.fieldNames();
+    while (names.hasNext()) {
+      String name = names.next();
+      parameters.put(name, qParams.get(name).toString());
+    }
+    return "STUDIES|" + parameters;
+  }
+
+  ObjectNode search(JsonNode qParams) {
     final Set<String> columns = new HashSet<String>(Arrays.asList(new String[] { "PatientID", "PatientName", "AccessionNumber", "StudyDescription" }));
     final Set<String> directions = new HashSet<String>();
     directions.add("ASC");
     directions.add("DESC");
     ObjectNode json = new ObjectMapper().createObjectNode();
     json.put("Result", "OK");
-    // Build the query
-    MultivaluedMap<String, String> queryParameters = uriInfo.getQueryParameters();
 
-    logger.debug("query parameters\n" + queryParameters);
-
-    logger.debug("query object\n" + qParams);
+    // Answer from memory if the pool keeps a study index
+    StudyIndex index = poolManager.getContainer(poolKey).getStudyIndex();
+    if (index != null) {
+      StudyIndex.Criteria criteria = new StudyIndex.Criteria();
+      for (String column : columns) {
+        if (qParams.has(column)) {
+          criteria.contains(column, qParams.get(column).textValue());
+        }
+      }
+      if (qParams.has("jtSorting")) {
+        String[] p = qParams.get("jtSorting").textValue().split(",")[0].trim().split("\\s+");
+        if (columns.contains(p[0])) {
+          criteria.sortColumn = p[0];
+          criteria.descending = p.length > 1 && p[1].equals("DESC");
+        }
+      }
+      if (qParams.has("jtStartIndex") && qParams.has("jtPageSize")) {
+        criteria.offset = qParams.get("jtStartIndex").asInt(0);
+        criteria.limit = qParams.get("jtPageSize").asInt(50);
+      }
+      StudyIndex.Page page = index.search(criteria);
+      json.put("TotalRecordCount", page.total);
+      ArrayNode records = json.putArray("Records");
+      for (Study study : page.studies) {
+        ObjectNode row = records.addObject();
+        row.put("PatientID", study.PatientID);
+        row.put("PatientName", study.PatientName);
+        row.put("AccessionNumber", study.AccessionNumber);
+        row.put("StudyDescription", study.StudyDescription);
+        row.put("StudyKey", study.StudyKey);
+      }
+      return json;
+    }
 
     StringBuilder query = new StringBuilder("select * from STUDY where PoolKey = ?");
     ArrayList<Object> parameters = new ArrayList<Object>();
@@ -112,16 +182,16 @@ public class StudiesEndpoint {
       }
     }
 
+    StringBuilder order = new StringBuilder();
     if (qParams.has("jtSorting")) {
-      query.append(" ORDER BY ");
-
       for (String clause : qParams.get("jtSorting").textValue().split(",")) {
-        String[] p = clause.split("\\s+");
+        String[] p = clause.trim().split("\\s+");
         if (columns.contains(p[0])) {
-          where.append(p[0]);
-        }
-        if (directions.contains(p[1])) {
-          where.append(" " + p[1]);
+          order.append(order.length() == 0 ? " ORDER BY " : ", ");
+          order.append(p[0]);
+          if (p.length > 1 && directions.contains(p[1])) {
+            order.append(" " + p[1]);
+          }
         }
       }
     }
@@ -131,6 +201,7 @@ public class StudiesEndpoint {
     // Also need to return the total number of records
     json.put("TotalRecordCount", count);
     query.append(where);
+    query.append(order);
     // jtStartIndex: Start index of records for current page.
     // jtPageSize: Count of maximum expected records.
     if (qParams.has("jtStartIndex") && qParams.has("jtPageSize")) {
@@ -151,11 +222,38 @@ public class StudiesEndpoint {
         for (String column : new String[] { "StudyKey" }) {
           row.put(column, rs.getInt(column));
         }
-        Audit.log(subject, "view_study", row);
       }
     });
 
-    return Response.ok(json).build();
+    return json;
+  }
+
+  /** QIDO-RS search for studies */
+  @GET
+  @Produces({ QidoEndpoint.DICOMJSON, MediaType.APPLICATION_JSON })
+  public Response qidoStudies(@Auth final Subject subject, @Context UriInfo uriInfo) {
+    return qido(QidoEndpoint.Level.STUDY, null, null).search(subject, uriInfo);
+  }
+
+  /** QIDO-RS search for the series of a study */
+  @Path("/{uid: [0-9.]+}/series")
+  public QidoEndpoint qidoSeries(@PathParam("uid") String uid) {
+    return qido(QidoEndpoint.Level.SERIES, uid, null);
+  }
+
+  /** QIDO-RS search for the instances of a series */
+  @Path("/{uid: [0-9.]+}/series/{suid: [0-9.]+}/instances")
+  public QidoEndpoint qidoInstances(@PathParam("uid") String uid, @PathParam("suid") String suid) {
+    return qido(QidoEndpoint.Level.INSTANCE, uid, suid);
+  }
+
+  QidoEndpoint qido(QidoEndpoint.Level level, String studyInstanceUID, String seriesInstanceUID) {
+    QidoEndpoint endpoint = Notion.context.getBean(QidoEndpoint.class);
+    endpoint.poolKey = poolKey;
+    endpoint.level = level;
+    endpoint.studyInstanceUID = studyInstanceUID;
+    endpoint.seriesInstanceUID = seriesInstanceUID;
+    return endpoint;
   }
 
   @GET
@@ -183,7 +281,12 @@ public class StudiesEndpoint {
   @Consumes(MediaType.APPLICATION_JSON)
   @Produces(MediaType.APPLICATION_OCTET_STREAM)
   public Response getZip(final @Auth Subject subject, @Context UriInfo uriInfo, @DefaultValue("%") @QueryParam("PatientID") final String PatientID, @DefaultValue("%") @QueryParam("PatientName") final String PatientName,
-      @DefaultValue("%") @QueryParam("AccessionNumber") final String AccessionNumber, @DefaultValue("%") @QueryParam("StudyDescription") final String StudyDescription) throws Exception {
+      @DefaultValue("%") @QueryParam("AccessionNumber") final String AccessionNumber, @DefaultValue("%") @QueryParam("StudyDescription") final String StudyDescription,
+      @DefaultValue("auto") @QueryParam("mode") String modeName) throws Exception {
+    final StudyZip.Mode mode = StudyZip.Mode.parse(modeName);
+    if (mode == null) {
+      return Response.status(Status.BAD_REQUEST).entity("mode must be auto, stored or deflate").build();
+    }
     final Pool pool = poolManager.getContainer(poolKey).getPool();
     StringBuilder fn = new StringBuilder(pool.name.replaceAll(regex, "_"));
     fn.append("-StudyDownload-" + new SimpleDateFormat("yyyy-MM-dd").format(new Date()));
@@ -200,14 +303,14 @@ public class StudiesEndpoint {
           query.setParameter("PatientName", PatientName);
           query.setParameter("AccessionNumber", AccessionNumber);
           query.setParameter("StudyDescription", StudyDescription);
-          ZipOutputStream zip = new ZipOutputStream(output);
+          ZipOutputStream zip = StudyZip.open(output);
           File poolRootDir = poolManager.getContainer(poolKey).getPoolDirectory();
           // Put the path to make a directory
           zip.putNextEntry(new ZipEntry(path));
           zip.closeEntry();
 
           for (Study study : (List<Study>) query.list()) {
-            appendStudyToZip(path, zip, poolRootDir, study);
+            StudyZip.append(template, path, zip, poolRootDir, study, mode);
             Audit.log(subject, "download_study", study.toJson());
           }
           zip.close();
@@ -226,7 +329,11 @@ public class StudiesEndpoint {
   @UnitOfWork
   @Path("/{id: [1-9][0-9]*}/zip")
   @Produces(MediaType.APPLICATION_OCTET_STREAM)
-  public Response getZip(@Auth final Subject subject, @PathParam("id") final int id) throws Exception {
+  public Response getZip(@Auth final Subject subject, @PathParam("id") final int id, @DefaultValue("auto") @QueryParam("mode") String modeName) throws Exception {
+    final StudyZip.Mode mode = StudyZip.Mode.parse(modeName);
+    if (mode == null) {
+      return Response.status(Status.BAD_REQUEST).entity("mode must be auto, stored or deflate").build();
+    }
     Query query;
     Session session = sessionFactory.getCurrentSession();
     query = session.createQuery("from Study where PoolKey = :poolkey and StudyKey = :id");
@@ -247,9 +354,9 @@ public class StudiesEndpoint {
           final Study study = (Study) query.uniqueResult();
           Audit.log(subject, "download_study", study.toJson());
 
-          ZipOutputStream zip = new ZipOutputStream(output);
+          ZipOutputStream zip = StudyZip.open(output);
           File poolRootDir = poolManager.getContainer(poolKey).getPoolDirectory();
-          appendStudyToZip("", zip, poolRootDir, study);
+          StudyZip.append(template, "", zip, poolRootDir, study, mode);
           zip.close();
         } finally {
           session.close();
@@ -279,32 +386,26 @@ public class StudiesEndpoint {
     return Response.status(Status.NOT_FOUND).build();
   }
 
-  public static void appendStudyToZip(String basePath, ZipOutputStream zip, File poolRootDir, final Study study) throws IOException, FileNotFoundException {
-    byte[] buffer = new byte[1024];
-    String path = study.PatientName == null ? "UnknownPatientName" : study.PatientName.replaceAll(regex, "_");
-
-    String sub = study.StudyDescription == null ? "EmptyStudyDescription" : study.StudyDescription.replaceAll(regex, "_") + "-";
-    DateFormat format = new SimpleDateFormat("yyyy-MM-dd");
-    path = basePath + path + "/" + sub + format.format(study.StudyDate);
-    // zip.putNextEntry(new ZipEntry(path));
-    for (Series series : study.series) {
-      String desc = series.SeriesDescription == null ? "EmptySeriesDescription" : series.SeriesDescription;
-      String seriesPath = path + "/" + desc.replaceAll(regex, "_");
-      // zip.putNextEntry(new ZipEntry(seriesPath));
-      for (Instance instance : series.instances) {
-        String instancePath = seriesPath + "/" + instance.SOPInstanceUID + ".dcm";
-        zip.putNextEntry(new ZipEntry(instancePath));
-        File f = new File(poolRootDir, instance.FilePath);
-        // Read into the zip file
-        FileInputStream in = new FileInputStream(f);
-        int len;
-        while ((len = in.read(buffer)) > 0) {
-          zip.write(buffer, 0, len);
-        }
-        in.close();
-        zip.closeEntry();
-      }
+  /**
+   * Delete several studies in the background, <code>{"studyKeys": [...]}</code>.
+   * The JobKey returned shows the progress in the pool's jobs.
+   */
+  @PUT
+  @Path("/delete")
+  @Consumes(MediaType.APPLICATION_JSON)
+  @Produces(MediaType.APPLICATION_JSON)
+  public Response deleteStudies(JsonNode json) {
+    if (poolManager.getContainer(poolKey) == null) {
+      return Response.status(Status.NOT_FOUND).build();
+    }
+    if (json == null || !json.has("studyKeys") || !json.get("studyKeys").isArray()) {
+      return Response.status(Status.BAD_REQUEST).entity(new SimpleResponse("message", "studyKeys must be a list of StudyKeys")).build();
+    }
+    List<Integer> studyKeys = new ArrayList<Integer>();
+    for (JsonNode studyKey : json.get("studyKeys")) {
+      studyKeys.add(studyKey.asInt());
     }
-    zip.closeEntry();
+    int jobKey = jobEngine.submit("delete", poolKey, null, null, studyKeys);
+    return Response.ok(new SimpleResponse("jobKey", jobKey)).build();
   }
 }
@@ -0,0 +1,249 @@
+package edu.mayo.qia.pacs.rest;
+
+import org.dcm4che2.data.UID;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import edu.mayo.qia.pacs.components.Study;
+
+/**
+ * Writes the images of studies into a zip file.
+ *
+ * The images of a study are listed with one query, and the next
+ * {@link #Prefetch} files are read while one is written, so the zip is not
+ * waiting on a disk seek for every image. The files are read by
+ * {@link #Readers} threads shared by every download, and no more than
+ * {@link #ReadAheadBytes} are held at once; past that, files are read as they
+ * are written. How each file is written depends on the {@link Mode}.
+ *
+ * @author Daniel Blezek
+ *
+ */
+public class StudyZip {
+  static final int BufferSize = 1024 * 1024;
+  /** Files read ahead of the one being written */
+  static final int Prefetch = 8;
+  /** Larger files are not read ahead, but copied a buffer at a time */
+  static final long PrefetchSize = 8 * 1024 * 1024;
+  /** Larger files are stored in AUTO mode, they take too long to deflate */
+  static final long StoreSize = 4 * 1024 * 1024;
+  /** Threads reading ahead, for all downloads */
+  static final int Readers = 4;
+  /** Bytes read ahead and not yet written, for all downloads */
+  static final int ReadAheadBytes = 128 * 1024 * 1024;
+  static final Set<String> Uncompressed = new HashSet<String>(Arrays.asList(UID.ImplicitVRLittleEndian, UID.ExplicitVRLittleEndian, UID.ExplicitVRBigEndian));
+
+  static final Semaphore readAhead = new Semaphore(ReadAheadBytes);
+  static final ThreadPoolExecutor readers = new ThreadPoolExecutor(Readers, Readers, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+  static {
+    readers.allowCoreThreadTimeOut(true);
+  }
+
+  static final String ListInstances = "select SERIES.SeriesDescription, INSTANCE.SOPInstanceUID, INSTANCE.FilePath, INSTANCE.TransferSyntaxUID, INSTANCE.FileLength"
+      + " from SERIES, INSTANCE where INSTANCE.SeriesKey = SERIES.SeriesKey and SERIES.StudyKey = ? order by SERIES.SeriesKey, INSTANCE.InstanceKey";
+
+  public enum Mode {
+    /**
+     * Store images whose pixel data is compressed already, or that are large,
+     * and deflate the rest as fast as possible
+     */
+    AUTO,
+    /** Store every image, the fastest and largest */
+    STORED,
+    /** Deflate every image, the slowest and smallest */
+    DEFLATE;
+
+    /** The mode named, in any case, or null if there is none. */
+    public static Mode parse(String name) {
+      for (Mode mode : values()) {
+        if (mode.name().equalsIgnoreCase(name)) {
+          return mode;
+        }
+      }
+      return null;
+    }
+  }
+
+  /** An image to write, and its contents if read ahead. */
+  static class Entry {
+    final String name;
+    final File file;
+    final long length;
+    final boolean store;
+    Future<byte[]> contents;
+    /** Bytes of {@link #readAhead} held for the contents */
+    int reserved = 0;
+
+    Entry(String name, File file, long length, boolean store) {
+      this.name = name;
+      this.file = file;
+      this.length = length;
+      this.store = store;
+    }
+
+    void prefetch() {
+      if (contents != null || length > PrefetchSize || !readAhead.tryAcquire((int) length)) {
+        return;
+      }
+      reserved = (int) length;
+      contents = readers.submit(new Callable<byte[]>() {
+        @Override
+        public byte[] call() throws Exception {
+          if (!file.exists()) {
+            throw new FileNotFoundException(file.getPath());
+          }
+          return Files.readAllBytes(file.toPath());
+        }
+      });
+    }
+
+    /** Written, or no longer wanted */
+    void release() {
+      if (contents != null) {
+        contents.cancel(true);
+        contents = null;
+      }
+      readAhead.release(reserved);
+      reserved = 0;
+    }
+
+    /** The contents read ahead, null if the file was not read ahead */
+    byte[] get() throws IOException {
+      if (contents == null) {
+        return null;
+      }
+      try {
+        return contents.get();
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException("Interrupted reading " + file);
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof IOException) {
+          throw (IOException) e.getCause();
+        }
+        throw new IOException("Could not read " + file, e.getCause());
+      }
+    }
+  }
+
+  /** A zip written through a large buffer. */
+  public static ZipOutputStream open(OutputStream output) {
+    return new ZipOutputStream(new BufferedOutputStream(output, BufferSize));
+  }
+
+  /**
+   * Write the images of <code>study</code> under
+   * <code>basePath</code>/PatientName/StudyDescription-StudyDate/SeriesDescription.
+   */
+  public static void append(JdbcTemplate template, String basePath, ZipOutputStream zip, final File poolRootDir, Study study, final Mode mode) throws IOException {
+    String path = study.PatientName == null ? "UnknownPatientName" : study.PatientName.replaceAll(StudiesEndpoint.regex, "_");
+
+    String sub = study.StudyDescription == null ? "EmptyStudyDescription" : study.StudyDescription.replaceAll(StudiesEndpoint.regex, "_") + "-";
+    DateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+    final String studyPath = basePath + path + "/" + sub + format.format(study.StudyDate);
+
+    final List<Entry> entries = new ArrayList<Entry>();
+    template.query(ListInstances, new Object[] { study.StudyKey }, new RowCallbackHandler() {
+
+      @Override
+      public void processRow(ResultSet rs) throws SQLException {
+        String desc = rs.getString("SeriesDescription") == null ? "EmptySeriesDescription" : rs.getString("SeriesDescription");
+        String name = studyPath + "/" + desc.replaceAll(StudiesEndpoint.regex, "_") + "/" + rs.getString("SOPInstanceUID") + ".dcm";
+        File file = new File(poolRootDir, rs.getString("FilePath"));
+        // Recorded as it was stored, except for images stored long ago
+        long length = rs.getLong("FileLength");
+        if (rs.wasNull()) {
+          length = file.length();
+        }
+        boolean store;
+        if (mode == Mode.AUTO) {
+          String transferSyntax = rs.getString("TransferSyntaxUID");
+          store = (transferSyntax != null && !Uncompressed.contains(transferSyntax)) || length > StoreSize;
+        } else {
+          store = mode == Mode.STORED;
+        }
+        entries.add(new Entry(name, file, length, store));
+      }
+    });
+
+    byte[] buffer = new byte[BufferSize];
+    CRC32 crc = new CRC32();
+    try {
+      for (int i = 0; i < entries.size(); i++) {
+        for (int j = i; j < Math.min(entries.size(), i + Prefetch); j++) {
+          entries.get(j).prefetch();
+        }
+        Entry entry = entries.get(i);
+        byte[] contents = entry.get();
+        ZipEntry zipEntry = new ZipEntry(entry.name);
+        if (contents != null && entry.store) {
+          // A STORED entry needs its size and CRC up front
+          crc.reset();
+          crc.update(contents);
+          zipEntry.setMethod(ZipEntry.STORED);
+          zipEntry.setSize(contents.length);
+          zipEntry.setCompressedSize(contents.length);
+          zipEntry.setCrc(crc.getValue());
+          zip.putNextEntry(zipEntry);
+          zip.write(contents);
+        } else {
+          // A file not read ahead is stored in deflate blocks, so it is read
+          // only once
+          zip.setLevel(entry.store ? Deflater.NO_COMPRESSION : mode == Mode.DEFLATE ? Deflater.DEFAULT_COMPRESSION : Deflater.BEST_SPEED);
+          zip.putNextEntry(zipEntry);
+          if (contents != null) {
+            zip.write(contents);
+          } else {
+            FileInputStream in = new FileInputStream(entry.file);
+            try {
+              int len;
+              while ((len = in.read(buffer)) > 0) {
+                zip.write(buffer, 0, len);
+              }
+            } finally {
+              in.close();
+            }
+          }
+        }
+        zip.closeEntry();
+        entry.release();
+        entries.set(i, null);
+      }
+    } finally {
+      // The download was abandoned
+      for (Entry entry : entries) {
+        if (entry != null) {
+          entry.release();
+        }
+      }
+    }
+  }
+}
@@ -1,13 +1,19 @@
 package edu.mayo.qia.pacs.rest;
 
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 
-import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
@@ -23,12 +29,18 @@ import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.stereotype.Component;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.Iterator;
+import java.util.List;
 
 import edu.mayo.qia.pacs.components.PoolContainer;
 import edu.mayo.qia.pacs.components.PoolManager;
+import edu.mayo.qia.pacs.components.RenderCache;
+import edu.mayo.qia.pacs.components.Study;
+import edu.mayo.qia.pacs.components.StudyIndex;
 
 @Component
 @Scope("singleton")
@@ -45,6 +57,9 @@ public class ViewerEndpoint extends Endpoint {
   @Autowired
   PoolManager poolManager;
 
+  @Autowired
+  RenderCache renderCache;
+
   /**
    * Study list in JSON format
    * 
@@ -72,6 +87,21 @@ public class ViewerEndpoint extends Endpoint {
   public Response getStudies(@Auth Subject subject) {
     ObjectNode json = objectMapper.createObjectNode();
     final ArrayNode studies = json.putArray("studyList");
+    StudyIndex index = poolManager.getContainer(poolKey).getStudyIndex();
+    if (index != null) {
+      StudyIndex.Criteria criteria = new StudyIndex.Criteria();
+      criteria.sortColumn = "PatientName";
+      for (Study s : index.search(criteria).studies) {
+        ObjectNode study = studies.addObject();
+        study.put("patientName", s.PatientName);
+        study.put("patientId", s.PatientID);
+        study.put("studyDate", s.StudyDate == null ? null : s.StudyDate.toString());
+        study.put("modality", "unknown");
+        study.put("studyDescription", s.StudyDescription);
+        study.put("studyId", Integer.toString(s.StudyKey));
+      }
+      return Response.ok(json).build();
+    }
     template.query("select * from STUDY where PoolKey = ? order by PatientName", new Object[] { poolKey }, new RowCallbackHandler() {
 
       @Override
@@ -123,75 +153,181 @@ public class ViewerEndpoint extends Endpoint {
   @Path("study/{id: [1-9][0-9]*}/series")
   @Produces(MediaType.APPLICATION_JSON)
   public Response getSeries(@Auth Subject subject, @PathParam("id") int studyKey) {
-    final ObjectNode json = objectMapper.createObjectNode();
-    final ArrayNode series = json.putArray("seriesList");
-    template.query("select * from STUDY where PoolKey = ? and StudyKey = ?", new Object[] { poolKey, studyKey }, new RowCallbackHandler() {
-
-      @Override
-      public void processRow(ResultSet rs) throws SQLException {
-        json.put("patientName", rs.getString("PatientName"));
-        json.put("patientId", rs.getString("PatientID"));
-        json.put("studyDate", rs.getString("StudyDate"));
-        json.put("modality", "unknown");
-        json.put("studyDescription", rs.getString("StudyDescription"));
-        json.put("studyId", rs.getString("StudyKey"));
-        // int studyKey = rs.getInt("StudyKey");
-        // Integer numberOfImages =
-        // template.queryForObject("select count(INSTANCE.InstanceKey) from
-        // INSTANCE, SERIES where INSTANCE.SeriesKey = SERIES.SeriesKey and
-        // SERIES.StudyKey = ?",
-        // new Object[] { studyKey }, Integer.class);
-        // json.put("numImages", numberOfImages);
+    PoolContainer poolContainer = poolManager.getContainer(poolKey);
+    if (poolContainer == null) {
+      return Response.status(Status.NOT_FOUND).build();
+    }
+    return Response.ok(
+        streamSeries(template, objectMapper, poolKey, studyKey, "image/", "dicomweb:/rest/pool/" + poolKey + "/viewer/", "/rest/pool/" + poolKey + "/viewer/rendered/", poolContainer.getPoolDirectory())).build();
+  }
 
-      }
-    });
+  /** The study, its series and instances, ordered for writing as a tree */
+  static final String SeriesTree = "select STUDY.StudyKey, STUDY.PatientName, STUDY.PatientID, STUDY.StudyDate, STUDY.StudyDescription, SERIES.SeriesKey, SERIES.SeriesDescription, SERIES.SeriesNumber, INSTANCE.InstanceKey, INSTANCE.FilePath"
+      + " from STUDY left outer join SERIES on SERIES.StudyKey = STUDY.StudyKey left outer join INSTANCE on INSTANCE.SeriesKey = SERIES.SeriesKey" + " where STUDY.PoolKey = ? and STUDY.StudyKey = ?"
+      + " order by SERIES.SeriesNumber, SERIES.SeriesKey, INSTANCE.InstanceNumberValue, INSTANCE.InstanceKey";
 
-    template.query("select SERIES.* from SERIES, STUDY where STUDY.PoolKey = ? and STUDY.StudyKey = ? and SERIES.StudyKey = STUDY.StudyKey order by SERIES.SeriesNumber", new Object[] { poolKey, studyKey }, new RowCallbackHandler() {
+  /**
+   * Write the series list of a study from one query, a series at a time as
+   * its rows arrive. The imageId of each instance is
+   * <code>imagePrefix</code> and the instance's FilePath, its uri is
+   * <code>uriPrefix</code> and the imageId. The thumbnail of a series is its
+   * first instance, rendered under <code>renderedPrefix</code>, and its URL
+   * names the time the instance's file in <code>poolDirectory</code> was
+   * written, so it changes when the instance is received again.
+   */
+  static StreamingOutput streamSeries(final JdbcTemplate template, final ObjectMapper objectMapper, final int poolKey, final int studyKey, final String imagePrefix, final String uriPrefix,
+      final String renderedPrefix, final File poolDirectory) {
+    return new StreamingOutput() {
 
       @Override
-      public void processRow(ResultSet rs) throws SQLException {
-        ObjectNode s = series.addObject();
-        s.put("seriesDescription", rs.getString("SeriesDescription"));
-        s.put("seriesNumber", rs.getString("SeriesNumber"));
-        s.put("seriesKey", rs.getInt("SeriesKey"));
-        int seriesKey = rs.getInt("SeriesKey");
-        Integer numberOfImages = template.queryForObject("select count(*) from INSTANCE where INSTANCE.SeriesKey =  ?", new Object[] { seriesKey }, Integer.class);
-        s.put("numImages", numberOfImages);
-      }
-    });
+      public void write(OutputStream output) throws IOException {
+        final JsonGenerator generator = objectMapper.getFactory().createGenerator(output);
+        generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        generator.writeStartObject();
+        // SeriesKey of the series being written (-1 for none yet, -2 before
+        // the study) and its number of images
+        final int[] current = new int[] { -2, 0 };
+        try {
+          template.query(SeriesTree, new Object[] { poolKey, studyKey }, new RowCallbackHandler() {
 
-    for (Iterator<JsonNode> elements = series.elements(); elements.hasNext();) {
-      ObjectNode s = (ObjectNode) elements.next();
-      // Fill in the instances
-      final ArrayNode instances = s.putArray("instanceList");
-      int seriesKey = s.get("seriesKey").asInt();
-      // Order by InstanceNumber, if it's null, return '0' and cast to integer
-      template.query("select * from INSTANCE where SeriesKey = ? order by cast ( NULLIF(InstanceNumber,'0') as INT )", new Object[] { seriesKey }, new RowCallbackHandler() {
-
-        @Override
-        public void processRow(ResultSet rs) throws SQLException {
-          ObjectNode instance = instances.addObject();
-          String imageID = "image/" + rs.getString("FilePath");
-          instance.put("imageId", imageID);
-          instance.put("uri", "dicomweb:/rest/pool/" + poolKey + "/viewer/" + imageID);
+            @Override
+            public void processRow(ResultSet rs) throws SQLException {
+              try {
+                if (current[0] == -2) {
+                  generator.writeStringField("patientName", rs.getString("PatientName"));
+                  generator.writeStringField("patientId", rs.getString("PatientID"));
+                  generator.writeStringField("studyDate", rs.getString("StudyDate"));
+                  generator.writeStringField("modality", "unknown");
+                  generator.writeStringField("studyDescription", rs.getString("StudyDescription"));
+                  generator.writeStringField("studyId", rs.getString("StudyKey"));
+                  generator.writeArrayFieldStart("seriesList");
+                  current[0] = -1;
+                }
+                int seriesKey = rs.getInt("SeriesKey");
+                if (rs.wasNull()) {
+                  // A study without series
+                  return;
+                }
+                if (seriesKey != current[0]) {
+                  if (current[0] != -1) {
+                    endSeries(generator, current[1]);
+                  }
+                  generator.writeStartObject();
+                  generator.writeStringField("seriesDescription", rs.getString("SeriesDescription"));
+                  generator.writeStringField("seriesNumber", rs.getString("SeriesNumber"));
+                  generator.writeNumberField("seriesKey", seriesKey);
+                  int instanceKey = rs.getInt("InstanceKey");
+                  if (!rs.wasNull()) {
+                    long written = new File(poolDirectory, rs.getString("FilePath")).lastModified();
+                    generator.writeStringField("thumbnail", renderedPrefix + instanceKey + "/0?v=" + Long.toHexString(written));
+                  }
+                  generator.writeArrayFieldStart("instanceList");
+                  current[0] = seriesKey;
+                  current[1] = 0;
+                }
+                String filePath = rs.getString("FilePath");
+                if (filePath != null) {
+                  String imageID = imagePrefix + filePath;
+                  generator.writeStartObject();
+                  generator.writeStringField("imageId", imageID);
+                  generator.writeStringField("uri", uriPrefix + imageID);
+                  generator.writeNumberField("instanceKey", rs.getInt("InstanceKey"));
+                  generator.writeEndObject();
+                  current[1]++;
+                }
+              } catch (IOException e) {
+                throw new UncheckedIOException(e);
+              }
+            }
+          });
+        } catch (UncheckedIOException e) {
+          throw e.getCause();
         }
-      });
-    }
-    return Response.ok(json).build();
+        if (current[0] == -2) {
+          generator.writeArrayFieldStart("seriesList");
+        } else if (current[0] != -1) {
+          endSeries(generator, current[1]);
+        }
+        generator.writeEndArray();
+        generator.writeEndObject();
+        generator.flush();
+      }
+    };
+  }
+
+  static void endSeries(JsonGenerator generator, int numberOfImages) throws IOException {
+    generator.writeEndArray();
+    generator.writeNumberField("numImages", numberOfImages);
+    generator.writeEndObject();
   }
 
   @GET
   @Path("image/{path:.+}")
   @Produces(MediaType.APPLICATION_OCTET_STREAM)
-  public Response getInstance(@Auth Subject subject, @PathParam("path") String path) {
+  public Response getInstance(@Auth Subject subject, @Context Request request, @HeaderParam("Range") String range, @HeaderParam("If-Range") String ifRange, @PathParam("path") String path) {
     logger.debug("Looking for image: " + path);
     PoolContainer poolContainer = poolManager.getContainer(poolKey);
     if (poolContainer != null) {
       File imageFile = new File(poolContainer.getPoolDirectory(), path);
       if (imageFile.exists()) {
-        return Response.ok(imageFile).header("Content-Disposition", "attachment; filename=" + imageFile.getName()).build();
+        // A stored file only ever holds one instance, its times tell versions apart
+        return FileResponse.ok(request, range, ifRange, imageFile, "p" + poolKey);
       }
     }
     return Response.status(Status.NOT_FOUND).build();
   }
+
+  /**
+   * A frame of an instance as an image, by default a JPEG thumbnail
+   * {@link RenderCache#ThumbnailSize} wide.
+   *
+   * @param size
+   *        the largest width, 0 for the width of the image
+   * @param format
+   *        jpeg or png
+   * @param windowCenter
+   *        window center and width in display units, jpeg only
+   * @param version
+   *        when the instance's file was written, as in the series list. A
+   *        render of that file may be kept by the browser
+   */
+  @GET
+  @Path("rendered/{instance: [1-9][0-9]*}/{frame: [0-9]+}")
+  public Response getRendered(@Auth Subject subject, @Context Request request, @PathParam("instance") int instanceKey, @PathParam("frame") int frame, @DefaultValue("128") @QueryParam("size") int size,
+      @DefaultValue("jpeg") @QueryParam("format") String format, @QueryParam("wc") Integer windowCenter, @QueryParam("ww") Integer windowWidth, @QueryParam("v") String version) {
+    List<String> paths = template.queryForList("select INSTANCE.FilePath from INSTANCE, SERIES, STUDY where INSTANCE.InstanceKey = ? and INSTANCE.SeriesKey = SERIES.SeriesKey and SERIES.StudyKey = STUDY.StudyKey and STUDY.PoolKey = ?",
+        String.class, instanceKey, poolKey);
+    PoolContainer poolContainer = poolManager.getContainer(poolKey);
+    if (paths.size() != 1 || poolContainer == null) {
+      return Response.status(Status.NOT_FOUND).build();
+    }
+    return rendered(renderCache, request, instanceKey, new File(poolContainer.getPoolDirectory(), paths.get(0)), frame, size, format, windowCenter, windowWidth, version);
+  }
+
+  /** Serve a frame from the render cache, rendering it if need be. */
+  static Response rendered(RenderCache renderCache, Request request, int instanceKey, File source, int frame, int size, String format, Integer windowCenter, Integer windowWidth, String version) {
+    if (!source.exists()) {
+      return Response.status(Status.NOT_FOUND).build();
+    }
+    try {
+      File file = renderCache.get(instanceKey, source, frame, size, format, windowCenter, windowWidth);
+      if (file == null) {
+        return Response.status(Status.SERVICE_UNAVAILABLE).header("Retry-After", 5).entity("Too many frames are being rendered").build();
+      }
+      try {
+        // The URL stays the same when the instance is received again, unless
+        // it names the version. Shown in the page, not saved
+        String cacheControl = Long.toHexString(source.lastModified()).equals(version) ? FileResponse.Immutable : FileResponse.CacheControl;
+        return Response.fromResponse(FileResponse.ok(request, null, null, file, "r" + instanceKey, false, cacheControl)).type("image/" + format).build();
+      } finally {
+        // Open by now, so it may be removed from the cache
+        renderCache.release(file);
+      }
+    } catch (RenderCache.NotRenderable e) {
+      return Response.status(Status.BAD_REQUEST).entity(e.getMessage()).build();
+    } catch (Exception e) {
+      logger.error("Could not render frame " + frame + " of " + source, e);
+      return Response.status(Status.INTERNAL_SERVER_ERROR).entity("Could not render frame " + frame).build();
+    }
+  }
 }
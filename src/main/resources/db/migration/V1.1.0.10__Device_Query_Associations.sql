@@ -0,0 +1,3 @@
+-- Number of C-FINDs a query runs against the Device at once, 0 for the
+-- server's queryAssociations.
+ALTER TABLE DEVICE ADD COLUMN QueryAssociations INTEGER DEFAULT 0;
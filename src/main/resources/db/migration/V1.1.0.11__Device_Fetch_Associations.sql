@@ -0,0 +1,3 @@
+-- Number of C-MOVEs a fetch runs against the Device at once, 0 for the
+-- server's fetchAssociations.
+ALTER TABLE DEVICE ADD COLUMN FetchAssociations INTEGER DEFAULT 0;
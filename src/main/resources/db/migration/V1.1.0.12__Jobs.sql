@@ -0,0 +1,42 @@
+-- Background jobs (queries, fetches and bulk deletes), kept in the database so
+-- they resume after a restart.  Status is 'queued', 'running', 'completed' or
+-- 'failed'.  A running job is leased by the server running it (Owner) until
+-- LeaseExpires, and is queued again if the lease is not renewed.  TargetKey
+-- is the QueryKey for queries and fetches.
+CREATE TABLE JOB (
+  JobKey INT NOT NULL PRIMARY KEY GENERATED ALWAYS AS IDENTITY,
+  Type VARCHAR(32) NOT NULL,
+  Status VARCHAR(16) NOT NULL DEFAULT 'queued',
+  PoolKey INT NOT NULL,
+  DeviceKey INT,
+  TargetKey INT,
+  Owner VARCHAR(64),
+  LeaseExpires TIMESTAMP,
+  Attempts INT NOT NULL DEFAULT 0,
+  Total INT NOT NULL DEFAULT 0,
+  Completed INT NOT NULL DEFAULT 0,
+  Failed INT NOT NULL DEFAULT 0,
+  Message VARCHAR(1024),
+  CreatedTime TIMESTAMP NOT NULL,
+  UpdatedTime TIMESTAMP NOT NULL,
+  CONSTRAINT JOB_fk1
+    FOREIGN KEY ( PoolKey ) REFERENCES POOL ( PoolKey ) ON DELETE CASCADE
+);
+
+CREATE INDEX job_idx ON JOB ( Status, JobKey );
+CREATE INDEX job_target_idx ON JOB ( Type, TargetKey, Status );
+
+-- The units of work of a job (query rows, query results or studies), so a
+-- resumed job skips those already done.  Status is 'pending', 'done' or
+-- 'failed'.
+CREATE TABLE JOBSTEP (
+  JobStepKey INT NOT NULL PRIMARY KEY GENERATED ALWAYS AS IDENTITY,
+  JobKey INT NOT NULL,
+  StepKey INT NOT NULL,
+  Status VARCHAR(16) NOT NULL DEFAULT 'pending',
+  Message VARCHAR(250),
+  CONSTRAINT JOBSTEP_fk1
+    FOREIGN KEY ( JobKey ) REFERENCES JOB ( JobKey ) ON DELETE CASCADE
+);
+
+CREATE UNIQUE INDEX jobstep_idx ON JOBSTEP ( JobKey, StepKey );
@@ -0,0 +1,2 @@
+-- Limit on the number of C-FIND matches returned by a pool, 0 is no limit
+ALTER TABLE POOL add column MaxFindMatches int not null with default 0;
@@ -0,0 +1,5 @@
+-- Composite indexes for the lookups done on every received image, C-FIND and C-MOVE.
+-- STUDY had no index on PoolKey, so every pool-scoped query scanned the table.
+CREATE INDEX study_pool_uid_idx on STUDY (PoolKey ASC, StudyInstanceUID ASC);
+CREATE INDEX series_study_uid_idx on SERIES (StudyKey ASC, SeriesInstanceUID ASC);
+CREATE INDEX instance_series_uid_idx on INSTANCE (SeriesKey ASC, SOPInstanceUID ASC);
@@ -0,0 +1,5 @@
+-- What DcmSnd needs to send an instance without parsing the file first.
+-- Instances received before this migration have nulls and are parsed when sent.
+ALTER TABLE INSTANCE add column TransferSyntaxUID VARCHAR(64);
+ALTER TABLE INSTANCE add column FmiEndPosition BIGINT;
+ALTER TABLE INSTANCE add column FileLength BIGINT;
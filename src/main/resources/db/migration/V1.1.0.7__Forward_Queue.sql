@@ -0,0 +1,20 @@
+-- Instances waiting to be autoforwarded, one row per instance and device.
+-- Rows are deleted once the device stores the instance.  Status is 'queued',
+-- or 'dead' once the device has refused the instance or retries ran out.
+CREATE TABLE FORWARDQUEUE (
+  ForwardKey INT NOT NULL PRIMARY KEY GENERATED ALWAYS AS IDENTITY,
+  DeviceKey INT NOT NULL,
+  InstanceKey INT NOT NULL,
+  Status VARCHAR(16) NOT NULL DEFAULT 'queued',
+  Attempts INT NOT NULL DEFAULT 0,
+  QueuedTime TIMESTAMP NOT NULL,
+  NextAttempt TIMESTAMP NOT NULL,
+  LastError VARCHAR(250),
+  CONSTRAINT FORWARDQUEUE_fk1
+    FOREIGN KEY ( DeviceKey ) REFERENCES DEVICE ( DeviceKey ) ON DELETE CASCADE,
+  CONSTRAINT FORWARDQUEUE_fk2
+    FOREIGN KEY ( InstanceKey ) REFERENCES INSTANCE ( InstanceKey ) ON DELETE CASCADE
+);
+
+CREATE INDEX forwardqueue_device_idx ON FORWARDQUEUE ( DeviceKey, Status, NextAttempt );
+CREATE INDEX forwardqueue_instance_idx ON FORWARDQUEUE ( InstanceKey );
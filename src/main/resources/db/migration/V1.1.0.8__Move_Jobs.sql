@@ -0,0 +1,34 @@
+-- Progress of C-MOVEs and study moves, so a failed move resumes where it
+-- stopped.  Destination is the move destination AET, or 'pool <PoolKey>' for
+-- moves between pools.  Status is 'running', 'incomplete', 'completed' or
+-- 'abandoned' once it is too old to resume.
+CREATE TABLE MOVEJOB (
+  MoveJobKey INT NOT NULL PRIMARY KEY GENERATED ALWAYS AS IDENTITY,
+  PoolKey INT NOT NULL,
+  Destination VARCHAR(64) NOT NULL,
+  UID VARCHAR(64) NOT NULL,
+  Status VARCHAR(16) NOT NULL DEFAULT 'running',
+  Total INT NOT NULL DEFAULT 0,
+  Completed INT NOT NULL DEFAULT 0,
+  Failed INT NOT NULL DEFAULT 0,
+  CreatedTime TIMESTAMP NOT NULL,
+  UpdatedTime TIMESTAMP NOT NULL,
+  CONSTRAINT MOVEJOB_fk1
+    FOREIGN KEY ( PoolKey ) REFERENCES POOL ( PoolKey ) ON DELETE CASCADE
+);
+
+CREATE INDEX movejob_idx ON MOVEJOB ( PoolKey, Destination, UID, Status );
+
+-- One row per instance the destination stored ('done') or refused ('failed').
+-- Dropped once the whole job completes.
+CREATE TABLE MOVEITEM (
+  MoveItemKey INT NOT NULL PRIMARY KEY GENERATED ALWAYS AS IDENTITY,
+  MoveJobKey INT NOT NULL,
+  SOPInstanceUID VARCHAR(64) NOT NULL,
+  Status VARCHAR(16) NOT NULL,
+  LastError VARCHAR(250),
+  CONSTRAINT MOVEITEM_fk1
+    FOREIGN KEY ( MoveJobKey ) REFERENCES MOVEJOB ( MoveJobKey ) ON DELETE CASCADE
+);
+
+CREATE UNIQUE INDEX moveitem_idx ON MOVEITEM ( MoveJobKey, SOPInstanceUID );
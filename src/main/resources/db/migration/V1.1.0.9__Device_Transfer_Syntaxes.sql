@@ -0,0 +1,3 @@
+-- Transfer syntaxes a Device prefers when it will not accept an image as
+-- stored, most preferred first and separated by commas.  Null for the default.
+ALTER TABLE DEVICE ADD COLUMN TransferSyntaxes VARCHAR(1024);
@@ -21,6 +21,7 @@ PoolModel = Backbone.Model.extend({
   defaults: {
     'name' : null,
     'anonymize' : false,
+    'maxFindMatches' : 0,
     'applicationEntityTitle' : null,
     'description' : "This is a new Pool"
   }
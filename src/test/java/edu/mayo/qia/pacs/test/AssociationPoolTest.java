@@ -0,0 +1,58 @@
+package edu.mayo.qia.pacs.test;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.io.File;
+import java.util.List;
+import java.util.UUID;
+
+import edu.mayo.qia.pacs.Notion;
+import edu.mayo.qia.pacs.components.Device;
+import edu.mayo.qia.pacs.components.Pool;
+import edu.mayo.qia.pacs.dicom.AssociationPool;
+import edu.mayo.qia.pacs.dicom.DcmSnd;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+public class AssociationPoolTest extends PACSTest {
+
+  @Autowired
+  AssociationPool associationPool;
+
+  @Test
+  public void reuse() throws Exception {
+    String aet = UUID.randomUUID().toString().substring(0, 10);
+    Pool pool = createPool(new Pool(aet, aet, aet, false));
+    createDevice(new Device(".*", ".*", 1234, pool));
+
+    long created = Notion.metrics.meter("DICOM.association.pool.created").getCount();
+    long reused = Notion.metrics.meter("DICOM.association.pool.reused").getCount();
+    send(aet, "TOF/IMAGE001.dcm");
+    send(aet, "TOF/IMAGE002.dcm");
+    assertEquals("Created", created + 1, Notion.metrics.meter("DICOM.association.pool.created").getCount());
+    assertEquals("Reused", reused + 1, Notion.metrics.meter("DICOM.association.pool.reused").getCount());
+    assertEquals("Instances", new Integer(2), template.queryForObject("select count(*) from INSTANCE, SERIES, STUDY where INSTANCE.SeriesKey = SERIES.SeriesKey and SERIES.StudyKey = STUDY.StudyKey and STUDY.PoolKey = ?", Integer.class, pool.poolKey));
+  }
+
+  void send(String aet, String series) throws Exception {
+    DcmSnd sender = new DcmSnd(aet);
+    sender.setAssociationPool(associationPool);
+    sender.setRemoteHost("localhost");
+    sender.setRemotePort(DICOMPort);
+    sender.setCalledAET(aet);
+    sender.setCalling(aet);
+    List<File> files = getTestSeries(series);
+    for (File f : files) {
+      sender.addFile(f);
+    }
+    sender.configureTransferCapability();
+    sender.open();
+    sender.send(null);
+    sender.close();
+    assertEquals("Sent", files.size(), sender.getFilesSent());
+  }
+}
@@ -75,6 +75,74 @@ public class AutoforwardTest extends PACSTest {
     assertEquals("PatientName", patientName, response.getString(Tag.PatientName));
     assertEquals("NumberOfStudyRelatedSeries", 1, response.getInt(Tag.NumberOfStudyRelatedSeries));
     assertEquals("NumberOfStudyRelatedInstances", testSeries.size(), response.getInt(Tag.NumberOfStudyRelatedInstances));
+    assertEquals("Queue", new Integer(0), template.queryForObject("select count(*) from FORWARDQUEUE where DeviceKey = ?", Integer.class, autoforwardDevice.deviceKey));
 
   }
+
+  @Test
+  public void storedTransferSyntax() throws Exception {
+    String aet = UUID.randomUUID().toString().substring(0, 10);
+    Pool destination = createPool(new Pool(aet, aet, aet, false));
+    createDevice(new Device(".*", ".*", 1234, destination));
+
+    aet = UUID.randomUUID().toString().substring(0, 10);
+    Pool pool = createPool(new Pool(aet, aet, aet, false));
+    createDevice(new Device(".*", ".*", 1234, pool));
+    Device autoforwardDevice = new Device(destination.applicationEntityTitle, "localhost", destination.getPort(), pool);
+    autoforwardDevice.isAutoforward = true;
+    autoforwardDevice.transferSyntaxes = "ImplicitVRLittleEndian";
+    createDevice(autoforwardDevice);
+
+    sendDICOM(aet, aet, "TOF/IMAGE001.dcm");
+    poolManager.getContainer(pool.poolKey).processAutoForward();
+
+    // Sent as stored, not in the Device's preferred syntax
+    String sql = "select INSTANCE.TransferSyntaxUID from INSTANCE, SERIES, STUDY where INSTANCE.SeriesKey = SERIES.SeriesKey and SERIES.StudyKey = STUDY.StudyKey and STUDY.PoolKey = ?";
+    String stored = template.queryForObject(sql, String.class, pool.poolKey);
+    assertEquals("TransferSyntaxUID", stored, template.queryForObject(sql, String.class, destination.poolKey));
+  }
+
+  @Test
+  public void immediate() throws Exception {
+    String aet = UUID.randomUUID().toString().substring(0, 10);
+    Pool destination = createPool(new Pool(aet, aet, aet, false));
+    createDevice(new Device(".*", ".*", 1234, destination));
+
+    aet = UUID.randomUUID().toString().substring(0, 10);
+    Pool pool = createPool(new Pool(aet, aet, aet, false));
+    createDevice(new Device(".*", ".*", 1234, pool));
+    Device autoforwardDevice = new Device(destination.applicationEntityTitle, "localhost", destination.getPort(), pool);
+    autoforwardDevice.isAutoforward = true;
+    autoforwardDevice = createDevice(autoforwardDevice);
+
+    // Sent as they arrive, without waiting for processAutoForward
+    List<File> testSeries = sendDICOM(aet, aet, "TOF/IMAGE00*.dcm");
+    String sql = "select count(*) from INSTANCE, SERIES, STUDY where INSTANCE.SeriesKey = SERIES.SeriesKey and SERIES.StudyKey = STUDY.StudyKey and STUDY.PoolKey = ?";
+    for (int i = 0; i < 100 && template.queryForObject(sql, Integer.class, destination.poolKey) < testSeries.size(); i++) {
+      Thread.sleep(50);
+    }
+    assertEquals("Forwarded", new Integer(testSeries.size()), template.queryForObject(sql, Integer.class, destination.poolKey));
+    for (int i = 0; i < 100 && template.queryForObject("select count(*) from FORWARDQUEUE where DeviceKey = ?", Integer.class, autoforwardDevice.deviceKey) > 0; i++) {
+      Thread.sleep(50);
+    }
+    assertEquals("Queue", new Integer(0), template.queryForObject("select count(*) from FORWARDQUEUE where DeviceKey = ?", Integer.class, autoforwardDevice.deviceKey));
+  }
+
+  @Test
+  public void unreachable() throws Exception {
+    String aet = UUID.randomUUID().toString().substring(0, 10);
+    Pool pool = createPool(new Pool(aet, aet, aet, false));
+    createDevice(new Device(".*", ".*", 1234, pool));
+    // Nothing listens on port 1
+    Device autoforwardDevice = new Device("nowhere", "localhost", 1, pool);
+    autoforwardDevice.isAutoforward = true;
+    autoforwardDevice = createDevice(autoforwardDevice);
+
+    List<File> testSeries = sendDICOM(aet, aet, "TOF/IMAGE001.dcm");
+    poolManager.getContainer(pool.poolKey).processAutoForward();
+
+    // Kept for a later attempt
+    assertEquals("Queued", new Integer(testSeries.size()), template.queryForObject("select count(*) from FORWARDQUEUE where DeviceKey = ? and Status = 'queued' and Attempts = 1 and LastError is not null", Integer.class, autoforwardDevice.deviceKey));
+    assertEquals("Not due", new Integer(0), template.queryForObject("select count(*) from FORWARDQUEUE where DeviceKey = ? and NextAttempt <= CURRENT_TIMESTAMP", Integer.class, autoforwardDevice.deviceKey));
+  }
 }
\ No newline at end of file
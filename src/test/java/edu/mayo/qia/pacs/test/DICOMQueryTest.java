@@ -4,6 +4,8 @@ import static org.junit.Assert.assertEquals;
 
 import org.dcm4che2.data.DicomObject;
 import org.dcm4che2.data.Tag;
+import org.dcm4che2.net.CommandUtils;
+import org.dcm4che2.net.DimseRSP;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
@@ -52,4 +54,72 @@ public class DICOMQueryTest extends PACSTest {
     assertEquals("NumberOfStudyRelatedInstances", testSeries.size(), response.getInt(Tag.NumberOfStudyRelatedInstances));
 
   }
+
+  @Test
+  public void queryLimit() throws Exception {
+    UUID uid = UUID.randomUUID();
+    String aet = uid.toString().substring(0, 10);
+    Pool pool = new Pool(aet, aet, aet, false);
+    pool.maxFindMatches = 1;
+    pool = createPool(pool);
+    createDevice(new Device(".*", ".*", 1234, pool));
+
+    // Two studies, but only one match allowed
+    sendDICOM(aet, aet, "TOF/*001.dcm");
+    sendDICOM(aet, aet, "CTE/*001.dcm");
+
+    DcmQR dcmQR = new DcmQR();
+    dcmQR.setRemoteHost("localhost");
+    dcmQR.setRemotePort(DICOMPort);
+    dcmQR.setCalledAET(aet);
+    dcmQR.setCalling(aet);
+    dcmQR.open();
+
+    int pending = 0;
+    int status = -1;
+    DimseRSP rsp = dcmQR.queryAll();
+    while (rsp.next()) {
+      DicomObject cmd = rsp.getCommand();
+      if (CommandUtils.isPending(cmd)) {
+        pending++;
+      } else {
+        status = cmd.getInt(Tag.Status);
+      }
+    }
+    dcmQR.close();
+
+    assertEquals("Pending responses", 1, pending);
+    assertEquals("Final status", 0xA700, status);
+  }
+
+  @Test
+  public void queryStudyInstanceUID() throws Exception {
+    UUID uid = UUID.randomUUID();
+    String aet = uid.toString().substring(0, 10);
+    Pool pool = createPool(new Pool(aet, aet, aet, false));
+    createDevice(new Device(".*", ".*", 1234, pool));
+    sendDICOM(aet, aet, "TOF/*001.dcm");
+    List<File> cte = sendDICOM(aet, aet, "CTE/*001.dcm");
+    String studyInstanceUID = TagLoader.loadTags(cte.get(0)).getString(Tag.StudyInstanceUID);
+
+    DcmQR dcmQR = new DcmQR();
+    dcmQR.setRemoteHost("localhost");
+    dcmQR.setRemotePort(DICOMPort);
+    dcmQR.setCalledAET(aet);
+    dcmQR.setCalling(aet);
+    dcmQR.addMatchingKey(new int[] { Tag.StudyInstanceUID }, studyInstanceUID);
+    dcmQR.open();
+
+    // Only the study asked for, with its own UID
+    int pending = 0;
+    DimseRSP rsp = dcmQR.queryAll();
+    while (rsp.next()) {
+      if (CommandUtils.isPending(rsp.getCommand())) {
+        pending++;
+        assertEquals("StudyInstanceUID", studyInstanceUID, rsp.getDataset().getString(Tag.StudyInstanceUID));
+      }
+    }
+    dcmQR.close();
+    assertEquals("Pending responses", 1, pending);
+  }
 }
@@ -2,22 +2,29 @@ package edu.mayo.qia.pacs.test;
 
 import static org.junit.Assert.assertEquals;
 
+import org.dcm4che2.io.DicomInputStream;
 import org.dcm4che2.net.ConfigurationException;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 import edu.mayo.qia.pacs.components.Device;
 import edu.mayo.qia.pacs.components.Pool;
+import edu.mayo.qia.pacs.components.PoolManager;
 
 @RunWith(SpringJUnit4ClassRunner.class)
 public class DICOMReceiverTest extends PACSTest {
 
+  @Autowired
+  PoolManager poolManager;
+
   @Test
   public void sendTOF() throws IOException, ConfigurationException, InterruptedException {
     UUID uid = UUID.randomUUID();
@@ -39,4 +46,26 @@ public class DICOMReceiverTest extends PACSTest {
     assertEquals("Instance Count", testSeries.size(), instanceCount);
 
   }
+
+  @Test
+  public void transferMetadata() throws Exception {
+    String aet = UUID.randomUUID().toString().substring(0, 10);
+    Pool pool = createPool(new Pool(aet, aet, aet, false));
+    createDevice(new Device(".*", ".*", 1234, pool));
+    List<File> testSeries = sendDICOM(aet, aet, "TOF/*001.dcm");
+
+    // Everything needed to send an instance is saved when it is received
+    File poolDirectory = poolManager.getContainer(pool.poolKey).getPoolDirectory();
+    List<Map<String, Object>> rows = template.queryForList("select Instance.* from Instance, Study, Series where Instance.SeriesKey = Series.SeriesKey and Study.PoolKey = ? and Series.StudyKey = Study.StudyKey", pool.poolKey);
+    assertEquals("Instance Count", testSeries.size(), rows.size());
+    for (Map<String, Object> row : rows) {
+      File f = new File(poolDirectory, (String) row.get("FILEPATH"));
+      DicomInputStream din = new DicomInputStream(f);
+      din.readDicomObject();
+      din.close();
+      assertEquals("TransferSyntaxUID", din.getTransferSyntax().uid(), row.get("TRANSFERSYNTAXUID"));
+      assertEquals("FmiEndPosition", din.getEndOfFileMetaInfoPosition(), ((Number) row.get("FMIENDPOSITION")).longValue());
+      assertEquals("FileLength", f.length(), ((Number) row.get("FILELENGTH")).longValue());
+    }
+  }
 }
@@ -0,0 +1,88 @@
+package edu.mayo.qia.pacs.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import edu.mayo.qia.pacs.components.Device;
+import edu.mayo.qia.pacs.components.Pool;
+import edu.mayo.qia.pacs.dicom.DcmSnd;
+import edu.mayo.qia.pacs.dicom.FileMovedHandler;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+public class DcmSndTest extends PACSTest {
+
+  @Test
+  public void asynchronousStore() throws Exception {
+    String aet = UUID.randomUUID().toString().substring(0, 10);
+    Pool pool = createPool(new Pool(aet, aet, aet, false));
+    createDevice(new Device(".*", ".*", 1234, pool));
+
+    List<File> files = getTestSeries("TOF/*.dcm");
+    // A SOP class Notion does not accept, so one instance fails on its own
+    File rejected = files.get(0);
+
+    DcmSnd sender = new DcmSnd(aet);
+    sender.setMaxOpsInvoked(4);
+    sender.setRemoteHost("localhost");
+    sender.setRemotePort(DICOMPort);
+    sender.setCalledAET(aet);
+    sender.setCalling(aet);
+    for (File f : files) {
+      sender.addFile(f);
+    }
+    sender.addFile(new DcmSnd.FileInfo(rejected, "1.2.3.4.5.6.7.8.9", UUID.randomUUID().toString().replaceAll("[^0-9]", ""), "1.2.840.10008.1.2", 0, rejected.length()));
+    sender.configureTransferCapability();
+
+    final List<Integer> moved = Collections.synchronizedList(new ArrayList<Integer>());
+    final Map<File, Integer> failed = new ConcurrentHashMap<File, Integer>();
+    sender.open();
+    sender.send(new FileMovedHandler() {
+
+      @Override
+      public void fileMoved(int current, int total) {
+        moved.add(current);
+      }
+
+      @Override
+      public void fileFailed(File file, int status) {
+        failed.put(file, status);
+      }
+    });
+    sender.close();
+
+    // Every response is in before send returns
+    assertEquals("Moved", files.size(), moved.size());
+    assertEquals("Each reported once", files.size(), new HashSet<Integer>(moved).size());
+    assertEquals("Sent", files.size(), sender.getFilesSent());
+    assertEquals("Failed", 1, failed.size());
+    assertEquals("Failed status", new Integer(DcmSnd.NoPresentationContext), failed.get(rejected));
+
+    List<DcmSnd.FileInfo> infos = sender.getFiles();
+    assertEquals("Files", files.size() + 1, infos.size());
+    for (int i = 0; i < files.size(); i++) {
+      assertTrue("Transferred " + i, infos.get(i).isTransferred());
+      assertEquals("Status " + i, 0, infos.get(i).getStatus());
+    }
+    DcmSnd.FileInfo last = infos.get(files.size());
+    assertFalse("Rejected", last.isTransferred());
+    assertEquals("Rejected status", DcmSnd.NoPresentationContext, last.getStatus());
+    assertFalse("Not worth retrying", last.isRetryable());
+    assertEquals("Failed files", 1, sender.getFailed().size());
+
+    assertEquals("Instances", new Integer(files.size()), template.queryForObject("select count(*) from INSTANCE, SERIES, STUDY where INSTANCE.SeriesKey = SERIES.SeriesKey and SERIES.StudyKey = STUDY.StudyKey and STUDY.PoolKey = ?", Integer.class, pool.poolKey));
+  }
+}
@@ -0,0 +1,97 @@
+package edu.mayo.qia.pacs.test;
+
+import static org.junit.Assert.assertEquals;
+
+import org.dcm4che2.data.BasicDicomObject;
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
+import org.dcm4che2.data.UID;
+import org.dcm4che2.data.VR;
+import org.dcm4che2.net.Association;
+import org.dcm4che2.net.DicomServiceException;
+import org.dcm4che2.net.DimseRSP;
+import org.dcm4che2.net.NetworkApplicationEntity;
+import org.dcm4che2.net.NetworkConnection;
+import org.dcm4che2.net.PDVInputStream;
+import org.dcm4che2.net.Status;
+import org.dcm4che2.net.TransferCapability;
+import org.dcm4che2.net.service.StorageService;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.mayo.qia.pacs.Notion;
+import edu.mayo.qia.pacs.components.Device;
+import edu.mayo.qia.pacs.components.Pool;
+import edu.mayo.qia.pacs.dicom.StorageSCP;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+public class GetSCPTest extends PACSTest {
+
+  @Test
+  public void cget() throws Exception {
+    String aet = UUID.randomUUID().toString().substring(0, 10);
+    Pool pool = createPool(new Pool(aet, aet, aet, false));
+    // The requester is known; nothing listens on its port, C-GET never connects to it
+    createDevice(new Device(".*", ".*", 1234, pool));
+    List<File> testSeries = sendDICOM(aet, aet, "TOF/IMAGE00*.dcm");
+    String studyInstanceUID = template.queryForObject("select StudyInstanceUID from STUDY where PoolKey = ?", String.class, pool.poolKey);
+
+    final AtomicInteger received = new AtomicInteger();
+    NetworkApplicationEntity ae = new NetworkApplicationEntity();
+    NetworkConnection conn = new NetworkConnection();
+    org.dcm4che2.net.Device device = new org.dcm4che2.net.Device(aet);
+    device.setNetworkApplicationEntity(ae);
+    device.setNetworkConnection(conn);
+    ae.setNetworkConnection(conn);
+    ae.setAssociationInitiator(true);
+    ae.setAETitle(aet);
+    List<TransferCapability> tc = new ArrayList<TransferCapability>();
+    tc.add(new TransferCapability(UID.StudyRootQueryRetrieveInformationModelGET, new String[] { UID.ImplicitVRLittleEndian }, TransferCapability.SCU));
+    for (String cuid : StorageSCP.CUIDS) {
+      tc.add(new TransferCapability(cuid, new String[] { UID.ExplicitVRLittleEndian, UID.ImplicitVRLittleEndian }, TransferCapability.SCP));
+    }
+    ae.setTransferCapability(tc.toArray(new TransferCapability[] {}));
+    ae.register(new StorageService(StorageSCP.CUIDS) {
+      @Override
+      protected void onCStoreRQ(Association as, int pcid, DicomObject rq, PDVInputStream dataStream, String tsuid, DicomObject rsp) throws DicomServiceException {
+        try {
+          dataStream.skipAll();
+        } catch (IOException e) {
+          throw new DicomServiceException(rq, Status.ProcessingFailure, e.getMessage());
+        }
+        received.incrementAndGet();
+      }
+    });
+
+    NetworkApplicationEntity remoteAE = new NetworkApplicationEntity();
+    NetworkConnection remoteConn = new NetworkConnection();
+    remoteConn.setHostname("localhost");
+    remoteConn.setPort(DICOMPort);
+    remoteAE.setNetworkConnection(remoteConn);
+    remoteAE.setAssociationAcceptor(true);
+    remoteAE.setAETitle(aet);
+
+    Association as = ae.connect(remoteAE, Notion.executor);
+    DicomObject keys = new BasicDicomObject();
+    keys.putString(Tag.QueryRetrieveLevel, VR.CS, "STUDY");
+    keys.putString(Tag.StudyInstanceUID, VR.UI, studyInstanceUID);
+    DimseRSP rsp = as.cget(UID.StudyRootQueryRetrieveInformationModelGET, 0, keys, UID.ImplicitVRLittleEndian);
+    DicomObject command = null;
+    while (rsp.next()) {
+      command = rsp.getCommand();
+    }
+    as.release(true);
+
+    assertEquals("Status", Status.Success, command.getInt(Tag.Status));
+    assertEquals("Completed", testSeries.size(), command.getInt(Tag.NumberOfCompletedSuboperations));
+    assertEquals("Received", testSeries.size(), received.get());
+  }
+}
@@ -0,0 +1,93 @@
+package edu.mayo.qia.pacs.test;
+
+import static org.junit.Assert.assertEquals;
+
+import javax.ws.rs.core.UriBuilder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.jersey.api.client.ClientResponse;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.net.URI;
+import java.sql.Timestamp;
+import java.util.UUID;
+
+import edu.mayo.qia.pacs.components.Device;
+import edu.mayo.qia.pacs.components.Pool;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+public class JobEngineTest extends PACSTest {
+
+  @Test
+  public void bulkDelete() throws Exception {
+    String aet = UUID.randomUUID().toString().substring(0, 10);
+    Pool pool = createPool(new Pool(aet, aet, aet, false));
+    createDevice(new Device(".*", ".*", 1234, pool));
+    sendDICOM(aet, aet, "TOF/*001.dcm");
+    int studyKey = template.queryForObject("select StudyKey from STUDY where PoolKey = ?", Integer.class, pool.poolKey);
+
+    URI uri = UriBuilder.fromUri(baseUri).path("/pool/" + pool.poolKey + "/studies/delete").build();
+    ObjectNode json = new ObjectMapper().createObjectNode();
+    json.putArray("studyKeys").add(studyKey);
+    ClientResponse response = client.resource(uri).type(JSON).accept(JSON).put(ClientResponse.class, json);
+    assertEquals("Got result", 200, response.getStatus());
+    int jobKey = response.getEntity(ObjectNode.class).get("jobKey").intValue();
+
+    assertEquals("Status", "completed", waitForJob(jobKey));
+    assertEquals("Completed", new Integer(1), template.queryForObject("select Completed from JOB where JobKey = ?", Integer.class, jobKey));
+    assertEquals("STUDY", new Integer(0), template.queryForObject("select count(*) from STUDY where PoolKey = ?", Integer.class, pool.poolKey));
+
+    uri = UriBuilder.fromUri(baseUri).path("/pool/" + pool.poolKey + "/job").build();
+    response = client.resource(uri).accept(JSON).get(ClientResponse.class);
+    assertEquals("Got result", 200, response.getStatus());
+    assertEquals("Jobs", 1, response.getEntity(ObjectNode.class).withArray("job").size());
+  }
+
+  @Test
+  public void bulkDeleteWithoutStudies() throws Exception {
+    String aet = UUID.randomUUID().toString().substring(0, 10);
+    Pool pool = createPool(new Pool(aet, aet, aet, false));
+    URI uri = UriBuilder.fromUri(baseUri).path("/pool/" + pool.poolKey + "/studies/delete").build();
+    ClientResponse response = client.resource(uri).type(JSON).accept(JSON).put(ClientResponse.class, new ObjectMapper().createObjectNode());
+    assertEquals("Got result", 400, response.getStatus());
+  }
+
+  @Test
+  public void resume() throws Exception {
+    String aet = UUID.randomUUID().toString().substring(0, 10);
+    Pool pool = createPool(new Pool(aet, aet, aet, false));
+    createDevice(new Device(".*", ".*", 1234, pool));
+    sendDICOM(aet, aet, "TOF/*001.dcm");
+    int studyKey = template.queryForObject("select StudyKey from STUDY where PoolKey = ?", Integer.class, pool.poolKey);
+
+    // A job left running by a server that went away, one step done
+    Timestamp now = new Timestamp(System.currentTimeMillis());
+    Timestamp expired = new Timestamp(now.getTime() - 60000);
+    template.update("insert into JOB ( Type, Status, PoolKey, Owner, LeaseExpires, Attempts, Total, Completed, CreatedTime, UpdatedTime ) values ( 'delete', 'running', ?, 'gone', ?, 1, 2, 1, ?, ? )", pool.poolKey, expired, now,
+        now);
+    int jobKey = template.queryForObject("select max(JobKey) from JOB where PoolKey = ?", Integer.class, pool.poolKey);
+    template.update("insert into JOBSTEP ( JobKey, StepKey, Status ) values ( ?, ?, 'done' )", jobKey, -1);
+    template.update("insert into JOBSTEP ( JobKey, StepKey ) values ( ?, ? )", jobKey, studyKey);
+
+    assertEquals("Status", "completed", waitForJob(jobKey));
+    assertEquals("Attempts", new Integer(2), template.queryForObject("select Attempts from JOB where JobKey = ?", Integer.class, jobKey));
+    assertEquals("Completed", new Integer(2), template.queryForObject("select Completed from JOB where JobKey = ?", Integer.class, jobKey));
+    assertEquals("STUDY", new Integer(0), template.queryForObject("select count(*) from STUDY where PoolKey = ?", Integer.class, pool.poolKey));
+  }
+
+  String waitForJob(int jobKey) throws Exception {
+    String status = null;
+    for (int i = 0; i < 20; i++) {
+      status = template.queryForObject("select Status from JOB where JobKey = ?", String.class, jobKey);
+      if (status.equals("completed") || status.equals("failed")) {
+        break;
+      }
+      Thread.sleep(500);
+    }
+    return status;
+  }
+}
@@ -0,0 +1,100 @@
+package edu.mayo.qia.pacs.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.io.File;
+import java.util.List;
+import java.util.UUID;
+
+import edu.mayo.qia.pacs.components.Device;
+import edu.mayo.qia.pacs.components.MoveJob;
+import edu.mayo.qia.pacs.components.MoveStatus;
+import edu.mayo.qia.pacs.components.Pool;
+import edu.mayo.qia.pacs.components.PoolContainer;
+import edu.mayo.qia.pacs.components.PoolManager;
+import edu.mayo.qia.pacs.dicom.DcmQR;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+public class MoveJobTest extends PACSTest {
+
+  @Autowired
+  PoolManager poolManager;
+
+  @Test
+  public void resume() throws Exception {
+    String aet = UUID.randomUUID().toString().substring(0, 10);
+    Pool pool = createPool(new Pool(aet, aet, aet, false));
+    createDevice(new Device(".*", ".*", 1234, pool));
+    String destination = UUID.randomUUID().toString().substring(0, 10);
+    Pool destinationPool = createPool(new Pool(destination, destination, destination, false));
+    createDevice(new Device(".*", ".*", 1234, destinationPool));
+    createDevice(new Device(destination, "localhost", DICOMPort, pool));
+
+    List<File> testSeries = sendDICOM(aet, aet, "TOF/IMAGE00*.dcm");
+    String studyInstanceUID = template.queryForObject("select StudyInstanceUID from STUDY where PoolKey = ?", String.class, pool.poolKey);
+    String sent = template.queryForObject("select min(INSTANCE.SOPInstanceUID) from INSTANCE, SERIES, STUDY where INSTANCE.SeriesKey = SERIES.SeriesKey and SERIES.StudyKey = STUDY.StudyKey and STUDY.PoolKey = ?",
+        String.class, pool.poolKey);
+
+    // An earlier move that failed after sending one instance
+    MoveJob job = MoveJob.open(template, pool.poolKey, destination, studyInstanceUID, 24);
+    job.done(sent);
+    assertFalse("Incomplete", job.finish(testSeries.size()));
+
+    move(aet, destination, studyInstanceUID);
+    assertEquals("Resumed", new Integer(testSeries.size() - 1), countInstances(destinationPool));
+    assertEquals("Completed", "completed", template.queryForObject("select Status from MOVEJOB where MoveJobKey = ?", String.class, job.moveJobKey));
+    assertEquals("Items", new Integer(0), template.queryForObject("select count(*) from MOVEITEM where MoveJobKey = ?", Integer.class, job.moveJobKey));
+
+    // Once complete, a new move sends everything
+    move(aet, destination, studyInstanceUID);
+    assertEquals("Moved", new Integer(testSeries.size()), countInstances(destinationPool));
+  }
+
+  @Test
+  public void ingestFailure() throws Exception {
+    String aet = UUID.randomUUID().toString().substring(0, 10);
+    Pool pool = createPool(new Pool(aet, aet, aet, false));
+    createDevice(new Device(".*", ".*", 1234, pool));
+    String destination = UUID.randomUUID().toString().substring(0, 10);
+    Pool destinationPool = createPool(new Pool(destination, destination, destination, false));
+
+    List<File> testSeries = sendDICOM(aet, aet, "TOF/IMAGE00*.dcm");
+    String studyInstanceUID = template.queryForObject("select StudyInstanceUID from STUDY where PoolKey = ?", String.class, pool.poolKey);
+
+    // Nothing can be stored under the destination's sorted directory
+    PoolContainer destinationContainer = poolManager.getContainer(destinationPool.poolKey);
+    File sorted = new File(destinationContainer.getPoolDirectory(), "sorted");
+    sorted.getParentFile().mkdirs();
+    assertTrue("Created " + sorted, sorted.createNewFile());
+    try {
+      assertFalse("Moved", poolManager.getContainer(pool.poolKey).moveStudyTo(studyInstanceUID, destinationContainer, new MoveStatus()));
+    } finally {
+      sorted.delete();
+    }
+    assertEquals("Failed", new Integer(testSeries.size()),
+        template.queryForObject("select count(*) from MOVEITEM, MOVEJOB where MOVEITEM.MoveJobKey = MOVEJOB.MoveJobKey and MOVEJOB.PoolKey = ? and MOVEITEM.Status = 'failed'", Integer.class, pool.poolKey));
+    assertEquals("Destination", new Integer(0), countInstances(destinationPool));
+    assertEquals("Source kept", new Integer(testSeries.size()), countInstances(pool));
+  }
+
+  void move(String aet, String destination, String studyInstanceUID) throws Exception {
+    DcmQR dcmQR = new DcmQR();
+    dcmQR.setRemoteHost("localhost");
+    dcmQR.setRemotePort(DICOMPort);
+    dcmQR.setCalledAET(aet);
+    dcmQR.setCalling(aet);
+    dcmQR.setMoveDest(destination);
+    dcmQR.qrStudy(studyInstanceUID);
+  }
+
+  Integer countInstances(Pool pool) {
+    return template.queryForObject("select count(*) from INSTANCE, SERIES, STUDY where INSTANCE.SeriesKey = SERIES.SeriesKey and SERIES.StudyKey = STUDY.StudyKey and STUDY.PoolKey = ?", Integer.class, pool.poolKey);
+  }
+}
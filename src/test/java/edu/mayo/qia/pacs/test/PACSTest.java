@@ -166,6 +166,7 @@ public class PACSTest implements ApplicationContextInitializer<GenericApplicatio
       config("server.connector.port", Integer.toString(RESTPort)),
       config("dbWeb", Integer.toString(DBPort)),
       config("notion.imageDirectory", tempDirectory.toString()),
+      config("notion.moveAssociations", "2"),
       config("shiro.iniConfigs", "classpath:shiro.ini"));
   // @formatter:on
 
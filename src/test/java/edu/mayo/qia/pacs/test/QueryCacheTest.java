@@ -0,0 +1,44 @@
+package edu.mayo.qia.pacs.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import edu.mayo.qia.pacs.components.QueryCache;
+
+public class QueryCacheTest extends PACSTest {
+
+  @Test
+  public void invalidate() {
+    QueryCache cache = new QueryCache(60 * 1000, 10);
+    long generation = cache.generation();
+    cache.put("a", generation, "A");
+    assertEquals("A", cache.get("a"));
+
+    // A change to the pool drops the result
+    cache.invalidate();
+    assertNull(cache.get("a"));
+
+    // A result computed before the change is never stored
+    cache.put("a", generation, "A");
+    assertNull(cache.get("a"));
+    assertEquals(1, cache.getHits().getCount());
+    assertEquals(2, cache.getMisses().getCount());
+  }
+
+  @Test
+  public void expireAndEvict() throws Exception {
+    QueryCache cache = new QueryCache(50, 2);
+    cache.put("a", cache.generation(), "A");
+    Thread.sleep(100);
+    assertNull(cache.get("a"));
+
+    cache = new QueryCache(60 * 1000, 2);
+    cache.put("a", cache.generation(), "A");
+    cache.put("b", cache.generation(), "B");
+    cache.put("c", cache.generation(), "C");
+    assertNull(cache.get("a"));
+    assertEquals("C", cache.get("c"));
+  }
+}
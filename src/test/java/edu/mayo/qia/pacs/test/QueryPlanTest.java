@@ -0,0 +1,191 @@
+package edu.mayo.qia.pacs.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import javax.ws.rs.core.UriBuilder;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.jersey.api.client.ClientResponse;
+
+import org.dcm4che2.data.Tag;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.net.URI;
+import java.sql.Connection;
+import java.sql.ParameterMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import edu.mayo.qia.pacs.components.Device;
+import edu.mayo.qia.pacs.components.Pool;
+import edu.mayo.qia.pacs.dicom.DcmQR;
+
+/**
+ * Runs the hot paths (receive, C-FIND, C-MOVE, REST searches and delete)
+ * against a database with many pools, then replays every statement Derby
+ * compiled for them with runtime statistics on and fails if any of them scans
+ * STUDY, SERIES or INSTANCE.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+public class QueryPlanTest extends PACSTest {
+  static final Pattern HotTables = Pattern.compile("\\b(STUDY|SERIES|INSTANCE)\\b", Pattern.CASE_INSENSITIVE);
+  static final Pattern TableScan = Pattern.compile("Table Scan ResultSet for (STUDY|SERIES|INSTANCE)\\b");
+
+  @Test
+  public void noTableScans() throws Exception {
+    try {
+      checkPlans();
+    } finally {
+      template.update("delete from STUDY where PoolKey < 0");
+    }
+  }
+
+  void checkPlans() throws Exception {
+    fillPools(50, 20);
+    for (String table : new String[] { "STUDY", "SERIES", "INSTANCE" }) {
+      template.update("CALL SYSCS_UTIL.SYSCS_UPDATE_STATISTICS('APP', ?, null)", table);
+    }
+    template.update("CALL SYSCS_UTIL.SYSCS_EMPTY_STATEMENT_CACHE()");
+
+    // Receive
+    String aet = UUID.randomUUID().toString().substring(0, 10);
+    Pool pool = createPool(new Pool(aet, aet, aet, false));
+    createDevice(new Device(".*", ".*", 1234, pool));
+    String destination = UUID.randomUUID().toString().substring(0, 10);
+    Pool destinationPool = createPool(new Pool(destination, destination, destination, false));
+    createDevice(new Device(".*", ".*", 1234, destinationPool));
+    createDevice(new Device(destination, "localhost", DICOMPort, pool));
+    sendDICOM(aet, aet, "TOF/*001.dcm");
+    String studyInstanceUID = template.queryForObject("select StudyInstanceUID from STUDY where PoolKey = ?", String.class, pool.poolKey);
+
+    // C-FIND and C-MOVE
+    DcmQR dcmQR = new DcmQR();
+    dcmQR.setRemoteHost("localhost");
+    dcmQR.setRemotePort(DICOMPort);
+    dcmQR.setCalledAET(aet);
+    dcmQR.setCalling(aet);
+    dcmQR.setMoveDest(destination);
+    dcmQR.qrStudy(studyInstanceUID);
+    assertEquals("Moved", new Integer(1), template.queryForObject("select count(*) from STUDY where PoolKey = ?", Integer.class, destinationPool.poolKey));
+
+    dcmQR = new DcmQR();
+    dcmQR.setRemoteHost("localhost");
+    dcmQR.setRemotePort(DICOMPort);
+    dcmQR.setCalledAET(aet);
+    dcmQR.setCalling(aet);
+    dcmQR.open();
+    dcmQR.addMatchingKey(new int[] { Tag.ModalitiesInStudy }, null);
+    dcmQR.addMatchingKey(new int[] { Tag.NumberOfStudyRelatedInstances }, null);
+    dcmQR.query();
+    dcmQR.close();
+
+    // REST
+    String base = "/pool/" + pool.poolKey;
+    ClientResponse response = client.resource(UriBuilder.fromUri(baseUri).path(base + "/studies").build()).type(JSON).accept(JSON).post(ClientResponse.class, objectMapper.createObjectNode().put("PatientName", "MRA"));
+    assertEquals(200, response.getStatus());
+    ObjectNode json = response.getEntity(ObjectNode.class);
+    int studyKey = json.withArray("Records").get(0).get("StudyKey").intValue();
+    for (String path : new String[] { "/studies", "/series", "/instances", "/studies/" + studyInstanceUID + "/series", "/statistics", "/viewer/studies", "/viewer/study/" + studyKey + "/series" }) {
+      URI uri = UriBuilder.fromUri(baseUri).path(base + path).build();
+      assertEquals(path, 200, client.resource(uri).accept(JSON).get(ClientResponse.class).getStatus());
+    }
+    assertEquals(200, client.resource(UriBuilder.fromUri(baseUri).path(base + "/studies/" + studyKey).build()).delete(ClientResponse.class).getStatus());
+
+    // Replay everything Derby compiled for the hot tables
+    List<String> failures = new ArrayList<String>();
+    int checked = 0;
+    for (String sql : template.queryForList("select SQL_TEXT from SYSCS_DIAG.STATEMENT_CACHE", String.class)) {
+      if (sql == null || !sql.trim().toUpperCase().startsWith("SELECT") || sql.toUpperCase().contains("SYSCS") || !HotTables.matcher(sql).find()) {
+        continue;
+      }
+      checked++;
+      String plan = plan(sql);
+      Matcher matcher = TableScan.matcher(plan);
+      if (matcher.find()) {
+        failures.add(matcher.group() + " in\n\t" + sql + "\n" + plan);
+      }
+    }
+    assertTrue("Found queries to check", checked > 10);
+    assertTrue(failures.size() + " of " + checked + " queries scan a table:\n" + failures, failures.isEmpty());
+  }
+
+  /** Bulk load studies into fake pools, so the optimizer sees a realistic database */
+  void fillPools(int pools, int studiesPerPool) {
+    for (int p = 1; p <= pools; p++) {
+      for (int s = 0; s < studiesPerPool; s++) {
+        final String uid = "1.2.826.0.1.3680043.9.7433." + p + "." + s;
+        template.update("insert into STUDY ( PoolKey, StudyInstanceUID, PatientName, PatientID ) values ( ?, ?, ?, ? )", -p, uid, "Filler^" + s, Integer.toString(s));
+        final int studyKey = template.queryForObject("select StudyKey from STUDY where PoolKey = ? and StudyInstanceUID = ?", Integer.class, -p, uid);
+        for (int i = 1; i <= 2; i++) {
+          final String seriesUID = uid + "." + i;
+          template.update("insert into SERIES ( StudyKey, SeriesInstanceUID, Modality ) values ( ?, ?, 'MR' )", studyKey, seriesUID);
+          final int seriesKey = template.queryForObject("select SeriesKey from SERIES where StudyKey = ? and SeriesInstanceUID = ?", Integer.class, studyKey, seriesUID);
+          template.batchUpdate("insert into INSTANCE ( SeriesKey, SOPInstanceUID, SOPClassUID, FilePath ) values ( ?, ?, '1.2.840.10008.5.1.4.1.1.4', 'none' )", new BatchPreparedStatementSetter() {
+
+            @Override
+            public void setValues(PreparedStatement ps, int i) throws SQLException {
+              ps.setInt(1, seriesKey);
+              ps.setString(2, seriesUID + "." + i);
+            }
+
+            @Override
+            public int getBatchSize() {
+              return 4;
+            }
+          });
+        }
+      }
+    }
+  }
+
+  /** Run the statement with dummy parameters and return Derby's plan */
+  String plan(String sql) throws SQLException {
+    Connection connection = template.getDataSource().getConnection();
+    try {
+      connection.prepareCall("CALL SYSCS_UTIL.SYSCS_SET_RUNTIMESTATISTICS(1)").execute();
+      PreparedStatement ps = connection.prepareStatement(sql);
+      ParameterMetaData metaData = ps.getParameterMetaData();
+      for (int i = 1; i <= metaData.getParameterCount(); i++) {
+        switch (metaData.getParameterType(i)) {
+        case Types.INTEGER:
+        case Types.BIGINT:
+        case Types.SMALLINT:
+          ps.setInt(i, 1);
+          break;
+        case Types.TIMESTAMP:
+        case Types.DATE:
+          ps.setTimestamp(i, new Timestamp(0));
+          break;
+        default:
+          ps.setString(i, "");
+        }
+      }
+      ResultSet rs = ps.executeQuery();
+      while (rs.next()) {
+        // Read the whole result
+      }
+      rs.close();
+      ps.close();
+      rs = connection.createStatement().executeQuery("VALUES SYSCS_UTIL.SYSCS_GET_RUNTIMESTATISTICS()");
+      rs.next();
+      String plan = rs.getString(1);
+      rs.close();
+      return plan == null ? "" : plan;
+    } finally {
+      connection.prepareCall("CALL SYSCS_UTIL.SYSCS_SET_RUNTIMESTATISTICS(0)").execute();
+      connection.close();
+    }
+  }
+}
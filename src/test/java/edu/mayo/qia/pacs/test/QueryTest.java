@@ -2,12 +2,14 @@ package edu.mayo.qia.pacs.test;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import javax.sql.DataSource;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.UriBuilder;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.sun.jersey.api.client.ClientResponse;
 import com.sun.jersey.api.client.WebResource;
@@ -27,15 +29,21 @@ import org.springframework.core.io.Resource;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
+import java.io.File;
 import java.io.InputStream;
 import java.net.URI;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 import edu.mayo.qia.pacs.Notion;
+import edu.mayo.qia.pacs.NotionConfiguration;
 import edu.mayo.qia.pacs.components.Connector;
 import edu.mayo.qia.pacs.components.Device;
 import edu.mayo.qia.pacs.components.Item;
 import edu.mayo.qia.pacs.components.Pool;
+import edu.mayo.qia.pacs.components.PoolManager;
 import edu.mayo.qia.pacs.components.Query;
 import edu.mayo.qia.pacs.components.Result;
 
@@ -51,6 +59,9 @@ public class QueryTest extends PACSTest {
   @Autowired
   DataSource dataSource;
 
+  @Autowired
+  PoolManager poolManager;
+
   InputStream getResource(String fileName) throws Exception {
     Resource resource = Notion.context.getResource("classpath:" + fileName);
     return resource.getInputStream();
@@ -133,6 +144,26 @@ public class QueryTest extends PACSTest {
 
   }
 
+  @Test
+  public void constructFromCSV() throws Exception {
+    InputStream is = getResource("Query/QueryTemplate.csv");
+    try {
+      Query query = Query.constructQuery("QueryTemplate.csv", is);
+      assertEquals(2, query.items.size());
+      for (Item item : query.items) {
+        if (item.patientID.equals("MRA-0068")) {
+          assertEquals("M-01", item.anonymizedID);
+          assertEquals(null, item.accessionNumber);
+        } else {
+          assertEquals("123456", item.patientID);
+          assertEquals("Hurt John", item.patientName);
+        }
+      }
+    } finally {
+      is.close();
+    }
+  }
+
   @Test
   public void executeQuery() throws Exception {
     // My pool
@@ -367,4 +398,260 @@ public class QueryTest extends PACSTest {
 
   }
 
+  @Test
+  public void parallelQuery() throws Exception {
+    Fixture fixture = new Fixture();
+    sendDICOM(fixture.pacsPool.applicationEntityTitle, fixture.destinationPool.applicationEntityTitle, "TOF/IMAGE001.dcm");
+    sendDICOM(fixture.pacsPool.applicationEntityTitle, fixture.destinationPool.applicationEntityTitle, "CTE/*001.dcm");
+
+    // More rows than associations, so each association answers several rows
+    // with different keys. Expected PatientID of the match, or null for none.
+    Map<String, String> expected = new HashMap<String, String>();
+    expected.put("MRA-0068/", "MRA-0068");
+    expected.put("MRA-0068/MRA-0068", "MRA-0068");
+    expected.put("MRA-0068/CTE^4", null);
+    expected.put("4/", "4");
+    expected.put("4/CTE^4", "4");
+    expected.put("4/MRA-0068", null);
+    expected.put("nobody/", null);
+    expected.put("nobody/CTE^4", null);
+    ObjectNode node = new ObjectMapper().createObjectNode();
+    ArrayNode items = node.putArray("items");
+    for (String key : expected.keySet()) {
+      String[] keys = key.split("/", -1);
+      ObjectNode item = items.addObject();
+      item.put("PatientID", keys[0]);
+      if (keys[1].length() > 0) {
+        item.put("PatientName", keys[1]);
+      }
+    }
+
+    long created = Notion.metrics.meter("DICOM.association.pool.created").getCount();
+    Query query = fixture.query(node);
+    query = fixture.waitFor(query, "query completed");
+    assertTrue("Associations reused, " + (Notion.metrics.meter("DICOM.association.pool.created").getCount() - created) + " opened",
+        Notion.metrics.meter("DICOM.association.pool.created").getCount() - created <= Notion.context.getBean(NotionConfiguration.class).notion.queryAssociations);
+
+    assertEquals("Items", expected.size(), query.items.size());
+    for (Item item : query.items) {
+      String key = item.patientID + "/" + (item.patientName == null ? "" : item.patientName);
+      assertTrue("Expected " + key, expected.containsKey(key));
+      assertEquals("Status of " + key, "query complete", item.status);
+      String patientID = expected.get(key);
+      assertEquals("Results of " + key, patientID == null ? 0 : 1, item.items.size());
+      for (Result result : item.items) {
+        assertEquals("Result of " + key, patientID, result.patientID);
+        assertEquals("Result status of " + key, "success", result.status);
+      }
+    }
+  }
+
+  @Test
+  public void retryFetch() throws Exception {
+    Fixture fixture = new Fixture();
+    sendDICOM(fixture.pacsPool.applicationEntityTitle, fixture.destinationPool.applicationEntityTitle, "TOF/IMAGE001.dcm");
+    sendDICOM(fixture.pacsPool.applicationEntityTitle, fixture.destinationPool.applicationEntityTitle, "CTE/*001.dcm");
+    // Until the port is corrected, the PACS can not send the study, a
+    // failure worth retrying
+    template.update("update DEVICE set Port = ? where DeviceKey = ?", findFreePort(DICOMPort + 1), fixture.moveDestination.deviceKey);
+
+    ObjectNode node = new ObjectMapper().createObjectNode();
+    node.putArray("items").addObject().put("PatientID", "MRA-0068");
+    ((ArrayNode) node.get("items")).addObject().put("PatientID", "4");
+    Query query = fixture.waitFor(fixture.query(node), "query completed");
+    Result moved = null;
+    Result missing = null;
+    for (Item item : query.items) {
+      for (Result result : item.items) {
+        if (item.patientID.equals("4")) {
+          missing = result;
+        } else {
+          moved = result;
+        }
+      }
+    }
+    // The PACS does not have this study, so it will never be moved
+    template.update("update QUERYRESULT set StudyInstanceUID = ? where QueryResultKey = ?", "1.2.3.4.5.6.7.8.9", missing.queryResultKey);
+
+    NotionConfiguration configuration = Notion.context.getBean(NotionConfiguration.class);
+    int fetchRetrySeconds = configuration.notion.fetchRetrySeconds;
+    configuration.notion.fetchRetrySeconds = 3;
+    try {
+      long start = System.currentTimeMillis();
+      fixture.fetch(query);
+
+      // Failed for good, while the other waits to try again
+      waitForStatus(missing, "fail");
+      assertTrue("Not retried", System.currentTimeMillis() - start < 1000L * configuration.notion.fetchRetrySeconds);
+      assertEquals("fail: no images received", resultStatus(missing));
+      waitForStatus(moved, "retrying");
+      Query.FetchProgress progress = query.getFetchProgress();
+      assertEquals("Total", 2, progress.total);
+      assertEquals("Completed", 0, progress.getCompleted());
+      assertEquals("Failed", 1, progress.getFailed());
+
+      template.update("update DEVICE set Port = ? where DeviceKey = ?", DICOMPort, fixture.moveDestination.deviceKey);
+      fixture.waitFor(query, "fetch completed");
+    } finally {
+      configuration.notion.fetchRetrySeconds = fetchRetrySeconds;
+    }
+
+    assertEquals("completed", resultStatus(moved));
+    assertEquals("fail: no images received", resultStatus(missing));
+    assertEquals("Progress once done", null, query.getFetchProgress());
+    assertEquals(1, (int) template.queryForObject("select count(*) from STUDY where PoolKey = ?", Integer.class, fixture.pool.poolKey));
+    assertEquals(0, (int) template.queryForObject("select count(*) from STUDY where PoolKey = ?", Integer.class, fixture.destinationPool.poolKey));
+  }
+
+  @Test
+  public void routedFetch() throws Exception {
+    Fixture fixture = new Fixture();
+    List<File> files = sendDICOM(fixture.pacsPool.applicationEntityTitle, fixture.destinationPool.applicationEntityTitle, "TOF/IMAGE00*.dcm");
+    ObjectNode node = new ObjectMapper().createObjectNode();
+    node.putArray("items").addObject().put("PatientID", "MRA-0068");
+    Query query = fixture.waitFor(fixture.query(node), "query completed");
+    Result result = query.items.iterator().next().items.iterator().next();
+
+    long routed = Notion.metrics.meter("Fetch.routed").getCount();
+    fixture.fetch(query);
+    fixture.waitFor(query, "fetch completed");
+
+    // Processed by the query's pool as they arrived, never stored in the
+    // destination pool
+    assertEquals("Routed", routed + files.size(), Notion.metrics.meter("Fetch.routed").getCount());
+    assertEquals("Destination instances", 0, (int) template.queryForObject("select count(*) from INSTANCE, SERIES, STUDY where INSTANCE.SeriesKey = SERIES.SeriesKey and SERIES.StudyKey = STUDY.StudyKey and STUDY.PoolKey = ?", Integer.class, fixture.destinationPool.poolKey));
+    assertEquals("Instances", files.size(), (int) template.queryForObject("select count(*) from INSTANCE, SERIES, STUDY where INSTANCE.SeriesKey = SERIES.SeriesKey and SERIES.StudyKey = STUDY.StudyKey and STUDY.PoolKey = ?", Integer.class, fixture.pool.poolKey));
+
+    // The result points at the study in the query's pool
+    Integer studyKey = template.queryForObject("select StudyKey from STUDY where PoolKey = ? and StudyInstanceUID = ?", Integer.class, fixture.pool.poolKey, result.studyInstanceUID);
+    assertEquals("completed", resultStatus(result));
+    assertEquals("StudyKey", studyKey, template.queryForObject("select StudyKey from QUERYRESULT where QueryResultKey = ?", Integer.class, result.queryResultKey));
+
+    // Progress is cleared, and the job records one study fetched
+    assertEquals("Progress once done", null, query.getFetchProgress());
+    for (int i = 0; i < 50 && !"completed".equals(template.queryForObject("select Status from JOB where Type = 'fetch' and TargetKey = ?", String.class, query.queryKey)); i++) {
+      Thread.sleep(100);
+    }
+    Map<String, Object> job = template.queryForMap("select Status, Total, Completed, Failed from JOB where Type = 'fetch' and TargetKey = ?", query.queryKey);
+    assertEquals("Job", "completed", job.get("STATUS"));
+    assertEquals("Total", 1, ((Number) job.get("TOTAL")).intValue());
+    assertEquals("Completed", 1, ((Number) job.get("COMPLETED")).intValue());
+    assertEquals("Failed", 0, ((Number) job.get("FAILED")).intValue());
+  }
+
+  @Test
+  public void routedFetchFailure() throws Exception {
+    Fixture fixture = new Fixture();
+    sendDICOM(fixture.pacsPool.applicationEntityTitle, fixture.destinationPool.applicationEntityTitle, "TOF/IMAGE00*.dcm");
+    ObjectNode node = new ObjectMapper().createObjectNode();
+    node.putArray("items").addObject().put("PatientID", "MRA-0068");
+    Query query = fixture.waitFor(fixture.query(node), "query completed");
+    Result result = query.items.iterator().next().items.iterator().next();
+
+    // The query's pool can not store anything under its sorted directory
+    File sorted = new File(poolManager.getContainer(fixture.pool.poolKey).getPoolDirectory(), "sorted");
+    sorted.getParentFile().mkdirs();
+    assertTrue("Created " + sorted, sorted.createNewFile());
+    try {
+      fixture.fetch(query);
+      fixture.waitFor(query, "fetch completed");
+    } finally {
+      sorted.delete();
+    }
+
+    assertTrue("Failed -- " + resultStatus(result), resultStatus(result).startsWith("fail: could not store"));
+    assertEquals("Instances", 0, (int) template.queryForObject("select count(*) from INSTANCE, SERIES, STUDY where INSTANCE.SeriesKey = SERIES.SeriesKey and SERIES.StudyKey = STUDY.StudyKey and STUDY.PoolKey = ?", Integer.class, fixture.pool.poolKey));
+  }
+
+  String resultStatus(Result result) {
+    return template.queryForObject("select Status from QUERYRESULT where QueryResultKey = ?", String.class, result.queryResultKey);
+  }
+
+  void waitForStatus(Result result, String status) throws Exception {
+    for (int i = 0; i < 200; i++) {
+      if (resultStatus(result).startsWith(status)) {
+        return;
+      }
+      Thread.sleep(50);
+    }
+    fail("Waiting for " + status + " -- " + resultStatus(result));
+  }
+
+  /**
+   * A pool querying a "PACS" pool through a destination pool, the images flow
+   * from PACS to the destination pool to the pool.
+   */
+  class Fixture {
+    final Pool pool;
+    final Pool pacsPool;
+    final Pool destinationPool;
+    /** How the PACS pool reaches the destination pool */
+    final Device moveDestination;
+    final Device queryDevice;
+    final Connector connector;
+
+    Fixture() throws Exception {
+      String aet = UUID.randomUUID().toString().substring(0, 10);
+      pool = createPool(new Pool(aet, aet, aet, false));
+      aet = UUID.randomUUID().toString().substring(0, 10);
+      pacsPool = createPool(new Pool(aet, aet, aet, false));
+      aet = UUID.randomUUID().toString().substring(0, 10);
+      destinationPool = createPool(new Pool(aet, aet, aet, false));
+
+      moveDestination = createDevice(new Device(destinationPool.applicationEntityTitle, "localhost", DICOMPort, pacsPool));
+      createDevice(new Device(pacsPool.applicationEntityTitle, "localhost", DICOMPort, destinationPool));
+      queryDevice = createDevice(new Device(pacsPool.applicationEntityTitle, "localhost", DICOMPort, destinationPool.applicationEntityTitle, destinationPool));
+
+      Connector c = new Connector();
+      c.name = "Connection to " + pacsPool.applicationEntityTitle;
+      c.destinationPoolKey = destinationPool.poolKey;
+      c.queryPoolKey = destinationPool.poolKey;
+      c.queryDeviceKey = queryDevice.deviceKey;
+      connector = createConnector(c);
+    }
+
+    /** Start a simple query of <code>node</code>'s items. */
+    Query query(ObjectNode node) {
+      node.put("connectorKey", connector.connectorKey);
+      URI uri = UriBuilder.fromUri(baseUri).path("/pool").path(Integer.toString(pool.poolKey)).path("query").path("simple").build();
+      ClientResponse response = client.resource(uri).type(JSON).accept(JSON).put(ClientResponse.class, node);
+      assertEquals("Query created", 200, response.getStatus());
+      return response.getEntity(Query.class);
+    }
+
+    Query get(Query query) {
+      URI uri = UriBuilder.fromUri(baseUri).path("/pool").path(Integer.toString(pool.poolKey)).path("query").path(Integer.toString(query.queryKey)).build();
+      ClientResponse response = client.resource(uri).accept(JSON).get(ClientResponse.class);
+      assertEquals("Got result", 200, response.getStatus());
+      return response.getEntity(Query.class);
+    }
+
+    /** Fetch every result of the query. */
+    void fetch(Query query) {
+      for (Item item : query.items) {
+        for (Result result : item.items) {
+          result.doFetch = true;
+        }
+      }
+      URI uri = UriBuilder.fromUri(baseUri).path("/pool").path(Integer.toString(pool.poolKey)).path("query").path(Integer.toString(query.queryKey)).build();
+      ClientResponse response = client.resource(uri).type(JSON).accept(JSON).put(ClientResponse.class, query);
+      assertEquals(200, response.getStatus());
+      response = client.resource(UriBuilder.fromUri(uri).path("fetch").build()).accept(JSON).put(ClientResponse.class);
+      assertEquals(200, response.getStatus());
+    }
+
+    /** The query, once its status starts with <code>status</code>. */
+    Query waitFor(Query query, String status) throws Exception {
+      for (int i = 0; i < 60; i++) {
+        query = get(query);
+        if (query.status.startsWith(status)) {
+          return query;
+        }
+        Thread.sleep(500);
+      }
+      fail("Waiting for " + status + " -- " + query.status);
+      return query;
+    }
+  }
+
 }
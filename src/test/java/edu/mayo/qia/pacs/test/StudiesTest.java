@@ -6,9 +6,12 @@ import static org.junit.Assert.assertTrue;
 import javax.ws.rs.core.UriBuilder;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.io.ByteStreams;
 import com.sun.jersey.api.client.ClientResponse;
 
+import org.dcm4che2.data.UID;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
@@ -109,4 +112,95 @@ public class StudiesTest extends PACSTest {
     unzip.close();
   }
 
+  @Test
+  public void zipModes() throws Exception {
+    UUID uid = UUID.randomUUID();
+    String aet = uid.toString().substring(0, 10);
+    Pool pool = createPool(new Pool(aet, aet, aet, false));
+    createDevice(new Device(".*", ".*", 1234, pool));
+    sendDICOM(aet, aet, "TOF/IMAGE00*.dcm");
+    int studyKey = template.queryForObject("select StudyKey from STUDY where PoolKey = ?", Integer.class, pool.poolKey);
+    int instances = template.queryForObject("select count(*) from INSTANCE, SERIES where INSTANCE.SeriesKey = SERIES.SeriesKey and SERIES.StudyKey = ?", Integer.class, studyKey);
+    // Recorded as JPEG compressed, so stored in auto mode
+    String compressed = template.queryForObject("select min(INSTANCE.SOPInstanceUID) from INSTANCE, SERIES where INSTANCE.SeriesKey = SERIES.SeriesKey and SERIES.StudyKey = ?", String.class, studyKey);
+    template.update("update INSTANCE set TransferSyntaxUID = ? where SOPInstanceUID = ?", UID.JPEGBaseline1, compressed);
+
+    for (String mode : new String[] { "auto", "stored", "deflate" }) {
+      URI uri = UriBuilder.fromUri(baseUri).path("/pool/" + pool.poolKey + "/studies/" + studyKey + "/zip").queryParam("mode", mode).build();
+      ClientResponse response = client.resource(uri).get(ClientResponse.class);
+      assertEquals("Got result", 200, response.getStatus());
+      ZipInputStream unzip = new ZipInputStream(response.getEntityInputStream());
+      int count = 0;
+      ZipEntry entry;
+      while ((entry = unzip.getNextEntry()) != null) {
+        if (mode.equals("auto")) {
+          boolean store = entry.getName().endsWith("/" + compressed + ".dcm");
+          assertEquals((store ? "Stored " : "Deflated ") + entry.getName(), store ? ZipEntry.STORED : ZipEntry.DEFLATED, entry.getMethod());
+        }
+        if (mode.equals("stored")) {
+          assertEquals("Stored " + entry.getName(), ZipEntry.STORED, entry.getMethod());
+        }
+        if (mode.equals("deflate")) {
+          assertEquals("Deflated " + entry.getName(), ZipEntry.DEFLATED, entry.getMethod());
+        }
+        // Every entry is a whole DICOM file
+        byte[] contents = ByteStreams.toByteArray(unzip);
+        assertEquals("DICM " + entry.getName(), "DICM", new String(contents, 128, 4, "US-ASCII"));
+        count++;
+      }
+      unzip.close();
+      assertEquals("Instances in " + mode, instances, count);
+    }
+
+    URI uri = UriBuilder.fromUri(baseUri).path("/pool/" + pool.poolKey + "/studies/" + studyKey + "/zip").queryParam("mode", "fast").build();
+    assertEquals("Unknown mode", 400, client.resource(uri).get(ClientResponse.class).getStatus());
+  }
+
+  @Test
+  public void qido() throws Exception {
+    UUID uid = UUID.randomUUID();
+    String aet = uid.toString().substring(0, 10);
+    Pool pool = new Pool(aet, aet, aet, false);
+    pool = createPool(pool);
+    Device device = new Device(".*", ".*", 1234, pool);
+    device = createDevice(device);
+
+    sendDICOM(aet, aet, "TOF/*001.dcm");
+
+    URI uri = UriBuilder.fromUri(baseUri).path("/pool/" + pool.poolKey + "/studies").queryParam("PatientID", "MRA-0068").queryParam("includefield", "NumberOfStudyRelatedSeries").build();
+    ClientResponse response = client.resource(uri).accept(JSON).get(ClientResponse.class);
+    assertEquals("Got result", 200, response.getStatus());
+    ArrayNode studies = new ObjectMapper().readValue(response.getEntityInputStream(), ArrayNode.class);
+    assertEquals("Count", 1, studies.size());
+    assertEquals("PatientID", "MRA-0068", studies.get(0).get("00100020").get("Value").get(0).textValue());
+    assertEquals("NumberOfStudyRelatedSeries", 1, studies.get(0).get("00201206").get("Value").get(0).intValue());
+    String studyInstanceUID = studies.get(0).get("0020000D").get("Value").get(0).textValue();
+
+    // No match
+    uri = UriBuilder.fromUri(baseUri).path("/pool/" + pool.poolKey + "/studies").queryParam("PatientName", "NOBODY*").build();
+    response = client.resource(uri).accept(JSON).get(ClientResponse.class);
+    assertEquals("Empty", 0, new ObjectMapper().readValue(response.getEntityInputStream(), ArrayNode.class).size());
+
+    // Series of the study
+    uri = UriBuilder.fromUri(baseUri).path("/pool/" + pool.poolKey + "/studies/" + studyInstanceUID + "/series").build();
+    response = client.resource(uri).accept(JSON).get(ClientResponse.class);
+    assertEquals("Got result", 200, response.getStatus());
+    ArrayNode series = new ObjectMapper().readValue(response.getEntityInputStream(), ArrayNode.class);
+    assertEquals("Series", 1, series.size());
+
+    // Instances of the pool, paged
+    uri = UriBuilder.fromUri(baseUri).path("/pool/" + pool.poolKey + "/instances").queryParam("limit", "1").build();
+    response = client.resource(uri).accept(JSON).get(ClientResponse.class);
+    assertEquals("Got result", 200, response.getStatus());
+    assertEquals("Instances", 1, new ObjectMapper().readValue(response.getEntityInputStream(), ArrayNode.class).size());
+    uri = UriBuilder.fromUri(baseUri).path("/pool/" + pool.poolKey + "/instances").queryParam("limit", "0").build();
+    response = client.resource(uri).accept(JSON).get(ClientResponse.class);
+    assertEquals("No instances asked for", 200, response.getStatus());
+    assertEquals("No instances", 0, new ObjectMapper().readValue(response.getEntityInputStream(), ArrayNode.class).size());
+
+    // Unknown attributes are rejected
+    uri = UriBuilder.fromUri(baseUri).path("/pool/" + pool.poolKey + "/series").queryParam("NotAnAttribute", "1").build();
+    response = client.resource(uri).accept(JSON).get(ClientResponse.class);
+    assertEquals("Bad request", 400, response.getStatus());
+  }
 }
@@ -0,0 +1,135 @@
+package edu.mayo.qia.pacs.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.joda.time.DateTime;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import edu.mayo.qia.pacs.components.Study;
+import edu.mayo.qia.pacs.components.StudyIndex;
+
+public class StudyIndexTest extends PACSTest {
+
+  Study study(int key, String name, String id, DateTime date) {
+    Study study = new Study();
+    study.StudyKey = key;
+    study.PatientName = name;
+    study.PatientID = id;
+    study.StudyInstanceUID = "1.2.3." + key;
+    study.StudyDate = date == null ? null : date.toDate();
+    return study;
+  }
+
+  @Test
+  public void searchSortAndPage() {
+    StudyIndex index = new StudyIndex();
+    index.put(study(1, "Smith^John", "100", new DateTime(2010, 1, 1, 0, 0)));
+    index.put(study(2, "Doe^Jane", "200", new DateTime(2011, 1, 1, 0, 0)));
+    index.put(study(3, "Smith^Jane", "300", new DateTime(2012, 1, 1, 0, 0)));
+    index.put(study(4, null, "400", null));
+    assertEquals(4, index.size());
+
+    StudyIndex.Criteria criteria = new StudyIndex.Criteria().contains("PatientName", "smith");
+    assertEquals(2, index.search(criteria).total);
+
+    criteria = new StudyIndex.Criteria().wildcard("PatientName", "*^Jane");
+    criteria.sortColumn = "PatientName";
+    StudyIndex.Page page = index.search(criteria);
+    assertEquals(2, page.total);
+    assertEquals("Doe^Jane", page.studies.get(0).PatientName);
+
+    criteria = new StudyIndex.Criteria().anyOf("StudyInstanceUID", "1.2.3.2", "1.2.3.4");
+    assertEquals(2, index.search(criteria).total);
+    assertEquals(0, index.search(new StudyIndex.Criteria().anyOf("StudyInstanceUID", "1.2.3.")).total);
+
+    criteria = new StudyIndex.Criteria();
+    criteria.dateFrom = new DateTime(2011, 1, 1, 0, 0).toDate();
+    assertEquals(2, index.search(criteria).total);
+
+    criteria = new StudyIndex.Criteria();
+    criteria.sortColumn = "PatientID";
+    criteria.descending = true;
+    criteria.offset = 1;
+    criteria.limit = 2;
+    page = index.search(criteria);
+    assertEquals(4, page.total);
+    assertEquals(2, page.studies.size());
+    assertEquals("300", page.studies.get(0).PatientID);
+    assertEquals("200", page.studies.get(1).PatientID);
+  }
+
+  @Test
+  public void updateAndRemove() {
+    StudyIndex index = new StudyIndex();
+    for (int i = 1; i <= 2000; i++) {
+      index.put(study(i, "Patient" + i, Integer.toString(i), null));
+    }
+    index.put(study(5, "Renamed", "5", null));
+    assertEquals(2000, index.size());
+    assertEquals(1, index.search(new StudyIndex.Criteria().contains("PatientName", "Renamed")).total);
+
+    for (int i = 1; i <= 1990; i++) {
+      index.remove(i);
+    }
+    assertEquals(10, index.size());
+    StudyIndex.Criteria criteria = new StudyIndex.Criteria().wildcard("PatientName", "Patient199?");
+    assertEquals(9, index.search(criteria).total);
+    assertEquals(0, index.search(new StudyIndex.Criteria().contains("PatientName", "Renamed")).total);
+  }
+
+  @Test
+  public void wildcards() {
+    StudyIndex index = new StudyIndex();
+    index.put(study(1, "Smith^John", "100", null));
+    index.put(study(2, "Smithers^Jane", "200", null));
+    index.put(study(3, "Jones^Smith", "300", null));
+    assertEquals(2, index.search(new StudyIndex.Criteria().wildcard("PatientName", "Smith*")).total);
+    assertEquals(1, index.search(new StudyIndex.Criteria().wildcard("PatientName", "Smith^John")).total);
+    assertEquals(0, index.search(new StudyIndex.Criteria().wildcard("PatientName", "smith^john")).total);
+    assertEquals(3, index.search(new StudyIndex.Criteria().wildcard("PatientName", "*")).total);
+    assertEquals(3, index.search(new StudyIndex.Criteria().contains("PatientName", "SMITH")).total);
+  }
+
+  @Test
+  public void sortWhileAdding() {
+    StudyIndex index = new StudyIndex();
+    Random random = new Random(26);
+    List<String> ids = new ArrayList<String>();
+    for (int i = 1; i <= 20000; i++) {
+      // In order, in one spot and at random, so values are ranked again
+      String id = i % 3 == 0 ? String.format("%08d", i) : i % 3 == 1 ? "M" + String.format("%08d", i) : Long.toString(random.nextLong());
+      ids.add(id);
+      index.put(study(i, "Patient", id, new DateTime(2000, 1, 1, 0, 0).plusDays(random.nextInt(1000))));
+      if (i % 5000 == 0) {
+        StudyIndex.Criteria criteria = new StudyIndex.Criteria();
+        criteria.sortColumn = "PatientID";
+        List<String> sorted = new ArrayList<String>(ids);
+        Collections.sort(sorted);
+        StudyIndex.Page page = index.search(criteria);
+        for (int row = 0; row < sorted.size(); row++) {
+          assertEquals("Row " + row, sorted.get(row), page.studies.get(row).PatientID);
+        }
+      }
+    }
+
+    // The first page of the latest studies
+    StudyIndex.Criteria criteria = new StudyIndex.Criteria();
+    criteria.sortColumn = "StudyDate";
+    criteria.descending = true;
+    criteria.limit = 20;
+    StudyIndex.Page page = index.search(criteria);
+    assertEquals(20, page.studies.size());
+    for (int row = 1; row < page.studies.size(); row++) {
+      assertTrue("Row " + row, !page.studies.get(row).StudyDate.after(page.studies.get(row - 1).StudyDate));
+    }
+    criteria.offset = 19;
+    criteria.limit = 1;
+    assertEquals(page.studies.get(19).StudyKey, index.search(criteria).studies.get(0).StudyKey);
+  }
+}
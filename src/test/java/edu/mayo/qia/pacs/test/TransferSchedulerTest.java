@@ -0,0 +1,126 @@
+package edu.mayo.qia.pacs.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import com.codahale.metrics.Gauge;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import edu.mayo.qia.pacs.Notion;
+import edu.mayo.qia.pacs.NotionConfiguration;
+import edu.mayo.qia.pacs.dicom.TransferScheduler;
+import edu.mayo.qia.pacs.dicom.TransferScheduler.Priority;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+public class TransferSchedulerTest extends PACSTest {
+  static final long MB = 1024L * 1024L;
+
+  @Autowired
+  TransferScheduler transferScheduler;
+
+  @Autowired
+  NotionConfiguration configuration;
+
+  int maxOutboundMBps;
+  final List<String> granted = Collections.synchronizedList(new ArrayList<String>());
+  final List<Thread> threads = new ArrayList<Thread>();
+
+  @Before
+  public void limit() {
+    maxOutboundMBps = configuration.notion.maxOutboundMBps;
+    configuration.notion.maxOutboundMBps = 1;
+  }
+
+  @After
+  public void unlimit() throws Exception {
+    join();
+    configuration.notion.maxOutboundMBps = maxOutboundMBps;
+  }
+
+  @Test
+  public void tokenBucket() throws Exception {
+    String pool = UUID.randomUUID().toString();
+    // Spend a second more than the burst
+    transferScheduler.acquire(Priority.Interactive, pool, "device", 2 * MB);
+    long start = System.currentTimeMillis();
+    transferScheduler.acquire(Priority.Interactive, pool, "device", 1);
+    long waited = System.currentTimeMillis() - start;
+    assertTrue("Waited for the budget, " + waited + "ms", waited >= 800);
+  }
+
+  @Test
+  public void priority() throws Exception {
+    String pool = UUID.randomUUID().toString();
+    transferScheduler.acquire(Priority.Interactive, pool, "device", 2 * MB);
+    // Queued while the link is spent, the most urgent goes first
+    queue(Priority.Bulk, pool, "bulk", MB / 4);
+    queue(Priority.Autoforward, pool, "autoforward", MB / 4);
+    queue(Priority.Interactive, pool, "interactive", MB / 4);
+    join();
+    assertEquals("Order", Arrays.asList("interactive", "autoforward", "bulk"), granted);
+  }
+
+  @Test
+  public void fairShare() throws Exception {
+    String a = UUID.randomUUID().toString();
+    String b = UUID.randomUUID().toString();
+    transferScheduler.acquire(Priority.Autoforward, a, "device", 2 * MB);
+    // The first pool queues all of its sends before the second, but they take
+    // turns
+    queue(Priority.Autoforward, a, "a1", MB / 4);
+    queue(Priority.Autoforward, a, "a2", MB / 4);
+    queue(Priority.Autoforward, a, "a3", MB / 4);
+    queue(Priority.Autoforward, b, "b1", MB / 4);
+    queue(Priority.Autoforward, b, "b2", MB / 4);
+    queue(Priority.Autoforward, b, "b3", MB / 4);
+    join();
+    assertEquals("Order", Arrays.asList("a1", "b1", "a2", "b2", "a3", "b3"), granted);
+  }
+
+  /** Wait for bytes in a new thread, and return once it is waiting. */
+  void queue(final Priority priority, final String pool, final String name, final long bytes) throws Exception {
+    int before = waiting(priority);
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          transferScheduler.acquire(priority, pool, name, bytes);
+          granted.add(name);
+        } catch (InterruptedException e) {
+          // Test is over
+        }
+      }
+    });
+    threads.add(thread);
+    thread.start();
+    long end = System.currentTimeMillis() + 1000;
+    while (waiting(priority) == before && System.currentTimeMillis() < end) {
+      Thread.sleep(1);
+    }
+    assertEquals(name + " waiting", before + 1, waiting(priority));
+  }
+
+  void join() throws InterruptedException {
+    for (Thread thread : threads) {
+      thread.join(10000);
+    }
+  }
+
+  int waiting(Priority priority) {
+    @SuppressWarnings("unchecked")
+    Gauge<Integer> gauge = Notion.metrics.getGauges().get("Transfer." + priority.name() + ".waiting");
+    return gauge.getValue();
+  }
+}
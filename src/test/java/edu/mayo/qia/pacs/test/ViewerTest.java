@@ -3,6 +3,7 @@ package edu.mayo.qia.pacs.test;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import javax.imageio.ImageIO;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.UriBuilder;
 
@@ -16,11 +17,19 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
+import java.awt.image.BufferedImage;
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map.Entry;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import edu.mayo.qia.pacs.Notion;
 import edu.mayo.qia.pacs.components.Device;
 import edu.mayo.qia.pacs.components.Pool;
 
@@ -76,7 +85,12 @@ public class ViewerTest extends PACSTest {
     // Check length of series list
     ArrayNode seriesList = json.withArray("seriesList");
     assertEquals("have series", 2, seriesList.size());
-
+    int images = 0;
+    for (JsonNode series : seriesList) {
+      assertEquals("numImages", series.get("numImages").intValue(), series.get("instanceList").size());
+      images += series.get("numImages").intValue();
+    }
+    assertEquals("all images", template.queryForObject("select count(*) from INSTANCE, SERIES where INSTANCE.SeriesKey = SERIES.SeriesKey and SERIES.StudyKey = " + studyId, Integer.class), new Integer(images));
   }
 
   @Test
@@ -124,5 +138,113 @@ public class ViewerTest extends PACSTest {
     ArrayNode seriesList = json.withArray("seriesList");
     assertEquals("have series", 2, seriesList.size());
 
+    // Fetch an image, then again as a cache would
+    String imageId = seriesList.get(0).get("instanceList").get(0).get("imageId").textValue();
+    uri = UriBuilder.fromUri(baseUri).path("/viewer/" + hash + "/image/" + imageId).build();
+    response = client.resource(uri).get(ClientResponse.class);
+    assertEquals("Got image", 200, response.getStatus());
+    String etag = response.getHeaders().getFirst("ETag");
+    int length = Integer.parseInt(response.getHeaders().getFirst("Content-Length"));
+    assertTrue("ETag", etag != null);
+    assertTrue("Cache-Control", response.getHeaders().getFirst("Cache-Control").contains("no-cache"));
+    assertEquals("Image", length, response.getEntity(byte[].class).length);
+
+    response = client.resource(uri).header("If-None-Match", etag).get(ClientResponse.class);
+    assertEquals("Not modified", 304, response.getStatus());
+
+    response = client.resource(uri).header("Range", "bytes=128-255").get(ClientResponse.class);
+    assertEquals("Partial", 206, response.getStatus());
+    assertEquals("Content-Range", "bytes 128-255/" + length, response.getHeaders().getFirst("Content-Range"));
+    assertEquals("Range", 128, response.getEntity(byte[].class).length);
+
+    response = client.resource(uri).header("Range", "bytes=" + length + "-").get(ClientResponse.class);
+    assertEquals("Unsatisfiable", 416, response.getStatus());
+  }
+
+  @Test
+  public void rendered() throws Exception {
+    UUID uid = UUID.randomUUID();
+    String aet = uid.toString().substring(0, 10);
+    Pool pool = createPool(new Pool(aet, aet, aet, false));
+    createDevice(new Device(".*", ".*", 1234, pool));
+    sendDICOM(aet, aet, "TOF/*001.dcm");
+    Integer studyKey = template.queryForObject("select StudyKey from STUDY where PoolKey = " + pool.poolKey, Integer.class);
+
+    URI uri = UriBuilder.fromUri(baseUri).path("/pool/" + pool.poolKey + "/viewer/study/" + studyKey + "/series").build();
+    ObjectNode json = client.resource(uri).accept(JSON).get(ObjectNode.class);
+    JsonNode series = json.withArray("seriesList").get(0);
+    int instanceKey = series.get("instanceList").get(0).get("instanceKey").intValue();
+    String thumbnail = series.get("thumbnail").textValue();
+    String prefix = "/rest/pool/" + pool.poolKey + "/viewer/rendered/" + instanceKey + "/0?v=";
+    assertTrue("thumbnail " + thumbnail, thumbnail.startsWith(prefix));
+
+    // A thumbnail, rendered then served from the cache
+    long hits = Notion.metrics.meter("Rendered.hits").getCount();
+    uri = UriBuilder.fromUri(baseUri).path("/pool/" + pool.poolKey + "/viewer/rendered/" + instanceKey + "/0").build();
+    for (int i = 0; i < 2; i++) {
+      ClientResponse response = client.resource(uri).get(ClientResponse.class);
+      assertEquals("Got thumbnail", 200, response.getStatus());
+      assertEquals("JPEG", "image/jpeg", response.getType().toString());
+      assertEquals("Inline", null, response.getHeaders().getFirst("Content-Disposition"));
+      BufferedImage image = ImageIO.read(response.getEntityInputStream());
+      assertTrue("Thumbnail width", image.getWidth() > 0 && image.getWidth() <= 128);
+    }
+    assertEquals("Cache hit", hits + 1, Notion.metrics.meter("Rendered.hits").getCount());
+
+    // Kept by the browser only when the URL names the version
+    ClientResponse response = client.resource(uri).get(ClientResponse.class);
+    assertTrue("Revalidated", response.getHeaders().getFirst("Cache-Control").contains("no-cache"));
+    response = client.resource(UriBuilder.fromUri(uri).queryParam("v", thumbnail.substring(prefix.length())).build()).get(ClientResponse.class);
+    assertTrue("Immutable", response.getHeaders().getFirst("Cache-Control").contains("immutable"));
+    response = client.resource(UriBuilder.fromUri(uri).queryParam("v", "0").build()).get(ClientResponse.class);
+    assertTrue("Old version", response.getHeaders().getFirst("Cache-Control").contains("no-cache"));
+
+    // Full size PNG, and a windowed JPEG
+    response = client.resource(UriBuilder.fromUri(uri).queryParam("size", 0).queryParam("format", "png").build()).get(ClientResponse.class);
+    assertEquals("Got PNG", 200, response.getStatus());
+    assertEquals("PNG", "image/png", response.getType().toString());
+    assertTrue("PNG", ImageIO.read(response.getEntityInputStream()).getWidth() > 128);
+    response = client.resource(UriBuilder.fromUri(uri).queryParam("wc", 100).queryParam("ww", 400).build()).get(ClientResponse.class);
+    assertEquals("Got windowed", 200, response.getStatus());
+
+    // No such frame, or no such instance in the pool
+    response = client.resource(UriBuilder.fromUri(baseUri).path("/pool/" + pool.poolKey + "/viewer/rendered/" + instanceKey + "/5").build()).get(ClientResponse.class);
+    assertEquals("No frame", 400, response.getStatus());
+    int otherKey = template.queryForObject("select max(InstanceKey) from INSTANCE", Integer.class) + 1;
+    response = client.resource(UriBuilder.fromUri(baseUri).path("/pool/" + pool.poolKey + "/viewer/rendered/" + otherKey + "/0").build()).get(ClientResponse.class);
+    assertEquals("No instance", 404, response.getStatus());
+  }
+
+  @Test
+  public void renderedOnce() throws Exception {
+    UUID uid = UUID.randomUUID();
+    String aet = uid.toString().substring(0, 10);
+    Pool pool = createPool(new Pool(aet, aet, aet, false));
+    createDevice(new Device(".*", ".*", 1234, pool));
+    sendDICOM(aet, aet, "TOF/*001.dcm");
+    Integer instanceKey = template.queryForObject("select InstanceKey from INSTANCE, SERIES, STUDY where INSTANCE.SeriesKey = SERIES.SeriesKey and SERIES.StudyKey = STUDY.StudyKey and STUDY.PoolKey = ?", Integer.class, pool.poolKey);
+
+    // Asked for at once, rendered once
+    final URI uri = UriBuilder.fromUri(baseUri).path("/pool/" + pool.poolKey + "/viewer/rendered/" + instanceKey + "/0").queryParam("size", 64).build();
+    long misses = Notion.metrics.meter("Rendered.misses").getCount();
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<ClientResponse>> responses = new ArrayList<Future<ClientResponse>>();
+      for (int i = 0; i < 4; i++) {
+        responses.add(executor.submit(new Callable<ClientResponse>() {
+          @Override
+          public ClientResponse call() throws Exception {
+            return client.resource(uri).get(ClientResponse.class);
+          }
+        }));
+      }
+      for (Future<ClientResponse> response : responses) {
+        assertEquals("Got thumbnail", 200, response.get().getStatus());
+        assertTrue("Thumbnail width", ImageIO.read(response.get().getEntityInputStream()).getWidth() <= 64);
+      }
+    } finally {
+      executor.shutdown();
+    }
+    assertEquals("Rendered", misses + 1, Notion.metrics.meter("Rendered.misses").getCount());
   }
 }